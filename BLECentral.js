@@ -11,7 +11,12 @@ import Encoder from './Encoder'
  * @event scan.end Scanning has ended. If ended with an error, the error is returned as the event data
  * @event scan.added Discovered a new device
  * @event scan.updated A device which has already been discovered was updated
- * @event scan.removed A device is no longer in range
+ * @event scan.removed A device is no longer in range, when scanning with a `batchInterval` or `presence`
+ * @event connection.state A connection changed state. Android only. The event data has `address`, `device` if known,
+ *      `state`, `error`, `timeToReady` when it becomes ready, and `attempt` when waiting to reconnect.
+ * @event presence.enter A device has come into range, when scanning with `presence`
+ * @event presence.exit A device has gone out of range, when scanning with `presence`
+ * @event presence.band A device has moved to a different proximity band, when scanning with `presence`
  * @event updated A change has occurred
  */
 export default new class BLECentral extends EventEmitter {
@@ -28,10 +33,19 @@ export default new class BLECentral extends EventEmitter {
         /** True if scanning */
         this.scanning = false
 
+        /** When scanning with a `batchInterval`, the number of results dropped by native code because nothing had changed */
+        this.droppedResults = 0
+
+        /** When scanning with a `batchInterval`, the number of results merged into an update which was already waiting to be sent */
+        this.coalescedResults = 0
+
         // Event listener
         this.emitter = new NativeEventEmitter(NativeModules.RNBluetoothLe)
         this.emitter.addListener('BLECentral:ScanEnd', this.onScanEnd.bind(this))
         this.emitter.addListener('BLECentral:ScanAdded', this.onScanAdded.bind(this))
+        this.emitter.addListener('BLECentral:ScanBatch', this.onScanBatch.bind(this))
+        this.emitter.addListener('BLECentral:Presence', this.onPresence.bind(this))
+        this.emitter.addListener('BLECentral:ConnectionState', this.onConnectionState.bind(this))
 
     }
 
@@ -39,15 +53,30 @@ export default new class BLECentral extends EventEmitter {
      * Begin scanning for devices.
      * 
      * @param {string[]} serviceFilter An optional list of service UUIDs. If set, will only return devices with these services available.
+     * @param {object} options Optional. `batchInterval` is the time in milliseconds between batches of results. If set, results are 
+     *      collected and deduplicated by native code and only changed devices are sent, once per interval. `maxBatchSize` is the maximum 
+     *      number of devices per batch, defaults to 100. `scanMode` is 'lowPower' (the default), 'balanced', 'lowLatency' or
+     *      'adaptive', which picks the mode from how quickly new devices are being found and whether the app is in the
+     *      foreground. Android only: `window` and `interval` are in milliseconds, and if set the scan only runs for `window`
+     *      at the start of each `interval`, such as 2000 out of every 10000, to save battery. Android only: if `presence`
+     *      is set, RSSI is smoothed by native code and only presence events are sent instead of every result. It can
+     *      contain `enterRssi` (default -90) and `exitRssi` (default -95), the smoothed RSSI needed to enter and below
+     *      which a device exits, `enterSamples` (default 3), the number of results needed before a device can enter,
+     *      `exitTimeout` (default 10000), the time in milliseconds without results after which a device exits, and
+     *      `immediateRssi` (default -55) and `nearRssi` (default -75), the proximity band boundaries.
+     *      Android only: if `sendResults` is false, results are only kept by native code, to be read with `snapshotDevices()`.
+     *      Android only: `lostTimeout` (default 10000) is the time in milliseconds without results after which a device
+     *      is lost, and removed when scanning with a `batchInterval`, and `forgetTimeout` (default 60000) the time
+     *      after which `snapshotDevices()` forgets it.
      * @returns {Device[]} (todo) Resolves once the scan has started. Returns a list of already connected devices.
      */
-    async startScan(serviceFilter = []) {
+    async startScan(serviceFilter = [], options = {}) {
 
         // Convert all service names to UUIDs
         serviceFilter = serviceFilter.map(name => Encoder.toUUID(name))
 
         // Send request to native code
-        await NativeModules.RNBluetoothLe.scan(serviceFilter)
+        await NativeModules.RNBluetoothLe.scan(serviceFilter, options)
         this.scanning = true
         this.emit('scan.start')
         this.emit('updated')
@@ -68,6 +97,118 @@ export default new class BLECentral extends EventEmitter {
 
     }
 
+    /**
+     * Set connection limits. Android only. Connections are kept open between operations, and closed when idle or when
+     * another device needs the slot.
+     *
+     * @param {object} options `maxConnections` is the maximum number of open connections, which should match the
+     *      Bluetooth controller's limit (default 7). `idleTimeout` is the time in milliseconds a connection can be unused
+     *      before it's closed (default 30000), or 0 to keep idle connections open until the slot is needed.
+     */
+    async setConnectionLimits(options = {}) {
+
+        // Send request to native code
+        await NativeModules.RNBluetoothLe.setConnectionLimits(options)
+
+    }
+
+    /**
+     * Get connection pool stats. Android only.
+     *
+     * @returns {object} `hits` and `misses` count operations which reused or opened a connection, `evictions` and
+     *      `idleEvictions` count connections closed to make room or because they were idle, and `size` is the number
+     *      of open connections. `averageTimeToReady` and `maxTimeToReady` are the time in milliseconds from starting to
+     *      connect until services are ready, and `reconnects` counts reconnect attempts after a link dropped.
+     */
+    async getConnectionStats() {
+
+        // Send request to native code
+        return await NativeModules.RNBluetoothLe.getConnectionStats()
+
+    }
+
+    /**
+     * Get operation metrics, to send to your own telemetry. Android only.
+     *
+     * @param {object} options Optional. `reset` starts measuring again from zero after taking the snapshot.
+     * @returns {object} `operations` has latency stats for `connect`, `discover`, `read`, `write`, `advertiseStart`,
+     *      `scanStart` and `firstScanResult`, each with `count`, and `mean`, `p50`, `p90`, `p99` and `max` in
+     *      milliseconds. `devices` has the same for the connect, discover, read and write operations of each device, by
+     *      address. `bytesRead`, `bytesWritten`, `bytesNotified`, `retries` and `timeouts` are counters, `gattErrors` is
+     *      an array of `status`, `error` and `count`, and `since` and `duration` give the measured period.
+     *      `connect` only measures connects the app asked for, not automatic reconnects, which wait for the device to
+     *      come back into range. Before Android 5.0 nothing is measured, and the snapshot is empty.
+     */
+    async getMetrics(options = {}) {
+        return await NativeModules.RNBluetoothLe.getMetrics(options)
+    }
+
+    /**
+     * Take a snapshot of the devices seen during the current scan, strongest signal first. Android only. Use this with
+     * the `sendResults: false` scan option when there are too many devices to handle every result.
+     *
+     * @param {object} query Optional. `minRssi` is the minimum RSSI, `namePrefix` only includes devices whose name starts
+     *      with it, `seenWithin` only includes devices seen within this many milliseconds, and `includeLost` includes
+     *      devices not seen within the scan's `lostTimeout`.
+     * @returns {object} `snapshot` is the snapshot ID to pass to `getDevicePage()`, and `total` the number of devices.
+     *      Only the 8 newest snapshots are kept, so release them with `releaseDeviceSnapshot()` when done.
+     */
+    async snapshotDevices(query = {}) {
+        return await NativeModules.RNBluetoothLe.snapshotDevices(query)
+    }
+
+    /**
+     * Get a page of devices from a snapshot. Android only.
+     *
+     * @param {number} snapshot Snapshot ID from `snapshotDevices()`.
+     * @param {number} offset Index of the first device.
+     * @param {number} limit Maximum number of devices.
+     * @returns {object} `devices` is an array of `address`, `name`, `rssi`, `firstSeen`, `lastSeen` and `lost`, which is
+     *      true if the device wasn't seen within the scan's `lostTimeout`, and `total` is the number of devices in the
+     *      snapshot.
+     */
+    async getDevicePage(snapshot, offset = 0, limit = 100) {
+        return await NativeModules.RNBluetoothLe.getDevicePage(snapshot, offset, limit)
+    }
+
+    /**
+     * Release a snapshot. Android only.
+     *
+     * @param {number} snapshot Snapshot ID from `snapshotDevices()`.
+     */
+    releaseDeviceSnapshot(snapshot) {
+        NativeModules.RNBluetoothLe.releaseDeviceSnapshot(snapshot)
+    }
+
+    /**
+     * Get scan stats. Android only. Use these to measure the battery cost of a scan.
+     *
+     * @returns {object} `scanTime` is the total time spent scanning in seconds, `results` is the number of results
+     *      received and `resultsPerScanSecond` the rate while scanning. `starts` counts scans started, and
+     *      `delayedStarts` those delayed because Android blocks apps which start more than 5 scans in 30 seconds.
+     *      `mode` is the current scan mode, or null if not scanning.
+     */
+    async getScanStats() {
+
+        // Send request to native code
+        return await NativeModules.RNBluetoothLe.getScanStats()
+
+    }
+
+    /**
+     * Find devices which had a service when they were last connected, without connecting. Android only. Services are
+     * remembered across app restarts.
+     *
+     * @param {string} service Service name or UUID.
+     * @returns {object[]} The matching devices, with their last known `address` and when they were last `updated`.
+     */
+    async getCachedDevices(service) {
+
+        // Send request to native code
+        return await NativeModules.RNBluetoothLe.getCachedDevices(Encoder.toUUID(service))
+
+    }
+
     /**
      * Called by native code when the scan has ended.
      * 
@@ -89,6 +230,108 @@ export default new class BLECentral extends EventEmitter {
      */
     onScanAdded(deviceInfo) {
 
+        // Update device
+        this.updateDevice(deviceInfo)
+        this.emit('updated')
+
+    }
+
+    /**
+     * Called by native code with a batch of changed devices, when scanning with a `batchInterval`.
+     * 
+     * @private
+     */
+    onScanBatch(batch) {
+
+        // Store stats
+        this.droppedResults = batch.dropped
+        this.coalescedResults = batch.coalesced
+
+        // Update each device
+        for (let deviceInfo of batch.devices) {
+
+            // Check if device was lost
+            if (deviceInfo.lost) {
+
+                // Device removed
+                let device = this.devices.find(d => d.address == deviceInfo.address)
+                if (!device) continue
+                this.devices = this.devices.filter(d => d != device)
+                this.emit('scan.removed', device)
+
+            } else {
+
+                // Device added or updated
+                this.updateDevice(deviceInfo)
+
+            }
+
+        }
+
+        // Emit a single change event for the whole batch
+        this.emit('updated')
+
+    }
+
+    /**
+     * Called when a connection changes state.
+     *
+     * @private
+     */
+    onConnectionState(event) {
+
+        // Update the device if we know it
+        let device = this.devices.find(d => d.address == event.address)
+        if (device) {
+            device.connectionState = event.state
+            device.emit('updated', device)
+        }
+
+        // Notify
+        this.emit('connection.state', { ...event, device })
+
+    }
+
+    /**
+     * Called when a device enters, exits or changes proximity band.
+     *
+     * @private
+     */
+    onPresence(event) {
+
+        // Check event type
+        let device = this.devices.find(d => d.address == event.address)
+        if (event.type == 'exit') {
+
+            // Device removed
+            if (!device) return
+            this.devices = this.devices.filter(d => d != device)
+            device.band = null
+            this.emit('presence.exit', device)
+            this.emit('scan.removed', device)
+
+        } else {
+
+            // Device entered or moved
+            this.updateDevice(event)
+            device = this.devices.find(d => d.address == event.address)
+            device.band = event.band
+            this.emit(event.type == 'enter' ? 'presence.enter' : 'presence.band', device)
+
+        }
+
+        // Notify updated
+        this.emit('updated')
+
+    }
+
+    /**
+     * Add or update a device from native device info.
+     * 
+     * @private
+     */
+    updateDevice(deviceInfo) {
+
         // Check if device already exists
         let device = this.devices.find(d => d.address == deviceInfo.address)
         if (device) {
@@ -98,7 +341,6 @@ export default new class BLECentral extends EventEmitter {
             device.rssi = deviceInfo.rssi
             device.emit('updated', device)
             this.emit('scan.updated', device)
-            this.emit('updated')
 
         } else {
 
@@ -109,7 +351,6 @@ export default new class BLECentral extends EventEmitter {
             device.rssi = deviceInfo.rssi
             this.devices.push(device)
             this.emit('scan.added', device)
-            this.emit('updated')
 
         }
 
@@ -16,6 +16,8 @@ export default new class BLEPeripheral {
         // Add an event listener
         this.emitter = new NativeEventEmitter(NativeModules.RNBluetoothLe)
         this.emitter.addListener('BLEPeripheral:ReadyStateChanged', this.onReadyStateChange.bind(this))
+        this.emitter.addListener('BLEPeripheral:ReadRequest', this.onReadRequest.bind(this))
+        this.emitter.addListener('BLEPeripheral:Write', this.onWrite.bind(this))
 
         // List of registered services
         this.services = {}
@@ -31,7 +33,7 @@ export default new class BLEPeripheral {
         // If ready, re-register services
         if (this.ready) {
             for (let uuid in this.services) {
-                NativeModules.RNBluetoothLe.createService(uuid, this.services[uuid])
+                NativeModules.RNBluetoothLe.createService(uuid, this.toNative(this.services[uuid]))
             }
         }
 
@@ -52,7 +54,120 @@ export default new class BLEPeripheral {
         this.services[uuid] = characteristics
 
         // Send to native code if ready
-        await NativeModules.RNBluetoothLe.createService(uuid, characteristics)
+        await NativeModules.RNBluetoothLe.createService(uuid, this.toNative(characteristics))
+
+    }
+
+    /**
+     * Set advertising options. Android only. If advertising, the advertisement is updated.
+     *
+     * @param {object} options `mode` is 'lowPower' (the default), 'balanced' or 'lowLatency', trading battery for how
+     *      quickly other devices find us. `txPower` is 'ultraLow', 'low', 'medium' (the default) or 'high'. If
+     *      `allowExtended` is true, services which don't fit in a legacy advertisement are put in an extended one
+     *      instead, which only Bluetooth 5 scanners can see.
+     */
+    async setAdvertiseOptions(options = {}) {
+        return await NativeModules.RNBluetoothLe.setAdvertiseOptions(options)
+    }
+
+    /**
+     * Get where each service will go in our advertisement. Android only. A legacy advertisement only has room for a
+     * few services, and the rest go in the scan response. Any which still don't fit are only listed in a service
+     * digest, which scanners using this library check, so they can still find us by service.
+     *
+     * @returns {object} `advertised`, `scanResponse` and `digested` are arrays of service UUIDs. `extended` is true
+     *      for an extended advertisement. `advertisedLength`, `scanResponseLength` and `maxLength` are in bytes.
+     */
+    async getAdvertisementLayout() {
+        return await NativeModules.RNBluetoothLe.getAdvertisementLayout()
+    }
+
+    /**
+     * Set a characteristic's value and notify every remote device which has subscribed to it. Android only. Each
+     * device is sent values as fast as it can take them. A device which falls behind skips to the newest value.
+     *
+     * @param {string} service Service name or UUID.
+     * @param {string} characteristic Characteristic name or UUID. Must have been created with `canNotify`.
+     * @param {string} data The new value.
+     * @param {string} encoding Optional. The format of `data`, either 'utf8' (the default), 'base64' or 'hex'.
+     * @returns {object} `subscribers` is the number of devices notified. `sent`, `coalesced` and `dropped` are running
+     *      totals of notifications sent, values skipped by slow devices, and values dropped because the system kept
+     *      refusing to send them.
+     */
+    async notify(service, characteristic, data, encoding = 'utf8') {
+        return await NativeModules.RNBluetoothLe.notifyCharacteristic(Encoder.toUUID(service), Encoder.toUUID(characteristic), data, encoding)
+    }
+
+    /**
+     * Convert characteristics to the info passed to native code. Functions can't cross the bridge, so characteristics
+     * with a read callback are marked as dynamic and their values are requested with a ReadRequest event.
+     *
+     * @private
+     */
+    toNative(characteristics) {
+        return characteristics.map(chr => ({
+            uuid: chr.uuid,
+            canRead: chr.canRead,
+            canWrite: chr.canWrite,
+            canNotify: chr.canNotify,
+            data: chr.data,
+            encoding: chr.encoding,
+            dynamic: !!chr.readCallback,
+            cacheTTL: chr.cacheTTL
+        }))
+    }
+
+    /**
+     * Called by native code with a batch of values written by remote devices.
+     *
+     * @private
+     */
+    onWrite(batch) {
+
+        // Pass each value to its characteristic's write callback
+        for (let write of batch.writes) {
+
+            // Find the characteristic
+            let uuid = Object.keys(this.services).find(key => key.toLowerCase() == write.service.toLowerCase())
+            let characteristics = this.services[uuid] || []
+            let chr = characteristics.find(c => c.uuid && c.uuid.toLowerCase() == write.characteristic.toLowerCase())
+            if (!chr || !chr.writeCallback)
+                continue
+
+            // Call it
+            try {
+                chr.writeCallback(write.value, write.address)
+            } catch (err) {
+                console.warn('BLEPeripheral: Write callback failed', err)
+            }
+
+        }
+
+    }
+
+    /**
+     * Called by native code when a remote device reads a characteristic which has a read callback.
+     *
+     * @private
+     */
+    async onReadRequest(request) {
+
+        // Find the characteristic
+        let uuid = Object.keys(this.services).find(key => key.toLowerCase() == request.service.toLowerCase())
+        let characteristics = this.services[uuid] || []
+        let chr = characteristics.find(c => c.uuid && c.uuid.toLowerCase() == request.characteristic.toLowerCase())
+
+        // Get the value, the read fails if there's none
+        let value = null
+        try {
+            if (chr && chr.readCallback)
+                value = await chr.readCallback(request.address)
+        } catch (err) {
+            console.warn('BLEPeripheral: Read callback failed', err)
+        }
+
+        // Send it back
+        NativeModules.RNBluetoothLe.respondToRead(request.id, value == null ? null : '' + value, chr ? chr.encoding : null)
 
     }
 
@@ -62,7 +177,9 @@ export default new class BLEPeripheral {
      * @param {string} name The service's name or UUID.
      */
     async removeService(name) {
-        return await NativeModules.RNBluetoothLe.removeService(Encoder.toUUID(uuid))
+        let uuid = Encoder.toUUID(name)
+        delete this.services[uuid]
+        return await NativeModules.RNBluetoothLe.removeService(uuid)
     }
 
 }
\ No newline at end of file
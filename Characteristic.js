@@ -25,12 +25,32 @@ export default class Characteristic {
     /** True if can be written to */
     canWrite = false
 
+    /** True if remote devices can subscribe to changes, see BLEPeripheral.notify(). Android only. */
+    canNotify = false
+
     /** Fixed data. If set, this data will be advertised even while the app is closed. */
     data = null
 
+    /** 
+     * Format of `data`. Either 'utf8' for text, or 'base64' or 'hex' for binary data. The React Native bridge can't
+     * pass an ArrayBuffer, so binary data must be encoded as a string.
+     */
+    encoding = 'utf8'
+
+    /**
+     * If set, the value is produced by this function when a remote device reads the characteristic, instead of using
+     * `data`. It's called with the reading device's address and should return the value, or a promise for it, in the
+     * format given by `encoding`. Values must arrive within 5 seconds, or the read fails.
+     */
+    readCallback = null
+
+    /** Time in milliseconds a value from `readCallback` is reused for, so that many reads share one call. */
+    cacheTTL = 1000
+
     /** 
      * If canWrite is true, when a remote device writes to this characteristic this callbback
-     * will be called with the written data.
+     * will be called with the written data, in the format given by `encoding`, and the device's address.
+     * Long writes are only delivered once the device has finished the whole write.
      */
     writeCallback = null
 
@@ -39,13 +59,51 @@ export default class Characteristic {
      * 
      * @chainable
      * @param {string} txt The data to set.
+     * @param {string} encoding Optional. The format of the data, either 'utf8', 'base64' or 'hex'.
      */
-    withValue(txt) {
+    withValue(txt, encoding = 'utf8') {
         this.canRead = true
         this.canWrite = false
         this.data = txt
+        this.encoding = encoding
         this.writeCallback = null
         return this
     }
 
-}
\ No newline at end of file
+    /**
+     * Sets this characteristic to read-only, with a value produced on demand.
+     *
+     * @chainable
+     * @param {function} callback Called with the reading device's address, returns the value or a promise for it.
+     * @param {object} options Optional. `encoding` is the format of the returned value, either 'utf8', 'base64' or 'hex'.
+     *      `cacheTTL` is the time in milliseconds a value is reused for, default 1000.
+     */
+    withReadHandler(callback, options = {}) {
+        this.canRead = true
+        this.canWrite = false
+        this.data = null
+        this.encoding = options.encoding || 'utf8'
+        this.cacheTTL = typeof options.cacheTTL == 'number' ? options.cacheTTL : 1000
+        this.readCallback = callback
+        this.writeCallback = null
+        return this
+    }
+
+    /**
+     * Sets this characteristic to write-only, calling the callback with each value written by a remote device.
+     *
+     * @chainable
+     * @param {function} callback Called with the written data and the device's address.
+     * @param {string} encoding Optional. The format to receive data in, either 'utf8', 'base64' or 'hex'.
+     */
+    withWriteHandler(callback, encoding = 'utf8') {
+        this.canRead = false
+        this.canWrite = true
+        this.data = null
+        this.encoding = encoding
+        this.readCallback = null
+        this.writeCallback = callback
+        return this
+    }
+
+}
@@ -1,6 +1,6 @@
 
 import EventEmitter from "./EventEmitter"
-import { NativeModules } from 'react-native'
+import { NativeEventEmitter, NativeModules } from 'react-native'
 import Encoder from "./Encoder";
 
 /**
@@ -19,23 +19,164 @@ export default class Device extends EventEmitter {
     /** Signal strength of this device */
     rssi = 0
 
+    /**
+     * Connection state. Android only. One of 'disconnected', 'connecting', 'connected', 'discovering', 'ready',
+     * 'disconnecting' or 'backoff', which means the link dropped and it's waiting to reconnect.
+     */
+    connectionState = 'disconnected'
+
+    /** When scanning with `presence`, the proximity band: 'immediate', 'near' or 'far'. Android only. */
+    band = null
+
     /** When using BLEDiscovery, this contains the device's advertised data. It will be NULL if device data has not been read yet. */
     data = null
 
     /** When using BLEDiscovery, this contains the timestamp of when the data was last read. */
     dataTimestamp = 0
 
+    /**
+     * Connect to the device and set connection options. Android only. Reads and writes connect automatically, so this
+     * is only needed to change the options. If already connected, the new options are applied to the existing connection.
+     * 
+     * @param {object} options Optional. `mtu` is the ATT MTU to request, up to 517 (the default). Larger MTUs mean fewer,
+     *      bigger packets for writes. `priority` is 'high' for bulk transfers, 'balanced' (the default), or 'lowPower'
+     *      for idle connections. `timeout` is the maximum time in milliseconds to connect. If `autoReconnect` is true,
+     *      the connection is kept open and reconnects with exponential backoff if the link drops. Connections with
+     *      subscriptions always reconnect.
+     * @returns {object} Connection info: `mtu` is the ATT MTU agreed with the device.
+     */
+    async connect(options = {}) {
+
+        // Connect
+        return await NativeModules.RNBluetoothLe.connect(this.address, options)
+
+    }
+
+    /**
+     * Close the connection to the device. Android only. It stays closed until another operation needs it.
+     */
+    async disconnect() {
+
+        // Disconnect
+        await NativeModules.RNBluetoothLe.disconnect(this.address)
+
+    }
+
+    /**
+     * Get the services this device had when it was last connected, without connecting. Android only.
+     *
+     * @returns {object[]} The services, each with a `uuid` and `characteristics`, which have a `uuid` and `properties`
+     *      flags. Null if the device's services are not known.
+     */
+    async getCachedServices() {
+
+        // Get from native code
+        return await NativeModules.RNBluetoothLe.getCachedServices(this.address)
+
+    }
+
     /** 
      * Read a characteristic's data value.
      * 
      * @param {string} service Service name or UUID.
      * @param {string} characteristic Characteristic name or UUID.
+     * @param {object} options Optional. `timeout` is the maximum time in milliseconds for the read, including connecting. If the read takes longer it is rejected and the connection is closed.
+     *      `encoding` is the format of the returned data, either 'utf8' (the default), or 'base64' or 'hex' for binary data.
+     * @returns {string} The data, in the requested encoding.
      */
-    async read(service, characteristic) {
+    async read(service, characteristic, options = {}) {
 
         // Read it
-        return await NativeModules.RNBluetoothLe.readCharacteristic(this.address, Encoder.toUUID(service), Encoder.toUUID(characteristic))
+        return await NativeModules.RNBluetoothLe.readCharacteristic(this.address, Encoder.toUUID(service), Encoder.toUUID(characteristic), options)
+
+    }
+
+    /** 
+     * Write data to a characteristic. Android only. Large values are split into chunks, which are sent as fast as the
+     * connection allows.
+     * 
+     * @param {string} service Service name or UUID.
+     * @param {string} characteristic Characteristic name or UUID.
+     * @param {string} data The data to write, in the format given by `options.encoding`.
+     * @param {object} options Optional. `encoding` is the format of `data`, either 'utf8' (the default), or 'base64' or 'hex' for binary data.
+     *      `withoutResponse` skips waiting for the remote device to acknowledge each chunk. `timeout` is the maximum time in milliseconds for the whole write.
+     * @returns {object} Transfer stats: `bytes`, `chunks`, `retries`, `duration` in milliseconds and `bytesPerSecond`.
+     */
+    async write(service, characteristic, data, options = {}) {
+
+        // Write it
+        return await NativeModules.RNBluetoothLe.writeCharacteristic(this.address, Encoder.toUUID(service), Encoder.toUUID(characteristic), data, options)
+
+    }
+
+    /**
+     * Subscribe to notifications or indications from a characteristic. Android only. Values are buffered natively and
+     * delivered in batches, so a fast sensor doesn't flood the bridge.
+     *
+     * @param {string} service Service name or UUID.
+     * @param {string} characteristic Characteristic name or UUID.
+     * @param {function} callback Called with each batch: `values` in the requested encoding, `timestamps` in milliseconds,
+     *      and the running totals `dropped` and `coalesced` for values lost to backpressure.
+     * @param {object} options Optional. `bufferSize` is the number of values to buffer between batches (default 64).
+     *      `policy` is what to do when the buffer is full: 'dropOldest' (the default), 'coalesceLatest' to replace the newest
+     *      value, or 'block' to hold up the device for up to `blockTimeout` milliseconds. `flushInterval` is the time in
+     *      milliseconds between batches (default 50). `encoding` is 'utf8' (the default), 'base64' or 'hex'. `timeout` is
+     *      the maximum time in milliseconds to subscribe, including connecting.
+     */
+    async subscribe(service, characteristic, callback, options = {}) {
+
+        // Remove existing listener
+        let serviceUUID = Encoder.toUUID(service)
+        let chrUUID = Encoder.toUUID(characteristic)
+        let key = serviceUUID.toLowerCase() + '/' + chrUUID.toLowerCase()
+        this.subscriptions = this.subscriptions || {}
+        if (this.subscriptions[key])
+            this.subscriptions[key].remove()
+
+        // Listen for batches for this characteristic
+        let emitter = new NativeEventEmitter(NativeModules.RNBluetoothLe)
+        this.subscriptions[key] = emitter.addListener('BLECentral:Notification', batch => {
+            if (batch.address.toUpperCase() != this.address.toUpperCase()) return
+            if (batch.service.toLowerCase() + '/' + batch.characteristic.toLowerCase() != key) return
+            callback(batch)
+        })
+
+        // Subscribe
+        try {
+            return await NativeModules.RNBluetoothLe.subscribe(this.address, serviceUUID, chrUUID, options)
+        } catch (err) {
+            this.subscriptions[key].remove()
+            delete this.subscriptions[key]
+            throw err
+        }
+
+    }
+
+    /**
+     * Stop notifications from a characteristic. Android only. Any values still buffered are delivered first.
+     *
+     * @param {string} service Service name or UUID.
+     * @param {string} characteristic Characteristic name or UUID.
+     * @param {object} options Optional. `timeout` is the maximum time in milliseconds to unsubscribe.
+     */
+    async unsubscribe(service, characteristic, options = {}) {
+
+        // Unsubscribe
+        let serviceUUID = Encoder.toUUID(service)
+        let chrUUID = Encoder.toUUID(characteristic)
+        try {
+            return await NativeModules.RNBluetoothLe.unsubscribe(this.address, serviceUUID, chrUUID, options)
+        } finally {
+
+            // Remove listener, after the final batch has been delivered
+            let key = serviceUUID.toLowerCase() + '/' + chrUUID.toLowerCase()
+            if (this.subscriptions && this.subscriptions[key]) {
+                this.subscriptions[key].remove()
+                delete this.subscriptions[key]
+            }
+
+        }
 
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,69 @@
+package com.rnbluetoothle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Parsing advertisements in place, and reading the fields scan results need */
+@State(Scope.Thread)
+public class AdvertisementParserBenchmark {
+
+    /** Advertisement to parse, by index in Fixtures.ADVERTISEMENTS, or -1 to cycle through Fixtures.advertisements() */
+    @Param({ "-1", "0", "1", "2", "3", "4" })
+    int advertisement;
+
+    private byte[][] records;
+    private int next = 0;
+    private final AdvertisementParser parser = new AdvertisementParser();
+    private final AdvertisementParser.Field field = new AdvertisementParser.Field();
+
+    /** Counts UUIDs without stopping */
+    private int uuids;
+    private final AdvertisementParser.UuidVisitor counter = (msb, lsb) -> {
+        uuids++;
+        return false;
+    };
+
+    @Setup
+    public void setUp() {
+        records = advertisement < 0 ? Fixtures.advertisements() : new byte[][] { Fixtures.ADVERTISEMENTS[advertisement] };
+    }
+
+    /** Get the next advertisement */
+    private byte[] record() {
+        byte[] record = records[next];
+        next = (next + 1) % records.length;
+        return record;
+    }
+
+    @Benchmark
+    public int parse() {
+        return parser.reset(record()).getFieldCount();
+    }
+
+    @Benchmark
+    public int serviceUuids() {
+        uuids = 0;
+        parser.reset(record()).forEachServiceUuid(counter);
+        return uuids;
+    }
+
+    @Benchmark
+    public String localName() {
+        return parser.reset(record()).getLocalName();
+    }
+
+    @Benchmark
+    public long instanceId() {
+        parser.reset(record());
+        return parser.getInstanceId() ^ parser.getServiceDigest();
+    }
+
+    @Benchmark
+    public boolean serviceData() {
+        return parser.reset(record()).findServiceData(Fixtures.EDDYSTONE.getMostSignificantBits(), Fixtures.EDDYSTONE.getLeastSignificantBits(), field);
+    }
+
+}
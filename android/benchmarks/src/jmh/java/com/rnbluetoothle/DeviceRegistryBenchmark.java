@@ -0,0 +1,68 @@
+package com.rnbluetoothle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/** Recording scan results in the device registry, and taking snapshots of it for Javascript */
+@State(Scope.Thread)
+public class DeviceRegistryBenchmark {
+
+    /** Number of devices in range */
+    @Param({ "100", "1000", "10000" })
+    int devices;
+
+    private static final String[] NAMES = { "HRM 12345", "UART", "Beacon", null };
+
+    private DeviceRegistry registry;
+    private String[] addresses;
+    private int[] rssi;
+    private int next = 0;
+    private final DeviceRegistry.Query query = new DeviceRegistry.Query();
+
+    @Setup
+    public void setUp() {
+
+        // Fill the registry
+        registry = new DeviceRegistry();
+        addresses = Fixtures.addresses(devices);
+        for (int i = 0 ; i < devices ; i++)
+            registry.update(addresses[i], NAMES[i % NAMES.length], -40 - i % 60);
+
+        // Readings to cycle through
+        Random random = new Random(1);
+        rssi = new int[1024];
+        for (int i = 0 ; i < rssi.length ; i++)
+            rssi[i] = -100 + random.nextInt(70);
+
+        // Only strong devices with names
+        query.minRssi = -70;
+        query.namePrefix = "H";
+
+    }
+
+    @Benchmark
+    public void update() {
+        int i = next++;
+        registry.update(addresses[i % devices], NAMES[i % NAMES.length], rssi[i & (rssi.length - 1)]);
+    }
+
+    @Benchmark
+    public int snapshot() {
+        DeviceRegistry.Snapshot snapshot = registry.snapshot(new DeviceRegistry.Query());
+        registry.releaseSnapshot(snapshot.id);
+        return snapshot.size();
+    }
+
+    @Benchmark
+    public int filteredSnapshot() {
+        DeviceRegistry.Snapshot snapshot = registry.snapshot(query);
+        registry.releaseSnapshot(snapshot.id);
+        return snapshot.size();
+    }
+
+}
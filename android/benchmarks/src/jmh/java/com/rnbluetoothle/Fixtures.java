@@ -0,0 +1,165 @@
+package com.rnbluetoothle;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Payloads and UUIDs used by the benchmarks. The built-in advertisements and GATT values are built by hand from the
+ * published formats of common devices, they are not captures. To benchmark with real traffic, record payloads from the
+ * devices you care about, for example from an HCI snoop log, and pass them with -Pcaptures=file. The file has one
+ * payload per line, "adv" or "gatt" then the payload in hex, and lines starting with # are ignored. Benchmarks which
+ * cycle through payloads then use the recorded ones instead of the built-in ones.
+ */
+class Fixtures {
+
+    /** Standard services */
+    static final UUID HEART_RATE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    static final UUID BATTERY = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    static final UUID EDDYSTONE = UUID.fromString("0000feaa-0000-1000-8000-00805f9b34fb");
+
+    /** Nordic UART service */
+    static final UUID UART = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+    /** A fitness sensor: flags, heart rate and battery services, and a complete name */
+    static final byte[] HEART_RATE_SENSOR = bytes(
+            0x02, 0x01, 0x06,
+            0x05, 0x03, 0x0D, 0x18, 0x0F, 0x18,
+            0x0A, 0x09, 'H', 'R', 'M', ' ', '1', '2', '3', '4', '5');
+
+    /** An iBeacon: flags and Apple manufacturer data with a proximity UUID, major, minor and measured power */
+    static final byte[] IBEACON = bytes(
+            0x02, 0x01, 0x06,
+            0x1A, 0xFF, 0x4C, 0x00, 0x02, 0x15,
+            0xE2, 0xC5, 0x6D, 0xB5, 0xDF, 0xFB, 0x48, 0xD2, 0xB0, 0x60, 0xD0, 0xF5, 0xA7, 0x10, 0x96, 0xE0,
+            0x00, 0x01, 0x00, 0x02, 0xC5);
+
+    /** An Eddystone URL beacon: flags, the Eddystone service, and its service data */
+    static final byte[] EDDYSTONE_URL = bytes(
+            0x02, 0x01, 0x06,
+            0x03, 0x03, 0xAA, 0xFE,
+            0x0E, 0x16, 0xAA, 0xFE, 0x10, 0xEB, 0x03, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0x07);
+
+    /** A UART peripheral: flags, a 128-bit service UUID and a shortened name */
+    static final byte[] UART_PERIPHERAL = bytes(
+            0x02, 0x01, 0x06,
+            0x11, 0x07, 0x9E, 0xCA, 0xDC, 0x24, 0x0E, 0xE5, 0xA9, 0xE0, 0x93, 0xF3, 0xA3, 0xB5, 0x01, 0x00, 0x40, 0x6E,
+            0x05, 0x08, 'U', 'A', 'R', 'T');
+
+    /** Another instance of this library: flags, TX power, and our manufacturer data with an instance ID and digest */
+    static final byte[] INSTANCE = bytes(
+            0x02, 0x01, 0x06,
+            0x02, 0x0A, 0xF4,
+            0x0F, 0xFF, 0x1C, 0xEF, 0x78, 0x56, 0x34, 0x12, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08);
+
+    /** All built-in advertisements */
+    static final byte[][] ADVERTISEMENTS = { HEART_RATE_SENSOR, IBEACON, EDDYSTONE_URL, UART_PERIPHERAL, INSTANCE };
+
+    /** A heart rate measurement: flags, 8-bit rate, and two RR intervals */
+    static final byte[] HEART_RATE_MEASUREMENT = bytes(0x10, 0x48, 0x1B, 0x03, 0x2A, 0x03);
+
+    /** A battery level */
+    static final byte[] BATTERY_LEVEL = bytes(0x5C);
+
+    /** A device information string, like the model number */
+    static final byte[] MODEL_NUMBER = "nRF52832-QFAA-R7".getBytes(Charset.forName("UTF-8"));
+
+    /** A full UART packet at the largest MTU */
+    static final byte[] UART_PACKET = random(244, 2);
+
+    /** A firmware block, the largest attribute value allowed */
+    static final byte[] FIRMWARE_BLOCK = random(512, 3);
+
+    /** All built-in GATT values */
+    static final byte[][] GATT_VALUES = { HEART_RATE_MEASUREMENT, BATTERY_LEVEL, MODEL_NUMBER, UART_PACKET, FIRMWARE_BLOCK };
+
+    /** Recorded payloads, from the file named by the rnbluetoothle.captures system property */
+    private static final List<byte[]> recordedAdvertisements = new ArrayList<>();
+    private static final List<byte[]> recordedValues = new ArrayList<>();
+    static {
+        String captures = System.getProperty("rnbluetoothle.captures");
+        if (captures != null && !captures.isEmpty())
+            load(captures);
+    }
+
+    /** Advertisements to cycle through: the recorded ones if there are any, otherwise the built-in ones */
+    static byte[][] advertisements() {
+        return recordedAdvertisements.isEmpty() ? ADVERTISEMENTS : recordedAdvertisements.toArray(new byte[0][]);
+    }
+
+    /** GATT values to cycle through: the recorded ones if there are any, otherwise the built-in ones */
+    static byte[][] gattValues() {
+        return recordedValues.isEmpty() ? GATT_VALUES : recordedValues.toArray(new byte[0][]);
+    }
+
+    /** Load recorded payloads */
+    private static void load(String path) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), Charset.forName("UTF-8")))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+
+                // Skip blank lines and comments
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                // Add it to its list
+                String[] parts = line.split("\\s+", 2);
+                if (parts.length != 2 || !(parts[0].equals("adv") || parts[0].equals("gatt")))
+                    throw new IllegalArgumentException(path + ":" + number + ": Expected \"adv\" or \"gatt\" and a hex payload.");
+
+                byte[] payload = DataCodec.HEX.decode(parts[1].replaceAll("[\\s:]", ""));
+                (parts[0].equals("adv") ? recordedAdvertisements : recordedValues).add(payload);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to read captures from " + path, ex);
+        }
+    }
+
+    /** Random bytes, the same for each seed */
+    static byte[] random(int length, long seed) {
+        byte[] out = new byte[length];
+        new Random(seed).nextBytes(out);
+        return out;
+    }
+
+    /** Build a byte array from unsigned values */
+    static byte[] bytes(int... values) {
+        byte[] out = new byte[values.length];
+        for (int i = 0 ; i < values.length ; i++)
+            out[i] = (byte) values[i];
+        return out;
+    }
+
+    /** A filter list of the given size, containing the heart rate and UART services, padded with random UUIDs */
+    static List<UUID> services(int count) {
+        List<UUID> services = new ArrayList<>();
+        services.add(HEART_RATE);
+        services.add(UART);
+
+        Random random = new Random(1);
+        while (services.size() < count)
+            services.add(new UUID(random.nextLong(), random.nextLong()));
+
+        return services.subList(0, count);
+    }
+
+    /** Random device addresses */
+    static String[] addresses(int count) {
+        Random random = new Random(1);
+        String[] addresses = new String[count];
+        for (int i = 0 ; i < count ; i++)
+            addresses[i] = DeviceRegistry.formatAddress(random.nextLong() & 0xFFFFFFFFFFFFL);
+
+        return addresses;
+    }
+
+}
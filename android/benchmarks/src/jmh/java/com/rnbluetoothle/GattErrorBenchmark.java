@@ -0,0 +1,30 @@
+package com.rnbluetoothle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Converting GATT statuses to error text, as done for every completed GATT operation */
+@State(Scope.Thread)
+public class GattErrorBenchmark {
+
+    /**
+     * Statuses in the proportions a busy link reports them: mostly success, then the generic error, link timeouts,
+     * congestion, security errors and unknown vendor codes.
+     */
+    private static final int[] STATUSES = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            SimulatedRadio.GATT_ERROR, SimulatedRadio.GATT_CONN_TIMEOUT, 0x8F, BLEConnection.STATUS_BUSY,
+            0x05, 0x0F, 0x07, 0x0D, 0x03, 0x101, 0x16, 0x3E
+    };
+
+    private int next = 0;
+
+    @Benchmark
+    public String getError() {
+        int status = STATUSES[next];
+        next = (next + 1) % STATUSES.length;
+        return BLEConnection.getError(status);
+    }
+
+}
@@ -0,0 +1,42 @@
+package com.rnbluetoothle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Converting payloads to hex, as done for every scan record and hex-encoded value passed to Javascript.
+ * RNBluetoothLeModule.bytesToHex needs React Native, so this measures DataCodec.toHex which it calls.
+ */
+@State(Scope.Thread)
+public class HexBenchmark {
+
+    /** Payloads to convert: "adv" for advertisements, "gatt" for characteristic values */
+    @Param({ "adv", "gatt" })
+    String payloads;
+
+    private byte[][] values;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        values = payloads.equals("adv") ? Fixtures.advertisements() : Fixtures.gattValues();
+    }
+
+    @Benchmark
+    public String toHex() {
+        byte[] value = values[next];
+        next = (next + 1) % values.length;
+        return DataCodec.toHex(value);
+    }
+
+    @Benchmark
+    public byte[] fromHex() {
+        byte[] value = values[next];
+        next = (next + 1) % values.length;
+        return DataCodec.HEX.decode(DataCodec.toHex(value));
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.rnbluetoothle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/** Recording operation times in the metrics histograms, and summarizing them */
+@State(Scope.Thread)
+public class HistogramBenchmark {
+
+    private final Metrics.Histogram histogram = new Metrics.Histogram();
+    private final Metrics metrics = new Metrics();
+    private final String[] addresses = Fixtures.addresses(8);
+    private long[] values;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+
+        // Times from 100us to about a second, spread like real GATT operations
+        Random random = new Random(1);
+        values = new long[1024];
+        for (int i = 0 ; i < values.length ; i++)
+            values[i] = (long) Math.exp(Math.log(100) + random.nextDouble() * Math.log(10000));
+
+        for (long value : values)
+            histogram.record(value);
+
+    }
+
+    @Benchmark
+    public void record() {
+        histogram.record(values[next++ & (values.length - 1)]);
+    }
+
+    @Benchmark
+    public Metrics.HistogramSnapshot snapshot() {
+        return histogram.snapshot(false);
+    }
+
+    @Benchmark
+    public void recordDuration() {
+        int i = next++;
+        metrics.recordDuration(Metrics.READ, addresses[i & (addresses.length - 1)], values[i & (values.length - 1)]);
+    }
+
+}
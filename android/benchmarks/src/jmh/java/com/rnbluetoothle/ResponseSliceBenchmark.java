@@ -0,0 +1,52 @@
+package com.rnbluetoothle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Slicing values into read responses for the GATT server, as ReadHandlers.sendValue does for each read request */
+@State(Scope.Thread)
+public class ResponseSliceBenchmark {
+
+    /** Negotiated MTU */
+    @Param({ "23", "185", "517" })
+    int mtu;
+
+    private byte[][] values;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        values = Fixtures.gattValues();
+    }
+
+    /** The first response to a read */
+    @Benchmark
+    public byte[] firstResponse() {
+        byte[] value = values[next];
+        next = (next + 1) % values.length;
+        return ReadHandlers.slice(value, 0, mtu - 1);
+    }
+
+    /** Every response of a long read, with the offsets a central asks for */
+    @Benchmark
+    public int longRead() {
+        byte[] value = values[next];
+        next = (next + 1) % values.length;
+
+        int offset = 0;
+        int responses = 0;
+        do {
+            byte[] part = ReadHandlers.slice(value, offset, mtu - 1);
+            offset += part.length;
+            responses++;
+            if (part.length < mtu - 1)
+                break;
+        } while (offset <= value.length);
+
+        return responses;
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.rnbluetoothle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Matching scan records against the service filter, as done for every scan result */
+@State(Scope.Thread)
+public class ServiceFilterBenchmark {
+
+    /** Number of services in the filter */
+    @Param({ "1", "2", "16" })
+    int services;
+
+    private ServiceFilter filter;
+    private byte[][] records;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        filter = new ServiceFilter(Fixtures.services(services));
+        records = Fixtures.advertisements();
+    }
+
+    @Benchmark
+    public boolean matches() {
+        byte[] record = records[next];
+        next = (next + 1) % records.length;
+        return filter.matches(record);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return filter.contains(Fixtures.UART.getMostSignificantBits(), Fixtures.UART.getLeastSignificantBits());
+    }
+
+}
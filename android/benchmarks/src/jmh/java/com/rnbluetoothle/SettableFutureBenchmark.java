@@ -0,0 +1,76 @@
+package com.rnbluetoothle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handing results through SettableFuture, as every GATT operation does between the binder thread and the caller:
+ * listeners added before and after completion, chained continuations, and a handoff to another thread.
+ */
+@State(Scope.Thread)
+public class SettableFutureBenchmark {
+
+    private static final byte[] VALUE = Fixtures.HEART_RATE_MEASUREMENT;
+
+    /** Stands in for the binder thread completing operations */
+    private ExecutorService binder;
+
+    /** Result seen by the listeners */
+    private byte[] received;
+    private final BLE.Callback<byte[]> listener = (value, err) -> received = value;
+
+    @Setup
+    public void setUp() {
+        binder = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown
+    public void tearDown() {
+        binder.shutdownNow();
+    }
+
+    /** A listener waiting for the result, like a queued operation */
+    @Benchmark
+    public byte[] completeWithListener() {
+        SettableFuture<byte[]> future = new SettableFuture<>();
+        future.addListener(listener);
+        future.resolve(VALUE);
+        return received;
+    }
+
+    /** A listener added after the result arrived */
+    @Benchmark
+    public byte[] listenerAfterComplete() {
+        SettableFuture<byte[]> future = SettableFuture.resolved(VALUE);
+        future.addListener(listener);
+        return received;
+    }
+
+    /** Three chained steps, like connect, discover and read */
+    @Benchmark
+    public byte[] then() throws Exception {
+        SettableFuture<Void> connect = new SettableFuture<>();
+        SettableFuture<byte[]> read = connect
+                .then(v -> SettableFuture.<Void>resolved(null))
+                .then(v -> SettableFuture.resolved(VALUE));
+
+        connect.resolve(null);
+        return read.get();
+    }
+
+    /** A result completed on another thread and waited for on this one */
+    @Benchmark
+    public byte[] handoff() throws Exception {
+        SettableFuture<byte[]> future = new SettableFuture<>();
+        binder.execute(() -> future.resolve(VALUE));
+        return future.get(5, TimeUnit.SECONDS);
+    }
+
+}
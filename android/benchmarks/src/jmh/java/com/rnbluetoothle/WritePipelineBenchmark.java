@@ -0,0 +1,74 @@
+package com.rnbluetoothle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing to a characteristic through the pipeline, on a simulated link with no latency. This measures the cost of
+ * chunking, the connection's bookkeeping and the callback handoffs, not the radio.
+ */
+@State(Scope.Benchmark)
+public class WritePipelineBenchmark {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID CHARACTERISTIC = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e");
+
+    /** Write, write without response and their combination, from BluetoothGattCharacteristic.PROPERTY_* */
+    private static final int PROPERTIES = 0x08 | 0x04;
+
+    /** Bytes per write */
+    @Param({ "20", "512", "8192" })
+    int size;
+
+    /** True for acknowledged writes */
+    @Param({ "false", "true" })
+    boolean withResponse;
+
+    private SimulatedRadio radio;
+    private BLEConnection connection;
+    private byte[] data;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        BLELog.sink = BLELog.NONE;
+
+        // A peripheral which answers at once
+        radio = new SimulatedRadio(1);
+        SimulatedRadio.Peripheral peripheral = radio.addPeripheral(ADDRESS, "Benchmark");
+        peripheral.addCharacteristic(Fixtures.UART, CHARACTERISTIC, PROPERTIES, new byte[0]);
+        peripheral.latency = 0;
+        peripheral.connectionInterval = 0;
+
+        // Connect with the largest MTU
+        connection = new BLEConnection(ADDRESS, radio);
+        connection.options.mtu = peripheral.maxMtu;
+        connection.connect().get(5, TimeUnit.SECONDS);
+        connection.applyOptions().get(5, TimeUnit.SECONDS);
+        connection.discoverServices().get(5, TimeUnit.SECONDS);
+
+        data = new byte[size];
+        new Random(1).nextBytes(data);
+
+    }
+
+    @TearDown
+    public void tearDown() {
+        connection.close(new Exception("Benchmark finished."));
+        radio.shutdown();
+    }
+
+    @Benchmark
+    public WritePipeline.Result write() throws Exception {
+        return new WritePipeline(connection, Fixtures.UART, CHARACTERISTIC, data, withResponse).start().get(5, TimeUnit.SECONDS);
+    }
+
+}
@@ -0,0 +1,219 @@
+package com.rnbluetoothle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Plans which service UUIDs go where in our advertisement, so that it always fits. A legacy advertisement and its scan
+ * response are 31 bytes each. UUIDs are counted in their shortest form (16, 32 or 128 bits) and split between the two.
+ * If they still don't fit, they're either moved to an extended advertisement when allowed, or summarized in a small
+ * Bloom filter "service digest" in our manufacturer data, which scanners running this library can test against.
+ */
+public class AdvertisePlanner {
+
+    /** Maximum length of a legacy advertisement or scan response */
+    public static final int LEGACY_MAX_LENGTH = 31;
+
+    /** Length of the flags field, added by the stack to connectable advertisements */
+    public static final int FLAGS_LENGTH = 3;
+
+    /** Length of the service digest, appended to our manufacturer data */
+    public static final int DIGEST_LENGTH = 8;
+
+    /** A planned advertisement */
+    public static class Layout {
+
+        /** UUIDs in the advertisement */
+        public final ArrayList<UUID> advertised = new ArrayList<>();
+
+        /** UUIDs in the scan response */
+        public final ArrayList<UUID> scanResponse = new ArrayList<>();
+
+        /** UUIDs which didn't fit, and are only in the digest */
+        public final ArrayList<UUID> digested = new ArrayList<>();
+
+        /** Service digest to append to the manufacturer data, or 0 if not needed */
+        public long digest = 0;
+
+        /** True if this is an extended advertisement, with no scan response */
+        public boolean extended = false;
+
+        /** Bytes used in the advertisement and scan response */
+        public int advertisedLength = 0;
+        public int scanResponseLength = 0;
+
+        /** Maximum length of the advertisement */
+        public int maxLength = LEGACY_MAX_LENGTH;
+
+        @Override
+        public String toString() {
+            return (extended ? "Extended" : "Legacy") + " advertisement: " + advertised.size() + " services in "
+                    + advertisedLength + "/" + maxLength + " bytes, scan response: " + scanResponse.size() + " services in "
+                    + scanResponseLength + "/" + (extended ? 0 : LEGACY_MAX_LENGTH) + " bytes, digested: " + digested.size();
+        }
+
+    }
+
+    /** Tracks the space used in one packet */
+    private static class Packet {
+
+        /** Space available and used */
+        final int budget;
+        int used;
+
+        /** UUIDs added, and whether a list header has been counted for each UUID size */
+        final ArrayList<UUID> uuids = new ArrayList<>();
+        boolean has16, has32, has128;
+
+        Packet(int budget, int used) {
+            this.budget = budget;
+            this.used = used;
+        }
+
+        /** Add a UUID if it fits. The first UUID of each size also needs a 2 byte list header. */
+        boolean add(UUID uuid) {
+
+            // Get cost
+            int size = uuidSize(uuid);
+            boolean hasList = size == 2 ? has16 : size == 4 ? has32 : has128;
+            int cost = size + (hasList ? 0 : 2);
+            if (used + cost > budget)
+                return false;
+
+            // Add it
+            used += cost;
+            uuids.add(uuid);
+            if (size == 2) has16 = true;
+            else if (size == 4) has32 = true;
+            else has128 = true;
+            return true;
+
+        }
+
+    }
+
+    /** Get the number of bytes a UUID takes in an advertisement: 2 or 4 if based on the Bluetooth base UUID, otherwise 16 */
+    public static int uuidSize(UUID uuid) {
+
+        // Full size if not a Bluetooth base UUID
+        long msb = uuid.getMostSignificantBits();
+        if ((msb & 0xFFFFFFFFL) != AdvertisementParser.BASE_UUID_MSB || uuid.getLeastSignificantBits() != AdvertisementParser.BASE_UUID_LSB)
+            return 16;
+
+        // Short form
+        return (msb >>> 32) <= 0xFFFF ? 2 : 4;
+
+    }
+
+    /**
+     * Plan an advertisement.
+     *
+     * @param services Service UUIDs to advertise
+     * @param manufacturerDataLength Length of our manufacturer data, not including the company ID
+     * @param extendedMaxLength Maximum extended advertisement length, or 0 if extended advertising can't be used
+     * @throws IllegalArgumentException if the manufacturer data alone doesn't fit
+     */
+    public static Layout plan(List<UUID> services, int manufacturerDataLength, int extendedMaxLength) {
+
+        // Check the manufacturer data fits, with room for a digest. Field is length, type, company ID, data.
+        int fixedLength = FLAGS_LENGTH + 4 + manufacturerDataLength;
+        if (fixedLength + DIGEST_LENGTH > LEGACY_MAX_LENGTH)
+            throw new IllegalArgumentException("The manufacturer data is too large to advertise.");
+
+        // Place the smallest UUIDs first, so as many as possible are advertised in full
+        ArrayList<UUID> sorted = new ArrayList<>(services);
+        for (int i = 1 ; i < sorted.size() ; i++) {
+            UUID uuid = sorted.get(i);
+            int j = i - 1;
+            while (j >= 0 && uuidSize(sorted.get(j)) > uuidSize(uuid)) {
+                sorted.set(j + 1, sorted.get(j));
+                j--;
+            }
+            sorted.set(j + 1, uuid);
+        }
+
+        // Try to fit everything in a legacy advertisement and scan response
+        Layout layout = planLegacy(sorted, fixedLength);
+        if (layout.digested.isEmpty())
+            return layout;
+
+        // Try an extended advertisement, if allowed
+        if (extendedMaxLength > LEGACY_MAX_LENGTH) {
+            Layout extended = planExtended(sorted, fixedLength, extendedMaxLength);
+            if (extended.digested.isEmpty())
+                return extended;
+        }
+
+        // Plan again with room for the digest, and put the rest in it
+        layout = planLegacy(sorted, fixedLength + DIGEST_LENGTH);
+        for (UUID uuid : layout.digested)
+            layout.digest = addToDigest(layout.digest, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+
+        return layout;
+
+    }
+
+    /** Split UUIDs between a legacy advertisement and scan response */
+    private static Layout planLegacy(List<UUID> services, int fixedLength) {
+
+        // Fill the advertisement first, then the scan response
+        Packet advert = new Packet(LEGACY_MAX_LENGTH, fixedLength);
+        Packet scanResponse = new Packet(LEGACY_MAX_LENGTH, 0);
+        Layout layout = new Layout();
+        for (UUID uuid : services)
+            if (!advert.add(uuid) && !scanResponse.add(uuid))
+                layout.digested.add(uuid);
+
+        // Done
+        layout.advertised.addAll(advert.uuids);
+        layout.scanResponse.addAll(scanResponse.uuids);
+        layout.advertisedLength = advert.used;
+        layout.scanResponseLength = scanResponse.used;
+        return layout;
+
+    }
+
+    /** Put all UUIDs in one extended advertisement */
+    private static Layout planExtended(List<UUID> services, int fixedLength, int maxLength) {
+
+        // Fill the advertisement
+        Packet advert = new Packet(maxLength, fixedLength);
+        Layout layout = new Layout();
+        for (UUID uuid : services)
+            if (!advert.add(uuid))
+                layout.digested.add(uuid);
+
+        // Done
+        layout.extended = true;
+        layout.maxLength = maxLength;
+        layout.advertised.addAll(advert.uuids);
+        layout.advertisedLength = advert.used;
+        return layout;
+
+    }
+
+    /** Mix a UUID into a 64-bit value, using the MurmurHash3 finalizer */
+    private static long hash(long msb, long lsb) {
+        long h = msb ^ Long.rotateLeft(lsb, 31) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** Add a UUID to a service digest. Each UUID sets three of the 64 bits. */
+    public static long addToDigest(long digest, long msb, long lsb) {
+        long h = hash(msb, lsb);
+        return digest | 1L << (h & 63) | 1L << ((h >>> 6) & 63) | 1L << ((h >>> 12) & 63);
+    }
+
+    /** Check if a service digest might contain a UUID. False positives are possible, false negatives aren't. */
+    public static boolean digestMightContain(long digest, long msb, long lsb) {
+        long bits = addToDigest(0, msb, lsb);
+        return digest != 0 && (digest & bits) == bits;
+    }
+
+}
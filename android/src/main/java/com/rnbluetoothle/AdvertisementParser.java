@@ -0,0 +1,460 @@
+package com.rnbluetoothle;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Parses raw Bluetooth LE advertisement data (a sequence of AD structures) in place. Nothing is copied: reset() indexes
+ * the structures in one pass, and fields are read through reusable Field views over the original bytes. A parser can
+ * be reused for every advertisement, so decoding does not produce garbage.
+ *
+ * This class has no Android dependencies. A parser is not thread safe, use one per thread.
+ */
+public class AdvertisementParser {
+
+    /** AD structure types */
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    public static final int TYPE_UUID32_COMPLETE = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+    public static final int TYPE_NAME_SHORT = 0x08;
+    public static final int TYPE_NAME_COMPLETE = 0x09;
+    public static final int TYPE_TX_POWER = 0x0A;
+    public static final int TYPE_SERVICE_DATA16 = 0x16;
+    public static final int TYPE_SERVICE_DATA32 = 0x20;
+    public static final int TYPE_SERVICE_DATA128 = 0x21;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    /** Bluetooth base UUID, 00000000-0000-1000-8000-00805F9B34FB. 16 and 32-bit UUIDs are offsets into it. */
+    public static final long BASE_UUID_MSB = 0x0000000000001000L;
+    public static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    /** Apple's company ID, used by iOS for its background advertisement overflow area */
+    public static final int APPLE_COMPANY_ID = 0x004C;
+
+    /** Company ID we use to advertise our instance ID. See BLE. */
+    public static final int INSTANCE_COMPANY_ID = 0xEF1C;
+
+    /** Charset for local names */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Returned by getTxPower() if the advertisement has no TX power level */
+    public static final int NO_TX_POWER = Integer.MIN_VALUE;
+
+    /** Visits service UUIDs. Return true to stop. */
+    public interface UuidVisitor {
+        boolean visit(long msb, long lsb);
+    }
+
+    /**
+     * A view of part of the parsed data, usually the data of one AD structure. Views are reusable, and only valid until
+     * the parser is reset.
+     */
+    public static class Field {
+
+        /** Parser this view reads from */
+        AdvertisementParser parser = null;
+
+        /** AD structure type */
+        public int type = 0;
+
+        /** Offset of the first byte, relative to the start of the advertisement */
+        public int offset = 0;
+
+        /** Number of bytes */
+        public int length = 0;
+
+        /** Get a byte, relative to the start of this view */
+        public byte get(int index) {
+            return parser.byteAt(offset + index);
+        }
+
+        /** Get an unsigned byte */
+        public int getUInt8(int index) {
+            return get(index) & 0xFF;
+        }
+
+        /** Get an unsigned little endian 16-bit value */
+        public int getUInt16(int index) {
+            return getUInt8(index) | getUInt8(index + 1) << 8;
+        }
+
+        /** Get a little endian value of up to 8 bytes */
+        public long getLong(int index, int size) {
+            return parser.readLong(offset + index, size);
+        }
+
+        /** Copy this view's bytes into an array */
+        public void copyTo(byte[] dest, int destOffset) {
+            for (int i = 0 ; i < length ; i++)
+                dest[destOffset + i] = get(i);
+        }
+
+        /** Copy this view's bytes into a new array */
+        public byte[] toByteArray() {
+            byte[] bytes = new byte[length];
+            copyTo(bytes, 0);
+            return bytes;
+        }
+
+        /** Set this view */
+        void set(AdvertisementParser parser, int type, int offset, int length) {
+            this.parser = parser;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+    // Source data, either an array or a buffer
+    private byte[] array = null;
+    private ByteBuffer buffer = null;
+
+    // Start and length of the advertisement within the source
+    private int base = 0;
+    private int limit = 0;
+
+    // Index of AD structures: type, offset of the data and data length
+    private int count = 0;
+    private int[] types = new int[32];
+    private int[] offsets = new int[32];
+    private int[] lengths = new int[32];
+
+    /** Parse an advertisement */
+    public AdvertisementParser reset(byte[] data) {
+        return reset(data, 0, data == null ? 0 : data.length);
+    }
+
+    /** Parse an advertisement from part of an array */
+    public AdvertisementParser reset(byte[] data, int offset, int length) {
+        this.array = data;
+        this.buffer = null;
+        this.base = offset;
+        this.limit = data == null ? 0 : length;
+        index();
+        return this;
+    }
+
+    /** Parse an advertisement from a buffer, between its position and limit. The buffer's position is not changed. */
+    public AdvertisementParser reset(ByteBuffer data) {
+
+        // Use backing array directly if possible
+        if (data.hasArray())
+            return reset(data.array(), data.arrayOffset() + data.position(), data.remaining());
+
+        // Use buffer
+        this.array = null;
+        this.buffer = data;
+        this.base = data.position();
+        this.limit = data.remaining();
+        index();
+        return this;
+
+    }
+
+    /** Get a byte, relative to the start of the advertisement */
+    byte byteAt(int index) {
+        return array != null ? array[base + index] : buffer.get(base + index);
+    }
+
+    /** Read a little endian value of up to 8 bytes */
+    long readLong(int index, int size) {
+        long value = 0;
+        for (int i = size - 1 ; i >= 0 ; i--)
+            value = value << 8 | (byteAt(index + i) & 0xFF);
+        return value;
+    }
+
+    /** Index the AD structures */
+    private void index() {
+
+        // Go through each structure: length, type, data
+        count = 0;
+        int i = 0;
+        while (i < limit) {
+
+            // Get length, a zero length means the rest is padding
+            int length = byteAt(i) & 0xFF;
+            if (length == 0 || i + 1 + length > limit)
+                break;
+
+            // Grow index if needed. Only happens for unusually long extended advertisements.
+            if (count == types.length) {
+                types = Arrays.copyOf(types, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+
+            // Store it
+            types[count] = byteAt(i + 1) & 0xFF;
+            offsets[count] = i + 2;
+            lengths[count] = length - 1;
+            count++;
+
+            // Next structure
+            i += 1 + length;
+
+        }
+
+    }
+
+    /** Number of AD structures */
+    public int getFieldCount() {
+        return count;
+    }
+
+    /** Get an AD structure by index */
+    public Field getField(int index, Field out) {
+        out.set(this, types[index], offsets[index], lengths[index]);
+        return out;
+    }
+
+    /** Find the first AD structure of the specified type. Returns false if not found. */
+    public boolean findField(int type, Field out) {
+
+        for (int i = 0 ; i < count ; i++) {
+            if (types[i] == type) {
+                getField(i, out);
+                return true;
+            }
+        }
+
+        return false;
+
+    }
+
+    /** Get the advertised flags, or -1 if not present */
+    public int getFlags() {
+
+        for (int i = 0 ; i < count ; i++)
+            if (types[i] == TYPE_FLAGS && lengths[i] >= 1)
+                return byteAt(offsets[i]) & 0xFF;
+
+        return -1;
+
+    }
+
+    /** Get the advertised TX power level in dBm, or NO_TX_POWER if not present */
+    public int getTxPower() {
+
+        for (int i = 0 ; i < count ; i++)
+            if (types[i] == TYPE_TX_POWER && lengths[i] >= 1)
+                return byteAt(offsets[i]);
+
+        return NO_TX_POWER;
+
+    }
+
+    /** Get the local name, or null if not present. This allocates a string. */
+    public String getLocalName() {
+
+        // Prefer the complete name
+        int found = -1;
+        for (int i = 0 ; i < count ; i++) {
+            if (types[i] == TYPE_NAME_COMPLETE) {
+                found = i;
+                break;
+            } else if (types[i] == TYPE_NAME_SHORT && found == -1) {
+                found = i;
+            }
+        }
+
+        // Stop if not found
+        if (found == -1)
+            return null;
+
+        // Decode it
+        byte[] bytes = new byte[lengths[found]];
+        for (int i = 0 ; i < bytes.length ; i++)
+            bytes[i] = byteAt(offsets[found] + i);
+
+        return new String(bytes, UTF8);
+
+    }
+
+    /**
+     * Visit every advertised service UUID, in 16, 32 and 128-bit lists. Short UUIDs are expanded against the base UUID.
+     *
+     * @return True if the visitor stopped early
+     */
+    public boolean forEachServiceUuid(UuidVisitor visitor) {
+
+        for (int i = 0 ; i < count ; i++) {
+
+            // Get size of each UUID in this structure
+            int type = types[i];
+            int size = uuidSize(type);
+            if (size == 0)
+                continue;
+
+            // Visit each one
+            int start = offsets[i];
+            int end = start + lengths[i];
+            for (int j = start ; j + size <= end ; j += size) {
+
+                long msb, lsb;
+                if (size == 16) {
+                    msb = readLong(j + 8, 8);
+                    lsb = readLong(j, 8);
+                } else {
+                    msb = readLong(j, size) << 32 | BASE_UUID_MSB;
+                    lsb = BASE_UUID_LSB;
+                }
+
+                if (visitor.visit(msb, lsb))
+                    return true;
+
+            }
+
+        }
+
+        return false;
+
+    }
+
+    /** Size in bytes of each UUID in a service UUID list structure, or 0 if the type is not a UUID list */
+    private static int uuidSize(int type) {
+
+        if (type == TYPE_UUID16_INCOMPLETE || type == TYPE_UUID16_COMPLETE)
+            return 2;
+        else if (type == TYPE_UUID32_INCOMPLETE || type == TYPE_UUID32_COMPLETE)
+            return 4;
+        else if (type == TYPE_UUID128_INCOMPLETE || type == TYPE_UUID128_COMPLETE)
+            return 16;
+        else
+            return 0;
+
+    }
+
+    /**
+     * Find manufacturer data for a company.
+     *
+     * @param companyId The company ID
+     * @param out Set to the data after the company ID
+     * @return False if not found
+     */
+    public boolean findManufacturerData(int companyId, Field out) {
+
+        for (int i = 0 ; i < count ; i++) {
+
+            // Check type and company ID
+            if (types[i] != TYPE_MANUFACTURER_DATA || lengths[i] < 2)
+                continue;
+
+            int company = (int) readLong(offsets[i], 2);
+            if (company != companyId)
+                continue;
+
+            // Found it
+            out.set(this, TYPE_MANUFACTURER_DATA, offsets[i] + 2, lengths[i] - 2);
+            return true;
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Find service data for a service. 16 and 32-bit service data is matched against the expanded UUID.
+     *
+     * @param out Set to the data after the service UUID
+     * @return False if not found
+     */
+    public boolean findServiceData(long msb, long lsb, Field out) {
+
+        for (int i = 0 ; i < count ; i++) {
+
+            // Get UUID size for this type
+            int type = types[i];
+            int size = type == TYPE_SERVICE_DATA16 ? 2 : type == TYPE_SERVICE_DATA32 ? 4 : type == TYPE_SERVICE_DATA128 ? 16 : 0;
+            if (size == 0 || lengths[i] < size)
+                continue;
+
+            // Check UUID
+            int start = offsets[i];
+            boolean match = size == 16
+                    ? readLong(start + 8, 8) == msb && readLong(start, 8) == lsb
+                    : lsb == BASE_UUID_LSB && (readLong(start, size) << 32 | BASE_UUID_MSB) == msb;
+
+            if (!match)
+                continue;
+
+            // Found it
+            out.set(this, type, start + size, lengths[i] - size);
+            return true;
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Find Apple's overflow area, where a backgrounded iOS app advertises its service UUIDs in a hashed form.
+     *
+     * @param out Set to the overflow area, after the company ID and type byte
+     * @return False if not found
+     */
+    public boolean findAppleOverflowArea(Field out) {
+
+        for (int i = 0 ; i < count ; i++) {
+
+            // Check for Apple's company ID followed by type 0x01
+            if (types[i] != TYPE_MANUFACTURER_DATA || lengths[i] < 3)
+                continue;
+
+            int start = offsets[i];
+            if (readLong(start, 2) != APPLE_COMPANY_ID || byteAt(start + 2) != 0x01)
+                continue;
+
+            // Found it
+            out.set(this, TYPE_MANUFACTURER_DATA, start + 3, lengths[i] - 3);
+            return true;
+
+        }
+
+        return false;
+
+    }
+
+    /** True if the advertisement has Apple's overflow area */
+    public boolean hasAppleOverflowArea() {
+        return findAppleOverflowArea(scratch);
+    }
+
+    /**
+     * Get the instance ID advertised by another device running this library, or -1 if not present. Devices advertise a
+     * random 4 byte ID under INSTANCE_COMPANY_ID, which stays the same when iOS changes the device's address.
+     */
+    public long getInstanceId() {
+
+        if (!findManufacturerData(INSTANCE_COMPANY_ID, scratch) || scratch.length < 4)
+            return -1;
+
+        return scratch.getLong(0, 4);
+
+    }
+
+    /**
+     * Get the service digest advertised by another device running this library, or 0 if not present. It follows the
+     * instance ID when the device had too many services to advertise in full, see AdvertisePlanner.
+     */
+    public long getServiceDigest() {
+
+        if (!findManufacturerData(INSTANCE_COMPANY_ID, scratch) || scratch.length < 4 + AdvertisePlanner.DIGEST_LENGTH)
+            return 0;
+
+        return scratch.getLong(4, AdvertisePlanner.DIGEST_LENGTH);
+
+    }
+
+    /** Scratch view for internal lookups */
+    private final Field scratch = new Field();
+
+}
@@ -0,0 +1,274 @@
+package com.rnbluetoothle;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * Keeps our advertisement up to date. On Android 8 and above the advertisement is an AdvertisingSet, and changes to
+ * the advertised data are applied in place without stopping, so there's no gap in advertising. On older versions
+ * advertising has to be stopped and started again. Updates which don't change anything are skipped.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class Advertiser {
+
+    /** Advertising options */
+    static class Options {
+
+        /** Advertise mode, one of the AdvertiseSettings.ADVERTISE_MODE_* constants */
+        int mode = AdvertiseSettings.ADVERTISE_MODE_LOW_POWER;
+
+        /** Transmit power, one of the AdvertiseSettings.ADVERTISE_TX_POWER_* constants */
+        int txPower = AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM;
+
+        /**
+         * True to allow an extended advertisement when services don't fit in a legacy one. Only scanners which support
+         * Bluetooth 5 advertising extensions can see it, so by default a service digest is used instead.
+         */
+        boolean allowExtended = false;
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Options && ((Options) obj).mode == mode && ((Options) obj).txPower == txPower && ((Options) obj).allowExtended == allowExtended;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mode * 31 + txPower) * 31 + (allowExtended ? 1 : 0);
+        }
+
+    }
+
+    /** Link back to the main module */
+    private final BLE module;
+
+    /** Listener for legacy advertising */
+    private final AdvertiseListener legacyListener;
+
+    /** Listener for the advertising set, on Android 8 and above */
+    private SetListener setListener = null;
+
+    /** Current advertising set, if started */
+    private AdvertisingSet currentSet = null;
+
+    /** What is currently being advertised, or null if not advertising */
+    private AdvertiseData currentData = null;
+    private AdvertiseData currentScanData = null;
+    private Options currentOptions = null;
+    private boolean currentExtended = false;
+
+    /** Constructor */
+    Advertiser(BLE module) {
+        this.module = module;
+        legacyListener = new AdvertiseListener(module);
+    }
+
+    /**
+     * Advertise the specified data, updating the current advertisement if possible. Must be called on the adapter queue.
+     *
+     * @param scanData Scan response data. Extended advertisements have no scan response, so it must be empty.
+     * @param extended True for an extended advertisement. Android 8 and above only.
+     * @return Completes once the new data is being advertised
+     */
+    SettableFuture<Void> update(BluetoothAdapter adapter, AdvertiseData data, AdvertiseData scanData, Options options, boolean extended) {
+
+        // Stop if nothing has changed
+        if (currentData != null && currentData.equals(data) && currentScanData.equals(scanData) && currentOptions.equals(options) && currentExtended == extended)
+            return SettableFuture.resolved(null);
+
+        // Update it
+        long start = System.nanoTime();
+        SettableFuture<Void> result;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            result = updateSet(adapter.getBluetoothLeAdvertiser(), data, scanData, options, extended);
+        else
+            result = restartLegacy(adapter.getBluetoothLeAdvertiser(), data, scanData, options);
+
+        // Remember what's being advertised, or forget it if it failed so the next update tries again
+        return result.then(v -> {
+            module.metrics.record(Metrics.ADVERTISE_START, null, start);
+            currentData = data;
+            currentScanData = scanData;
+            currentOptions = options;
+            currentExtended = extended;
+            return null;
+        });
+
+    }
+
+    /** Stop advertising. Must be called on the adapter queue. */
+    void stop(BluetoothAdapter adapter) {
+
+        // Stop if not advertising
+        BluetoothLeAdvertiser advertiser = adapter.getBluetoothLeAdvertiser();
+        if (advertiser == null)
+            return;
+
+        // Stop it
+        if (setListener != null)
+            advertiser.stopAdvertisingSet(setListener);
+        else
+            advertiser.stopAdvertising(legacyListener);
+
+        // Forget it
+        currentSet = null;
+        currentData = null;
+        currentScanData = null;
+        currentOptions = null;
+
+    }
+
+    /** Stop and start legacy advertising with the new data */
+    private SettableFuture<Void> restartLegacy(BluetoothLeAdvertiser advertiser, AdvertiseData data, AdvertiseData scanData, Options options) {
+
+        // Create advertise settings
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(options.mode)
+                .setTxPowerLevel(options.txPower)
+                .setConnectable(true)
+                .build();
+
+        // Stop advertising if needed
+        advertiser.stopAdvertising(legacyListener);
+        currentData = null;
+
+        // Start advertising
+        SettableFuture<Void> promise = new SettableFuture<>();
+        legacyListener.startPromise = promise;
+        advertiser.startAdvertising(settings, data, scanData, legacyListener);
+        return promise.then(v -> {
+            Log.i("BLE", "Restarted advertising");
+            return null;
+        });
+
+    }
+
+    /** Update the advertising set in place, or start it if needed */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private SettableFuture<Void> updateSet(BluetoothLeAdvertiser advertiser, AdvertiseData data, AdvertiseData scanData, Options options, boolean extended) {
+
+        // Update the data of the running set if the parameters are the same
+        if (currentSet != null && options.equals(currentOptions) && extended == currentExtended) {
+
+            AdvertisingSet set = currentSet;
+            setListener.dataPromise = new SettableFuture<>();
+            set.setAdvertisingData(data);
+            return setListener.dataPromise.then(v -> {
+
+                // Update scan response, extended advertisements don't have one
+                if (extended)
+                    return SettableFuture.resolved(null);
+
+                setListener.dataPromise = new SettableFuture<>();
+                set.setScanResponseData(scanData);
+                return setListener.dataPromise;
+
+            }).then(v -> {
+                Log.i("BLE", "Updated advertised data");
+                return null;
+            });
+
+        }
+
+        // Stop the current set, its parameters have changed
+        if (setListener != null)
+            advertiser.stopAdvertisingSet(setListener);
+
+        currentSet = null;
+        currentData = null;
+
+        // Create parameters. Legacy advertisements can be seen by all scanners, extended ones can't have a scan response.
+        int interval = AdvertisingSetParameters.INTERVAL_HIGH;
+        if (options.mode == AdvertiseSettings.ADVERTISE_MODE_BALANCED)
+            interval = AdvertisingSetParameters.INTERVAL_MEDIUM;
+        else if (options.mode == AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY)
+            interval = AdvertisingSetParameters.INTERVAL_LOW;
+
+        int txPower = AdvertisingSetParameters.TX_POWER_MEDIUM;
+        if (options.txPower == AdvertiseSettings.ADVERTISE_TX_POWER_ULTRA_LOW)
+            txPower = AdvertisingSetParameters.TX_POWER_ULTRA_LOW;
+        else if (options.txPower == AdvertiseSettings.ADVERTISE_TX_POWER_LOW)
+            txPower = AdvertisingSetParameters.TX_POWER_LOW;
+        else if (options.txPower == AdvertiseSettings.ADVERTISE_TX_POWER_HIGH)
+            txPower = AdvertisingSetParameters.TX_POWER_HIGH;
+
+        AdvertisingSetParameters parameters = new AdvertisingSetParameters.Builder()
+                .setLegacyMode(!extended)
+                .setConnectable(true)
+                .setScannable(!extended)
+                .setInterval(interval)
+                .setTxPowerLevel(txPower)
+                .build();
+
+        // Start a new set
+        setListener = new SetListener();
+        setListener.startPromise = new SettableFuture<>();
+        advertiser.startAdvertisingSet(parameters, data, extended ? null : scanData, null, null, setListener);
+        return setListener.startPromise.then(set -> {
+            currentSet = set;
+            Log.i("BLE", "Started advertising set");
+            return null;
+        });
+
+    }
+
+    /** Receives advertising set events */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private static class SetListener extends AdvertisingSetCallback {
+
+        /** Promise to resolve when the set has started */
+        SettableFuture<AdvertisingSet> startPromise = null;
+
+        /** Promise to resolve when data has been updated */
+        SettableFuture<Void> dataPromise = null;
+
+        @Override
+        public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+            super.onAdvertisingSetStarted(advertisingSet, txPower, status);
+
+            if (startPromise == null)
+                return;
+
+            if (status == ADVERTISE_SUCCESS)
+                startPromise.resolve(advertisingSet);
+            else
+                startPromise.reject(new Exception("Unable to start advertising. Code " + status));
+
+        }
+
+        @Override
+        public void onAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+            super.onAdvertisingDataSet(advertisingSet, status);
+            completeData(status);
+        }
+
+        @Override
+        public void onScanResponseDataSet(AdvertisingSet advertisingSet, int status) {
+            super.onScanResponseDataSet(advertisingSet, status);
+            completeData(status);
+        }
+
+        /** Complete a data update */
+        private void completeData(int status) {
+
+            if (dataPromise == null)
+                return;
+
+            if (status == ADVERTISE_SUCCESS)
+                dataPromise.resolve(null);
+            else
+                dataPromise.reject(new Exception("Unable to update advertised data. Code " + status));
+
+        }
+
+    }
+
+}
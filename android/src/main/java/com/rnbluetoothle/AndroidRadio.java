@@ -0,0 +1,232 @@
+package com.rnbluetoothle;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/** The device's Bluetooth radio, using Android's GATT client. */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class AndroidRadio implements Radio {
+
+    /** Link back to the main module, for the adapter and context */
+    private final BLE module;
+
+    /** Constructor */
+    AndroidRadio(BLE module) {
+        this.module = module;
+    }
+
+    @Override
+    public Link connect(String address, boolean background, LinkCallback callback) throws Exception {
+
+        // Check bluetooth is set up
+        if (module.adapter == null)
+            throw new Exception("Bluetooth is not available.");
+
+        // Create the link and connect
+        AndroidLink link = new AndroidLink(callback);
+        link.gatt = module.adapter.getRemoteDevice(address).connectGatt(module.ctx, background, link);
+        if (link.gatt == null)
+            throw new Exception("Unable to request a connection to this device.");
+
+        return link;
+
+    }
+
+    /** Convert Android's services to ServiceInfo */
+    static List<DiscoveryCache.ServiceInfo> describe(List<BluetoothGattService> services) {
+
+        ArrayList<DiscoveryCache.ServiceInfo> infos = new ArrayList<>(services.size());
+        for (BluetoothGattService service : services) {
+
+            DiscoveryCache.ServiceInfo info = new DiscoveryCache.ServiceInfo();
+            List<BluetoothGattCharacteristic> chrs = service.getCharacteristics();
+            info.uuid = service.getUuid();
+            info.characteristics = new UUID[chrs.size()];
+            info.properties = new int[chrs.size()];
+            for (int i = 0 ; i < chrs.size() ; i++) {
+                info.characteristics[i] = chrs.get(i).getUuid();
+                info.properties[i] = chrs.get(i).getProperties();
+            }
+
+            infos.add(info);
+
+        }
+
+        return infos;
+
+    }
+
+    /** A BluetoothGatt connection, passing its callbacks on with UUIDs instead of GATT objects */
+    private static class AndroidLink extends BluetoothGattCallback implements Link {
+
+        /** Receives events */
+        private final LinkCallback callback;
+
+        /** GATT connection */
+        BluetoothGatt gatt = null;
+
+        /** Discovered services, converted once per discovery */
+        private volatile List<DiscoveryCache.ServiceInfo> services = Collections.emptyList();
+
+        AndroidLink(LinkCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean connect() {
+            return gatt.connect();
+        }
+
+        @Override
+        public void disconnect() {
+            gatt.disconnect();
+        }
+
+        @Override
+        public void close() {
+            gatt.close();
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return gatt.discoverServices();
+        }
+
+        @Override
+        public List<DiscoveryCache.ServiceInfo> getServices() {
+
+            // The system keeps services from an earlier discovery on the same GATT object, so convert those if needed
+            if (services.isEmpty() && !gatt.getServices().isEmpty())
+                services = describe(gatt.getServices());
+
+            return services;
+
+        }
+
+        /** Find a characteristic, or null if not found */
+        private BluetoothGattCharacteristic find(UUID serviceUUID, UUID characteristic) {
+            BluetoothGattService service = gatt.getService(serviceUUID);
+            return service == null ? null : service.getCharacteristic(characteristic);
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID serviceUUID, UUID characteristic) {
+            BluetoothGattCharacteristic chr = find(serviceUUID, characteristic);
+            return chr != null && gatt.readCharacteristic(chr);
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID serviceUUID, UUID characteristic, byte[] value, boolean withResponse) {
+
+            // Find the characteristic
+            BluetoothGattCharacteristic chr = find(serviceUUID, characteristic);
+            if (chr == null)
+                return false;
+
+            // Write it
+            chr.setWriteType(withResponse ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            chr.setValue(value);
+            return gatt.writeCharacteristic(chr);
+
+        }
+
+        @Override
+        public boolean setNotify(UUID serviceUUID, UUID characteristic, boolean enable, boolean indicate) {
+
+            // Find the characteristic and its configuration descriptor
+            BluetoothGattCharacteristic chr = find(serviceUUID, characteristic);
+            BluetoothGattDescriptor descriptor = chr == null ? null : chr.getDescriptor(BLEConnection.CCCD_UUID);
+            if (descriptor == null)
+                return false;
+
+            // Enable notifications locally
+            if (!gatt.setCharacteristicNotification(chr, enable))
+                return false;
+
+            // Write the descriptor on the remote device
+            if (!enable)
+                descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            else if (indicate)
+                descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+            else
+                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+
+            return gatt.writeDescriptor(descriptor);
+
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return gatt.requestMtu(mtu);
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return gatt.requestConnectionPriority(priority);
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            super.onConnectionStateChange(gatt, status, newState);
+
+            // Only report connected and disconnected, a failed status always means the link is down
+            if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothGatt.STATE_CONNECTED)
+                callback.onConnectionStateChange(status, true);
+            else if (status != BluetoothGatt.GATT_SUCCESS || newState == BluetoothGatt.STATE_DISCONNECTED)
+                callback.onConnectionStateChange(status, false);
+
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            super.onServicesDiscovered(gatt, status);
+            if (status == BluetoothGatt.GATT_SUCCESS)
+                services = describe(gatt.getServices());
+            callback.onServicesDiscovered(status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            super.onCharacteristicRead(gatt, characteristic, status);
+            callback.onCharacteristicRead(characteristic.getService().getUuid(), characteristic.getUuid(), characteristic.getValue(), status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            super.onCharacteristicWrite(gatt, characteristic, status);
+            callback.onCharacteristicWrite(characteristic.getService().getUuid(), characteristic.getUuid(), status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            super.onDescriptorWrite(gatt, descriptor, status);
+            BluetoothGattCharacteristic chr = descriptor.getCharacteristic();
+            callback.onDescriptorWrite(chr.getService().getUuid(), chr.getUuid(), status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            super.onMtuChanged(gatt, mtu, status);
+            callback.onMtuChanged(mtu, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            super.onCharacteristicChanged(gatt, characteristic);
+            callback.onCharacteristicChanged(characteristic.getService().getUuid(), characteristic.getUuid(), characteristic.getValue());
+        }
+
+    }
+
+}
@@ -3,15 +3,12 @@ package com.rnbluetoothle;
 import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattServer;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.AdvertiseData;
-import android.bluetooth.le.AdvertiseSettings;
-import android.bluetooth.le.BluetoothLeAdvertiser;
-import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanSettings;
@@ -24,13 +21,13 @@ import android.util.Log;
 
 import androidx.annotation.RequiresApi;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
 
 /**
  * This class handles the main interaction with the Bluetooth LE hardware.
@@ -43,6 +40,14 @@ public class BLE {
         void run(T value, Exception ex);
     }
 
+    /** Receives values written to our GATT server by remote devices */
+    interface WriteListener {
+
+        /** Called when a remote device has written to a characteristic */
+        void onWrite(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] value);
+
+    }
+
     /** Scan listener */
     static abstract class ScanListener extends ScanCallback {
 
@@ -57,6 +62,33 @@ public class BLE {
 
     }
 
+    /** Scan options */
+    static class ScanOptions {
+
+        /** Scan mode, one of the ScanSettings.SCAN_MODE_* constants */
+        int scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+
+        /**
+         * If above zero, and the controller supports batching, results are collected in hardware and delivered to
+         * onBatchScanResults() at this interval in milliseconds.
+         */
+        long reportDelay = 0;
+
+        /**
+         * If above zero, and less than the interval, the scan only runs for this many milliseconds at the start of
+         * each interval, to save battery.
+         */
+        long window = 0;
+        long interval = 0;
+
+        /**
+         * True to pick the scan mode for each window, or every few seconds if scanning continuously, from how quickly
+         * new devices are being found and whether the app is in the foreground. Overrides scanMode.
+         */
+        boolean adaptive = false;
+
+    }
+
     /** Singleton */
     public static BLE get(Context ctx) {
         if (singleton == null) singleton = new BLE(ctx.getApplicationContext());
@@ -70,10 +102,11 @@ public class BLE {
     /** We don't want anyone calling the constructor except ourselves. */
     private BLE(Context ctx) {
         this.ctx = ctx;
+        this.discoveryCache = new DiscoveryCache(new File(ctx.getFilesDir(), "RNBluetoothLe-discovery.cache"));
     }
 
-    /** Bluetooth operation queue */
-    ExecutorService executor = Executors.newSingleThreadExecutor();
+    /** Operation queue for adapter-level work, such as advertising, scanning and managing services */
+    OperationQueue adapterQueue = new OperationQueue();
 
     /** Bluetooth adapter */
     BluetoothAdapter adapter = null;
@@ -81,23 +114,57 @@ public class BLE {
     /** GATT server */
     BluetoothGattServer gattServer = null;
 
-    /** List of pending promises */
-    HashMap<UUID, SettableFuture> pendingPromises = new HashMap<>();
+    /** Services registered on our GATT server, and the database the GATT listener answers reads from */
+    final ServiceRegistry<BluetoothGattService> server = new ServiceRegistry<>(
+            BluetoothGattService::getUuid, services -> GattDatabase.compile(services, this.readHandlers));
+
+    /** Dynamic characteristics on our GATT server */
+    final ReadHandlers readHandlers = new ReadHandlers(this);
+
+    /** Prepared writes from remote devices */
+    final WriteAssembler writeAssembler = new WriteAssembler();
+
+    /** Sends notifications to subscribed remote devices */
+    final NotifyEngine notifyEngine = new NotifyEngine(this);
+
+    /** Receives values written by remote devices */
+    WriteListener writeListener = null;
+
+    /** Advertiser */
+    final Advertiser advertiser = new Advertiser(this);
+
+    /** Receives connection state changes */
+    BLEConnection.StateListener connectionListener = null;
+
+    /** Starts and stops scans */
+    final ScanScheduler scanScheduler = new ScanScheduler(this);
 
-    /** List of advertised services */
-    ArrayList<BluetoothGattService> services = new ArrayList<>();
+    /** Advertising options */
+    Advertiser.Options advertiseOptions = new Advertiser.Options();
 
-    /** Advertise listener */
-    AdvertiseListener advertiseListener = new AdvertiseListener(this);
+    /** Readvertise waiting on the adapter queue, shared by every change made before it runs */
+    private SettableFuture<Void> pendingReadvertise = null;
 
-    /** List of connected devices */
-    ArrayList<BLEConnection> connections = new ArrayList<>();
+    /** Services discovered on remote devices */
+    final DiscoveryCache discoveryCache;
+
+    /** Connections to remote devices */
+    ConnectionPool connections = new ConnectionPool();
+
+    /** Operation latencies and counters */
+    final Metrics metrics = new Metrics();
+
+    /** Radio used for connections to remote devices. Can be replaced with a SimulatedRadio to run without hardware. */
+    Radio radio = new AndroidRadio(this);
+
+    /** ATT MTU of each remote device connected to our GATT server, by address */
+    final ConcurrentHashMap<String, Integer> serverMtu = new ConcurrentHashMap<>();
 
     /**
      * Device instance ID. This is used to get around random bluetooth address changing after a connect is made from iOS.
      * I really don't understand why this is happening.
      */
-    private static int ManufacturerID = 0xEF1C;
+    private static int ManufacturerID = AdvertisementParser.INSTANCE_COMPANY_ID;
     private static byte[] ManufacturerData = new byte[] {
             (byte) (Math.random() * Byte.MAX_VALUE),
             (byte) (Math.random() * Byte.MAX_VALUE),
@@ -108,7 +175,7 @@ public class BLE {
     /**
      * Sets up the Bluetooth environment
      */
-    private void setup() throws Exception {
+    private synchronized void setup() throws Exception {
 
         // Stop if already set up
         if (gattServer != null)
@@ -139,52 +206,36 @@ public class BLE {
      * @param service The service to register
      * @return Success or failure
      */
-    public Future createService(BluetoothGattService service, Callback<Boolean> cb) {
-
-        // Do on queue
-        return executor.submit(() -> {
+    public SettableFuture<Void> createService(BluetoothGattService service, Callback<Boolean> cb) {
 
-            try {
+        // Do on adapter queue
+        SettableFuture<Void> result = adapterQueue.submit(() -> {
 
-                // Setup bluetooth
-                setup();
+            // Setup bluetooth
+            setup();
 
-                // Remove existing service
-                for (BluetoothGattService s : services) {
-                    if (s.getUuid().equals(service.getUuid())) {
-                        gattServer.removeService(s);
-                        services.remove(s);
-                    }
-                }
-
-                // Store listener
-                SettableFuture promise = new SettableFuture();
-                pendingPromises.put(service.getUuid(), promise);
-
-                // Add service
-                this.services.add(service);
-                this.gattServer.addService(service);
+            // Remove existing service
+            for (BluetoothGattService s : server.remove(service.getUuid()))
+                gattServer.removeService(s);
 
-                // Wait until service has been registered
-                promise.get();
+            // Add service, making it readable before the stack can send requests for it
+            SettableFuture<Void> promise = server.add(service);
+            this.gattServer.addService(service);
 
-                // Readvertise
-                this.readvertise();
+            // Wait until service has been registered
+            return promise.then(v -> {
 
                 // Start service
                 ctx.startService(new Intent(ctx, BLEService.class));
+                return null;
 
-                // Done
-                cb.run(true, null);
-
-            } catch (Exception ex) {
+            });
 
-                // Failed
-                cb.run(null, ex);
+        }).then(v -> scheduleReadvertise());
 
-            }
-
-        });
+        // Notify callback
+        result.addListener((v, err) -> cb.run(err == null ? true : null, err));
+        return result;
 
     }
 
@@ -193,34 +244,28 @@ public class BLE {
      *
      * @param uuid
      */
-    public Future removeService(UUID uuid, Callback cb) {
+    public SettableFuture<Void> removeService(UUID uuid, Callback cb) {
 
-        // Do on queue
-        return executor.submit(() -> {
+        // Do on adapter queue
+        SettableFuture<Void> result = adapterQueue.submit(() -> {
 
             // Remove existing service
-            for (BluetoothGattService s : services) {
-                if (s.getUuid().equals(uuid)) {
-                    gattServer.removeService(s);
-                    services.remove(s);
-                }
-            }
+            for (BluetoothGattService s : server.remove(uuid))
+                gattServer.removeService(s);
 
             // Check how many services remain
-            if (services.size() > 0) {
+            if (server.services.size() > 0) {
 
-                // Readvertise
-                try {
-                    readvertise();
-                } catch (Exception ex) {
-                    Log.w("BLE", "Unable to modify advertised services. " + ex.getLocalizedMessage());
-                }
+                // Readvertise, along with any other changes queued before it
+                scheduleReadvertise().addListener((v, err) -> {
+                    if (err != null) Log.w("BLE", "Unable to modify advertised services. " + err.getLocalizedMessage());
+                });
+                return null;
 
             } else {
 
                 // Stop advertising
-                BluetoothLeAdvertiser advertiser = adapter.getBluetoothLeAdvertiser();
-                advertiser.stopAdvertising(advertiseListener);
+                advertiser.stop(adapter);
 
                 // Stop server
                 gattServer.close();
@@ -228,58 +273,136 @@ public class BLE {
 
                 // Stop service
                 ctx.stopService(new Intent(ctx, BLEService.class));
+                return null;
 
             }
 
-            // Done
-            if (cb != null)
-                cb.run(true, null);
-
         });
 
+        // Done
+        if (cb != null)
+            result.addListener((v, err) -> cb.run(err == null ? true : null, err));
+
+        return result;
+
+    }
+
+    /**
+     * Set the value of one of our characteristics, and notify every remote device which has subscribed to it.
+     *
+     * @return The number of subscribed devices
+     */
+    public int notifyCharacteristic(UUID serviceUUID, UUID characteristic, byte[] value) throws Exception {
+
+        // Find the characteristic
+        BluetoothGattCharacteristic chr = null;
+        for (BluetoothGattService service : server.services)
+            if (service.getUuid().equals(serviceUUID))
+                chr = service.getCharacteristic(characteristic);
+
+        if (chr == null)
+            throw new Exception("The specified characteristic was not found.");
+
+        // Send it
+        return notifyEngine.notify(chr, value);
+
     }
 
-    /** Update advertised data */
-    private void readvertise() throws Exception {
+    /**
+     * Set the advertise mode and transmit power. If advertising, the advertisement is updated.
+     *
+     * @return Completes once the new options are in effect
+     */
+    public SettableFuture<Void> setAdvertiseOptions(Advertiser.Options options) {
+
+        // Store options, and readvertise if needed
+        return adapterQueue.submit(() -> {
+            advertiseOptions = options;
+            return null;
+        }).then(v -> server.services.isEmpty() ? SettableFuture.resolved(null) : scheduleReadvertise());
 
-        // Sanity check
-        if (adapter == null)
-            return;
+    }
 
-        // Create advertise settings
-        AdvertiseSettings settings = new AdvertiseSettings.Builder()
-                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_POWER)
-                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
-                .setConnectable(true)
-                .build();
+    /**
+     * Readvertise once the adapter queue reaches it. Changes made before then are all picked up by the same readvertise,
+     * so registering several services costs one update instead of one per service.
+     */
+    private synchronized SettableFuture<Void> scheduleReadvertise() {
+
+        // Join the waiting readvertise if there is one
+        if (pendingReadvertise != null)
+            return pendingReadvertise;
+
+        // Queue one. It's stored before submitting, since the queue may start it straight away.
+        SettableFuture<Void> result = new SettableFuture<>();
+        pendingReadvertise = result;
+        adapterQueue.submit(() -> {
+            synchronized (this) {
+                pendingReadvertise = null;
+            }
+            return readvertise();
+        }).addListener(result::complete);
 
-        // Create advertise data
-        AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder().addManufacturerData(ManufacturerID, ManufacturerData);
-        for (BluetoothGattService svc : services)
-            dataBuilder = dataBuilder.addServiceUuid(new ParcelUuid(svc.getUuid()));
+        return result;
 
-        // Create advertise scan data
-        AdvertiseData.Builder scanData = new AdvertiseData.Builder();
+    }
 
-        for (BluetoothGattService svc : services)
-            scanData = scanData.addServiceUuid(new ParcelUuid(svc.getUuid()));
+    /** Plan where each registered service goes in the advertisement */
+    AdvertisePlanner.Layout planAdvertisement() {
 
-        // Get advertiser
-        BluetoothLeAdvertiser advertiser = adapter.getBluetoothLeAdvertiser();
+        // Get services
+        ArrayList<UUID> uuids = new ArrayList<>();
+        for (BluetoothGattService svc : server.services)
+            uuids.add(svc.getUuid());
 
-        // Stop advertising if needed
-        advertiser.stopAdvertising(advertiseListener);
+        // Check if extended advertising can be used
+        int extendedMaxLength = 0;
+        if (advertiseOptions.allowExtended && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && adapter != null && adapter.isLeExtendedAdvertisingSupported())
+            extendedMaxLength = adapter.getLeMaximumAdvertisingDataLength();
 
-        // Start advertising
-        advertiseListener.startPromise = new SettableFuture<>();
-        advertiser.startAdvertising(settings, dataBuilder.build(), scanData.build(), advertiseListener);
-        advertiseListener.startPromise.get();
-        Log.i("BLE", "Restarted advertising");
+        // Plan it
+        return AdvertisePlanner.plan(uuids, ManufacturerData.length, extendedMaxLength);
 
     }
 
-    // Current scan
-    private ScanListener currentScan = null;
+    /** Update advertised data. The returned future completes once the new data is being advertised. */
+    private SettableFuture<Void> readvertise() {
+
+        // Sanity check
+        if (adapter == null)
+            return SettableFuture.resolved(null);
+
+        // Stop if there's nothing to advertise
+        if (server.services.isEmpty()) {
+            advertiser.stop(adapter);
+            return SettableFuture.resolved(null);
+        }
+
+        // Plan what fits where
+        AdvertisePlanner.Layout layout = planAdvertisement();
+        Log.i("BLE", layout.toString());
+
+        // Create advertise data, with the service digest after the instance ID if some services didn't fit
+        byte[] manufacturerData = ManufacturerData;
+        if (layout.digest != 0) {
+            manufacturerData = Arrays.copyOf(ManufacturerData, ManufacturerData.length + AdvertisePlanner.DIGEST_LENGTH);
+            for (int i = 0 ; i < AdvertisePlanner.DIGEST_LENGTH ; i++)
+                manufacturerData[ManufacturerData.length + i] = (byte) (layout.digest >>> (i * 8));
+        }
+
+        AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder().addManufacturerData(ManufacturerID, manufacturerData);
+        for (UUID uuid : layout.advertised)
+            dataBuilder = dataBuilder.addServiceUuid(new ParcelUuid(uuid));
+
+        // Create advertise scan data
+        AdvertiseData.Builder scanData = new AdvertiseData.Builder();
+        for (UUID uuid : layout.scanResponse)
+            scanData = scanData.addServiceUuid(new ParcelUuid(uuid));
+
+        // Update the advertisement
+        return advertiser.update(adapter, dataBuilder.build(), scanData.build(), advertiseOptions, layout.extended);
+
+    }
 
     /**
      * Start scanning for remote devices nearby.
@@ -288,61 +411,55 @@ public class BLE {
      * @param listener Response listener
      */
     public void scan(List<UUID> serviceFilter, ScanListener listener) {
+        scan(serviceFilter, new ScanOptions(), listener);
+    }
 
-        // Do on queue
-        executor.submit(() -> {
-
-            try {
-
-                // Setup bluetooth
-                setup();
+    /**
+     * Start scanning for remote devices nearby.
+     *
+     * @param serviceFilter An optional list of services. If specified, will only return devices with these services.
+     * @param options Scan options
+     * @param listener Response listener
+     */
+    public void scan(List<UUID> serviceFilter, ScanOptions options, ScanListener listener) {
 
-                // Get discoverer
-                BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+        // Do on adapter queue
+        adapterQueue.submit(() -> {
 
-                // Stop existing scan if any
-                if (currentScan != null) {
-                    scanner.stopScan(currentScan);
-                }
+            // Setup bluetooth
+            setup();
 
-                // Create scan settings
-                ScanSettings.Builder settings = new ScanSettings.Builder()
-                        .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+            // Create service filter, if any
+            ArrayList<ScanFilter> filters = null;
+            if (serviceFilter != null && serviceFilter.size() > 0) {
 
-                // Only match once per device if possible
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                    settings = settings.setCallbackType(ScanSettings.CALLBACK_TYPE_FIRST_MATCH | ScanSettings.CALLBACK_TYPE_MATCH_LOST);
-                }
+                // These run in the controller if it supports offloaded filtering
+                filters = new ArrayList<>();
+                for (UUID uuid : serviceFilter)
+                    filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
 
-                // Start scanning, check filter
-                if (serviceFilter == null || serviceFilter.size() == 0) {
+                // Also let through devices with Apple's overflow area, since a backgrounded iOS app advertises its
+                // services there instead. The listener checks these in software with a ServiceFilter.
+                filters.add(new ScanFilter.Builder().setManufacturerData(AdvertisementParser.APPLE_COMPANY_ID, new byte[] { 0x01 }, new byte[] { (byte) 0xFF }).build());
 
-                    // Scan without a filter
-                    currentScan = listener;
-                    scanner.startScan(listener);
+                // Also let through devices running this library, which may list some services only in their digest
+                filters.add(new ScanFilter.Builder().setManufacturerData(AdvertisementParser.INSTANCE_COMPANY_ID, new byte[0]).build());
 
-                } else {
+            }
 
-                    // Create service filter
-                    ArrayList<ScanFilter> filters = new ArrayList<>();
-                    for (UUID uuid : serviceFilter)
-                        filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
+            // Start scanning, replacing the existing scan if any
+            scanScheduler.start(filters, options, listener);
 
-                    // Scan with filter
-                    currentScan = listener;
-                    scanner.startScan(filters, settings.build(), listener);
+            // Done
+            return null;
 
-                }
+        }).addListener((v, err) -> {
 
-                // Done
+            // Notify listener
+            if (err == null)
                 listener.onStart();
-
-            } catch (Exception ex) {
-
-                // Failed
-                listener.onStartFailed(ex);
-
-            }
+            else
+                listener.onStartFailed(err);
 
         });
 
@@ -354,100 +471,246 @@ public class BLE {
      */
     public void stopScan() {
 
-        // Do on queue
-        executor.submit(() -> {
+        // Do on adapter queue
+        adapterQueue.submit(() -> {
 
             // Stop if not scanning
-            if (currentScan == null)
-                return;
-
-            // Get discoverer
-            BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+            if (!scanScheduler.isActive())
+                return null;
 
-            // Stop existing scan if any
-            scanner.stopScan(currentScan);
-            currentScan = null;
+            // Stop existing scan
+            scanScheduler.stop();
             Log.i("BLE", "Scan stopped");
+            return null;
 
         });
 
     }
 
     public void readCharacteristic(String deviceAddress, UUID serviceUUID, UUID characteristic, Callback<byte[]> callback) {
+        readCharacteristic(deviceAddress, serviceUUID, characteristic, 0, callback);
+    }
 
-        // Do on queue
-        executor.submit(() -> {
+    /**
+     * Read a characteristic from a remote device.
+     *
+     * @param timeoutMs Maximum time for the whole read, including waiting for earlier operations on this device,
+     *                  connecting and discovering services. If zero, there is no timeout.
+     */
+    public void readCharacteristic(String deviceAddress, UUID serviceUUID, UUID characteristic, long timeoutMs, Callback<byte[]> callback) {
+
+        // Read it once connected, and measure it
+        runOnConnection(deviceAddress, timeoutMs, callback, connection -> {
+            long start = System.nanoTime();
+            return connection.readCharacteristic(serviceUUID, characteristic).then(value -> {
+                metrics.record(Metrics.READ, connection.address, start);
+                metrics.bytesRead.addAndGet(value.length);
+                return SettableFuture.resolved(value);
+            });
+        });
+
+    }
 
-            try {
+    /**
+     * Write a value to a characteristic on a remote device. Large values are split into chunks, see WritePipeline.
+     *
+     * @param withResponse True to wait for the remote device to acknowledge each write, false to write without response.
+     * @param timeoutMs Maximum time for the whole write, including connecting. If zero, there is no timeout.
+     */
+    public void writeCharacteristic(String deviceAddress, UUID serviceUUID, UUID characteristic, byte[] data, boolean withResponse, long timeoutMs, Callback<WritePipeline.Result> callback) {
+
+        // Write it once connected, and measure it
+        runOnConnection(deviceAddress, timeoutMs, callback, connection -> {
+            connection.getCharacteristic(serviceUUID, characteristic);
+            long start = System.nanoTime();
+            return new WritePipeline(connection, serviceUUID, characteristic, data, withResponse).start().then(result -> {
+                metrics.record(Metrics.WRITE, connection.address, start);
+                metrics.bytesWritten.addAndGet(result.bytes);
+                return SettableFuture.resolved(result);
+            });
+        });
 
-                // Setup bluetooth
-                setup();
+    }
 
-                // Find existing connection
-                BLEConnection connection = null;
-                for (BLEConnection conn : connections)
-                    if (conn.remoteDevice.getAddress().equalsIgnoreCase(deviceAddress))
-                        connection = conn;
+    /**
+     * Connect to a remote device, and set its connection options. If already connected, the new options are applied to
+     * the existing connection. Resolves with the ATT MTU in effect.
+     */
+    public void connect(String deviceAddress, BLEConnection.ConnectionOptions options, long timeoutMs, Callback<Integer> callback) {
 
-                // Connect if necessary
-                if (connection == null) {
+        // Apply options once connected
+        runOnConnection(deviceAddress, timeoutMs, callback, connection -> {
+            connection.options = options;
+            return connection.applyOptions().then(v -> SettableFuture.resolved(connection.mtu));
+        });
 
-                    // Get device
-                    BluetoothDevice device = adapter.getRemoteDevice(deviceAddress);
+    }
 
-                    // Create connection
-                    connection = new BLEConnection();
-                    connection.remoteDevice = device;
+    /**
+     * Subscribe to notifications or indications from a characteristic on a remote device.
+     *
+     * @param buffer Receives the notification values
+     */
+    public void subscribe(String deviceAddress, UUID serviceUUID, UUID characteristic, NotificationBuffer buffer, long timeoutMs, Callback<Void> callback) {
+        runOnConnection(deviceAddress, timeoutMs, callback, connection -> connection.setNotify(serviceUUID, characteristic, buffer));
+    }
 
-                    // Connect
-                    connection.pendingConnection = new SettableFuture<Void>();
-                    connection.gatt = device.connectGatt(ctx, false, connection);
-                    connection.pendingConnection.get();
+    /** Stop notifications from a characteristic on a remote device */
+    public void unsubscribe(String deviceAddress, UUID serviceUUID, UUID characteristic, long timeoutMs, Callback<Void> callback) {
+        runOnConnection(deviceAddress, timeoutMs, callback, connection -> connection.setNotify(serviceUUID, characteristic, null));
+    }
 
-                } else {
+    /** Store a new value for one of our characteristics, so reads return it */
+    void storeValue(BluetoothGattCharacteristic characteristic, byte[] value) {
+        server.update(database -> {
+            characteristic.setValue(value);
+            return database.withValue(characteristic, value);
+        });
+    }
 
-                    // Existing connection exists, if the connection has dropped attempt to connect to it again
-                    connection.pendingConnection = new SettableFuture<Void>();
-                    if (!connection.gatt.connect()) throw new Exception("Unable to request a connection to this device.");
-                    connection.pendingConnection.get();
+    /** Store a new value for one of our descriptors, so reads return it */
+    void storeValue(BluetoothGattDescriptor descriptor, byte[] value) {
+        server.update(database -> {
+            descriptor.setValue(value);
+            return database.withValue(descriptor, value);
+        });
+    }
 
-                }
+    /** Get the ATT MTU negotiated by a remote device connected to our GATT server */
+    public int getServerMtu(BluetoothDevice device) {
+        Integer mtu = serverMtu.get(device.getAddress());
+        return mtu == null ? BLEConnection.DEFAULT_MTU : mtu;
+    }
 
-                // Discover services if necessary
-                if (connection.gatt.getServices().isEmpty()) {
+    /** An operation to run on a connected device */
+    interface ConnectionOperation<T> {
+        SettableFuture<T> run(BLEConnection connection) throws Exception;
+    }
 
-                    // Discover services
-                    connection.pendingServices = new SettableFuture<Void>();
-                    connection.gatt.discoverServices();
-                    connection.pendingServices.get();
+    /**
+     * Run an operation on a device's queue, after connecting and discovering services if necessary.
+     *
+     * @param timeoutMs Maximum time for the whole operation, including waiting for earlier operations on this device,
+     *                  connecting and discovering services. If zero, there is no timeout.
+     */
+    private <T> void runOnConnection(String deviceAddress, long timeoutMs, Callback<T> callback, ConnectionOperation<T> operation) {
 
-                }
+        // Get connection
+        BLEConnection connection;
+        try {
 
-                // Find the service
-                BluetoothGattService service = connection.gatt.getService(serviceUUID);
-                if (service == null)
-                    throw new Exception("The specified service was not found.");
+            // Setup bluetooth
+            setup();
+            connection = connections.acquire(deviceAddress, radio);
 
-                // Now find the characteristic
-                BluetoothGattCharacteristic chr = service.getCharacteristic(characteristic);
-                if (chr == null)
-                    throw new Exception("The specified characteristic was not found.");
+        } catch (Exception ex) {
 
-                // Read it
-                connection.pendingCharacteristicRead = new SettableFuture<byte[]>();
-                connection.gatt.readCharacteristic(chr);
-                byte[] data = connection.pendingCharacteristicRead.get();
+            // Failed
+            callback.run(null, ex);
+            return;
 
-                // Done
-                callback.run(data, null);
+        }
 
-            } catch (Exception ex) {
+        // Report state changes and metrics, and reconnect if the link drops
+        connection.stateListener = this::onConnectionStateChanged;
+        connection.metrics = metrics;
+        connection.onReconnect = () -> reconnect(connection);
 
-                // Failed
-                callback.run(null, ex);
+        // Do on the device's queue: connect if necessary, get the link ready, then run it
+        connection.queue.submit(() -> connection.connect()
+                .then(v -> prepare(connection))
+                .then(v -> operation.run(connection))
+        ).withTimeout(timeoutMs).addListener((value, err) -> {
 
+            // If timed out, the connection is in an unknown state. Close it so the next operation starts clean.
+            if (err instanceof TimeoutException) {
+                metrics.timeouts.incrementAndGet();
+                connections.remove(connection, err);
             }
 
+            // Release the connection, it can be closed once idle
+            connections.release(connection);
+
+            // Done
+            callback.run(value, err);
+
+        });
+
+    }
+
+    /**
+     * Record a connection state change in the pool stats and metrics, then pass it on. Background reconnects aren't
+     * counted as connect times, since they include waiting for the device to come back into range.
+     */
+    private void onConnectionStateChanged(BLEConnection connection, BLEConnection.State state, Exception error, long timeToReady) {
+        connections.recordState(state, timeToReady);
+        if (state == BLEConnection.State.CONNECTED && connection.connectStarted > 0 && !connection.connectingInBackground)
+            metrics.recordDuration(Metrics.CONNECT, connection.address, (System.currentTimeMillis() - connection.connectStarted) * 1000);
+        if (connectionListener != null)
+            connectionListener.onStateChanged(connection, state, error, timeToReady);
+    }
+
+    /**
+     * Get a new link ready for operations: negotiate MTU, discover services and enable notifications again, if
+     * necessary.
+     */
+    private SettableFuture<Void> prepare(BLEConnection connection) {
+        return connection.applyOptions()
+                .then(v -> discoverServices(connection))
+                .then(v -> connection.restoreSubscriptions())
+                .then(v -> {
+                    connection.markReady();
+                    return null;
+                });
+    }
+
+    /** Reconnect a connection whose link dropped, once its backoff delay is over */
+    private void reconnect(BLEConnection connection) {
+
+        // Stop if the connection was closed or reconnected while waiting
+        if (connection.state != BLEConnection.State.BACKOFF)
+            return;
+
+        // Connect in the background, then get the link ready on the device's queue. If the link drops again, the
+        // connection schedules another attempt itself.
+        Log.i("BLE", "Reconnecting to " + connection.address + ", attempt " + connection.reconnectAttempts);
+        connection.connect(true)
+                .then(v -> connection.queue.submit(() -> prepare(connection)))
+                .addListener((v, err) -> {
+                    if (err != null)
+                        Log.w("BLE", "Unable to reconnect to " + connection.address + ": " + err.getLocalizedMessage());
+                });
+
+    }
+
+    /**
+     * Close the connection to a device. It won't reconnect until another operation needs it.
+     */
+    public void disconnect(String deviceAddress) {
+
+        BLEConnection connection = connections.get(deviceAddress);
+        if (connection != null)
+            connections.remove(connection, new Exception("The connection was closed."));
+
+    }
+
+    /** Discover services on a connection if necessary, and record them in the discovery cache */
+    private SettableFuture<Void> discoverServices(BLEConnection connection) {
+
+        // Stop if already discovered
+        if (!connection.needsDiscovery())
+            return SettableFuture.resolved(null);
+
+        // Forget cached services if the device says they changed
+        String address = connection.address;
+        connection.onServicesChanged = () -> discoveryCache.invalidate(address);
+
+        // Discover, update the cache, then listen for changes
+        long start = System.nanoTime();
+        return connection.discoverServices().then(v -> {
+            metrics.record(Metrics.DISCOVER, address, start);
+            discoveryCache.update(address, connection.getServices());
+            return connection.enableServiceChanged();
         });
 
     }
@@ -1,69 +1,747 @@
 package com.rnbluetoothle;
 
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-import android.os.Build;
 
-import androidx.annotation.RequiresApi;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
-import java.util.ArrayList;
+/** Represents a GATT connection to a device. The link itself is provided by a Radio. */
+public class BLEConnection implements Radio.LinkCallback {
 
-/** Represents a GATT connection to a device. */
-@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
-public class BLEConnection extends BluetoothGattCallback {
+    /** Connection options */
+    static class ConnectionOptions {
 
-    /** Remote device */
-    BluetoothDevice remoteDevice = null;
+        /** ATT MTU to request after connecting. The remote device may agree to a smaller one. */
+        int mtu = MAX_MTU;
 
-    /** GATT server connection */
-    BluetoothGatt gatt = null;
+        /** Connection priority, one of the BluetoothGatt.CONNECTION_PRIORITY_* constants */
+        int priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
 
-    /** Pending operations */
-    SettableFuture<Void> pendingConnection = null;
-    SettableFuture<Void> pendingServices = null;
-    SettableFuture<byte[]> pendingCharacteristicRead = null;
+        /** True to reconnect if the link drops. Connections with subscriptions always reconnect. */
+        boolean autoReconnect = false;
 
-    /** True if connected */
-    boolean isConnected = false;
+    }
+
+    /** Connection states */
+    enum State {
+
+        /** Not connected, and not trying to */
+        DISCONNECTED,
+
+        /** Waiting for the link to come up */
+        CONNECTING,
+
+        /** Link is up, services not discovered yet */
+        CONNECTED,
+
+        /** Discovering services */
+        DISCOVERING,
+
+        /** Connected with services discovered, ready for operations */
+        READY,
+
+        /** Closing the link */
+        DISCONNECTING,
+
+        /** The link dropped, waiting before reconnecting */
+        BACKOFF
+
+    }
+
+    /** Receives connection state changes */
+    interface StateListener {
+
+        /**
+         * Called when the connection state changes.
+         *
+         * @param error Why the link dropped, if it did
+         * @param timeToReady When changing to READY, the time since connecting started in milliseconds, otherwise -1
+         */
+        void onStateChanged(BLEConnection connection, State state, Exception error, long timeToReady);
+
+    }
+
+    /** First reconnect delay, and the most it grows to, in milliseconds */
+    static final long BACKOFF_MIN = 1000;
+    static final long BACKOFF_MAX = 60000;
+
+    /** Number of failed reconnect attempts before giving up */
+    static final int MAX_RECONNECT_ATTEMPTS = 10;
+
+    /** Remote device address */
+    final String address;
+
+    /** Radio used to create the link */
+    private final Radio radio;
+
+    /** GATT link to the remote device, or null if not created yet or closed */
+    Radio.Link link = null;
+
+    /**
+     * Pending operations. A slot is filled by the thread starting the operation, and taken with getAndSet(null) by
+     * whichever completes it first, the radio callback or a disconnect, so an operation is only ever completed once.
+     */
+    final AtomicReference<SettableFuture<Void>> pendingConnection = new AtomicReference<>();
+    final AtomicReference<SettableFuture<Void>> pendingServices = new AtomicReference<>();
+    final AtomicReference<SettableFuture<byte[]>> pendingCharacteristicRead = new AtomicReference<>();
+    final AtomicReference<SettableFuture<Integer>> pendingCharacteristicWrite = new AtomicReference<>();
+    final AtomicReference<SettableFuture<Integer>> pendingMtu = new AtomicReference<>();
+    final AtomicReference<SettableFuture<Void>> pendingDescriptorWrite = new AtomicReference<>();
+
+    /** True if connected. Changed while holding the connection lock, read from any thread. */
+    volatile boolean isConnected = false;
+
+    /** Connection state. Changed while holding the connection lock, read from any thread. */
+    volatile State state = State.DISCONNECTED;
+
+    /**
+     * True once closed. Closing is final, since the pool has dropped the connection by then, and a new link on it would
+     * never be counted or closed. Operations still queued on it fail instead.
+     */
+    private boolean closed = false;
+
+    /** Receives state changes */
+    volatile StateListener stateListener = null;
+
+    /** A state change waiting to be passed to the listener */
+    private static class StateChange {
+
+        final State state;
+        final Exception error;
+        final long timeToReady;
+
+        StateChange(State state, Exception error, long timeToReady) {
+            this.state = state;
+            this.error = error;
+            this.timeToReady = timeToReady;
+        }
+
+    }
+
+    /** State changes not passed to the listener yet, oldest first. Guarded by the connection lock. */
+    private final ArrayDeque<StateChange> stateChanges = new ArrayDeque<>();
+
+    /** True while a thread is passing state changes to the listener */
+    private boolean dispatching = false;
+
+    /** When the current connection attempt started, or 0 if not connecting */
+    long connectStarted = 0;
+
+    /** True if the current connection attempt is in the background, which waits for the device to come into range */
+    boolean connectingInBackground = false;
+
+    /** Time from starting to connect to being ready on the last connection, in milliseconds, or -1 if never ready */
+    long lastTimeToReady = -1;
+
+    /** Number of reconnect attempts since the link was last ready */
+    int reconnectAttempts = 0;
+
+    /** Scheduled reconnect while in BACKOFF */
+    private ScheduledFuture<?> reconnectTimer = null;
+
+    /** Called after a backoff delay to reconnect */
+    Runnable onReconnect = null;
+
+    /** True if the link dropped while subscribed, and notifications need enabling again on the new link */
+    boolean subscriptionsStale = false;
+
+    /** Connection options */
+    ConnectionOptions options = new ConnectionOptions();
+
+    /** Notification buffers for subscribed characteristics, by subscription key */
+    ConcurrentHashMap<String, NotificationBuffer> subscriptions = new ConcurrentHashMap<>();
+
+    /** Status passed to writers when the stack refused to start a write, usually because it's busy */
+    static final int STATUS_BUSY = -1;
+
+    /** Error for operations started while the link is down */
+    static final String NOT_CONNECTED = "The device is not connected.";
+
+    /** Client Characteristic Configuration Descriptor, used to enable notifications */
+    static final UUID CCCD_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    /** Generic Attribute service and its Service Changed characteristic, indicated when the remote layout changes */
+    static final UUID GENERIC_ATTRIBUTE_UUID = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    static final UUID SERVICE_CHANGED_UUID = UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
+
+    /** True if the remote device indicated that its services changed since they were discovered */
+    volatile boolean servicesStale = false;
+
+    /** True once Service Changed indications have been enabled on the current link */
+    boolean serviceChangedEnabled = false;
+
+    /** Called when the remote device indicates that its services changed */
+    Runnable onServicesChanged = null;
+
+    /** Current ATT MTU. Reset to the default on disconnect. */
+    volatile int mtu = DEFAULT_MTU;
+
+    /** True once an MTU has been requested on the current link */
+    boolean mtuRequested = false;
+
+    /** Connection priority currently in effect, or -1 if not set on the current link */
+    int currentPriority = -1;
+
+    /** Number of operations using this connection. Guarded by the ConnectionPool. */
+    int references = 0;
+
+    /** When this connection was last used */
+    long lastUsed = System.currentTimeMillis();
+
+    /** Receives latency and error metrics, if set */
+    Metrics metrics = null;
+
+    /** Operation queue for this device. Operations on one device run in order, different devices run concurrently. */
+    OperationQueue queue = new OperationQueue();
+
+    /** Constructor */
+    BLEConnection(String address, Radio radio) {
+        this.address = address;
+        this.radio = radio;
+    }
+
+    /** Connect to the device, if not connected already */
+    SettableFuture<Void> connect() {
+        return connect(false);
+    }
+
+    /**
+     * Connect to the device, if not connected already. If already connecting, waits for that attempt.
+     *
+     * @param background True to let the system connect whenever the device comes into range, without a timeout. Used
+     *                   for reconnecting, since it uses less power and the system doesn't limit it.
+     */
+    SettableFuture<Void> connect(boolean background) {
+
+        SettableFuture<Void> promise;
+        Exception failed = null;
+        synchronized (this) {
+
+            // Fail if closed
+            if (closed)
+                return SettableFuture.rejected(new Exception("The connection was closed."));
+
+            // Stop if already connected
+            if (isConnected)
+                return SettableFuture.resolved(null);
+
+            // Wait for the current attempt if connecting
+            SettableFuture<Void> current = pendingConnection.get();
+            if (state == State.CONNECTING && current != null)
+                return current;
+
+            // Cancel a scheduled reconnect, since we're connecting now
+            cancelReconnect();
+
+            // Create promise
+            promise = new SettableFuture<>();
+            pendingConnection.set(promise);
+            connectStarted = System.currentTimeMillis();
+            connectingInBackground = background;
+            setState(State.CONNECTING, null);
+
+            // Connect. A background connection needs a new link, since autoConnect is set when it's created.
+            if (background && link != null) {
+                link.close();
+                link = null;
+            }
+
+            // If it couldn't start, clear the slot so the next attempt doesn't wait on this one
+            try {
+                if (link == null)
+                    link = radio.connect(address, background, this);
+                else if (!link.connect())
+                    throw new Exception("Unable to request a connection to this device.");
+            } catch (Exception ex) {
+                pendingConnection.compareAndSet(promise, null);
+                setState(State.DISCONNECTED, ex);
+                failed = ex;
+            }
+
+        }
+
+        // Tell the listener, and fail if it couldn't start, outside the lock since both call into other locks
+        dispatchStateChanges();
+        if (failed != null)
+            promise.reject(failed);
+
+        // Done
+        return promise;
+
+    }
+
+    /** Change state, and queue the change for the listener. Call dispatchStateChanges() once outside the lock. */
+    private synchronized void setState(State newState, Exception error) {
+
+        // Stop if not changed
+        if (state == newState)
+            return;
+
+        // Measure time to ready
+        long timeToReady = -1;
+        if (newState == State.READY && connectStarted > 0) {
+            timeToReady = System.currentTimeMillis() - connectStarted;
+            lastTimeToReady = timeToReady;
+            connectStarted = 0;
+        }
+
+        // Queue it for the listener
+        state = newState;
+        stateChanges.add(new StateChange(newState, error, timeToReady));
+
+    }
+
+    /**
+     * Pass queued state changes to the listener. Must be called without holding the connection lock, since the
+     * listener takes other locks, such as the pool's. One thread passes them on at a time, so they arrive in order.
+     */
+    private void dispatchStateChanges() {
+
+        // Only one thread passes on changes at a time
+        synchronized (this) {
+            if (dispatching) return;
+            dispatching = true;
+        }
+
+        while (true) {
+
+            // Get the next change, stop if none
+            StateChange change;
+            synchronized (this) {
+                change = stateChanges.poll();
+                if (change == null) {
+                    dispatching = false;
+                    return;
+                }
+            }
+
+            // Pass it on
+            StateListener listener = stateListener;
+            if (listener != null)
+                listener.onStateChanged(this, change.state, change.error, change.timeToReady);
+
+        }
+
+    }
+
+    /** Mark the connection as ready for operations, once connected and services are discovered */
+    void markReady() {
+
+        synchronized (this) {
+            if (isConnected) {
+                reconnectAttempts = 0;
+                setState(State.READY, null);
+            }
+        }
+
+        dispatchStateChanges();
+
+    }
+
+    /** True if the connection should reconnect when the link drops */
+    boolean shouldReconnect() {
+        return options.autoReconnect || !subscriptions.isEmpty();
+    }
+
+    /**
+     * Wait before reconnecting, with exponential backoff and jitter so many devices don't all retry at once.
+     *
+     * @return False if there have been too many attempts, and the connection should give up
+     */
+    private boolean scheduleReconnect(Runnable reconnect, Exception reason) {
+
+        // Give up after too many attempts
+        if (reconnectAttempts >= MAX_RECONNECT_ATTEMPTS)
+            return false;
+
+        // Pick a delay between half and all of the backoff for this attempt
+        long backoff = Math.min(BACKOFF_MAX, BACKOFF_MIN << Math.min(reconnectAttempts, 16));
+        long delay = backoff / 2 + (long) (Math.random() * (backoff / 2));
+        reconnectAttempts++;
+
+        // Schedule it
+        cancelReconnect();
+        setState(State.BACKOFF, reason);
+        reconnectTimer = SettableFuture.timer.schedule(reconnect, delay, TimeUnit.MILLISECONDS);
+        return true;
+
+    }
+
+    /** Cancel a scheduled reconnect */
+    private void cancelReconnect() {
+        if (reconnectTimer != null) {
+            reconnectTimer.cancel(false);
+            reconnectTimer = null;
+        }
+    }
+
+    /** Enable notifications again for every subscription, after reconnecting */
+    SettableFuture<Void> restoreSubscriptions() {
+
+        // Stop if nothing to restore
+        if (!subscriptionsStale)
+            return SettableFuture.resolved(null);
+
+        // Enable each in turn, since only one descriptor write can be in progress
+        subscriptionsStale = false;
+        SettableFuture<Void> result = SettableFuture.resolved(null);
+        for (String key : subscriptions.keySet()) {
+            String[] parts = key.split("/");
+            UUID serviceUUID = UUID.fromString(parts[0]);
+            UUID characteristic = UUID.fromString(parts[1]);
+            result = result.then(v -> {
+                NotificationBuffer buffer = subscriptions.get(key);
+                return buffer == null ? SettableFuture.resolved(null) : setNotify(serviceUUID, characteristic, buffer);
+            });
+        }
+
+        return result;
+
+    }
+
+    /** True if services have not been discovered yet, or have changed since */
+    boolean needsDiscovery() {
+        return servicesStale || link.getServices().isEmpty();
+    }
+
+    /** Discover services, if they have not been discovered yet */
+    SettableFuture<Void> discoverServices() {
+
+        // Stop if already discovered
+        if (!needsDiscovery())
+            return SettableFuture.resolved(null);
+
+        // Discover services
+        SettableFuture<Void> promise = new SettableFuture<>();
+        pendingServices.set(promise);
+        setState(State.DISCOVERING, null);
+        dispatchStateChanges();
+        if (!link.discoverServices() && pendingServices.compareAndSet(promise, null))
+            promise.reject(new Exception("Unable to discover services on this device."));
+
+        // Done
+        return promise;
+
+    }
+
+    /**
+     * Close the GATT connection and fail any pending operations. Used to clean up a connection which is in an unknown
+     * state, such as after an operation timed out. The connection can't be used again.
+     */
+    void close(Exception reason) {
+
+        synchronized (this) {
+
+            // Stop reconnecting, and don't connect again
+            closed = true;
+            cancelReconnect();
+            setState(State.DISCONNECTING, reason);
+
+            // Close connection
+            isConnected = false;
+            resetLink();
+            if (link != null) {
+                link.disconnect();
+                link.close();
+                link = null;
+            }
+
+            setState(State.DISCONNECTED, reason);
+
+        }
+
+        // Tell the listener and fail pending operations outside the lock, since both call into other locks
+        dispatchStateChanges();
+        failPending(reason);
+
+    }
+
+    /** Take a pending operation from its slot and complete it, if there is one */
+    private static <T> void complete(AtomicReference<SettableFuture<T>> slot, T value, Exception error) {
+        SettableFuture<T> promise = slot.getAndSet(null);
+        if (promise != null)
+            promise.complete(value, error);
+    }
+
+    /** Fail all pending operations */
+    private void failPending(Exception reason) {
+
+        complete(pendingConnection, null, reason);
+        complete(pendingServices, null, reason);
+        complete(pendingCharacteristicRead, null, reason);
+        complete(pendingCharacteristicWrite, null, reason);
+        complete(pendingMtu, null, reason);
+        complete(pendingDescriptorWrite, null, reason);
+
+    }
+
+    /** Discovered services of the remote device */
+    List<DiscoveryCache.ServiceInfo> getServices() {
+        return link.getServices();
+    }
+
+    /**
+     * Find a characteristic on the remote device. Services must have been discovered.
+     *
+     * @return The characteristic's properties, a combination of the BluetoothGattCharacteristic.PROPERTY_* constants
+     */
+    int getCharacteristic(UUID serviceUUID, UUID characteristic) throws Exception {
+
+        // Find the service
+        DiscoveryCache.ServiceInfo service = null;
+        for (DiscoveryCache.ServiceInfo info : link.getServices()) {
+            if (info.uuid.equals(serviceUUID)) {
+                service = info;
+                break;
+            }
+        }
+
+        if (service == null)
+            throw new Exception("The specified service was not found.");
+
+        // Now find the characteristic
+        for (int i = 0 ; i < service.characteristics.length ; i++)
+            if (service.characteristics[i].equals(characteristic))
+                return service.properties[i];
+
+        throw new Exception("The specified characteristic was not found.");
+
+    }
+
+    /** Read a characteristic value */
+    SettableFuture<byte[]> readCharacteristic(UUID serviceUUID, UUID characteristic) throws Exception {
+
+        // Fail if the link has closed or dropped
+        Radio.Link current = link;
+        if (current == null || !isConnected)
+            return SettableFuture.rejected(new Exception(NOT_CONNECTED));
+
+        // Check the characteristic exists
+        getCharacteristic(serviceUUID, characteristic);
+
+        // Read it
+        SettableFuture<byte[]> promise = new SettableFuture<>();
+        pendingCharacteristicRead.set(promise);
+        if (!current.readCharacteristic(serviceUUID, characteristic) && pendingCharacteristicRead.compareAndSet(promise, null))
+            promise.reject(new Exception("Unable to read the characteristic."));
+
+        // Done
+        return promise;
+
+    }
+
+    /** Maximum number of bytes in a single write without response, or in one notification */
+    int getMaxWriteLength() {
+        return mtu - 3;
+    }
+
+    /** ATT MTU used until a larger one is negotiated */
+    static final int DEFAULT_MTU = 23;
+
+    /** Largest ATT MTU Android supports */
+    static final int MAX_MTU = 517;
+
+    /**
+     * Apply the connection options to the current link: request the MTU once per link, and set the connection priority
+     * if it has changed. The returned future never fails, if the remote device refuses a larger MTU the default is kept.
+     */
+    SettableFuture<Void> applyOptions() {
+
+        // Set connection priority
+        if (currentPriority != options.priority && link.requestConnectionPriority(options.priority))
+            currentPriority = options.priority;
+
+        // Stop if MTU already negotiated, or not needed
+        if (mtuRequested || options.mtu <= mtu)
+            return SettableFuture.resolved(null);
+
+        // Request MTU
+        mtuRequested = true;
+        SettableFuture<Integer> promise = new SettableFuture<>();
+        pendingMtu.set(promise);
+        if (!link.requestMtu(Math.min(options.mtu, MAX_MTU)) && pendingMtu.compareAndSet(promise, null))
+            promise.reject(new Exception("Unable to request a larger MTU."));
+
+        // Continue either way
+        SettableFuture<Void> result = new SettableFuture<>();
+        promise.addListener((v, err) -> result.resolve(null));
+        return result;
+
+    }
+
+    /**
+     * Write one value to a characteristic. The returned future resolves with the GATT status from onCharacteristicWrite,
+     * or STATUS_BUSY if the stack refused to start the write, so callers can tell the errors worth retrying apart from
+     * others. It is rejected if the link is down, or drops before the write finishes.
+     */
+    SettableFuture<Integer> writeValue(UUID serviceUUID, UUID characteristic, byte[] value, boolean withResponse) {
+
+        // Fail if the link has closed or dropped, retrying can't help
+        Radio.Link current = link;
+        if (current == null || !isConnected)
+            return SettableFuture.rejected(new Exception(NOT_CONNECTED));
+
+        // Write it
+        SettableFuture<Integer> promise = new SettableFuture<>();
+        pendingCharacteristicWrite.set(promise);
+        if (!current.writeCharacteristic(serviceUUID, characteristic, value, withResponse) && pendingCharacteristicWrite.compareAndSet(promise, null))
+            promise.resolve(STATUS_BUSY);
+
+        // Done
+        return promise;
+
+    }
+
+    /** Key for a subscription */
+    static String subscriptionKey(UUID serviceUUID, UUID characteristic) {
+        return serviceUUID + "/" + characteristic;
+    }
+
+    /**
+     * Enable or disable notifications for a characteristic. If the characteristic only supports indications, those are
+     * used instead.
+     *
+     * @param buffer Receives notification values. Null when disabling.
+     */
+    SettableFuture<Void> setNotify(UUID serviceUUID, UUID characteristic, NotificationBuffer buffer) throws Exception {
+
+        // Find the characteristic, and check it can notify
+        int properties = getCharacteristic(serviceUUID, characteristic);
+        if ((properties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) == 0)
+            throw new Exception("The specified characteristic does not support notifications.");
+
+        // Store or remove buffer
+        String key = subscriptionKey(serviceUUID, characteristic);
+        if (buffer != null)
+            subscriptions.put(key, buffer);
+        else
+            subscriptions.remove(key);
+
+        // Write the configuration
+        return writeNotifyConfig(serviceUUID, characteristic, properties, buffer != null);
+
+    }
+
+    /**
+     * Enable Service Changed indications, if the remote device has the characteristic, so cached services can be
+     * invalidated when they change. Never fails, since many devices don't allow it.
+     */
+    SettableFuture<Void> enableServiceChanged() {
+
+        // Stop if already enabled on this link
+        if (serviceChangedEnabled)
+            return SettableFuture.resolved(null);
+
+        // Find the characteristic
+        serviceChangedEnabled = true;
+        int properties;
+        try {
+            properties = getCharacteristic(GENERIC_ATTRIBUTE_UUID, SERVICE_CHANGED_UUID);
+        } catch (Exception ex) {
+            return SettableFuture.resolved(null);
+        }
+
+        // Enable it, ignoring errors
+        SettableFuture<Void> result = new SettableFuture<>();
+        try {
+            writeNotifyConfig(GENERIC_ATTRIBUTE_UUID, SERVICE_CHANGED_UUID, properties, true).addListener((v, err) -> result.resolve(null));
+        } catch (Exception ex) {
+            result.resolve(null);
+        }
+
+        return result;
+
+    }
+
+    /** Enable or disable notifications or indications locally and on the remote device */
+    private SettableFuture<Void> writeNotifyConfig(UUID serviceUUID, UUID characteristic, int properties, boolean enable) throws Exception {
+
+        // Pick notifications or indications
+        boolean indicate = (properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0;
+
+        // Enable notifications locally and write the descriptor on the remote device
+        SettableFuture<Void> promise = new SettableFuture<>();
+        pendingDescriptorWrite.set(promise);
+        if (!link.setNotify(serviceUUID, characteristic, enable, indicate)) {
+            pendingDescriptorWrite.compareAndSet(promise, null);
+            throw new Exception("Unable to change notifications for this characteristic.");
+        }
+
+        // Done
+        return promise;
+
+    }
 
     @Override
-    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-        super.onConnectionStateChange(gatt, status, newState);
+    public void onConnectionStateChange(int status, boolean connected) {
 
-        // Get error text
-        String error = getError(status);
+        // Count errors
+        recordStatus(status);
 
         // Check if connected
-        if (error != null) {
+        if (status == BluetoothGatt.GATT_SUCCESS && connected) {
 
-            // Disconnected
-            isConnected = false;
-            if (pendingConnection != null) {
-                pendingConnection.reject(new Exception(error));
-                pendingConnection = null;
+            // Connected
+            synchronized (this) {
+                isConnected = true;
+                setState(State.CONNECTED, null);
             }
 
-        } else if (newState == BluetoothGatt.STATE_CONNECTED) {
+            dispatchStateChanges();
+            complete(pendingConnection, null, null);
 
-            // Connected again!
-            isConnected = true;
-            if (pendingConnection != null) {
-                pendingConnection.resolve(null);
-                pendingConnection = null;
+        } else {
+
+            // Disconnected. Fail everything in progress, since the callbacks for them will never come.
+            String error = getError(status);
+            Exception reason = new Exception(error != null ? error : "The device disconnected.");
+            synchronized (this) {
+                isConnected = false;
+                resetLink();
+                if (state != State.DISCONNECTING && state != State.DISCONNECTED) {
+                    setState(State.DISCONNECTED, reason);
+
+                    // Reconnect after a delay if needed
+                    if (shouldReconnect() && onReconnect != null && !scheduleReconnect(onReconnect, reason))
+                        BLELog.w("BLE", "Giving up reconnecting to " + address + " after " + reconnectAttempts + " attempts");
+                }
             }
 
+            dispatchStateChanges();
+            failPending(reason);
+
         }
 
     }
 
+    /** Reset per-link state after a disconnect */
+    private void resetLink() {
+        subscriptionsStale = !subscriptions.isEmpty();
+        mtu = DEFAULT_MTU;
+        mtuRequested = false;
+        currentPriority = -1;
+        serviceChangedEnabled = false;
+    }
+
+    /** Count a failed GATT status in the metrics */
+    private void recordStatus(int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS && metrics != null)
+            metrics.recordGattError(status);
+    }
+
     /** Get error text from GATT status */
     public static String getError(int status) {
 
         if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED)
             return "The connection is congested.";
+        else if (status == STATUS_BUSY)
+            return "Unable to write the characteristic.";
         else if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION)
             return "Insufficient authentication.";
         else if (status == BluetoothGatt.GATT_INSUFFICIENT_ENCRYPTION)
@@ -82,8 +760,10 @@ public class BLEConnection extends BluetoothGattCallback {
     }
 
     @Override
-    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-        super.onServicesDiscovered(gatt, status);
+    public void onServicesDiscovered(int status) {
+
+        // Count errors
+        recordStatus(status);
 
         // Get error text
         String error = getError(status);
@@ -92,26 +772,23 @@ public class BLEConnection extends BluetoothGattCallback {
         if (error == null) {
 
             // Done
-            if (pendingServices != null) {
-                pendingServices.resolve(null);
-                pendingServices = null;
-            }
+            servicesStale = false;
+            complete(pendingServices, null, null);
 
         } else {
 
             // Failed
-            if (pendingServices != null) {
-                pendingServices.reject(new Exception(error));
-                pendingServices = null;
-            }
+            complete(pendingServices, null, new Exception(error));
 
         }
 
     }
 
     @Override
-    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        super.onCharacteristicRead(gatt, characteristic, status);
+    public void onCharacteristicRead(UUID serviceUUID, UUID characteristic, byte[] value, int status) {
+
+        // Count errors
+        recordStatus(status);
 
         // Get error text
         String error = getError(status);
@@ -120,20 +797,79 @@ public class BLEConnection extends BluetoothGattCallback {
         if (error == null) {
 
             // Done
-            if (pendingCharacteristicRead != null) {
-                pendingCharacteristicRead.resolve(characteristic.getValue());
-                pendingCharacteristicRead = null;
-            }
+            complete(pendingCharacteristicRead, value, null);
 
         } else {
 
             // Failed
-            if (pendingCharacteristicRead != null) {
-                pendingCharacteristicRead.reject(new Exception(error));
-                pendingCharacteristicRead = null;
-            }
+            complete(pendingCharacteristicRead, null, new Exception(error));
 
         }
 
     }
+
+    @Override
+    public void onCharacteristicWrite(UUID serviceUUID, UUID characteristic, int status) {
+
+        // Count errors
+        recordStatus(status);
+
+        // Pass on the status, the writer decides what to do with errors
+        complete(pendingCharacteristicWrite, status, null);
+
+    }
+
+    @Override
+    public void onMtuChanged(int mtu, int status) {
+
+        // Count errors
+        recordStatus(status);
+
+        // Store new MTU
+        if (status == BluetoothGatt.GATT_SUCCESS)
+            this.mtu = mtu;
+
+        // Done
+        complete(pendingMtu, this.mtu, null);
+
+    }
+
+    @Override
+    public void onDescriptorWrite(UUID serviceUUID, UUID characteristic, int status) {
+
+        // Count errors
+        recordStatus(status);
+
+        // Get error text
+        String error = getError(status);
+
+        // Done
+        complete(pendingDescriptorWrite, null, error == null ? null : new Exception(error));
+
+    }
+
+    @Override
+    public void onCharacteristicChanged(UUID serviceUUID, UUID characteristic, byte[] value) {
+
+        // Check if the remote services changed. They're discovered again before the next operation.
+        if (characteristic.equals(SERVICE_CHANGED_UUID) && serviceUUID.equals(GENERIC_ATTRIBUTE_UUID)) {
+            servicesStale = true;
+            if (onServicesChanged != null)
+                onServicesChanged.run();
+            return;
+        }
+
+        // Find the subscription
+        NotificationBuffer buffer = subscriptions.get(subscriptionKey(serviceUUID, characteristic));
+        if (buffer == null)
+            return;
+
+        // Count it, then add the value. The radio creates a new array for every notification, so it doesn't need copying.
+        if (metrics != null)
+            metrics.bytesNotified.addAndGet(value.length);
+
+        buffer.offer(value);
+
+    }
+
 }
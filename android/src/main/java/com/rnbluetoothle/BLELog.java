@@ -0,0 +1,47 @@
+package com.rnbluetoothle;
+
+import android.util.Log;
+
+/**
+ * Writes log messages for the classes which also run on a plain JVM, like connections and caches. Messages go to the
+ * Android log unless the sink is replaced, so tests and benchmarks can run without Android's Log class.
+ */
+public class BLELog {
+
+    /** Receives log messages */
+    interface Sink {
+
+        /**
+         * Write a message.
+         *
+         * @param priority One of the Log.* priority constants
+         */
+        void println(int priority, String tag, String message);
+
+    }
+
+    /** Sends messages to the Android log */
+    static final Sink ANDROID = new Sink() {
+        @Override
+        public void println(int priority, String tag, String message) {
+            Log.println(priority, tag, message);
+        }
+    };
+
+    /** Drops all messages */
+    static final Sink NONE = (priority, tag, message) -> {};
+
+    /** Where messages go */
+    static volatile Sink sink = ANDROID;
+
+    /** Log an informational message */
+    static void i(String tag, String message) {
+        sink.println(Log.INFO, tag, message);
+    }
+
+    /** Log a warning */
+    static void w(String tag, String message) {
+        sink.println(Log.WARN, tag, message);
+    }
+
+}
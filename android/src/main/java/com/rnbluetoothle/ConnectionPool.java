@@ -0,0 +1,301 @@
+package com.rnbluetoothle;
+
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one BLEConnection per remote device, keyed by normalized address. Connections are reference counted while
+ * operations are running on them. Idle connections are closed after a timeout, and when the pool is full the least
+ * recently used idle connection is closed to make room, since the controller only supports a few links at once.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class ConnectionPool {
+
+    /** Pool statistics */
+    static class Stats {
+
+        /** Number of acquires which found an existing connection */
+        long hits = 0;
+
+        /** Number of acquires which created a connection */
+        long misses = 0;
+
+        /** Number of connections closed to make room for a new one */
+        long evictions = 0;
+
+        /** Number of connections closed because they were idle for too long */
+        long idleEvictions = 0;
+
+        /** Number of connections currently in the pool */
+        int size = 0;
+
+        /** Number of times a connection became ready, and the total and longest time it took, in milliseconds */
+        long readyCount = 0;
+        long totalTimeToReady = 0;
+        long maxTimeToReady = 0;
+
+        /** Number of reconnect attempts after a link dropped */
+        long reconnects = 0;
+
+    }
+
+    /** Default maximum number of connections. Most controllers support at least this many links. */
+    static final int DEFAULT_MAX_CONNECTIONS = 7;
+
+    /** Default time a connection can be unused before it's closed, in milliseconds */
+    static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    /** Connections by address, least recently used first */
+    private final LinkedHashMap<String, BLEConnection> connections = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Maximum number of connections */
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    /** Time a connection can be unused before it's closed, in milliseconds. If zero, idle connections are kept open. */
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    /** Idle check timer */
+    private ScheduledFuture<?> idleTimer = null;
+
+    /** Statistics */
+    private final Stats stats = new Stats();
+
+    /** Convert an address to the form used as the pool key */
+    static String normalize(String address) {
+        return address.toUpperCase();
+    }
+
+    /**
+     * Set the pool limits. If there are now too many connections, idle ones are closed.
+     *
+     * @param maxConnections Maximum number of connections, should match the controller's limit
+     * @param idleTimeout Time a connection can be unused before it's closed, in milliseconds. If zero, idle connections
+     *                    are kept open until the pool is full.
+     */
+    void configure(int maxConnections, long idleTimeout) {
+
+        ArrayList<BLEConnection> evicted = new ArrayList<>();
+        synchronized (this) {
+
+            // Store limits
+            this.maxConnections = Math.max(1, maxConnections);
+            this.idleTimeout = Math.max(0, idleTimeout);
+
+            // Restart idle timer
+            if (idleTimer != null)
+                idleTimer.cancel(false);
+
+            idleTimer = null;
+            if (connections.size() > 0)
+                startIdleTimer();
+
+            // Remove connections over the limit
+            while (connections.size() > this.maxConnections) {
+                BLEConnection connection = evictOne();
+                if (connection == null)
+                    break;
+
+                evicted.add(connection);
+            }
+
+        }
+
+        // Close them
+        for (BLEConnection connection : evicted)
+            closeEvicted(connection);
+
+    }
+
+    /**
+     * Get the connection for a device, creating it if necessary, and add a reference to it. Call release() when done.
+     *
+     * @throws Exception if the pool is full and every connection is in use.
+     */
+    BLEConnection acquire(String address, Radio radio) throws Exception {
+
+        BLEConnection connection;
+        BLEConnection evicted = null;
+        synchronized (this) {
+
+            // Find existing connection
+            String key = normalize(address);
+            connection = connections.get(key);
+            if (connection != null) {
+                stats.hits++;
+                connection.references++;
+                return connection;
+            }
+
+            // Make room if needed
+            if (connections.size() >= maxConnections) {
+                evicted = evictOne();
+                if (evicted == null)
+                    throw new Exception("Too many connections. All " + maxConnections + " connections are in use.");
+            }
+
+            // Create connection
+            stats.misses++;
+            connection = new BLEConnection(key, radio);
+            connection.references = 1;
+            connections.put(key, connection);
+
+            // Start checking for idle connections
+            if (idleTimer == null)
+                startIdleTimer();
+
+        }
+
+        // Close the evicted connection
+        if (evicted != null)
+            closeEvicted(evicted);
+
+        return connection;
+
+    }
+
+    /** Get the connection for a device, or null if there isn't one */
+    synchronized BLEConnection get(String address) {
+        return connections.get(normalize(address));
+    }
+
+    /** Remove a reference to a connection */
+    synchronized void release(BLEConnection connection) {
+        connection.references = Math.max(0, connection.references - 1);
+        connection.lastUsed = System.currentTimeMillis();
+    }
+
+    /** Remove a connection from the pool and close it */
+    void remove(BLEConnection connection, Exception reason) {
+
+        // Remove it, unless it's already been replaced
+        synchronized (this) {
+            String key = normalize(connection.address);
+            if (connections.get(key) == connection)
+                connections.remove(key);
+        }
+
+        // Close it
+        BLELog.w("BLE", "Closing connection to " + connection.address + ": " + reason.getLocalizedMessage());
+        connection.close(reason);
+
+    }
+
+    /** Get a copy of the pool statistics */
+    synchronized Stats getStats() {
+        Stats copy = new Stats();
+        copy.hits = stats.hits;
+        copy.misses = stats.misses;
+        copy.evictions = stats.evictions;
+        copy.idleEvictions = stats.idleEvictions;
+        copy.size = connections.size();
+        copy.readyCount = stats.readyCount;
+        copy.totalTimeToReady = stats.totalTimeToReady;
+        copy.maxTimeToReady = stats.maxTimeToReady;
+        copy.reconnects = stats.reconnects;
+        return copy;
+    }
+
+    /** Record a connection state change */
+    synchronized void recordState(BLEConnection.State state, long timeToReady) {
+
+        if (state == BLEConnection.State.BACKOFF)
+            stats.reconnects++;
+
+        if (timeToReady >= 0) {
+            stats.readyCount++;
+            stats.totalTimeToReady += timeToReady;
+            stats.maxTimeToReady = Math.max(stats.maxTimeToReady, timeToReady);
+        }
+
+    }
+
+    /** True if a connection can be closed without breaking anything. Connections set to reconnect are kept open. */
+    private static boolean isIdle(BLEConnection connection) {
+        return connection.references == 0 && connection.subscriptions.isEmpty() && !connection.options.autoReconnect;
+    }
+
+    /**
+     * Remove the least recently used idle connection, or return null if all connections are in use. The caller closes
+     * it with closeEvicted() after releasing the pool lock, since closing takes the connection's lock and reports the
+     * state change back to the pool.
+     */
+    private BLEConnection evictOne() {
+
+        // Find the first idle connection, in least recently used order
+        for (Iterator<BLEConnection> it = connections.values().iterator() ; it.hasNext() ; ) {
+            BLEConnection connection = it.next();
+            if (!isIdle(connection))
+                continue;
+
+            // Remove it
+            it.remove();
+            stats.evictions++;
+            return connection;
+
+        }
+
+        // Nothing to evict
+        return null;
+
+    }
+
+    /** Close a connection removed by evictOne(). Must be called without holding the pool lock. */
+    private static void closeEvicted(BLEConnection connection) {
+        BLELog.i("BLE", "Closing least recently used connection to " + connection.address);
+        connection.close(new Exception("The connection was closed to make room for another device."));
+    }
+
+    /** Start the idle check timer */
+    private void startIdleTimer() {
+
+        // Stop if idle connections are kept open
+        if (idleTimeout == 0)
+            return;
+
+        // Check a few times per timeout period
+        long interval = Math.max(1000, idleTimeout / 4);
+        idleTimer = SettableFuture.timer.scheduleAtFixedRate(this::closeIdle, interval, interval, TimeUnit.MILLISECONDS);
+
+    }
+
+    /** Close connections which have been idle for longer than the idle timeout */
+    private void closeIdle() {
+
+        // Find idle connections
+        ArrayList<BLEConnection> expired = new ArrayList<>();
+        synchronized (this) {
+
+            long now = System.currentTimeMillis();
+            for (Iterator<BLEConnection> it = connections.values().iterator() ; it.hasNext() ; ) {
+                BLEConnection connection = it.next();
+                if (isIdle(connection) && now - connection.lastUsed > idleTimeout) {
+                    it.remove();
+                    expired.add(connection);
+                    stats.idleEvictions++;
+                }
+            }
+
+            // Stop the timer once the pool is empty
+            if (connections.isEmpty() && idleTimer != null) {
+                idleTimer.cancel(false);
+                idleTimer = null;
+            }
+
+        }
+
+        // Close them
+        for (BLEConnection connection : expired) {
+            BLELog.i("BLE", "Closing idle connection to " + connection.address);
+            connection.close(new Exception("The connection was closed because it was idle."));
+        }
+
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.rnbluetoothle;
+
+import android.util.Base64;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * Converts characteristic data between raw bytes and the strings which are passed over the React Native bridge. The
+ * bridge can't carry binary data, so binary payloads are passed as base64 or hex. Codecs are stateless singletons,
+ * looked up once by name.
+ */
+public abstract class DataCodec {
+
+    /** Text, encoded as UTF-8. This is the default. */
+    public static final DataCodec UTF8 = new DataCodec("utf8") {
+
+        private final Charset charset = Charset.forName("UTF-8");
+
+        @Override
+        public String encode(byte[] data) {
+            return new String(data, charset);
+        }
+
+        @Override
+        public byte[] decode(String text) {
+            return text.getBytes(charset);
+        }
+
+    };
+
+    /** Binary data, as a base64 string */
+    public static final DataCodec BASE64 = new DataCodec("base64") {
+
+        @Override
+        public String encode(byte[] data) {
+            return Base64.encodeToString(data, Base64.NO_WRAP);
+        }
+
+        @Override
+        public byte[] decode(String text) {
+            return Base64.decode(text, Base64.NO_WRAP);
+        }
+
+    };
+
+    /** Binary data, as an uppercase hex string */
+    public static final DataCodec HEX = new DataCodec("hex") {
+
+        @Override
+        public String encode(byte[] data) {
+            return toHex(data);
+        }
+
+        @Override
+        public byte[] decode(String text) {
+
+            // Check length
+            if (text.length() % 2 != 0)
+                throw new IllegalArgumentException("Hex data must have an even number of characters.");
+
+            // Decode each pair of characters
+            byte[] data = new byte[text.length() / 2];
+            for (int i = 0 ; i < data.length ; i++) {
+                int hi = Character.digit(text.charAt(i * 2), 16);
+                int lo = Character.digit(text.charAt(i * 2 + 1), 16);
+                if (hi == -1 || lo == -1)
+                    throw new IllegalArgumentException("Invalid hex data.");
+                data[i] = (byte) (hi << 4 | lo);
+            }
+
+            return data;
+
+        }
+
+    };
+
+    /** All codecs, by name */
+    private static final HashMap<String, DataCodec> codecs = new HashMap<>();
+    static {
+        codecs.put(UTF8.name, UTF8);
+        codecs.put(BASE64.name, BASE64);
+        codecs.put(HEX.name, HEX);
+    }
+
+    /**
+     * Get a codec by name.
+     *
+     * @param name The encoding name: "utf8", "base64" or "hex". If null, UTF-8 is used.
+     * @throws IllegalArgumentException if the encoding is not known.
+     */
+    public static DataCodec forName(String name) {
+
+        // Use default if not specified
+        if (name == null)
+            return UTF8;
+
+        // Find codec
+        DataCodec codec = codecs.get(name.toLowerCase());
+        if (codec == null)
+            throw new IllegalArgumentException("Unknown data encoding '" + name + "'. Supported encodings are utf8, base64 and hex.");
+
+        return codec;
+
+    }
+
+    /** Hex digits, by value */
+    private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
+
+    /** Convert bytes to an uppercase hex string */
+    static String toHex(byte[] bytes) {
+        char[] hexChars = new char[bytes.length * 2];
+        for (int j = 0; j < bytes.length; j++) {
+            int v = bytes[j] & 0xFF;
+            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
+            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    /** Encoding name */
+    public final String name;
+
+    /** Constructor */
+    private DataCodec(String name) {
+        this.name = name;
+    }
+
+    /** Convert bytes to a string for Javascript */
+    public abstract String encode(byte[] data);
+
+    /** Convert a string from Javascript to bytes */
+    public abstract byte[] decode(String text);
+
+}
@@ -0,0 +1,342 @@
+package com.rnbluetoothle;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Every device seen during the current scan, for scans with too many devices to send each result to Javascript.
+ * Devices are kept in parallel primitive arrays in a LongTable, keyed by their 48-bit address packed into a long, and
+ * names are stored once in a string pool. Javascript takes a snapshot of the devices it's interested in, sorted by
+ * signal strength, and reads it a page at a time. Devices not seen for a while are reported as lost, and forgotten
+ * later, so devices rotating through private addresses don't grow the table for as long as the scan runs.
+ */
+public class DeviceRegistry {
+
+    /** Device flags */
+    static final int FLAG_LOST = 1;
+
+    /** Returned for invalid addresses. Addresses are 48-bit, so this can't be a real address or a table key. */
+    static final long EMPTY = LongTable.EMPTY;
+
+    /** Initial table capacity. Must be a power of 2. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Default time without results after which a device is lost, and after which it's forgotten, in milliseconds */
+    static final long DEFAULT_LOST_TIMEOUT = 10000;
+    static final long DEFAULT_FORGET_TIMEOUT = 60000;
+
+    /** Time between checks for devices to forget, in milliseconds */
+    private static final long SWEEP_INTERVAL = 1000;
+
+    /** Maximum number of snapshots kept. Creating another releases the oldest. */
+    static final int MAX_SNAPSHOTS = 8;
+
+    /** Which devices to include in a snapshot */
+    static class Query {
+
+        /** Minimum RSSI */
+        int minRssi = Byte.MIN_VALUE;
+
+        /** If set, only devices whose name starts with this */
+        String namePrefix = null;
+
+        /** If above zero, only devices seen within this many milliseconds */
+        long seenWithin = 0;
+
+        /** True to include devices which haven't been seen within the lost timeout */
+        boolean includeLost = false;
+
+    }
+
+    /** Devices matching a query at one point in time, strongest signal first */
+    static class Snapshot {
+
+        /** Snapshot ID */
+        int id;
+
+        /** Device info. Entry i of each array belongs to the same device. */
+        long[] addresses;
+        String[] names;
+        byte[] rssi;
+        long[] firstSeen;
+        long[] lastSeen;
+        int[] flags;
+
+        /** Number of devices */
+        int size() {
+            return addresses.length;
+        }
+
+    }
+
+    /** Device table. Slot i of each array belongs to the device with address table.keys[i]. */
+    private final LongTable table = new LongTable(new LongTable.Columns() {
+
+        @Override
+        public void resize(int capacity, int[] slots) {
+
+            // Create new arrays
+            byte[] oldRssi = rssi;
+            long[] oldFirstSeen = firstSeen;
+            long[] oldLastSeen = lastSeen;
+            int[] oldNameIndex = nameIndex;
+            rssi = new byte[capacity];
+            firstSeen = new long[capacity];
+            lastSeen = new long[capacity];
+            nameIndex = new int[capacity];
+
+            // Copy entries into them
+            if (slots == null)
+                return;
+
+            for (int i = 0 ; i < slots.length ; i++) {
+                int slot = slots[i];
+                if (slot < 0)
+                    continue;
+
+                rssi[slot] = oldRssi[i];
+                firstSeen[slot] = oldFirstSeen[i];
+                lastSeen[slot] = oldLastSeen[i];
+                nameIndex[slot] = oldNameIndex[i];
+            }
+
+        }
+
+        @Override
+        public void move(int from, int to) {
+            rssi[to] = rssi[from];
+            firstSeen[to] = firstSeen[from];
+            lastSeen[to] = lastSeen[from];
+            nameIndex[to] = nameIndex[from];
+        }
+
+        @Override
+        public void clear(int slot) {
+            nameIndex[slot] = 0;
+        }
+
+    });
+    private byte[] rssi;
+    private long[] firstSeen;
+    private long[] lastSeen;
+    private int[] nameIndex;
+
+    /** Time without results after which a device is lost, and after which it's forgotten, in milliseconds */
+    private long lostTimeout = DEFAULT_LOST_TIMEOUT;
+    private long forgetTimeout = DEFAULT_FORGET_TIMEOUT;
+
+    /** Time of the last check for devices to forget */
+    private long lastSweep = 0;
+
+    /** Name pool. Index 0 means no name. */
+    private final ArrayList<String> namePool = new ArrayList<>();
+    private final HashMap<String, Integer> nameIndexes = new HashMap<>();
+
+    /** Snapshots, oldest first */
+    private final LinkedHashMap<Integer, Snapshot> snapshots = new LinkedHashMap<>();
+    private int nextSnapshotID = 1;
+
+    /** Constructor */
+    DeviceRegistry() {
+        clear();
+    }
+
+    /** Forget all devices */
+    synchronized void clear() {
+
+        table.clear(INITIAL_CAPACITY);
+        namePool.clear();
+        nameIndexes.clear();
+        namePool.add(null);
+
+    }
+
+    /**
+     * Set the timeouts for devices which stop advertising.
+     *
+     * @param lostTimeout Time without results after which a device is lost, in milliseconds
+     * @param forgetTimeout Time without results after which a device is forgotten, in milliseconds
+     */
+    synchronized void setTimeouts(long lostTimeout, long forgetTimeout) {
+        this.lostTimeout = lostTimeout;
+        this.forgetTimeout = Math.max(lostTimeout, forgetTimeout);
+    }
+
+    /** Add or update a device from a scan result */
+    synchronized void update(String address, String name, int rssi) {
+
+        // Get the device's slot, adding it if new
+        long key = parseAddress(address);
+        if (key == EMPTY)
+            return;
+
+        long now = System.currentTimeMillis();
+        int slot = table.find(key);
+        if (slot < 0) {
+            slot = table.insert(key);
+            firstSeen[slot] = now;
+        }
+
+        // Update it
+        this.rssi[slot] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, rssi));
+        lastSeen[slot] = now;
+        if (name != null)
+            nameIndex[slot] = intern(name);
+
+        // Forget old devices now and then. Scan results arrive while scanning, so this runs without a timer.
+        if (now - lastSweep >= SWEEP_INTERVAL)
+            sweep(now);
+
+    }
+
+    /** Forget devices which haven't been seen within the forget timeout */
+    synchronized void sweep(long now) {
+
+        lastSweep = now;
+        long cutoff = now - forgetTimeout;
+        long[] keys = table.keys;
+        for (int slot = 0 ; slot < keys.length ; ) {
+
+            // Skip empty and recent slots
+            if (keys[slot] == EMPTY || lastSeen[slot] >= cutoff) {
+                slot++;
+                continue;
+            }
+
+            // Forget it. Removing may move another entry into this slot, so check it again.
+            table.remove(slot);
+
+        }
+
+    }
+
+    /** Number of devices */
+    synchronized int size() {
+        return table.size;
+    }
+
+    /** Take a snapshot of the devices matching a query, strongest signal first */
+    synchronized Snapshot snapshot(Query query) {
+
+        // Find matching slots, counting them by RSSI
+        long now = System.currentTimeMillis();
+        long cutoff = query.seenWithin > 0 ? now - query.seenWithin : Long.MIN_VALUE;
+        long lostCutoff = now - lostTimeout;
+        long[] keys = table.keys;
+        int[] matches = new int[table.size];
+        int count = 0;
+        int[] buckets = new int[257];
+        for (int slot = 0 ; slot < keys.length ; slot++) {
+            if (keys[slot] == EMPTY || rssi[slot] < query.minRssi || lastSeen[slot] < cutoff)
+                continue;
+            if (!query.includeLost && lastSeen[slot] < lostCutoff)
+                continue;
+            if (query.namePrefix != null && (namePool.get(nameIndex[slot]) == null || !namePool.get(nameIndex[slot]).startsWith(query.namePrefix)))
+                continue;
+
+            matches[count++] = slot;
+            buckets[Byte.MAX_VALUE - rssi[slot] + 1]++;
+        }
+
+        // Sort by RSSI, strongest first. RSSI is a byte, so a counting sort does it in one pass.
+        for (int i = 1 ; i < buckets.length ; i++)
+            buckets[i] += buckets[i - 1];
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.addresses = new long[count];
+        snapshot.names = new String[count];
+        snapshot.rssi = new byte[count];
+        snapshot.firstSeen = new long[count];
+        snapshot.lastSeen = new long[count];
+        snapshot.flags = new int[count];
+        for (int i = 0 ; i < count ; i++) {
+            int slot = matches[i];
+            int index = buckets[Byte.MAX_VALUE - rssi[slot]]++;
+            snapshot.addresses[index] = keys[slot];
+            snapshot.names[index] = namePool.get(nameIndex[slot]);
+            snapshot.rssi[index] = rssi[slot];
+            snapshot.firstSeen[index] = firstSeen[slot];
+            snapshot.lastSeen[index] = lastSeen[slot];
+            snapshot.flags[index] = lastSeen[slot] < lostCutoff ? FLAG_LOST : 0;
+        }
+
+        // Store it, releasing the oldest if there are too many
+        snapshot.id = nextSnapshotID++;
+        snapshots.put(snapshot.id, snapshot);
+        if (snapshots.size() > MAX_SNAPSHOTS) {
+            Iterator<Integer> it = snapshots.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+
+        return snapshot;
+
+    }
+
+    /** Get a snapshot, or null if it has been released */
+    synchronized Snapshot getSnapshot(int id) {
+        return snapshots.get(id);
+    }
+
+    /** Release a snapshot */
+    synchronized void releaseSnapshot(int id) {
+        snapshots.remove(id);
+    }
+
+    /** Get a name's index in the pool, adding it if needed */
+    private int intern(String name) {
+
+        Integer index = nameIndexes.get(name);
+        if (index == null) {
+            index = namePool.size();
+            namePool.add(name);
+            nameIndexes.put(name, index);
+        }
+
+        return index;
+
+    }
+
+    /** Convert an address like 00:11:22:AA:BB:CC to a number, or EMPTY if it's not valid */
+    static long parseAddress(String address) {
+
+        if (address == null || address.length() != 17)
+            return EMPTY;
+
+        long value = 0;
+        for (int i = 0 ; i < 17 ; i++) {
+            if (i % 3 == 2)
+                continue;
+
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit < 0)
+                return EMPTY;
+
+            value = value << 4 | digit;
+        }
+
+        return value;
+
+    }
+
+    /** Convert a number back to an address */
+    static String formatAddress(long value) {
+
+        char[] chars = new char[17];
+        for (int i = 16 ; i >= 0 ; i--) {
+            if (i % 3 == 2) {
+                chars[i] = ':';
+                continue;
+            }
+
+            chars[i] = Character.toUpperCase(Character.forDigit((int) (value & 0xF), 16));
+            value >>>= 4;
+        }
+
+        return new String(chars);
+
+    }
+
+}
@@ -0,0 +1,386 @@
+package com.rnbluetoothle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the services and characteristics discovered on remote devices, so they can be queried without connecting.
+ * Devices are identified by the instance ID they advertise if they run this library, since iOS devices change address,
+ * otherwise by address. Each entry stores a hash of the discovered layout, so a rediscovery which finds a different
+ * layout replaces the entry, and Service Changed indications remove it. The cache is saved to a small binary file.
+ */
+public class DiscoveryCache {
+
+    /** A discovered service */
+    static class ServiceInfo {
+
+        /** Service UUID */
+        UUID uuid;
+
+        /** Characteristic UUIDs */
+        UUID[] characteristics;
+
+        /** Characteristic properties, the BluetoothGattCharacteristic.PROPERTY_* flags */
+        int[] properties;
+
+    }
+
+    /** The discovered layout of one device */
+    static class Entry {
+
+        /** Device identity, the cache key */
+        String identity;
+
+        /** Last known address */
+        String address;
+
+        /** Advertised instance ID, or -1 if not known */
+        long instanceId = -1;
+
+        /** Hash of the layout, used to detect changes */
+        long hash;
+
+        /** When the layout was discovered */
+        long updated;
+
+        /** Discovered services */
+        ArrayList<ServiceInfo> services = new ArrayList<>();
+
+    }
+
+    /** File format version. Files with a different version are ignored. */
+    private static final int FILE_VERSION = 1;
+
+    /** Maximum number of devices to remember. The oldest entry is removed when full. */
+    static final int MAX_ENTRIES = 256;
+
+    /** Maximum number of addresses to remember instance IDs for */
+    static final int MAX_INSTANCE_IDS = 1024;
+
+    /** Delay before saving changes, so a burst of discoveries is written once */
+    private static final long SAVE_DELAY = 2000;
+
+    /** File to save to, or null to keep the cache in memory only */
+    private final File file;
+
+    /** Entries by identity */
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    /** Identities of the devices which have each service */
+    private final HashMap<UUID, HashSet<String>> serviceIndex = new HashMap<>();
+
+    /**
+     * Advertised instance IDs, by address, least recently used first. Scans see many rotating addresses, so only the
+     * most recent MAX_INSTANCE_IDS are kept.
+     */
+    private final LinkedHashMap<String, Long> instanceIds = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_INSTANCE_IDS;
+        }
+    };
+
+    /** Pending save */
+    private ScheduledFuture<?> pendingSave = null;
+
+    /**
+     * Constructor. Loads the saved cache, if any.
+     *
+     * @param file File to save to, or null to keep the cache in memory only
+     */
+    DiscoveryCache(File file) {
+        this.file = file;
+        load();
+    }
+
+    /** Get the identity used as the cache key for a device */
+    synchronized String identityFor(String address) {
+        String normalized = address.toUpperCase();
+        Long instanceId = instanceIds.get(normalized);
+        return instanceId != null ? "id:" + Long.toHexString(instanceId) : "addr:" + normalized;
+    }
+
+    /** Record the instance ID a device is advertising. Called for each scan result which has one. */
+    synchronized void noteInstanceId(String address, long instanceId) {
+
+        // Stop if already known
+        String normalized = address.toUpperCase();
+        Long existing = instanceIds.get(normalized);
+        if (existing != null && existing == instanceId)
+            return;
+
+        // Store it
+        instanceIds.put(normalized, instanceId);
+
+        // Update the last known address of the cached device
+        Entry entry = entries.get("id:" + Long.toHexString(instanceId));
+        if (entry != null && !entry.address.equals(normalized)) {
+            entry.address = normalized;
+            scheduleSave();
+        }
+
+    }
+
+    /**
+     * Store the services discovered on a device. If the layout matches the cached one, only the timestamp changes.
+     *
+     * @return True if the layout was new or different from the cached one
+     */
+    boolean update(String address, List<ServiceInfo> services) {
+
+        // Copy layout, and hash it
+        ArrayList<ServiceInfo> infos = new ArrayList<>(services);
+        long hash = 0xcbf29ce484222325L;
+        for (ServiceInfo info : infos) {
+            hash = mix(mix(hash, info.uuid.getMostSignificantBits()), info.uuid.getLeastSignificantBits());
+            for (int i = 0 ; i < info.characteristics.length ; i++)
+                hash = mix(mix(mix(hash, info.characteristics[i].getMostSignificantBits()), info.characteristics[i].getLeastSignificantBits()), info.properties[i]);
+        }
+
+        synchronized (this) {
+
+            // Check if unchanged
+            String identity = identityFor(address);
+            Entry entry = entries.get(identity);
+            long now = System.currentTimeMillis();
+            if (entry != null && entry.hash == hash) {
+                entry.updated = now;
+                entry.address = address.toUpperCase();
+                return false;
+            }
+
+            // Replace entry
+            remove(identity);
+            entry = new Entry();
+            entry.identity = identity;
+            entry.address = address.toUpperCase();
+            Long instanceId = instanceIds.get(entry.address);
+            entry.instanceId = instanceId == null ? -1 : instanceId;
+            entry.hash = hash;
+            entry.updated = now;
+            entry.services = infos;
+            put(entry);
+            trim();
+            scheduleSave();
+            return true;
+
+        }
+
+    }
+
+    /** Forget the layout of a device, such as after it indicated that its services changed */
+    synchronized void invalidate(String address) {
+        if (remove(identityFor(address)) != null)
+            scheduleSave();
+    }
+
+    /** Get the cached layout of a device, or null if not known */
+    synchronized Entry get(String address) {
+        return entries.get(identityFor(address));
+    }
+
+    /** Get the cached devices which have the specified service */
+    synchronized List<Entry> devicesWithService(UUID service) {
+
+        ArrayList<Entry> devices = new ArrayList<>();
+        HashSet<String> identities = serviceIndex.get(service);
+        if (identities != null)
+            for (String identity : identities)
+                devices.add(entries.get(identity));
+
+        return devices;
+
+    }
+
+    /** Add an entry and index its services */
+    private void put(Entry entry) {
+        entries.put(entry.identity, entry);
+        for (ServiceInfo service : entry.services) {
+            HashSet<String> identities = serviceIndex.get(service.uuid);
+            if (identities == null) {
+                identities = new HashSet<>();
+                serviceIndex.put(service.uuid, identities);
+            }
+            identities.add(entry.identity);
+        }
+    }
+
+    /** Remove an entry and its index records */
+    private Entry remove(String identity) {
+
+        // Remove entry
+        Entry entry = entries.remove(identity);
+        if (entry == null)
+            return null;
+
+        // Remove from index
+        for (ServiceInfo service : entry.services) {
+            HashSet<String> identities = serviceIndex.get(service.uuid);
+            if (identities == null) continue;
+            identities.remove(identity);
+            if (identities.isEmpty())
+                serviceIndex.remove(service.uuid);
+        }
+
+        return entry;
+
+    }
+
+    /** Remove the oldest entries while over the size limit */
+    private void trim() {
+
+        while (entries.size() > MAX_ENTRIES) {
+
+            // Find the oldest entry
+            Entry oldest = null;
+            for (Entry entry : entries.values())
+                if (oldest == null || entry.updated < oldest.updated)
+                    oldest = entry;
+
+            remove(oldest.identity);
+
+        }
+
+    }
+
+    /** Mix a value into a 64-bit FNV-1a hash */
+    private static long mix(long hash, long value) {
+        for (int i = 0 ; i < 8 ; i++) {
+            hash ^= (value >>> (i * 8)) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** Save soon, unless a save is already pending */
+    private void scheduleSave() {
+
+        // Stop if not saving, or already scheduled
+        if (file == null || pendingSave != null)
+            return;
+
+        // Schedule it
+        pendingSave = SettableFuture.timer.schedule(this::save, SAVE_DELAY, TimeUnit.MILLISECONDS);
+
+    }
+
+    /** Write the cache to the file */
+    private synchronized void save() {
+
+        // Clear pending save
+        pendingSave = null;
+
+        // Write to a temporary file, then swap it in so a crash never leaves a partial file
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+
+                out.writeUTF(entry.identity);
+                out.writeUTF(entry.address);
+                out.writeLong(entry.instanceId);
+                out.writeLong(entry.hash);
+                out.writeLong(entry.updated);
+                out.writeShort(entry.services.size());
+                for (ServiceInfo service : entry.services) {
+
+                    out.writeLong(service.uuid.getMostSignificantBits());
+                    out.writeLong(service.uuid.getLeastSignificantBits());
+                    out.writeShort(service.characteristics.length);
+                    for (int i = 0 ; i < service.characteristics.length ; i++) {
+                        out.writeLong(service.characteristics[i].getMostSignificantBits());
+                        out.writeLong(service.characteristics[i].getLeastSignificantBits());
+                        out.writeByte(service.properties[i]);
+                    }
+
+                }
+
+            }
+
+        } catch (Exception ex) {
+            BLELog.w("BLE", "Unable to save the discovery cache: " + ex.getLocalizedMessage());
+            return;
+        }
+
+        // Replace the old file
+        if (!temp.renameTo(file))
+            BLELog.w("BLE", "Unable to save the discovery cache.");
+
+    }
+
+    /** Read the cache from the file */
+    private synchronized void load() {
+
+        // Stop if no file
+        if (file == null || !file.exists())
+            return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+
+            // Ignore files from other versions
+            if (in.readInt() != FILE_VERSION)
+                return;
+
+            // Read entries
+            int count = in.readInt();
+            for (int e = 0 ; e < count ; e++) {
+
+                Entry entry = new Entry();
+                entry.identity = in.readUTF();
+                entry.address = in.readUTF();
+                entry.instanceId = in.readLong();
+                entry.hash = in.readLong();
+                entry.updated = in.readLong();
+                int serviceCount = in.readUnsignedShort();
+                for (int s = 0 ; s < serviceCount ; s++) {
+
+                    ServiceInfo service = new ServiceInfo();
+                    service.uuid = new UUID(in.readLong(), in.readLong());
+                    int chrCount = in.readUnsignedShort();
+                    service.characteristics = new UUID[chrCount];
+                    service.properties = new int[chrCount];
+                    for (int i = 0 ; i < chrCount ; i++) {
+                        service.characteristics[i] = new UUID(in.readLong(), in.readLong());
+                        service.properties[i] = in.readUnsignedByte();
+                    }
+
+                    entry.services.add(service);
+
+                }
+
+                // Add it
+                put(entry);
+                if (entry.instanceId != -1)
+                    instanceIds.put(entry.address, entry.instanceId);
+
+            }
+
+        } catch (Exception ex) {
+
+            // Start again with an empty cache
+            BLELog.w("BLE", "Unable to load the discovery cache: " + ex.getLocalizedMessage());
+            entries.clear();
+            serviceIndex.clear();
+            instanceIds.clear();
+
+        }
+
+    }
+
+}
@@ -11,8 +11,6 @@ import android.util.Log;
 
 import androidx.annotation.RequiresApi;
 
-import java.util.Arrays;
-
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class GATTListener extends BluetoothGattServerCallback {
 
@@ -33,19 +31,8 @@ public class GATTListener extends BluetoothGattServerCallback {
         // Refresh advertising state
         Log.i("BLE GATT", "Service added: " + service.getUuid());
 
-        // Fetch the promise
-        SettableFuture p = module.pendingPromises.get(service.getUuid());
-        if (p == null)
-            return;
-
-        // Remove it
-        module.pendingPromises.remove(service.getUuid());
-
-        // Complete it
-        if (status == BluetoothGatt.GATT_SUCCESS)
-            p.resolve(null);
-        else
-            p.reject(new Exception("Unable to create service. Code " + status));
+        // Complete its promise
+        module.server.added(service.getUuid(), status == BluetoothGatt.GATT_SUCCESS ? null : new Exception("Unable to create service. Code " + status));
 
     }
 
@@ -53,69 +40,113 @@ public class GATTListener extends BluetoothGattServerCallback {
     public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
         super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
 
-        // TODO: Support dynamic data, query back to Javascript
-
-        // Check if characteristic has data
-        byte[] data = null;
-        if (characteristic.getValue() != null)
-            data = characteristic.getValue();
+        // Look it up
+        GattDatabase.Attribute attribute = module.server.database.find(characteristic);
+        if (attribute == null) {
+            module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, offset, null);
+            return;
+        }
 
-        // Send empty if no data
-        if (data == null)
-            data = new byte[] {};
+        // Check permissions
+        if (!attribute.isReadable()) {
+            module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_READ_NOT_PERMITTED, offset, null);
+            return;
+        }
 
-        // If offset requested, slice the data
-        if (offset > 0) {
+        // Check if the value comes from Javascript
+        if (attribute.dynamic && module.readHandlers.handle(device, requestId, offset, characteristic))
+            return;
 
-            // Slice it
-            int offset2 = Math.min(data.length, offset);
-            data = Arrays.copyOfRange(data, offset2, data.length - offset2);
+        // Send the part of the data at the requested offset, or empty if there's no data
+        ReadHandlers.sendValue(module, device, requestId, offset, attribute.value == null ? EMPTY : attribute.value);
 
-        }
+    }
 
-        // Send data back
-        Log.i("BLE GATT", "Remote device read characteristic (from offset " + offset + ", data length " + data.length + "): " + characteristic.getUuid());
-        module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, data);
+    /** Value sent for characteristics without one */
+    private static final byte[] EMPTY = {};
 
-    }
+    /** Status for a prepared write which doesn't fit in the device's queue */
+    private static final int GATT_PREPARE_QUEUE_FULL = 0x09;
 
     @Override
     public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
         super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
 
-        // Stop if no response needed
-        if (!responseNeeded)
+        // Queue prepared writes until they're executed
+        if (preparedWrite) {
+            prepareWrite(device, requestId, characteristic, responseNeeded, offset, value);
             return;
+        }
 
-        // We don't support writing yet
-        Log.i("BLE GATT", "Device tried to write a characteristic, but we don't support that.");
-        module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, offset, null);
+        // Check offset, a normal write replaces the whole value
+        if (offset != 0) {
+            if (responseNeeded) module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+            return;
+        }
+
+        // Apply it
+        applyWrite(device, characteristic, value);
+        if (responseNeeded)
+            module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
+
+    }
+
+    /** Add a prepared write chunk to the device's queue */
+    private void prepareWrite(BluetoothDevice device, int requestId, Object attribute, boolean responseNeeded, int offset, byte[] value) {
+
+        // Add it
+        int result = module.writeAssembler.prepare(device.getAddress(), attribute, offset, value);
+
+        // Get status
+        int status = BluetoothGatt.GATT_SUCCESS;
+        if (result == WriteAssembler.INVALID_OFFSET)
+            status = BluetoothGatt.GATT_INVALID_OFFSET;
+        else if (result == WriteAssembler.INVALID_LENGTH)
+            status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+        else if (result == WriteAssembler.QUEUE_FULL)
+            status = GATT_PREPARE_QUEUE_FULL;
+
+        // Respond. Prepare responses echo the chunk back, so the central can check it.
+        if (status != BluetoothGatt.GATT_SUCCESS)
+            Log.w("BLE GATT", "Rejected prepared write from " + device.getAddress() + " at offset " + offset + ", status " + status);
+        if (responseNeeded)
+            module.gattServer.sendResponse(device, requestId, status, offset, status == BluetoothGatt.GATT_SUCCESS ? value : null);
+
+    }
+
+    /** Store a written value and pass it on */
+    private void applyWrite(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] value) {
+
+        // Store it, so reads return the latest value
+        module.storeValue(characteristic, value);
+
+        // Pass it on
+        if (module.writeListener != null)
+            module.writeListener.onWrite(device, characteristic, value);
 
     }
 
     @Override
     public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
 
-        // We don't support offsets
-        if (offset != 0) {
-            Log.i("BLE GATT", "Device tried to read a descriptor, but we don't support offsets.");
-            module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+        // Configuration descriptors are per device
+        if (descriptor.getUuid().equals(BLEConnection.CCCD_UUID) && offset == 0) {
+            module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, module.notifyEngine.getConfig(device, descriptor.getCharacteristic()));
             return;
         }
 
-        // Check if characteristic has data
-        if (descriptor.getValue() != null) {
-
-            // Send data back
-            Log.i("BLE GATT", "Device read descriptor: " + descriptor.getUuid());
-            module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, descriptor.getValue());
-            return;
-
-        }
+        // Look it up
+        GattDatabase.Attribute attribute = module.server.database.find(descriptor);
+        int status = BluetoothGatt.GATT_SUCCESS;
+        if (attribute == null || attribute.value == null)
+            status = BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
+        else if (!attribute.isReadable())
+            status = BluetoothGatt.GATT_READ_NOT_PERMITTED;
+        else if (offset != 0)
+            status = BluetoothGatt.GATT_INVALID_OFFSET;
 
-        // We don't know how to serve this request
-        Log.i("BLE GATT", "Device tried to read a descriptor, but we don't have any data for it.");
-        module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, offset, null);
+        // Send it
+        module.gattServer.sendResponse(device, requestId, status, offset, status == BluetoothGatt.GATT_SUCCESS ? attribute.value : null);
 
     }
 
@@ -125,29 +156,54 @@ public class GATTListener extends BluetoothGattServerCallback {
 
         Log.i("BLE GATT", "Connection state changed for " + device.getName() + ": " + newState);
 
+        // Forget the MTU, unfinished long reads, prepared writes and subscriptions once disconnected
+        if (newState == BluetoothGatt.STATE_DISCONNECTED) {
+            module.serverMtu.remove(device.getAddress());
+            module.readHandlers.deviceDisconnected(device.getAddress());
+            module.writeAssembler.discard(device.getAddress());
+            module.notifyEngine.deviceDisconnected(device.getAddress());
+        }
+
     }
 
     @Override
     public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
         super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value);
 
-        // Stop if no response needed
-        if (!responseNeeded)
+        // Queue prepared writes until they're executed
+        if (preparedWrite) {
+            prepareWrite(device, requestId, descriptor, responseNeeded, offset, value);
             return;
+        }
 
-        // We don't support writing yet
-        Log.i("BLE GATT", "Device tried to write a descriptor, but we don't support that.");
-        module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
+        // Store it. Configuration descriptors are per device, that's how remote devices enable notifications.
+        applyDescriptorWrite(device, descriptor, value);
+        if (responseNeeded)
+            module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
 
+    }
 
+    /** Store a written descriptor value */
+    private void applyDescriptorWrite(BluetoothDevice device, BluetoothGattDescriptor descriptor, byte[] value) {
+        if (descriptor.getUuid().equals(BLEConnection.CCCD_UUID))
+            module.notifyEngine.configure(device, descriptor.getCharacteristic(), value);
+        else
+            module.storeValue(descriptor, value);
     }
 
     @Override
     public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
         super.onExecuteWrite(device, requestId, execute);
 
-        // We don't support writing yet
-        Log.i("BLE GATT", "Device tried to execute a write, but we don't support that.");
+        // Apply all of the device's prepared writes at once, or discard them if cancelled
+        for (WriteAssembler.Value value : module.writeAssembler.execute(device.getAddress(), execute)) {
+            if (value.attribute instanceof BluetoothGattCharacteristic)
+                applyWrite(device, (BluetoothGattCharacteristic) value.attribute, value.data);
+            else if (value.attribute instanceof BluetoothGattDescriptor)
+                applyDescriptorWrite(device, (BluetoothGattDescriptor) value.attribute, value.data);
+        }
+
+        // Done
         module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
 
     }
@@ -159,17 +215,21 @@ public class GATTListener extends BluetoothGattServerCallback {
         // Log it
         Log.i("BLE GATT", "Device has changed the MTU to " + mtu);
 
+        // Store it, responses and notifications to this device are sized to it
+        module.serverMtu.put(device.getAddress(), mtu);
+
     }
 
     @Override
     public void onNotificationSent(BluetoothDevice device, int status) {
         super.onNotificationSent(device, status);
 
-        // Log status
-        if (status == BluetoothGatt.GATT_SUCCESS)
-            Log.i("BLE GATT", "Notification has been sent to " + device.getName());
-        else
+        // Log failures
+        if (status != BluetoothGatt.GATT_SUCCESS)
             Log.w("BLE GATT", "Notification failed to send to " + device.getName());
 
+        // Send the device's next notification
+        module.notifyEngine.onNotificationSent(device, status);
+
     }
 }
@@ -0,0 +1,210 @@
+package com.rnbluetoothle;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The values and permissions of our GATT server's attributes, as an immutable snapshot indexed by UUID. Read requests
+ * from remote devices are answered with a single lookup, without locking or allocating. Any change creates a new
+ * snapshot which shares the unchanged services with the old one, and BLE swaps it in as a whole, so a request always
+ * sees a consistent database.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+final class GattDatabase {
+
+    /** Permissions which allow reading, in any security mode */
+    static final int READ_PERMISSIONS = BluetoothGattCharacteristic.PERMISSION_READ
+            | BluetoothGattCharacteristic.PERMISSION_READ_ENCRYPTED
+            | BluetoothGattCharacteristic.PERMISSION_READ_ENCRYPTED_MITM;
+
+    /** A database with no services */
+    static final GattDatabase EMPTY = new GattDatabase(Collections.emptyMap());
+
+    /** A characteristic or descriptor. The value array is never modified once stored. */
+    static final class Attribute {
+
+        /** Current value, or null if it has none */
+        final byte[] value;
+
+        /** Permissions, the BluetoothGattCharacteristic.PERMISSION_* or BluetoothGattDescriptor.PERMISSION_* flags */
+        final int permissions;
+
+        /** True if the value comes from Javascript through ReadHandlers */
+        final boolean dynamic;
+
+        /** Descriptors by UUID. Empty for descriptors. */
+        final Map<UUID, Attribute> descriptors;
+
+        Attribute(byte[] value, int permissions, boolean dynamic, Map<UUID, Attribute> descriptors) {
+            this.value = value;
+            this.permissions = permissions;
+            this.dynamic = dynamic;
+            this.descriptors = descriptors;
+        }
+
+        /** Check if remote devices may read it */
+        boolean isReadable() {
+            return (permissions & READ_PERMISSIONS) != 0;
+        }
+
+        /** Copy with a different value */
+        Attribute withValue(byte[] value) {
+            return new Attribute(value, permissions, dynamic, descriptors);
+        }
+
+    }
+
+    /** Characteristics by service UUID, then characteristic UUID */
+    private final Map<UUID, Map<UUID, Attribute>> services;
+
+    private GattDatabase(Map<UUID, Map<UUID, Attribute>> services) {
+        this.services = services;
+    }
+
+    /** Collects characteristics for a new database */
+    static final class Builder {
+
+        private final HashMap<UUID, HashMap<UUID, Attribute>> services = new HashMap<>();
+
+        /** Add a characteristic, with its descriptors */
+        Builder add(UUID serviceUUID, UUID characteristicUUID, Attribute characteristic) {
+            HashMap<UUID, Attribute> characteristics = services.get(serviceUUID);
+            if (characteristics == null) {
+                characteristics = new HashMap<>();
+                services.put(serviceUUID, characteristics);
+            }
+
+            characteristics.put(characteristicUUID, characteristic);
+            return this;
+        }
+
+        /** Create the database */
+        GattDatabase build() {
+
+            // Stop if there's nothing added
+            if (services.isEmpty())
+                return EMPTY;
+
+            HashMap<UUID, Map<UUID, Attribute>> compiled = new HashMap<>();
+            for (Map.Entry<UUID, HashMap<UUID, Attribute>> service : services.entrySet())
+                compiled.put(service.getKey(), Collections.unmodifiableMap(new HashMap<>(service.getValue())));
+
+            return new GattDatabase(Collections.unmodifiableMap(compiled));
+
+        }
+
+    }
+
+    /**
+     * Compile registered services into a database. Characteristic values are taken from the characteristic objects.
+     *
+     * @param readHandlers Used to mark dynamic characteristics
+     */
+    static GattDatabase compile(List<BluetoothGattService> services, ReadHandlers readHandlers) {
+
+        Builder builder = new Builder();
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic chr : service.getCharacteristics()) {
+
+                // Add descriptors
+                HashMap<UUID, Attribute> descriptors = new HashMap<>();
+                for (BluetoothGattDescriptor descriptor : chr.getDescriptors())
+                    descriptors.put(descriptor.getUuid(), new Attribute(descriptor.getValue(), descriptor.getPermissions(), false, Collections.emptyMap()));
+
+                // Add the characteristic
+                boolean dynamic = readHandlers.isDynamic(service.getUuid(), chr.getUuid());
+                builder.add(service.getUuid(), chr.getUuid(), new Attribute(chr.getValue(), chr.getPermissions(), dynamic, Collections.unmodifiableMap(descriptors)));
+
+            }
+        }
+
+        return builder.build();
+
+    }
+
+    /** Find a characteristic, or null if it isn't in the database */
+    Attribute find(UUID serviceUUID, UUID characteristicUUID) {
+        Map<UUID, Attribute> characteristics = services.get(serviceUUID);
+        return characteristics == null ? null : characteristics.get(characteristicUUID);
+    }
+
+    /** Find a descriptor, or null if it isn't in the database */
+    Attribute find(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID) {
+        Attribute characteristic = find(serviceUUID, characteristicUUID);
+        return characteristic == null ? null : characteristic.descriptors.get(descriptorUUID);
+    }
+
+    /** Find a characteristic, or null if it isn't in the database */
+    Attribute find(BluetoothGattCharacteristic characteristic) {
+        return find(characteristic.getService().getUuid(), characteristic.getUuid());
+    }
+
+    /** Find a descriptor, or null if it isn't in the database */
+    Attribute find(BluetoothGattDescriptor descriptor) {
+        BluetoothGattCharacteristic chr = descriptor.getCharacteristic();
+        return find(chr.getService().getUuid(), chr.getUuid(), descriptor.getUuid());
+    }
+
+    /** Copy with a new characteristic value. Returns this database if the characteristic isn't in it. */
+    GattDatabase withValue(UUID serviceUUID, UUID characteristicUUID, byte[] value) {
+
+        // Find it
+        Attribute existing = find(serviceUUID, characteristicUUID);
+        if (existing == null)
+            return this;
+
+        // Replace it, and the service containing it
+        return withCharacteristic(serviceUUID, characteristicUUID, existing.withValue(value));
+
+    }
+
+    /** Copy with a new descriptor value. Returns this database if the descriptor isn't in it. */
+    GattDatabase withValue(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID, byte[] value) {
+
+        // Find it
+        Attribute characteristic = find(serviceUUID, characteristicUUID);
+        Attribute existing = characteristic == null ? null : characteristic.descriptors.get(descriptorUUID);
+        if (existing == null)
+            return this;
+
+        // Replace it, its characteristic, and the service containing that
+        HashMap<UUID, Attribute> descriptors = new HashMap<>(characteristic.descriptors);
+        descriptors.put(descriptorUUID, existing.withValue(value));
+        return withCharacteristic(serviceUUID, characteristicUUID, new Attribute(characteristic.value, characteristic.permissions, characteristic.dynamic, Collections.unmodifiableMap(descriptors)));
+
+    }
+
+    /** Copy with a new characteristic value. Returns this database if the characteristic isn't in it. */
+    GattDatabase withValue(BluetoothGattCharacteristic characteristic, byte[] value) {
+        return withValue(characteristic.getService().getUuid(), characteristic.getUuid(), value);
+    }
+
+    /** Copy with a new descriptor value. Returns this database if the descriptor isn't in it. */
+    GattDatabase withValue(BluetoothGattDescriptor descriptor, byte[] value) {
+        BluetoothGattCharacteristic chr = descriptor.getCharacteristic();
+        return withValue(chr.getService().getUuid(), chr.getUuid(), descriptor.getUuid(), value);
+    }
+
+    /** Copy with a characteristic replaced. Other services are shared with this database. */
+    private GattDatabase withCharacteristic(UUID serviceUUID, UUID characteristicUUID, Attribute attribute) {
+
+        HashMap<UUID, Attribute> characteristics = new HashMap<>(services.get(serviceUUID));
+        characteristics.put(characteristicUUID, attribute);
+
+        HashMap<UUID, Map<UUID, Attribute>> copy = new HashMap<>(services);
+        copy.put(serviceUUID, Collections.unmodifiableMap(characteristics));
+        return new GattDatabase(Collections.unmodifiableMap(copy));
+
+    }
+
+}
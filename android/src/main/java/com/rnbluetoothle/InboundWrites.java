@@ -0,0 +1,131 @@
+package com.rnbluetoothle;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects values written to our GATT server by remote devices, and sends them to Javascript in batches as
+ * BLEPeripheral:Write events. A burst of writes costs one bridge call per interval. The batch is bounded, the oldest
+ * writes are dropped if Javascript falls behind.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class InboundWrites implements BLE.WriteListener {
+
+    /** Time between batches, in milliseconds */
+    static final long FLUSH_INTERVAL = 50;
+
+    /** Maximum number of writes waiting to be sent */
+    static final int MAX_PENDING = 256;
+
+    /** A write waiting to be sent */
+    private static class Write {
+        String address;
+        BluetoothGattCharacteristic characteristic;
+        byte[] value;
+        long timestamp;
+    }
+
+    /** React context, used to send events */
+    private final ReactApplicationContext ctx;
+
+    /** Format of values for each characteristic, by subscription key. UTF-8 if not set. */
+    private final HashMap<String, DataCodec> codecs = new HashMap<>();
+
+    /** Writes waiting to be sent */
+    private ArrayList<Write> pending = new ArrayList<>();
+
+    /** Number of writes dropped because Javascript fell behind */
+    private long dropped = 0;
+
+    /** Pending flush */
+    private ScheduledFuture<?> flushTimer = null;
+
+    /** Constructor */
+    InboundWrites(ReactApplicationContext ctx) {
+        this.ctx = ctx;
+    }
+
+    /** Set the format of values sent to Javascript for a characteristic */
+    synchronized void setCodec(BluetoothGattCharacteristic characteristic, DataCodec codec) {
+        codecs.put(BLEConnection.subscriptionKey(characteristic.getService().getUuid(), characteristic.getUuid()), codec);
+    }
+
+    @Override
+    public synchronized void onWrite(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] value) {
+
+        // Drop the oldest write if full
+        if (pending.size() >= MAX_PENDING) {
+            pending.remove(0);
+            dropped++;
+        }
+
+        // Add it
+        Write write = new Write();
+        write.address = device.getAddress();
+        write.characteristic = characteristic;
+        write.value = value;
+        write.timestamp = System.currentTimeMillis();
+        pending.add(write);
+
+        // Send soon
+        if (flushTimer == null)
+            flushTimer = SettableFuture.timer.schedule(this::flush, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+
+    }
+
+    /** Send waiting writes to Javascript */
+    private void flush() {
+
+        // Take the batch
+        ArrayList<Write> batch;
+        long droppedCount;
+        WritableArray list = Arguments.createArray();
+        synchronized (this) {
+
+            batch = pending;
+            droppedCount = dropped;
+            pending = new ArrayList<>();
+            flushTimer = null;
+
+            // Convert writes
+            for (Write write : batch) {
+                String key = BLEConnection.subscriptionKey(write.characteristic.getService().getUuid(), write.characteristic.getUuid());
+                DataCodec codec = codecs.get(key);
+                WritableMap info = Arguments.createMap();
+                info.putString("address", write.address);
+                info.putString("service", write.characteristic.getService().getUuid().toString());
+                info.putString("characteristic", write.characteristic.getUuid().toString());
+                info.putString("value", (codec == null ? DataCodec.UTF8 : codec).encode(write.value));
+                info.putDouble("timestamp", write.timestamp);
+                list.pushMap(info);
+            }
+
+        }
+
+        // Stop if nothing to send
+        if (batch.isEmpty())
+            return;
+
+        // Send it
+        WritableMap event = Arguments.createMap();
+        event.putArray("writes", list);
+        event.putDouble("dropped", droppedCount);
+        ctx.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit("BLEPeripheral:Write", event);
+
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.rnbluetoothle;
+
+import java.util.Arrays;
+
+/**
+ * The keys of an open addressing hash table with linear probing, for tables keyed by a long such as a device address.
+ * The owner keeps its values in parallel primitive arrays, one per column, indexed by slot. The table finds and assigns
+ * slots, and calls back to the owner to resize its columns and move entries, so there's no object per entry. Not
+ * thread safe, owners lock around it.
+ */
+final class LongTable {
+
+    /** Marks an empty slot. Keys must never have this value. */
+    static final long EMPTY = -1;
+
+    /** The owner's value arrays */
+    interface Columns {
+
+        /**
+         * Replace the column arrays with new ones of a different capacity.
+         *
+         * @param slots New slot of the entry in each old slot, or -1 for empty slots. Null when clearing the table.
+         */
+        void resize(int capacity, int[] slots);
+
+        /** Copy an entry's values to another slot */
+        void move(int from, int to);
+
+        /** Reset a slot's values, for a new entry or one which was removed */
+        void clear(int slot);
+
+    }
+
+    /** Key in each slot, or EMPTY */
+    long[] keys;
+
+    /** Number of entries */
+    int size = 0;
+
+    private final Columns columns;
+
+    LongTable(Columns columns) {
+        this.columns = columns;
+    }
+
+    /** Remove all entries, and set the capacity. Must be a power of 2. */
+    void clear(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        columns.resize(capacity, null);
+    }
+
+    /** Get the preferred slot of a key */
+    private int slotFor(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (keys.length - 1);
+    }
+
+    /** Find a key's slot, or -1 if it's not in the table */
+    int find(long key) {
+        for (int slot = slotFor(key) ; keys[slot] != EMPTY ; slot = (slot + 1) & (keys.length - 1))
+            if (keys[slot] == key)
+                return slot;
+
+        return -1;
+    }
+
+    /** Add a key which isn't in the table, and return its slot. Its values are cleared. */
+    int insert(long key) {
+
+        // Grow when three quarters full
+        if ((size + 1) * 4 > keys.length * 3)
+            grow();
+
+        // Use the first free slot
+        int slot = freeSlot(key);
+        keys[slot] = key;
+        columns.clear(slot);
+        size++;
+        return slot;
+
+    }
+
+    /** Get the first free slot for a key */
+    private int freeSlot(long key) {
+        int slot = slotFor(key);
+        while (keys[slot] != EMPTY)
+            slot = (slot + 1) & (keys.length - 1);
+
+        return slot;
+    }
+
+    /**
+     * Remove the entry in a slot, moving later entries back so lookups don't stop at the gap. Another entry may be moved
+     * into the slot, so callers iterating the table should check it again.
+     */
+    void remove(int slot) {
+
+        int mask = keys.length - 1;
+        int next = (slot + 1) & mask;
+        while (keys[next] != EMPTY) {
+
+            // Move the entry back if the gap is between its preferred slot and where it is
+            int preferred = slotFor(keys[next]);
+            if (((next - preferred) & mask) >= ((next - slot) & mask)) {
+                keys[slot] = keys[next];
+                columns.move(next, slot);
+                slot = next;
+            }
+
+            next = (next + 1) & mask;
+
+        }
+
+        keys[slot] = EMPTY;
+        columns.clear(slot);
+        size--;
+
+    }
+
+    /** Double the table's capacity */
+    private void grow() {
+
+        // Place each key in the new table
+        long[] oldKeys = keys;
+        keys = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        int[] slots = new int[oldKeys.length];
+        for (int i = 0 ; i < oldKeys.length ; i++) {
+            if (oldKeys[i] == EMPTY) {
+                slots[i] = -1;
+                continue;
+            }
+
+            slots[i] = freeSlot(oldKeys[i]);
+            keys[slots[i]] = oldKeys[i];
+        }
+
+        // Move the values with them
+        columns.resize(keys.length, slots);
+
+    }
+
+}
@@ -0,0 +1,305 @@
+package com.rnbluetoothle;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures how long operations take, and counts bytes, retries, timeouts and GATT errors, so apps can send them to
+ * their own telemetry. Latencies go into histograms with logarithmic buckets, 8 per power of two, so percentiles are
+ * within about 12% at any scale. Recording only uses atomic increments, so it's cheap enough for every operation and
+ * never blocks a Bluetooth callback.
+ */
+public class Metrics {
+
+    /** Operation types */
+    static final int CONNECT = 0;
+    static final int DISCOVER = 1;
+    static final int READ = 2;
+    static final int WRITE = 3;
+    static final int ADVERTISE_START = 4;
+    static final int SCAN_START = 5;
+    static final int FIRST_SCAN_RESULT = 6;
+    static final String[] OPERATION_NAMES = { "connect", "discover", "read", "write", "advertiseStart", "scanStart", "firstScanResult" };
+
+    /** Operation types below this are also measured per device */
+    static final int DEVICE_OPERATIONS = 4;
+
+    /** Maximum number of devices measured individually. Later devices only count towards the totals. */
+    static final int MAX_DEVICES = 32;
+
+    /** A latency histogram. Values are in microseconds. */
+    static class Histogram {
+
+        /** Sub-buckets per power of two, as a number of bits */
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        /** Largest value recorded, about 12 days. Larger values are clamped. */
+        private static final long MAX_VALUE = (1L << 40) - 1;
+
+        /** Number of buckets needed to reach MAX_VALUE */
+        private static final int BUCKETS = bucketFor(MAX_VALUE) + 1;
+
+        /** Counts per bucket, and totals */
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /** Record a value */
+        void record(long micros) {
+
+            // Add it to its bucket
+            long value = Math.max(0, Math.min(MAX_VALUE, micros));
+            counts.incrementAndGet(bucketFor(value));
+            sum.addAndGet(value);
+
+            // Raise the maximum
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value))
+                current = max.get();
+
+        }
+
+        /** Get a summary, optionally starting again from empty. Values recorded during the reset are kept for next time. */
+        HistogramSnapshot snapshot(boolean reset) {
+
+            // Copy counts
+            long[] copy = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0 ; i < BUCKETS ; i++) {
+                copy[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+                total += copy[i];
+            }
+
+            // Summarize
+            HistogramSnapshot snapshot = new HistogramSnapshot();
+            long maxValue = reset ? max.getAndSet(0) : max.get();
+            long sumValue = reset ? sum.getAndSet(0) : sum.get();
+            snapshot.count = total;
+            snapshot.mean = total == 0 ? 0 : sumValue / (double) total / 1000;
+            snapshot.max = maxValue / 1000.0;
+            snapshot.p50 = percentile(copy, total, 0.50, maxValue) / 1000.0;
+            snapshot.p90 = percentile(copy, total, 0.90, maxValue) / 1000.0;
+            snapshot.p99 = percentile(copy, total, 0.99, maxValue) / 1000.0;
+            return snapshot;
+
+        }
+
+        /** Get the value at a percentile, as the upper bound of its bucket */
+        private static long percentile(long[] counts, long total, double fraction, long maxValue) {
+
+            // Stop if empty
+            if (total == 0)
+                return 0;
+
+            // Find the bucket containing the percentile
+            long target = Math.max(1, (long) Math.ceil(total * fraction));
+            long seen = 0;
+            for (int i = 0 ; i < counts.length ; i++) {
+                seen += counts[i];
+                if (seen >= target)
+                    return Math.min(upperBound(i), maxValue);
+            }
+
+            return maxValue;
+
+        }
+
+        /** Get the bucket for a value */
+        private static int bucketFor(long value) {
+
+            // Small values get a bucket each
+            if (value < SUB_BUCKETS)
+                return (int) value;
+
+            // Others are split by their highest bit, then the next SUB_BITS bits
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+
+        }
+
+        /** Get the largest value in a bucket */
+        private static long upperBound(int bucket) {
+
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+
+            int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+            long lower = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << (exponent - SUB_BITS);
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+
+        }
+
+    }
+
+    /** Summary of a histogram. Times are in milliseconds. */
+    static class HistogramSnapshot {
+        long count;
+        double mean;
+        double p50;
+        double p90;
+        double p99;
+        double max;
+    }
+
+    /** All metrics at one point in time */
+    static class Snapshot {
+
+        /** When measuring started, and how long it has run, in milliseconds */
+        long since;
+        long duration;
+
+        /** Latency by operation type, and per device for the first DEVICE_OPERATIONS types */
+        HistogramSnapshot[] operations;
+        TreeMap<String, HistogramSnapshot[]> devices = new TreeMap<>();
+
+        /** Counters */
+        long bytesRead;
+        long bytesWritten;
+        long bytesNotified;
+        long retries;
+        long timeouts;
+
+        /** Number of failed GATT operations, by status code */
+        TreeMap<Integer, Long> gattErrors = new TreeMap<>();
+
+    }
+
+    /** Latency by operation type */
+    private final Histogram[] operations = new Histogram[OPERATION_NAMES.length];
+
+    /** Latency by device, then operation type */
+    private final ConcurrentHashMap<String, Histogram[]> devices = new ConcurrentHashMap<>();
+
+    /** Counters */
+    final AtomicLong bytesRead = new AtomicLong();
+    final AtomicLong bytesWritten = new AtomicLong();
+    final AtomicLong bytesNotified = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong timeouts = new AtomicLong();
+
+    /** Failed GATT operations, by status code */
+    private final ConcurrentHashMap<Integer, AtomicLong> gattErrors = new ConcurrentHashMap<>();
+
+    /** When measuring started */
+    private volatile long since = System.currentTimeMillis();
+
+    /** Constructor */
+    Metrics() {
+        for (int i = 0 ; i < operations.length ; i++)
+            operations[i] = new Histogram();
+    }
+
+    /**
+     * Record an operation which has just finished.
+     *
+     * @param address Device the operation was on, or null
+     * @param startNanos When the operation started, from System.nanoTime()
+     */
+    void record(int operation, String address, long startNanos) {
+        recordDuration(operation, address, (System.nanoTime() - startNanos) / 1000);
+    }
+
+    /** Record how long an operation took, in microseconds */
+    void recordDuration(int operation, String address, long micros) {
+
+        // Add to the totals
+        operations[operation].record(micros);
+
+        // Add to the device's histograms, if it's measured individually
+        if (address == null || operation >= DEVICE_OPERATIONS)
+            return;
+
+        Histogram[] histograms = devices.get(address);
+        if (histograms == null) {
+
+            // Stop if measuring too many devices
+            if (devices.size() >= MAX_DEVICES)
+                return;
+
+            histograms = new Histogram[DEVICE_OPERATIONS];
+            for (int i = 0 ; i < histograms.length ; i++)
+                histograms[i] = new Histogram();
+
+            Histogram[] existing = devices.putIfAbsent(address, histograms);
+            if (existing != null)
+                histograms = existing;
+
+        }
+
+        histograms[operation].record(micros);
+
+    }
+
+    /** Count a failed GATT operation */
+    void recordGattError(int status) {
+
+        AtomicLong counter = gattErrors.get(status);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = gattErrors.putIfAbsent(status, created);
+            if (counter == null)
+                counter = created;
+        }
+
+        counter.incrementAndGet();
+
+    }
+
+    /**
+     * Get all metrics, optionally starting again from zero. Resetting doesn't lose values recorded while the snapshot
+     * is taken, and stops measuring devices which had no operations since the last reset, to make room for others.
+     */
+    Snapshot snapshot(boolean reset) {
+
+        // Times
+        Snapshot snapshot = new Snapshot();
+        long now = System.currentTimeMillis();
+        snapshot.since = since;
+        snapshot.duration = now - since;
+        if (reset)
+            since = now;
+
+        // Histograms
+        snapshot.operations = new HistogramSnapshot[operations.length];
+        for (int i = 0 ; i < operations.length ; i++)
+            snapshot.operations[i] = operations[i].snapshot(reset);
+
+        for (Map.Entry<String, Histogram[]> device : devices.entrySet()) {
+
+            // Summarize the device
+            long count = 0;
+            HistogramSnapshot[] summaries = new HistogramSnapshot[DEVICE_OPERATIONS];
+            for (int i = 0 ; i < DEVICE_OPERATIONS ; i++) {
+                summaries[i] = device.getValue()[i].snapshot(reset);
+                count += summaries[i].count;
+            }
+
+            // Skip and stop measuring idle devices
+            if (count > 0)
+                snapshot.devices.put(device.getKey(), summaries);
+            else if (reset)
+                devices.remove(device.getKey());
+
+        }
+
+        // Counters
+        snapshot.bytesRead = reset ? bytesRead.getAndSet(0) : bytesRead.get();
+        snapshot.bytesWritten = reset ? bytesWritten.getAndSet(0) : bytesWritten.get();
+        snapshot.bytesNotified = reset ? bytesNotified.getAndSet(0) : bytesNotified.get();
+        snapshot.retries = reset ? retries.getAndSet(0) : retries.get();
+        snapshot.timeouts = reset ? timeouts.getAndSet(0) : timeouts.get();
+        for (Map.Entry<Integer, AtomicLong> error : gattErrors.entrySet()) {
+            long count = reset ? error.getValue().getAndSet(0) : error.getValue().get();
+            if (count > 0)
+                snapshot.gattErrors.put(error.getKey(), count);
+        }
+
+        return snapshot;
+
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.rnbluetoothle;
+
+/**
+ * A bounded ring buffer of notification values from one characteristic. Values are added from the GATT callback thread
+ * and drained in batches by whoever sends them on, usually a timer. What happens when the buffer is full depends on the
+ * backpressure policy.
+ */
+public class NotificationBuffer {
+
+    /** When full, the oldest value is dropped to make room */
+    static final int DROP_OLDEST = 0;
+
+    /** When full, the newest buffered value is replaced, so the latest value is always kept */
+    static final int COALESCE_LATEST = 1;
+
+    /**
+     * When full, the GATT callback thread waits for a drain, for up to the block timeout. If there is still no room, the
+     * new value is dropped. Waiting holds up all callbacks from the device, so use a short timeout.
+     */
+    static final int BLOCK = 2;
+
+    /** Buffered values and their arrival times, in a ring starting at head */
+    private final byte[][] values;
+    private final long[] timestamps;
+    private int head = 0;
+    private int size = 0;
+
+    /** Backpressure policy */
+    private final int policy;
+
+    /** Maximum time to wait for room with the BLOCK policy, in milliseconds */
+    private final long blockTimeout;
+
+    /** Number of values dropped because the buffer was full */
+    private long dropped = 0;
+
+    /** Number of values which replaced a buffered value */
+    private long coalesced = 0;
+
+    /**
+     * Constructor
+     *
+     * @param capacity Maximum number of values to buffer
+     * @param policy What to do when full: DROP_OLDEST, COALESCE_LATEST or BLOCK
+     * @param blockTimeout Maximum time to wait for room with the BLOCK policy, in milliseconds
+     */
+    NotificationBuffer(int capacity, int policy, long blockTimeout) {
+        this.values = new byte[Math.max(1, capacity)][];
+        this.timestamps = new long[values.length];
+        this.policy = policy;
+        this.blockTimeout = blockTimeout;
+    }
+
+    /** Add a value */
+    synchronized void offer(byte[] value) {
+
+        // Check if full
+        long now = System.currentTimeMillis();
+        if (size == values.length) {
+
+            if (policy == COALESCE_LATEST) {
+
+                // Replace the newest value
+                int newest = (head + size - 1) % values.length;
+                values[newest] = value;
+                timestamps[newest] = now;
+                coalesced++;
+                return;
+
+            } else if (policy == BLOCK) {
+
+                // Wait for room
+                long deadline = now + blockTimeout;
+                long remaining = blockTimeout;
+                while (size == values.length && remaining > 0) {
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    remaining = deadline - System.currentTimeMillis();
+                }
+
+                // Drop the new value if still full
+                if (size == values.length) {
+                    dropped++;
+                    return;
+                }
+
+            } else {
+
+                // Drop the oldest value
+                values[head] = null;
+                head = (head + 1) % values.length;
+                size--;
+                dropped++;
+
+            }
+
+        }
+
+        // Add it
+        int tail = (head + size) % values.length;
+        values[tail] = value;
+        timestamps[tail] = now;
+        size++;
+
+    }
+
+    /**
+     * Remove buffered values, oldest first.
+     *
+     * @param outValues Receives the values
+     * @param outTimestamps Receives the arrival time of each value
+     * @return The number of values removed, at most the length of the output arrays
+     */
+    synchronized int drain(byte[][] outValues, long[] outTimestamps) {
+
+        // Copy out values
+        int count = Math.min(size, outValues.length);
+        for (int i = 0 ; i < count ; i++) {
+            outValues[i] = values[head];
+            outTimestamps[i] = timestamps[head];
+            values[head] = null;
+            head = (head + 1) % values.length;
+        }
+        size -= count;
+
+        // Wake up a blocked producer
+        if (count > 0)
+            notifyAll();
+
+        return count;
+
+    }
+
+    /** Maximum number of buffered values */
+    int capacity() {
+        return values.length;
+    }
+
+    /** Number of values dropped because the buffer was full */
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    /** Number of values which replaced a buffered value */
+    synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.rnbluetoothle;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the values collected in a NotificationBuffer to Javascript. Each flush sends every buffered value as one
+ * BLECentral:Notification event, so a high rate sensor costs one bridge call per interval instead of one per value.
+ */
+public class NotificationStream {
+
+    /** React context, used to send events */
+    private final ReactApplicationContext ctx;
+
+    /** Subscription info */
+    private final String address;
+    private final UUID serviceUUID;
+    private final UUID characteristicUUID;
+
+    /** Buffer to drain */
+    final NotificationBuffer buffer;
+
+    /** Format of values sent to Javascript */
+    private final DataCodec codec;
+
+    /** Scratch space for draining */
+    private final byte[][] values;
+    private final long[] timestamps;
+
+    /** Flush timer */
+    private final ScheduledFuture<?> timer;
+
+    /**
+     * Constructor
+     *
+     * @param flushInterval Time between flushes, in milliseconds
+     */
+    NotificationStream(ReactApplicationContext ctx, String address, UUID serviceUUID, UUID characteristicUUID, NotificationBuffer buffer, DataCodec codec, long flushInterval) {
+
+        // Store info
+        this.ctx = ctx;
+        this.address = address;
+        this.serviceUUID = serviceUUID;
+        this.characteristicUUID = characteristicUUID;
+        this.buffer = buffer;
+        this.codec = codec;
+        this.values = new byte[buffer.capacity()][];
+        this.timestamps = new long[buffer.capacity()];
+
+        // Start flush timer
+        timer = SettableFuture.timer.scheduleAtFixedRate(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+
+    }
+
+    /** Send buffered values to Javascript */
+    synchronized void flush() {
+
+        // Get values, stop if none
+        int count = buffer.drain(values, timestamps);
+        if (count == 0)
+            return;
+
+        // Create event
+        WritableArray list = Arguments.createArray();
+        WritableArray times = Arguments.createArray();
+        for (int i = 0 ; i < count ; i++) {
+            list.pushString(codec.encode(values[i]));
+            times.pushDouble(timestamps[i]);
+            values[i] = null;
+        }
+
+        WritableMap event = Arguments.createMap();
+        event.putString("address", address);
+        event.putString("service", serviceUUID.toString());
+        event.putString("characteristic", characteristicUUID.toString());
+        event.putArray("values", list);
+        event.putArray("timestamps", times);
+        event.putDouble("dropped", buffer.getDropped());
+        event.putDouble("coalesced", buffer.getCoalesced());
+
+        // Send it
+        ctx.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit("BLECentral:Notification", event);
+
+    }
+
+    /** Stop the flush timer and send any remaining values */
+    void stop() {
+        timer.cancel(false);
+        flush();
+    }
+
+}
@@ -0,0 +1,273 @@
+package com.rnbluetoothle;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends notifications from our GATT server to every remote device which has subscribed. Each device has its own queue,
+ * paced by onNotificationSent, so a slow device never holds back the others. A device's queue only records which
+ * characteristics have changed, and the latest value is read when it's sent, so a slow device skips straight to the
+ * newest value instead of working through old ones.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class NotifyEngine {
+
+    /** Maximum number of notifications in flight to one device. The stack only confirms them one at a time. */
+    static final int MAX_IN_FLIGHT = 1;
+
+    /** Delay before retrying a notification the stack refused, growing with each retry up to the maximum, in milliseconds */
+    private static final long RETRY_DELAY = 10;
+    private static final long MAX_RETRY_DELAY = 200;
+
+    /** Number of times in a row the stack can refuse a device's notification before its changed values are dropped */
+    static final int MAX_RETRIES = 20;
+
+    /** Subscription state of one remote device */
+    private static class Subscriber {
+
+        /** The device */
+        BluetoothDevice device;
+
+        /** Subscribed characteristics, and whether each uses indications */
+        HashMap<BluetoothGattCharacteristic, Boolean> characteristics = new HashMap<>();
+
+        /** Characteristics with a newer value than the device has been sent, oldest change first */
+        LinkedHashSet<BluetoothGattCharacteristic> dirty = new LinkedHashSet<>();
+
+        /** Number of notifications sent but not yet confirmed */
+        int inFlight = 0;
+
+        /** True if a retry is scheduled */
+        boolean retryScheduled = false;
+
+        /** Number of times in a row the stack has refused a notification */
+        int retries = 0;
+
+    }
+
+    /** Link back to the main module */
+    private final BLE module;
+
+    /** Subscribers by address */
+    private final HashMap<String, Subscriber> subscribers = new HashMap<>();
+
+    /** Latest value of each characteristic */
+    private final HashMap<BluetoothGattCharacteristic, byte[]> values = new HashMap<>();
+
+    /** Number of notifications sent */
+    private long sent = 0;
+
+    /** Number of values replaced by a newer one before they were sent to a device */
+    private long coalesced = 0;
+
+    /** Number of values dropped because the stack kept refusing to send them */
+    private long dropped = 0;
+
+    /** Constructor */
+    NotifyEngine(BLE module) {
+        this.module = module;
+    }
+
+    /**
+     * Update a device's subscription from a write to a characteristic's configuration descriptor.
+     *
+     * @param value The descriptor value written by the device
+     */
+    synchronized void configure(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] value) {
+
+        // Get subscriber
+        String address = device.getAddress();
+        Subscriber subscriber = subscribers.get(address);
+        if (subscriber == null) {
+            subscriber = new Subscriber();
+            subscribers.put(address, subscriber);
+        }
+
+        subscriber.device = device;
+
+        // Update subscription. Bit 0 enables notifications and bit 1 indications.
+        int flags = value != null && value.length > 0 ? value[0] & 0x03 : 0;
+        if (flags == 0) {
+            subscriber.characteristics.remove(characteristic);
+            subscriber.dirty.remove(characteristic);
+        } else {
+            subscriber.characteristics.put(characteristic, (flags & 0x01) == 0);
+        }
+
+        // Forget the device if it has no subscriptions left
+        if (subscriber.characteristics.isEmpty() && subscriber.inFlight == 0)
+            subscribers.remove(address);
+
+    }
+
+    /** Get a device's configuration descriptor value for a characteristic */
+    synchronized byte[] getConfig(BluetoothDevice device, BluetoothGattCharacteristic characteristic) {
+
+        Subscriber subscriber = subscribers.get(device.getAddress());
+        Boolean indicate = subscriber == null ? null : subscriber.characteristics.get(characteristic);
+        if (indicate == null)
+            return BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        else if (indicate)
+            return BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        else
+            return BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+
+    }
+
+    /**
+     * Set a characteristic's value and notify every subscribed device.
+     *
+     * @return The number of subscribed devices
+     */
+    synchronized int notify(BluetoothGattCharacteristic characteristic, byte[] value) {
+
+        // Store the value, so reads return it too
+        values.put(characteristic, value);
+        module.storeValue(characteristic, value);
+
+        // Queue it for each subscriber
+        int count = 0;
+        for (Subscriber subscriber : subscribers.values()) {
+            if (!subscriber.characteristics.containsKey(characteristic))
+                continue;
+
+            // If the device hasn't been sent the previous value yet, it just gets this one instead
+            count++;
+            if (!subscriber.dirty.add(characteristic))
+                coalesced++;
+
+            sendNext(subscriber);
+        }
+
+        return count;
+
+    }
+
+    /** Called when the stack has sent a notification to a device */
+    synchronized void onNotificationSent(BluetoothDevice device, int status) {
+
+        // Get subscriber
+        Subscriber subscriber = subscribers.get(device.getAddress());
+        if (subscriber == null)
+            return;
+
+        // Send the next one
+        subscriber.inFlight = Math.max(0, subscriber.inFlight - 1);
+        sendNext(subscriber);
+
+    }
+
+    /** Forget a device which has disconnected */
+    synchronized void deviceDisconnected(String address) {
+        subscribers.remove(address);
+    }
+
+    /** Remove all subscriptions to a service's characteristics */
+    synchronized void removeService(UUID serviceUUID) {
+
+        // Remove stored values
+        for (Iterator<BluetoothGattCharacteristic> it = values.keySet().iterator() ; it.hasNext() ; )
+            if (it.next().getService().getUuid().equals(serviceUUID))
+                it.remove();
+
+        // Remove subscriptions
+        for (Subscriber subscriber : subscribers.values()) {
+            for (Iterator<BluetoothGattCharacteristic> it = subscriber.characteristics.keySet().iterator() ; it.hasNext() ; )
+                if (it.next().getService().getUuid().equals(serviceUUID))
+                    it.remove();
+            for (Iterator<BluetoothGattCharacteristic> it = subscriber.dirty.iterator() ; it.hasNext() ; )
+                if (it.next().getService().getUuid().equals(serviceUUID))
+                    it.remove();
+        }
+
+    }
+
+    /** Number of notifications sent */
+    synchronized long getSent() {
+        return sent;
+    }
+
+    /** Number of values skipped by slow devices because a newer one arrived first */
+    synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /** Number of values dropped because the stack kept refusing to send them */
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    /** Send changed values to a device, up to its in-flight limit */
+    private void sendNext(Subscriber subscriber) {
+
+        // Drop changes if the server has closed
+        if (module.gattServer == null) {
+            subscriber.dirty.clear();
+            return;
+        }
+
+        while (subscriber.inFlight < MAX_IN_FLIGHT && !subscriber.dirty.isEmpty() && !subscriber.retryScheduled) {
+
+            // Get the oldest change
+            Iterator<BluetoothGattCharacteristic> it = subscriber.dirty.iterator();
+            BluetoothGattCharacteristic characteristic = it.next();
+
+            // Send the latest value. The stack copies the characteristic's value when called, so it's set just before.
+            byte[] value = values.get(characteristic);
+            characteristic.setValue(value);
+            boolean indicate = Boolean.TRUE.equals(subscriber.characteristics.get(characteristic));
+            if (!module.gattServer.notifyCharacteristicChanged(subscriber.device, characteristic, indicate)) {
+
+                // Give up if the stack keeps refusing, it's stuck. The device gets the next value which changes.
+                if (++subscriber.retries > MAX_RETRIES) {
+                    Log.w("BLE GATT", "Dropped notifications for " + subscriber.device.getAddress() + ", the stack refused to send them");
+                    dropped += subscriber.dirty.size();
+                    subscriber.dirty.clear();
+                    subscriber.retries = 0;
+                    return;
+                }
+
+                // Stack is busy, try again after a delay which grows each time
+                subscriber.retryScheduled = true;
+                long delay = Math.min(RETRY_DELAY * subscriber.retries, MAX_RETRY_DELAY);
+                SettableFuture.timer.schedule(() -> retry(subscriber), delay, TimeUnit.MILLISECONDS);
+                return;
+
+            }
+
+            // Sent
+            it.remove();
+            subscriber.inFlight++;
+            subscriber.retries = 0;
+            sent++;
+
+        }
+
+    }
+
+    /** Retry sending to a device after the stack was busy */
+    private synchronized void retry(Subscriber subscriber) {
+
+        // Stop if the device has gone
+        subscriber.retryScheduled = false;
+        if (subscribers.get(subscriber.device.getAddress()) != subscriber) {
+            Log.i("BLE GATT", "Dropped notifications for disconnected device " + subscriber.device.getAddress());
+            return;
+        }
+
+        sendNext(subscriber);
+
+    }
+
+}
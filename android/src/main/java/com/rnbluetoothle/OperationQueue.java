@@ -0,0 +1,134 @@
+package com.rnbluetoothle;
+
+import java.util.ArrayDeque;
+
+/**
+ * A serial queue of asynchronous Bluetooth operations. Operations run one at a time in the order they were submitted,
+ * but no thread is blocked while an operation is in progress. The next operation is started from whichever thread
+ * completes the current one, usually a Bluetooth callback.
+ */
+public class OperationQueue {
+
+    /** An asynchronous operation. Returns a future which completes when the operation is done, or null if it completed immediately. */
+    interface Operation<T> {
+        SettableFuture<T> start() throws Exception;
+    }
+
+    /** A queued operation */
+    private static class Entry<T> {
+
+        /** The operation to run */
+        Operation<T> operation;
+
+        /** Resolved with the operation's result */
+        SettableFuture<T> result = new SettableFuture<>();
+
+    }
+
+    /** Operations waiting to run */
+    private final ArrayDeque<Entry<?>> pending = new ArrayDeque<>();
+
+    /** True while an operation is in progress */
+    private boolean active = false;
+
+    /** True while a thread is starting operations */
+    private boolean draining = false;
+
+    /**
+     * Add an operation to the queue.
+     *
+     * @param operation The operation to run.
+     * @return A future which completes with the result of the operation. Cancelling it, or letting it time out, skips
+     * the operation if it hasn't started yet, or fails the operation's own future if it has.
+     */
+    public <T> SettableFuture<T> submit(Operation<T> operation) {
+
+        // Add to queue
+        Entry<T> entry = new Entry<>();
+        entry.operation = operation;
+        synchronized (this) {
+            pending.add(entry);
+        }
+
+        // Start it if the queue is idle
+        drain();
+        return entry.result;
+
+    }
+
+    /** Number of operations which are waiting or in progress */
+    public synchronized int size() {
+        return pending.size() + (active ? 1 : 0);
+    }
+
+    /**
+     * Start queued operations until one is in progress. Operations which complete immediately are handled in a loop
+     * instead of recursively, so a long queue of failing operations can't overflow the stack.
+     */
+    private void drain() {
+
+        // Only one thread starts operations at a time
+        synchronized (this) {
+            if (draining) return;
+            draining = true;
+        }
+
+        while (true) {
+
+            // Get next operation, stop if busy or empty
+            Entry<?> entry;
+            synchronized (this) {
+                if (active || pending.isEmpty()) {
+                    draining = false;
+                    return;
+                }
+                active = true;
+                entry = pending.poll();
+            }
+
+            // Start it
+            start(entry);
+
+        }
+
+    }
+
+    /** Start an operation, and continue the queue once it completes */
+    private <T> void start(Entry<T> entry) {
+
+        // Start the operation, unless it was cancelled or timed out while waiting
+        SettableFuture<T> future;
+        try {
+            future = entry.result.isDone() ? entry.result : entry.operation.start();
+            if (future == null)
+                future = SettableFuture.resolved(null);
+        } catch (Exception ex) {
+            future = SettableFuture.rejected(ex);
+        }
+
+        // If the result is cancelled or times out while running, pass that on to the operation
+        SettableFuture<T> operationFuture = future;
+        entry.result.addListener((value, err) -> {
+            if (err != null)
+                operationFuture.complete(null, err);
+        });
+
+        // Wait for completion
+        future.addListener((value, err) -> {
+
+            // Operation is finished
+            synchronized (this) {
+                active = false;
+            }
+
+            // Pass on the result
+            entry.result.complete(value, err);
+
+            // Continue with the next operation
+            drain();
+
+        });
+
+    }
+
+}
@@ -0,0 +1,283 @@
+package com.rnbluetoothle;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks which devices are nearby from scan results, and only tells Javascript when a device enters, exits, or moves
+ * to a different proximity band. Each device's RSSI is smoothed with a one-dimensional Kalman filter, and entering and
+ * exiting use separate thresholds so a device on the edge of range doesn't flap. Devices are kept in primitive arrays
+ * in a LongTable, keyed by their address as a number, so thousands of devices can be tracked without an object per
+ * device.
+ */
+public class PresenceEngine {
+
+    /** Proximity bands */
+    static final int BAND_IMMEDIATE = 0;
+    static final int BAND_NEAR = 1;
+    static final int BAND_FAR = 2;
+    private static final String[] BAND_NAMES = { "immediate", "near", "far" };
+
+    /** Presence options */
+    static class Options {
+
+        /** Smoothed RSSI needed to enter, and below which a device exits, in dBm */
+        int enterRssi = -90;
+        int exitRssi = -95;
+
+        /** Time without results after which a device exits, in milliseconds */
+        long exitTimeout = 10000;
+
+        /** Number of readings needed before a device can enter, so one strong reading isn't enough */
+        int enterSamples = 3;
+
+        /** Smoothed RSSI at or above which a device is immediate or near, in dBm */
+        int immediateRssi = -55;
+        int nearRssi = -75;
+
+        /** Distance a smoothed RSSI must go past a band boundary to change band, in dB */
+        int bandHysteresis = 3;
+
+        /** Kalman filter noise. Higher process noise follows changes faster, higher measurement noise smooths more. */
+        float processNoise = 1f;
+        float measurementNoise = 16f;
+
+    }
+
+    /** Time between checks for devices which have timed out, in milliseconds */
+    private static final long SWEEP_INTERVAL = 1000;
+
+    /** Initial table capacity. Must be a power of 2. */
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** Marks an empty slot */
+    private static final long EMPTY = LongTable.EMPTY;
+
+    /** React context, used to send events */
+    private final ReactApplicationContext ctx;
+
+    /** Options */
+    private final Options options;
+
+    /** Device table. Slot i of each array belongs to the device with address table.keys[i]. */
+    private final LongTable table = new LongTable(new LongTable.Columns() {
+
+        @Override
+        public void resize(int capacity, int[] slots) {
+
+            // Create new arrays
+            String[] oldNames = names;
+            float[] oldEstimates = estimates;
+            float[] oldErrors = errors;
+            byte[] oldSamples = samples;
+            long[] oldLastSeen = lastSeen;
+            boolean[] oldPresent = present;
+            byte[] oldBands = bands;
+            names = new String[capacity];
+            estimates = new float[capacity];
+            errors = new float[capacity];
+            samples = new byte[capacity];
+            lastSeen = new long[capacity];
+            present = new boolean[capacity];
+            bands = new byte[capacity];
+
+            // Copy entries into them
+            if (slots == null)
+                return;
+
+            for (int i = 0 ; i < slots.length ; i++) {
+                int slot = slots[i];
+                if (slot < 0)
+                    continue;
+
+                names[slot] = oldNames[i];
+                estimates[slot] = oldEstimates[i];
+                errors[slot] = oldErrors[i];
+                samples[slot] = oldSamples[i];
+                lastSeen[slot] = oldLastSeen[i];
+                present[slot] = oldPresent[i];
+                bands[slot] = oldBands[i];
+            }
+
+        }
+
+        @Override
+        public void move(int from, int to) {
+            names[to] = names[from];
+            estimates[to] = estimates[from];
+            errors[to] = errors[from];
+            samples[to] = samples[from];
+            lastSeen[to] = lastSeen[from];
+            present[to] = present[from];
+            bands[to] = bands[from];
+        }
+
+        @Override
+        public void clear(int slot) {
+            names[slot] = null;
+            present[slot] = false;
+            bands[slot] = BAND_FAR;
+        }
+
+    });
+    private String[] names;
+    private float[] estimates;
+    private float[] errors;
+    private byte[] samples;
+    private long[] lastSeen;
+    private boolean[] present;
+    private byte[] bands;
+
+    /** Timeout timer */
+    private final ScheduledFuture<?> timer;
+
+    /** Constructor */
+    PresenceEngine(ReactApplicationContext ctx, Options options) {
+
+        // Store info
+        this.ctx = ctx;
+        this.options = options;
+        table.clear(INITIAL_CAPACITY);
+
+        // Start timeout timer
+        timer = SettableFuture.timer.scheduleAtFixedRate(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+
+    }
+
+    /** Add a scan result */
+    synchronized void add(String address, String name, int rssi) {
+
+        // Get the device's slot, adding it if new
+        long key = DeviceRegistry.parseAddress(address);
+        if (key == EMPTY)
+            return;
+
+        long now = System.currentTimeMillis();
+        int slot = table.find(key);
+        if (slot < 0) {
+            slot = table.insert(key);
+            estimates[slot] = rssi;
+            errors[slot] = options.measurementNoise;
+            samples[slot] = 1;
+        } else {
+            filter(slot, rssi, now);
+            if (samples[slot] < Byte.MAX_VALUE)
+                samples[slot]++;
+        }
+
+        lastSeen[slot] = now;
+        if (name != null)
+            names[slot] = name;
+
+        // Check if it entered, left or changed band
+        float estimate = estimates[slot];
+        if (!present[slot]) {
+
+            // Enter once strong enough, over enough readings
+            if (estimate < options.enterRssi || samples[slot] < options.enterSamples)
+                return;
+
+            present[slot] = true;
+            bands[slot] = (byte) band(estimate);
+            emit("enter", address, names[slot], estimate, bands[slot]);
+
+        } else if (estimate < options.exitRssi) {
+
+            // Too weak, exit. The smoothed RSSI is kept, so it has to rise past the enter threshold again before the
+            // device enters again. The device is forgotten once it times out.
+            present[slot] = false;
+            emit("exit", address, names[slot], estimate, bands[slot]);
+
+        } else {
+
+            // Change band once past the boundary by the hysteresis margin
+            int band = band(estimate);
+            if (band != bands[slot])
+                band = band(estimate + (band > bands[slot] ? options.bandHysteresis : -options.bandHysteresis));
+
+            if (band != bands[slot]) {
+                bands[slot] = (byte) band;
+                emit("band", address, names[slot], estimate, band);
+            }
+
+        }
+
+    }
+
+    /** Stop the timeout timer and forget all devices */
+    synchronized void stop() {
+        timer.cancel(false);
+        table.clear(INITIAL_CAPACITY);
+    }
+
+    /** Number of devices being tracked, including ones which haven't entered yet */
+    synchronized int size() {
+        return table.size;
+    }
+
+    /** Update a device's smoothed RSSI with a new reading */
+    private void filter(int slot, int rssi, long now) {
+
+        // The estimate gets less certain the longer it's been since the last reading
+        float seconds = Math.max(0, now - lastSeen[slot]) / 1000f;
+        float error = errors[slot] + options.processNoise * Math.max(seconds, 0.1f);
+
+        // Move towards the reading by the Kalman gain
+        float gain = error / (error + options.measurementNoise);
+        estimates[slot] += gain * (rssi - estimates[slot]);
+        errors[slot] = (1 - gain) * error;
+
+    }
+
+    /** Get the band for a smoothed RSSI */
+    private int band(float estimate) {
+        if (estimate >= options.immediateRssi)
+            return BAND_IMMEDIATE;
+        else if (estimate >= options.nearRssi)
+            return BAND_NEAR;
+        else
+            return BAND_FAR;
+    }
+
+    /** Exit and forget devices which haven't been seen recently */
+    private synchronized void sweep() {
+
+        long cutoff = System.currentTimeMillis() - options.exitTimeout;
+        long[] keys = table.keys;
+        for (int slot = 0 ; slot < keys.length ; ) {
+
+            // Skip empty and recent slots
+            if (keys[slot] == EMPTY || lastSeen[slot] >= cutoff) {
+                slot++;
+                continue;
+            }
+
+            // Exit it. Removing may move another entry into this slot, so check it again.
+            if (present[slot])
+                emit("exit", DeviceRegistry.formatAddress(keys[slot]), names[slot], estimates[slot], bands[slot]);
+
+            table.remove(slot);
+
+        }
+
+    }
+
+    /** Send a presence event to Javascript */
+    private void emit(String type, String address, String name, float rssi, int band) {
+
+        WritableMap event = Arguments.createMap();
+        event.putString("type", type);
+        event.putString("address", address);
+        event.putString("name", name);
+        event.putInt("rssi", Math.round(rssi));
+        event.putString("band", BAND_NAMES[band]);
+        ctx.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit("BLECentral:Presence", event);
+
+    }
+
+}
@@ -4,7 +4,10 @@ package com.rnbluetoothle;
 import android.Manifest;
 import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattServer;
 import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
@@ -13,13 +16,13 @@ import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
-import android.os.ParcelUuid;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
@@ -28,21 +31,73 @@ import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.LifecycleEventListener;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeoutException;
 
-public class RNBluetoothLeModule extends ReactContextBaseJavaModule {
+public class RNBluetoothLeModule extends ReactContextBaseJavaModule implements LifecycleEventListener {
 
     public RNBluetoothLeModule(ReactApplicationContext reactContext) {
         super(reactContext);
+        reactContext.addLifecycleEventListener(this);
+
+        // Send connection state changes to Javascript
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            BLE.get(reactContext).connectionListener = this::onConnectionStateChanged;
+
+    }
+
+    /** Called when a connection to a remote device changes state */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void onConnectionStateChanged(BLEConnection connection, BLEConnection.State state, Exception error, long timeToReady) {
+
+        // Create event
+        WritableMap event = Arguments.createMap();
+        event.putString("address", connection.address);
+        event.putString("state", state.name().toLowerCase());
+        event.putString("error", error == null ? null : error.getLocalizedMessage());
+        if (timeToReady >= 0)
+            event.putDouble("timeToReady", timeToReady);
+        if (state == BLEConnection.State.BACKOFF)
+            event.putInt("attempt", connection.reconnectAttempts);
+
+        // Send it
+        getReactApplicationContext()
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit("BLECentral:ConnectionState", event);
+
+    }
+
+    @Override
+    public void onHostResume() {
+
+        // Let adaptive scans use faster modes
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            BLE.get(getReactApplicationContext()).scanScheduler.setForeground(true);
+
+    }
+
+    @Override
+    public void onHostPause() {
+
+        // Adaptive scans switch to low power in the background
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            BLE.get(getReactApplicationContext()).scanScheduler.setForeground(false);
+
+    }
+
+    @Override
+    public void onHostDestroy() {
     }
 
     @Override
@@ -61,8 +116,17 @@ public class RNBluetoothLeModule extends ReactContextBaseJavaModule {
         }
 
         // Create a service
+        BLE ble = BLE.get(getReactApplicationContext());
         BluetoothGattService svc = new BluetoothGattService(UUID.fromString(uuid), BluetoothGattService.SERVICE_TYPE_PRIMARY);
 
+        // Send dynamic read requests and written values to Javascript
+        ble.readHandlers.listener = this::onReadRequest;
+        if (inboundWrites == null)
+            inboundWrites = new InboundWrites(getReactApplicationContext());
+        ble.writeListener = inboundWrites;
+        ble.readHandlers.unregister(svc.getUuid());
+        ble.notifyEngine.removeService(svc.getUuid());
+
         // Add characteristics
         for (int i = 0 ; i < characteristics.size() ; i++) {
 
@@ -71,12 +135,26 @@ public class RNBluetoothLeModule extends ReactContextBaseJavaModule {
             String uuidChr = info.getString("uuid");
             boolean canRead = info.getBoolean("canRead");
             boolean canWrite = info.getBoolean("canWrite");
+            boolean canNotify = getOption(info, "canNotify", false);
             String data = info.getString("data");
 
+            // Decode data
+            byte[] value = null;
+            DataCodec codec;
+            try {
+                codec = DataCodec.forName(getOption(info, "encoding", null));
+                if (data != null)
+                    value = codec.decode(data);
+            } catch (IllegalArgumentException ex) {
+                promise.reject("invalid_data", ex.getLocalizedMessage());
+                return;
+            }
+
             // Create properties
             int props = 0;
             if (canRead) props |= BluetoothGattCharacteristic.PROPERTY_READ;
             if (canWrite) props |= BluetoothGattCharacteristic.PROPERTY_WRITE;
+            if (canNotify) props |= BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE;
 
             // Create permissions
             int permissions = 0;
@@ -86,17 +164,29 @@ public class RNBluetoothLeModule extends ReactContextBaseJavaModule {
             // Create it
             BluetoothGattCharacteristic chr = new BluetoothGattCharacteristic(UUID.fromString(uuidChr), props, permissions);
 
+            // Add a configuration descriptor, so remote devices can subscribe
+            if (canNotify)
+                chr.addDescriptor(new BluetoothGattDescriptor(BLEConnection.CCCD_UUID, BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+
             // If data is set, store data
-            if (data != null)
-                chr.setValue(data);
+            if (value != null)
+                chr.setValue(value);
+
+            // If the value comes from Javascript, register it
+            if (getOption(info, "dynamic", false))
+                ble.readHandlers.register(svc.getUuid(), chr.getUuid(), (long) getOption(info, "cacheTTL", 1000));
 
             // Add to service
             svc.addCharacteristic(chr);
 
+            // Send written values to Javascript in the same format
+            if (canWrite)
+                inboundWrites.setCodec(chr, codec);
+
         }
 
         // Add service
-        BLE.get(getReactApplicationContext()).createService(svc, (v, err) -> {
+        ble.createService(svc, (v, err) -> {
             if (err != null) {
                 promise.reject("failed", err.getLocalizedMessage());
                 Log.i("BLE", "Failed: " + err);
@@ -113,6 +203,8 @@ public class RNBluetoothLeModule extends ReactContextBaseJavaModule {
 
         // Remove service
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            BLE.get(getReactApplicationContext()).readHandlers.unregister(UUID.fromString(uuid));
+            BLE.get(getReactApplicationContext()).notifyEngine.removeService(UUID.fromString(uuid));
             BLE.get(getReactApplicationContext()).removeService(UUID.fromString(uuid), null);
         }
 
@@ -122,7 +214,201 @@ public class RNBluetoothLeModule extends ReactContextBaseJavaModule {
     }
 
     @ReactMethod
-    public void scan(ReadableArray serviceFilter, Promise promise) {
+    public void setAdvertiseOptions(ReadableMap options, Promise promise) {
+
+        // Fail if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            promise.reject("unsupported", "This feature is not supported on this version of Android.");
+            return;
+        }
+
+        // Get advertise mode
+        Advertiser.Options advertiseOptions = new Advertiser.Options();
+        String mode = getOption(options, "mode", "lowPower");
+        if (mode.equals("lowPower"))
+            advertiseOptions.mode = AdvertiseSettings.ADVERTISE_MODE_LOW_POWER;
+        else if (mode.equals("balanced"))
+            advertiseOptions.mode = AdvertiseSettings.ADVERTISE_MODE_BALANCED;
+        else if (mode.equals("lowLatency"))
+            advertiseOptions.mode = AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY;
+        else {
+            promise.reject("invalid_mode", "Unknown advertise mode '" + mode + "'. Supported modes are lowPower, balanced and lowLatency.");
+            return;
+        }
+
+        // Get transmit power
+        String txPower = getOption(options, "txPower", "medium");
+        if (txPower.equals("ultraLow"))
+            advertiseOptions.txPower = AdvertiseSettings.ADVERTISE_TX_POWER_ULTRA_LOW;
+        else if (txPower.equals("low"))
+            advertiseOptions.txPower = AdvertiseSettings.ADVERTISE_TX_POWER_LOW;
+        else if (txPower.equals("medium"))
+            advertiseOptions.txPower = AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM;
+        else if (txPower.equals("high"))
+            advertiseOptions.txPower = AdvertiseSettings.ADVERTISE_TX_POWER_HIGH;
+        else {
+            promise.reject("invalid_tx_power", "Unknown transmit power '" + txPower + "'. Supported levels are ultraLow, low, medium and high.");
+            return;
+        }
+
+        // Allow extended advertising if requested
+        advertiseOptions.allowExtended = getOption(options, "allowExtended", false);
+
+        // Apply them
+        BLE.get(getReactApplicationContext()).setAdvertiseOptions(advertiseOptions).addListener((v, err) -> {
+            if (err != null)
+                promise.reject("failed", err.getLocalizedMessage());
+            else
+                promise.resolve(true);
+        });
+
+    }
+
+    @ReactMethod
+    public void getAdvertisementLayout(Promise promise) {
+
+        // Fail if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            promise.reject("unsupported", "This feature is not supported on this version of Android.");
+            return;
+        }
+
+        // Plan the advertisement for the current services
+        AdvertisePlanner.Layout layout;
+        try {
+            layout = BLE.get(getReactApplicationContext()).planAdvertisement();
+        } catch (Exception ex) {
+            promise.reject("failed", ex.getLocalizedMessage());
+            return;
+        }
+
+        // Create response
+        WritableMap map = Arguments.createMap();
+        map.putBoolean("extended", layout.extended);
+        map.putArray("advertised", uuidArray(layout.advertised));
+        map.putArray("scanResponse", uuidArray(layout.scanResponse));
+        map.putArray("digested", uuidArray(layout.digested));
+        map.putInt("advertisedLength", layout.advertisedLength);
+        map.putInt("scanResponseLength", layout.scanResponseLength);
+        map.putInt("maxLength", layout.maxLength);
+        promise.resolve(map);
+
+    }
+
+    /** Convert a list of UUIDs to a Javascript array */
+    private static WritableArray uuidArray(List<UUID> uuids) {
+        WritableArray array = Arguments.createArray();
+        for (UUID uuid : uuids)
+            array.pushString(uuid.toString());
+        return array;
+    }
+
+    @ReactMethod
+    public void notifyCharacteristic(String serviceUUID, String chrUUID, String data, String encoding, Promise promise) {
+
+        // Fail if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            promise.reject("unsupported", "This feature is not supported on this version of Android.");
+            return;
+        }
+
+        // Decode value
+        byte[] value;
+        try {
+            value = DataCodec.forName(encoding).decode(data);
+        } catch (IllegalArgumentException ex) {
+            promise.reject("invalid_data", ex.getLocalizedMessage());
+            return;
+        }
+
+        // Send it to all subscribers
+        try {
+
+            BLE ble = BLE.get(getReactApplicationContext());
+            int subscribers = ble.notifyCharacteristic(UUID.fromString(serviceUUID), UUID.fromString(chrUUID), value);
+
+            // Return stats
+            WritableMap info = Arguments.createMap();
+            info.putInt("subscribers", subscribers);
+            info.putDouble("sent", ble.notifyEngine.getSent());
+            info.putDouble("coalesced", ble.notifyEngine.getCoalesced());
+            info.putDouble("dropped", ble.notifyEngine.getDropped());
+            promise.resolve(info);
+
+        } catch (Exception ex) {
+            promise.reject("failed", ex.getLocalizedMessage());
+        }
+
+    }
+
+    /** Sends values written by remote devices to Javascript */
+    private InboundWrites inboundWrites = null;
+
+    /** Called when a remote device reads a dynamic characteristic, asks Javascript for the value */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void onReadRequest(int id, UUID serviceUUID, UUID characteristic, BluetoothDevice device) {
+
+        // Create event
+        WritableMap event = Arguments.createMap();
+        event.putInt("id", id);
+        event.putString("service", serviceUUID.toString());
+        event.putString("characteristic", characteristic.toString());
+        event.putString("address", device.getAddress());
+
+        // Send it
+        getReactApplicationContext()
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit("BLEPeripheral:ReadRequest", event);
+
+    }
+
+    @ReactMethod
+    public void respondToRead(int id, String data, String encoding) {
+
+        // Stop if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return;
+
+        // Decode value. If there's no value or it's invalid, the read fails.
+        byte[] value = null;
+        try {
+            if (data != null)
+                value = DataCodec.forName(encoding).decode(data);
+        } catch (IllegalArgumentException ex) {
+            Log.w("BLE", "Invalid dynamic characteristic value: " + ex.getLocalizedMessage());
+        }
+
+        // Send it
+        BLE.get(getReactApplicationContext()).readHandlers.respond(id, value);
+
+    }
+
+    /** Batches scan results while a batched scan is running */
+    private ScanBatcher scanBatcher = null;
+
+    /** Tracks device presence while a presence scan is running */
+    private PresenceEngine presenceEngine = null;
+
+    /** Every device seen during the current scan */
+    private final DeviceRegistry deviceRegistry = new DeviceRegistry();
+
+    /** Read presence options */
+    private static PresenceEngine.Options getPresenceOptions(ReadableMap map) {
+        PresenceEngine.Options options = new PresenceEngine.Options();
+        options.enterRssi = (int) getOption(map, "enterRssi", options.enterRssi);
+        options.exitRssi = (int) getOption(map, "exitRssi", options.exitRssi);
+        options.exitTimeout = (long) getOption(map, "exitTimeout", options.exitTimeout);
+        options.enterSamples = (int) getOption(map, "enterSamples", options.enterSamples);
+        options.immediateRssi = (int) getOption(map, "immediateRssi", options.immediateRssi);
+        options.nearRssi = (int) getOption(map, "nearRssi", options.nearRssi);
+        options.bandHysteresis = (int) getOption(map, "bandHysteresis", options.bandHysteresis);
+        options.processNoise = (float) getOption(map, "processNoise", options.processNoise);
+        options.measurementNoise = (float) getOption(map, "measurementNoise", options.measurementNoise);
+        return options;
+    }
+
+    @ReactMethod
+    public void scan(ReadableArray serviceFilter, ReadableMap options, Promise promise) {
 
         // Fail if Android version is too low
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
@@ -146,8 +432,64 @@ public class RNBluetoothLeModule extends ReactContextBaseJavaModule {
         for (int i = 0 ; i < serviceFilter.size() ; i++)
             services.add(UUID.fromString(serviceFilter.getString(i)));
 
+        // Compile service filter
+        ServiceFilter filter = new ServiceFilter(services);
+
+        // Get batching options
+        long batchInterval = (long) getOption(options, "batchInterval", 0);
+        int maxBatchSize = (int) getOption(options, "maxBatchSize", 100);
+
+        // Use hardware batching at the same interval, if available
+        BLE.ScanOptions scanOptions = new BLE.ScanOptions();
+        scanOptions.reportDelay = batchInterval;
+
+        // Get scan mode
+        String scanMode = getOption(options, "scanMode", "lowPower");
+        if (scanMode.equals("lowPower"))
+            scanOptions.scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+        else if (scanMode.equals("balanced"))
+            scanOptions.scanMode = ScanSettings.SCAN_MODE_BALANCED;
+        else if (scanMode.equals("lowLatency"))
+            scanOptions.scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+        else if (scanMode.equals("adaptive"))
+            scanOptions.adaptive = true;
+        else {
+            promise.reject("invalid_mode", "Unknown scan mode '" + scanMode + "'. Supported modes are lowPower, balanced, lowLatency and adaptive.");
+            return;
+        }
+
+        // Get duty cycle
+        scanOptions.window = (long) getOption(options, "window", 0);
+        scanOptions.interval = (long) getOption(options, "interval", 0);
+        if (scanOptions.window < 0 || scanOptions.interval < 0 || (scanOptions.window > 0 && scanOptions.interval <= scanOptions.window)) {
+            promise.reject("invalid_duty_cycle", "The scan window must be shorter than the interval.");
+            return;
+        }
+
+        // Check if each result should be sent, or only kept in the device registry
+        boolean sendResults = getOption(options, "sendResults", true);
+        deviceRegistry.clear();
+        long lostTimeout = (long) getOption(options, "lostTimeout", DeviceRegistry.DEFAULT_LOST_TIMEOUT);
+        deviceRegistry.setTimeouts(lostTimeout, (long) getOption(options, "forgetTimeout", DeviceRegistry.DEFAULT_FORGET_TIMEOUT));
+
+        // Stop previous batcher, and create a new one if batching
+        if (scanBatcher != null)
+            scanBatcher.stop();
+        ScanBatcher batcher = batchInterval > 0 ? new ScanBatcher(getReactApplicationContext(), batchInterval, maxBatchSize, lostTimeout) : null;
+        scanBatcher = batcher;
+
+        // Stop previous presence engine, and create a new one if tracking presence
+        ReadableMap presenceOptions = options != null && options.hasKey("presence") && !options.isNull("presence") ? options.getMap("presence") : null;
+        if (presenceEngine != null)
+            presenceEngine.stop();
+        PresenceEngine presence = presenceOptions != null ? new PresenceEngine(getReactApplicationContext(), getPresenceOptions(presenceOptions)) : null;
+        presenceEngine = presence;
+
         // Start scan
-        BLE.get(getReactApplicationContext()).scan(null, new BLE.ScanListener() {
+        BLE.get(getReactApplicationContext()).scan(services, scanOptions, new BLE.ScanListener() {
+
+            /** Parser for advertisements, only used on the scan callback thread */
+            private final AdvertisementParser parser = new AdvertisementParser();
 
             @Override
             void onStart() {
@@ -162,6 +504,8 @@ public class RNBluetoothLeModule extends ReactContextBaseJavaModule {
             void onStartFailed(Exception ex) {
 
                 // Failed to start
+                if (batcher != null) batcher.stop();
+                if (presence != null) presence.stop();
                 promise.reject("failed", ex.getLocalizedMessage());
                 Log.i("BLE", "Scan start failed: " + ex.getLocalizedMessage());
 
@@ -194,6 +538,8 @@ public class RNBluetoothLeModule extends ReactContextBaseJavaModule {
                     error = "This feature is not supported on this device.";
 
                 // Scan interrupted by the system
+                if (batcher != null) batcher.stop();
+                if (presence != null) presence.stop();
                 Log.i("BLE", "Scan end: " + error);
                 getReactApplicationContext()
                         .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
@@ -201,58 +547,52 @@ public class RNBluetoothLeModule extends ReactContextBaseJavaModule {
 
             }
 
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                super.onBatchScanResults(results);
+
+                // Handle each result
+                for (ScanResult result : results)
+                    onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+
+            }
+
             @TargetApi(Build.VERSION_CODES.LOLLIPOP)
             @Override
             public void onScanResult(int callbackType, ScanResult result) {
                 super.onScanResult(callbackType, result);
 
-                // Check if service exists in device's service advertisement
-                if (services.size() > 0) {
-
-                    // Make sure at least one of the requested services exist
-                    boolean serviceFound = false;
-                    List<ParcelUuid> discoveredServiceUUIDs = result.getScanRecord().getServiceUuids();
-                    if (discoveredServiceUUIDs != null) {
-                        for (UUID svc : services) {
-                            for (ParcelUuid svc2 : discoveredServiceUUIDs) {
-                                if (svc2.getUuid().equals(svc)) {
-                                    serviceFound = true;
-                                    break;
-                                }
-                            }
-                        }
-                    }
-
-                    // Check if Apple manufacturer data is present
-//                    Log.i("BLE", "Extra data: " + bytesToHex(result.getScanRecord().getBytes()));
-//                    Log.i("BLE", "Extra man: " + result.getScanRecord().getManufacturerSpecificData());
-                    byte[] advertiseData = result.getScanRecord().getBytes();
-                    if (!serviceFound && advertiseData != null && advertiseData.length > 0) {
-
-                        // Found Apple data, find specific record
-                        int idx = -1;
-                        for (int i = 0 ; i < advertiseData.length - 4 ; i++) {
-                            if (advertiseData[i+0] == (byte) 0xFF && advertiseData[i+1] == (byte) 0x4C && advertiseData[i+2] == (byte) 0x00 && advertiseData[i+3] == (byte) 0x01) {
-                                idx = i;
-                                break;
-                            }
-                        }
-
-                        // Check if Apple's overflow area is not found
-                        if (idx != -1) {
-
-                            // TODO: Decode the hashed UUIDs in Apple's custom advertisement. Does anyone know how it's hashed?
-                            // For now, assume service was found. This remote iPhone _is_ advertising some background peripheral, we just don't know what it is.
-                            serviceFound = true;
-
-                        }
-
-                    }
-
-                    // Stop if not found
-                    if (!serviceFound)
-                        return;
+                // Parse the advertisement
+                ScanRecord record = result.getScanRecord();
+                if (record != null)
+                    parser.reset(record.getBytes());
+
+                // Check if one of the requested services exists in the device's advertisement
+                if (!filter.isEmpty() && (record == null || !filter.matches(parser)))
+                    return;
+
+                // Remember the instance ID of devices running this library, so cached services follow address changes
+                long instanceId = record == null ? -1 : parser.getInstanceId();
+                if (instanceId != -1)
+                    BLE.get(getReactApplicationContext()).discoveryCache.noteInstanceId(result.getDevice().getAddress(), instanceId);
 
+                // Record it
+                deviceRegistry.update(result.getDevice().getAddress(), result.getDevice().getName(), result.getRssi());
+
+                // Only send presence changes if tracking presence
+                if (presence != null) {
+                    presence.add(result.getDevice().getAddress(), result.getDevice().getName(), result.getRssi());
+                    return;
+                }
+
+                // Stop if Javascript will query the registry instead
+                if (!sendResults)
+                    return;
+
+                // Add to batch if batching
+                if (batcher != null) {
+                    batcher.add(result.getDevice().getAddress(), result.getDevice().getName(), result.getRssi());
+                    return;
                 }
 
                 // Create device info
@@ -261,30 +601,193 @@ public class RNBluetoothLeModule extends ReactContextBaseJavaModule {
                 device.putString("name", result.getDevice().getName());
                 device.putString("address", result.getDevice().getAddress());
 
-                // Found a result
-                if (callbackType == ScanSettings.CALLBACK_TYPE_MATCH_LOST) {
+                // Device found or updated
+                getReactApplicationContext()
+                        .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                        .emit("BLECentral:ScanAdded", device);
+
+            }
+        });
 
-                    // Device lost
-                    getReactApplicationContext()
-                            .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                            .emit("BLECentral:ScanRemoved", device);
+    }
 
-                } else {
+    @ReactMethod
+    public void readCharacteristic(String deviceAddress, String serviceUUID, String chrUUID, ReadableMap options, Promise promise) {
 
-                    // Device found or updated
-                    getReactApplicationContext()
-                            .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                            .emit("BLECentral:ScanAdded", device);
+        // Fail if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            promise.reject("unsupported", "This feature is not supported on this version of Android.");
+            return;
+        }
 
-                }
+        // Check if got permission
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            if (getCurrentActivity().checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+
+                // Denied!
+                promise.reject("permission_denied", "Access to Fine Location has not been granted. This is needed in order to search for nearby Bluetooth devices.");
+                return;
+
+            }
+        }
+
+        // Get options
+        long timeoutMs = (long) getOption(options, "timeout", 0);
+        DataCodec codec;
+        try {
+            codec = DataCodec.forName(getOption(options, "encoding", null));
+        } catch (IllegalArgumentException ex) {
+            promise.reject("invalid_encoding", ex.getLocalizedMessage());
+            return;
+        }
+
+        // Read it
+        BLE.get(getReactApplicationContext()).readCharacteristic(deviceAddress, UUID.fromString(serviceUUID), UUID.fromString(chrUUID), timeoutMs, (byte[] data, Exception err) -> {
+
+            if (err instanceof TimeoutException) {
+                promise.reject("timeout", err.getLocalizedMessage());
+                Log.i("BLE", "Timed out reading characteristic: " + err);
+            } else if (err != null) {
+                promise.reject("failed", err.getLocalizedMessage());
+                Log.i("BLE", "Failed to read characteristic: " + err);
+            } else {
+
+                // Success, convert to the requested format
+                promise.resolve(codec.encode(data));
+                Log.i("BLE", "Successfully read characteristic");
+            }
+
+        });
+
+    }
+
+    @ReactMethod
+    public void connect(String deviceAddress, ReadableMap options, Promise promise) {
+
+        // Fail if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            promise.reject("unsupported", "This feature is not supported on this version of Android.");
+            return;
+        }
+
+        // Get options
+        long timeoutMs = (long) getOption(options, "timeout", 0);
+        BLEConnection.ConnectionOptions connectionOptions = new BLEConnection.ConnectionOptions();
+        connectionOptions.mtu = (int) getOption(options, "mtu", BLEConnection.MAX_MTU);
+        String priority = getOption(options, "priority", "balanced");
+        if (priority.equals("high"))
+            connectionOptions.priority = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        else if (priority.equals("lowPower"))
+            connectionOptions.priority = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        else if (priority.equals("balanced"))
+            connectionOptions.priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        else {
+            promise.reject("invalid_priority", "Unknown connection priority '" + priority + "'. Supported priorities are high, balanced and lowPower.");
+            return;
+        }
+
+        connectionOptions.autoReconnect = getOption(options, "autoReconnect", false);
+
+        // Connect
+        BLE.get(getReactApplicationContext()).connect(deviceAddress, connectionOptions, timeoutMs, (Integer mtu, Exception err) -> {
+
+            if (err instanceof TimeoutException) {
+                promise.reject("timeout", err.getLocalizedMessage());
+                Log.i("BLE", "Timed out connecting: " + err);
+            } else if (err != null) {
+                promise.reject("failed", err.getLocalizedMessage());
+                Log.i("BLE", "Failed to connect: " + err);
+            } else {
+
+                // Success, return connection info
+                WritableMap info = Arguments.createMap();
+                info.putInt("mtu", mtu);
+                promise.resolve(info);
+
+            }
+
+        });
+
+    }
+
+    @ReactMethod
+    public void disconnect(String deviceAddress, Promise promise) {
+
+        // Fail if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            promise.reject("unsupported", "This feature is not supported on this version of Android.");
+            return;
+        }
+
+        // Close the connection
+        BLE.get(getReactApplicationContext()).disconnect(deviceAddress);
+        promise.resolve(true);
+
+    }
+
+    @ReactMethod
+    public void writeCharacteristic(String deviceAddress, String serviceUUID, String chrUUID, String data, ReadableMap options, Promise promise) {
+
+        // Fail if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            promise.reject("unsupported", "This feature is not supported on this version of Android.");
+            return;
+        }
+
+        // Check if got permission
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            if (getCurrentActivity().checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+
+                // Denied!
+                promise.reject("permission_denied", "Access to Fine Location has not been granted. This is needed in order to search for nearby Bluetooth devices.");
+                return;
+
+            }
+        }
+
+        // Get options
+        long timeoutMs = (long) getOption(options, "timeout", 0);
+        boolean withResponse = !getOption(options, "withoutResponse", false);
+        byte[] value;
+        try {
+            value = DataCodec.forName(getOption(options, "encoding", null)).decode(data);
+        } catch (IllegalArgumentException ex) {
+            promise.reject("invalid_data", ex.getLocalizedMessage());
+            return;
+        }
+
+        // Write it
+        BLE.get(getReactApplicationContext()).writeCharacteristic(deviceAddress, UUID.fromString(serviceUUID), UUID.fromString(chrUUID), value, withResponse, timeoutMs, (WritePipeline.Result result, Exception err) -> {
+
+            if (err instanceof TimeoutException) {
+                promise.reject("timeout", err.getLocalizedMessage());
+                Log.i("BLE", "Timed out writing characteristic: " + err);
+            } else if (err != null) {
+                promise.reject("failed", err.getLocalizedMessage());
+                Log.i("BLE", "Failed to write characteristic: " + err);
+            } else {
+
+                // Success, return transfer stats
+                WritableMap info = Arguments.createMap();
+                info.putDouble("bytes", result.bytes);
+                info.putInt("chunks", result.chunks);
+                info.putInt("retries", result.retries);
+                info.putDouble("duration", result.duration);
+                info.putDouble("bytesPerSecond", result.getBytesPerSecond());
+                promise.resolve(info);
+                Log.i("BLE", "Successfully wrote characteristic");
 
             }
+
         });
 
     }
 
+    /** Active notification streams, by device address and subscription key */
+    private final HashMap<String, NotificationStream> notificationStreams = new HashMap<>();
+
     @ReactMethod
-    public void readCharacteristic(String deviceAddress, String serviceUUID, String chrUUID, Promise promise) {
+    public void subscribe(String deviceAddress, String serviceUUID, String chrUUID, ReadableMap options, Promise promise) {
 
         // Fail if Android version is too low
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
@@ -303,35 +806,391 @@ public class RNBluetoothLeModule extends ReactContextBaseJavaModule {
             }
         }
 
-        // Read it
-        BLE.get(getReactApplicationContext()).readCharacteristic(deviceAddress, UUID.fromString(serviceUUID), UUID.fromString(chrUUID), (byte[] data, Exception err) -> {
+        // Get options
+        long timeoutMs = (long) getOption(options, "timeout", 0);
+        int bufferSize = (int) getOption(options, "bufferSize", 64);
+        long flushInterval = Math.max(1, (long) getOption(options, "flushInterval", 50));
+        long blockTimeout = (long) getOption(options, "blockTimeout", flushInterval * 2);
+        String policyName = getOption(options, "policy", "dropOldest");
+        int policy;
+        if (policyName.equals("dropOldest"))
+            policy = NotificationBuffer.DROP_OLDEST;
+        else if (policyName.equals("coalesceLatest"))
+            policy = NotificationBuffer.COALESCE_LATEST;
+        else if (policyName.equals("block"))
+            policy = NotificationBuffer.BLOCK;
+        else {
+            promise.reject("invalid_policy", "Unknown backpressure policy '" + policyName + "'. Supported policies are dropOldest, coalesceLatest and block.");
+            return;
+        }
+
+        DataCodec codec;
+        try {
+            codec = DataCodec.forName(getOption(options, "encoding", null));
+        } catch (IllegalArgumentException ex) {
+            promise.reject("invalid_encoding", ex.getLocalizedMessage());
+            return;
+        }
+
+        // Create buffer, and the stream which sends it to Javascript
+        UUID service = UUID.fromString(serviceUUID);
+        UUID characteristic = UUID.fromString(chrUUID);
+        NotificationBuffer buffer = new NotificationBuffer(bufferSize, policy, blockTimeout);
+        NotificationStream stream = new NotificationStream(getReactApplicationContext(), deviceAddress, service, characteristic, buffer, codec, flushInterval);
+
+        // Replace any existing stream for this characteristic
+        String key = deviceAddress.toUpperCase() + "/" + BLEConnection.subscriptionKey(service, characteristic);
+        NotificationStream previous;
+        synchronized (notificationStreams) {
+            previous = notificationStreams.put(key, stream);
+        }
+        if (previous != null)
+            previous.stop();
 
+        // Subscribe
+        BLE.get(getReactApplicationContext()).subscribe(deviceAddress, service, characteristic, buffer, timeoutMs, (Void v, Exception err) -> {
+
+            // Remove the stream if failed
             if (err != null) {
+                synchronized (notificationStreams) {
+                    if (notificationStreams.get(key) == stream)
+                        notificationStreams.remove(key);
+                }
+                stream.stop();
+            }
+
+            if (err instanceof TimeoutException) {
+                promise.reject("timeout", err.getLocalizedMessage());
+                Log.i("BLE", "Timed out subscribing: " + err);
+            } else if (err != null) {
                 promise.reject("failed", err.getLocalizedMessage());
-                Log.i("BLE", "Failed to read characteristic: " + err);
+                Log.i("BLE", "Failed to subscribe: " + err);
             } else {
+                promise.resolve(true);
+                Log.i("BLE", "Successfully subscribed to characteristic");
+            }
 
-                // Success, convert to text
-                // TODO: More data formats
-                String txt = new String(data, Charset.forName("UTF8"));
+        });
 
-                promise.resolve(txt);
-                Log.i("BLE", "Successfully read characteristic");
+    }
+
+    @ReactMethod
+    public void unsubscribe(String deviceAddress, String serviceUUID, String chrUUID, ReadableMap options, Promise promise) {
+
+        // Fail if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            promise.reject("unsupported", "This feature is not supported on this version of Android.");
+            return;
+        }
+
+        // Stop the stream, sending any remaining values
+        UUID service = UUID.fromString(serviceUUID);
+        UUID characteristic = UUID.fromString(chrUUID);
+        String key = deviceAddress.toUpperCase() + "/" + BLEConnection.subscriptionKey(service, characteristic);
+        NotificationStream stream;
+        synchronized (notificationStreams) {
+            stream = notificationStreams.remove(key);
+        }
+        if (stream != null)
+            stream.stop();
+
+        // Unsubscribe
+        long timeoutMs = (long) getOption(options, "timeout", 0);
+        BLE.get(getReactApplicationContext()).unsubscribe(deviceAddress, service, characteristic, timeoutMs, (Void v, Exception err) -> {
+
+            if (err instanceof TimeoutException) {
+                promise.reject("timeout", err.getLocalizedMessage());
+                Log.i("BLE", "Timed out unsubscribing: " + err);
+            } else if (err != null) {
+                promise.reject("failed", err.getLocalizedMessage());
+                Log.i("BLE", "Failed to unsubscribe: " + err);
+            } else {
+                promise.resolve(true);
             }
 
         });
 
     }
 
-    private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
+    @ReactMethod
+    public void setConnectionLimits(ReadableMap options, Promise promise) {
+
+        // Fail if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            promise.reject("unsupported", "This feature is not supported on this version of Android.");
+            return;
+        }
+
+        // Set limits
+        int maxConnections = (int) getOption(options, "maxConnections", ConnectionPool.DEFAULT_MAX_CONNECTIONS);
+        long idleTimeout = (long) getOption(options, "idleTimeout", ConnectionPool.DEFAULT_IDLE_TIMEOUT);
+        BLE.get(getReactApplicationContext()).connections.configure(maxConnections, idleTimeout);
+        promise.resolve(true);
+
+    }
+
+    @ReactMethod
+    public void getConnectionStats(Promise promise) {
+
+        // Fail if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            promise.reject("unsupported", "This feature is not supported on this version of Android.");
+            return;
+        }
+
+        // Get stats
+        ConnectionPool.Stats stats = BLE.get(getReactApplicationContext()).connections.getStats();
+        WritableMap info = Arguments.createMap();
+        info.putDouble("hits", stats.hits);
+        info.putDouble("misses", stats.misses);
+        info.putDouble("evictions", stats.evictions);
+        info.putDouble("idleEvictions", stats.idleEvictions);
+        info.putInt("size", stats.size);
+        info.putDouble("averageTimeToReady", stats.readyCount == 0 ? 0 : stats.totalTimeToReady / (double) stats.readyCount);
+        info.putDouble("maxTimeToReady", stats.maxTimeToReady);
+        info.putDouble("reconnects", stats.reconnects);
+        promise.resolve(info);
+
+    }
+
+    @ReactMethod
+    public void getMetrics(ReadableMap options, Promise promise) {
+
+        // Nothing is measured if Android version is too low, so return an empty snapshot
+        Metrics metrics;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            metrics = new Metrics();
+        else
+            metrics = BLE.get(getReactApplicationContext()).metrics;
+
+        // Get metrics, starting again from zero if requested
+        Metrics.Snapshot snapshot = metrics.snapshot(getOption(options, "reset", false));
+
+        // Create response
+        WritableMap map = Arguments.createMap();
+        map.putDouble("since", snapshot.since);
+        map.putDouble("duration", snapshot.duration);
+        map.putMap("operations", histogramsToMap(snapshot.operations));
+
+        WritableMap devices = Arguments.createMap();
+        for (Map.Entry<String, Metrics.HistogramSnapshot[]> device : snapshot.devices.entrySet())
+            devices.putMap(device.getKey(), histogramsToMap(device.getValue()));
+        map.putMap("devices", devices);
+
+        map.putDouble("bytesRead", snapshot.bytesRead);
+        map.putDouble("bytesWritten", snapshot.bytesWritten);
+        map.putDouble("bytesNotified", snapshot.bytesNotified);
+        map.putDouble("retries", snapshot.retries);
+        map.putDouble("timeouts", snapshot.timeouts);
+
+        WritableArray errors = Arguments.createArray();
+        for (Map.Entry<Integer, Long> error : snapshot.gattErrors.entrySet()) {
+            WritableMap info = Arguments.createMap();
+            info.putInt("status", error.getKey());
+            info.putString("error", BLEConnection.getError(error.getKey()));
+            info.putDouble("count", error.getValue());
+            errors.pushMap(info);
+        }
+        map.putArray("gattErrors", errors);
+
+        promise.resolve(map);
+
+    }
+
+    /** Convert histogram summaries to a map by operation name */
+    private static WritableMap histogramsToMap(Metrics.HistogramSnapshot[] histograms) {
+
+        WritableMap map = Arguments.createMap();
+        for (int i = 0 ; i < histograms.length ; i++) {
+            WritableMap info = Arguments.createMap();
+            info.putDouble("count", histograms[i].count);
+            info.putDouble("mean", histograms[i].mean);
+            info.putDouble("p50", histograms[i].p50);
+            info.putDouble("p90", histograms[i].p90);
+            info.putDouble("p99", histograms[i].p99);
+            info.putDouble("max", histograms[i].max);
+            map.putMap(Metrics.OPERATION_NAMES[i], info);
+        }
+
+        return map;
+
+    }
+
+    @ReactMethod
+    public void getCachedDevices(String serviceUUID, Promise promise) {
+
+        // Fail if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            promise.reject("unsupported", "This feature is not supported on this version of Android.");
+            return;
+        }
+
+        // Find devices which had this service when last connected
+        WritableArray devices = Arguments.createArray();
+        for (DiscoveryCache.Entry entry : BLE.get(getReactApplicationContext()).discoveryCache.devicesWithService(UUID.fromString(serviceUUID))) {
+            WritableMap device = Arguments.createMap();
+            device.putString("address", entry.address);
+            device.putDouble("updated", entry.updated);
+            devices.pushMap(device);
+        }
+
+        promise.resolve(devices);
+
+    }
+
+    @ReactMethod
+    public void getCachedServices(String deviceAddress, Promise promise) {
+
+        // Fail if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            promise.reject("unsupported", "This feature is not supported on this version of Android.");
+            return;
+        }
+
+        // Stop if not known
+        DiscoveryCache.Entry entry = BLE.get(getReactApplicationContext()).discoveryCache.get(deviceAddress);
+        if (entry == null) {
+            promise.resolve(null);
+            return;
+        }
+
+        // Convert services
+        WritableArray services = Arguments.createArray();
+        for (DiscoveryCache.ServiceInfo info : entry.services) {
+
+            WritableArray characteristics = Arguments.createArray();
+            for (int i = 0 ; i < info.characteristics.length ; i++) {
+                WritableMap chr = Arguments.createMap();
+                chr.putString("uuid", info.characteristics[i].toString());
+                chr.putInt("properties", info.properties[i]);
+                characteristics.pushMap(chr);
+            }
+
+            WritableMap service = Arguments.createMap();
+            service.putString("uuid", info.uuid.toString());
+            service.putArray("characteristics", characteristics);
+            services.pushMap(service);
+
+        }
+
+        promise.resolve(services);
+
+    }
+
+    /** Get a boolean from an options map, or the default value if not set */
+    static boolean getOption(ReadableMap options, String key, boolean defaultValue) {
+        if (options == null || !options.hasKey(key) || options.isNull(key))
+            return defaultValue;
+        else
+            return options.getBoolean(key);
+    }
+
+    /** Get a number from an options map, or the default value if not set */
+    static double getOption(ReadableMap options, String key, double defaultValue) {
+        if (options == null || !options.hasKey(key) || options.isNull(key))
+            return defaultValue;
+        else
+            return options.getDouble(key);
+    }
+
+    /** Get a string from an options map, or the default value if not set */
+    static String getOption(ReadableMap options, String key, String defaultValue) {
+        if (options == null || !options.hasKey(key) || options.isNull(key))
+            return defaultValue;
+        else
+            return options.getString(key);
+    }
+
+    /** Convert bytes to an uppercase hex string */
     public static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 2];
-        for (int j = 0; j < bytes.length; j++) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
-            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
+        return DataCodec.toHex(bytes);
+    }
+
+    @ReactMethod
+    public void snapshotDevices(ReadableMap options, Promise promise) {
+
+        // Create query
+        DeviceRegistry.Query query = new DeviceRegistry.Query();
+        query.minRssi = (int) getOption(options, "minRssi", query.minRssi);
+        query.namePrefix = getOption(options, "namePrefix", null);
+        query.seenWithin = (long) getOption(options, "seenWithin", 0);
+        query.includeLost = getOption(options, "includeLost", false);
+
+        // Take snapshot
+        DeviceRegistry.Snapshot snapshot = deviceRegistry.snapshot(query);
+        WritableMap map = Arguments.createMap();
+        map.putInt("snapshot", snapshot.id);
+        map.putInt("total", snapshot.size());
+        promise.resolve(map);
+
+    }
+
+    @ReactMethod
+    public void getDevicePage(int snapshotID, int offset, int limit, Promise promise) {
+
+        // Get snapshot
+        DeviceRegistry.Snapshot snapshot = deviceRegistry.getSnapshot(snapshotID);
+        if (snapshot == null) {
+            promise.reject("invalid_snapshot", "This snapshot has been released.");
+            return;
         }
-        return new String(hexChars);
+
+        // Add devices in the page
+        WritableArray list = Arguments.createArray();
+        int end = Math.min(snapshot.size(), Math.max(0, offset) + Math.max(0, limit));
+        for (int i = Math.max(0, offset) ; i < end ; i++) {
+            WritableMap device = Arguments.createMap();
+            device.putString("address", DeviceRegistry.formatAddress(snapshot.addresses[i]));
+            device.putString("name", snapshot.names[i]);
+            device.putInt("rssi", snapshot.rssi[i]);
+            device.putDouble("firstSeen", snapshot.firstSeen[i]);
+            device.putDouble("lastSeen", snapshot.lastSeen[i]);
+            device.putBoolean("lost", (snapshot.flags[i] & DeviceRegistry.FLAG_LOST) != 0);
+            list.pushMap(device);
+        }
+
+        // Done
+        WritableMap map = Arguments.createMap();
+        map.putArray("devices", list);
+        map.putInt("total", snapshot.size());
+        promise.resolve(map);
+
+    }
+
+    @ReactMethod
+    public void releaseDeviceSnapshot(int snapshotID) {
+        deviceRegistry.releaseSnapshot(snapshotID);
+    }
+
+    @ReactMethod
+    public void getScanStats(Promise promise) {
+
+        // Fail if Android version is too low
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            promise.reject("unsupported", "This feature is not supported on this version of Android.");
+            return;
+        }
+
+        // Get stats
+        ScanScheduler.Stats stats = BLE.get(getReactApplicationContext()).scanScheduler.getStats();
+        String mode = null;
+        if (stats.mode == ScanSettings.SCAN_MODE_LOW_POWER)
+            mode = "lowPower";
+        else if (stats.mode == ScanSettings.SCAN_MODE_BALANCED)
+            mode = "balanced";
+        else if (stats.mode == ScanSettings.SCAN_MODE_LOW_LATENCY)
+            mode = "lowLatency";
+
+        // Create response
+        WritableMap map = Arguments.createMap();
+        map.putDouble("scanTime", stats.scanTime / 1000.0);
+        map.putDouble("results", stats.results);
+        map.putDouble("resultsPerScanSecond", stats.getResultsPerScanSecond());
+        map.putDouble("starts", stats.starts);
+        map.putDouble("delayedStarts", stats.delayedStarts);
+        map.putString("mode", mode);
+        promise.resolve(map);
+
     }
 
     @ReactMethod
@@ -340,6 +1199,18 @@ public class RNBluetoothLeModule extends ReactContextBaseJavaModule {
         // Stop any current scan
         BLE.get(getReactApplicationContext()).stopScan();
 
+        // Send remaining batched results
+        if (scanBatcher != null) {
+            scanBatcher.stop();
+            scanBatcher = null;
+        }
+
+        // Stop tracking presence
+        if (presenceEngine != null) {
+            presenceEngine.stop();
+            presenceEngine = null;
+        }
+
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,84 @@
+package com.rnbluetoothle;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The radio operations used by GATT client connections. Connections only talk to the radio through this interface,
+ * using UUIDs and byte arrays instead of Android's GATT objects, so they can run against AndroidRadio on a phone or
+ * SimulatedRadio on a plain JVM. Status codes are the BluetoothGatt.GATT_* constants.
+ */
+public interface Radio {
+
+    /** Receives events from a link. May be called from any thread. */
+    interface LinkCallback {
+
+        /** Called when the link connects or disconnects */
+        void onConnectionStateChange(int status, boolean connected);
+
+        /** Called when service discovery has finished */
+        void onServicesDiscovered(int status);
+
+        /** Called when a characteristic read has finished */
+        void onCharacteristicRead(UUID serviceUUID, UUID characteristic, byte[] value, int status);
+
+        /** Called when a characteristic write has been sent, or acknowledged if it was with response */
+        void onCharacteristicWrite(UUID serviceUUID, UUID characteristic, int status);
+
+        /** Called when a characteristic's configuration descriptor has been written */
+        void onDescriptorWrite(UUID serviceUUID, UUID characteristic, int status);
+
+        /** Called when the MTU has been negotiated */
+        void onMtuChanged(int mtu, int status);
+
+        /** Called when the remote device sends a notification or indication */
+        void onCharacteristicChanged(UUID serviceUUID, UUID characteristic, byte[] value);
+
+    }
+
+    /**
+     * A GATT client link to one remote device. Only one request can be in progress at a time, and each finishes with
+     * a LinkCallback event. Methods return false if the request couldn't be started.
+     */
+    interface Link {
+
+        /** Connect again after the link dropped */
+        boolean connect();
+
+        /** Disconnect. The link can connect again. */
+        void disconnect();
+
+        /** Release the link. No more events are sent. */
+        void close();
+
+        /** Discover the remote device's services */
+        boolean discoverServices();
+
+        /** Get the discovered services, or an empty list if not discovered yet */
+        List<DiscoveryCache.ServiceInfo> getServices();
+
+        /** Read a characteristic */
+        boolean readCharacteristic(UUID serviceUUID, UUID characteristic);
+
+        /** Write a characteristic, with or without response */
+        boolean writeCharacteristic(UUID serviceUUID, UUID characteristic, byte[] value, boolean withResponse);
+
+        /** Enable or disable notifications, or indications, locally and in the characteristic's configuration descriptor */
+        boolean setNotify(UUID serviceUUID, UUID characteristic, boolean enable, boolean indicate);
+
+        /** Request an ATT MTU */
+        boolean requestMtu(int mtu);
+
+        /** Request a connection priority, one of the BluetoothGatt.CONNECTION_PRIORITY_* constants */
+        boolean requestConnectionPriority(int priority);
+
+    }
+
+    /**
+     * Create a link to a remote device and start connecting.
+     *
+     * @param background True to connect whenever the device comes into range, without a timeout
+     */
+    Link connect(String address, boolean background, LinkCallback callback) throws Exception;
+
+}
@@ -0,0 +1,322 @@
+package com.rnbluetoothle;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves reads of dynamic characteristics on our GATT server. The value is requested from Javascript, and the remote
+ * device's request is answered once it arrives, or failed before the ATT transaction times out. Each value is kept as
+ * a snapshot for a short time, so reads from several devices share one request, and every chunk of a long read is
+ * served from the snapshot it started with.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class ReadHandlers {
+
+    /** Receives requests for values */
+    interface RequestListener {
+
+        /**
+         * Called when a value is needed. Answer by calling respond() with the same ID.
+         *
+         * @param id Request ID
+         * @param device The device which is reading
+         */
+        void onReadRequest(int id, UUID serviceUUID, UUID characteristic, BluetoothDevice device);
+
+    }
+
+    /** Maximum time to wait for Javascript, in milliseconds. The ATT transaction timeout is 30 seconds. */
+    static final long RESPONSE_TIMEOUT = 5000;
+
+    /** A dynamic characteristic */
+    private static class Handler {
+
+        /** Characteristic info */
+        UUID serviceUUID;
+        UUID characteristic;
+
+        /** Time a value is reused for, in milliseconds */
+        long ttl;
+
+        /** Latest value, and when it expires */
+        byte[] snapshot = null;
+        long expires = 0;
+
+        /** Request waiting for Javascript, if any */
+        PendingRead pending = null;
+
+    }
+
+    /** A read from a remote device, waiting for a value */
+    private static class Request {
+        BluetoothDevice device;
+        int requestId;
+        int offset;
+    }
+
+    /** A value request sent to Javascript */
+    private static class PendingRead {
+        int id;
+        Handler handler;
+        ArrayList<Request> requests = new ArrayList<>();
+        ScheduledFuture<?> timeout;
+    }
+
+    /** Link back to the main module */
+    private final BLE module;
+
+    /** Receives requests for values */
+    RequestListener listener = null;
+
+    /** Dynamic characteristics, by subscription key */
+    private final HashMap<String, Handler> handlers = new HashMap<>();
+
+    /** Requests waiting for Javascript, by ID */
+    private final HashMap<Integer, PendingRead> pending = new HashMap<>();
+
+    /** Values of long reads in progress, by device address and subscription key */
+    private final HashMap<String, byte[]> longReads = new HashMap<>();
+
+    /** Next request ID */
+    private int nextID = 1;
+
+    /** Constructor */
+    ReadHandlers(BLE module) {
+        this.module = module;
+    }
+
+    /**
+     * Make a characteristic dynamic.
+     *
+     * @param ttl Time a value is reused for, in milliseconds. If zero, every read asks Javascript, except for the
+     *            remaining chunks of a long read.
+     */
+    synchronized void register(UUID serviceUUID, UUID characteristic, long ttl) {
+        Handler handler = new Handler();
+        handler.serviceUUID = serviceUUID;
+        handler.characteristic = characteristic;
+        handler.ttl = Math.max(0, ttl);
+        handlers.put(BLEConnection.subscriptionKey(serviceUUID, characteristic), handler);
+    }
+
+    /** Check if a characteristic is dynamic */
+    synchronized boolean isDynamic(UUID serviceUUID, UUID characteristic) {
+        return handlers.containsKey(BLEConnection.subscriptionKey(serviceUUID, characteristic));
+    }
+
+    /** Remove all dynamic characteristics of a service, failing their pending reads */
+    void unregister(UUID serviceUUID) {
+
+        // Remove handlers
+        ArrayList<PendingRead> failed = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Handler> it = handlers.values().iterator() ; it.hasNext() ; ) {
+                Handler handler = it.next();
+                if (!handler.serviceUUID.equals(serviceUUID))
+                    continue;
+
+                it.remove();
+                if (handler.pending != null) {
+                    handler.pending.timeout.cancel(false);
+                    pending.remove(handler.pending.id);
+                    failed.add(handler.pending);
+                }
+            }
+        }
+
+        // Fail their reads
+        for (PendingRead read : failed)
+            finish(read, null);
+
+    }
+
+    /** Forget long reads by a device which has disconnected */
+    synchronized void deviceDisconnected(String address) {
+        String prefix = address + "/";
+        for (Iterator<String> it = longReads.keySet().iterator() ; it.hasNext() ; )
+            if (it.next().startsWith(prefix))
+                it.remove();
+    }
+
+    /**
+     * Handle a read request, if the characteristic is dynamic.
+     *
+     * @return False if the characteristic is not dynamic, and the caller should serve it.
+     */
+    boolean handle(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
+
+        byte[] value;
+        String key = BLEConnection.subscriptionKey(characteristic.getService().getUuid(), characteristic.getUuid());
+        synchronized (this) {
+
+            // Stop if not dynamic
+            Handler handler = handlers.get(key);
+            if (handler == null)
+                return false;
+
+            // Continue a long read from the value it started with, otherwise use the snapshot if still fresh
+            value = offset > 0 ? longReads.get(device.getAddress() + "/" + key) : null;
+            if (value == null && handler.snapshot != null && (offset > 0 || System.currentTimeMillis() < handler.expires))
+                value = handler.snapshot;
+
+            // Wait for Javascript if there's no value
+            if (value == null) {
+
+                Request request = new Request();
+                request.device = device;
+                request.requestId = requestId;
+                request.offset = offset;
+
+                // Join the pending request, or start one
+                if (handler.pending != null) {
+                    handler.pending.requests.add(request);
+                    return true;
+                }
+
+                PendingRead read = new PendingRead();
+                int id = nextID++;
+                read.id = id;
+                read.handler = handler;
+                read.requests.add(request);
+                read.timeout = SettableFuture.timer.schedule(() -> respond(id, null), RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+                handler.pending = read;
+                pending.put(id, read);
+
+                // Ask Javascript
+                if (listener != null)
+                    listener.onReadRequest(id, handler.serviceUUID, handler.characteristic, device);
+
+                return true;
+
+            }
+
+        }
+
+        // Send it
+        sendValue(device, requestId, offset, value, key);
+        return true;
+
+    }
+
+    /**
+     * Answer a value request.
+     *
+     * @param value The value, or null if it couldn't be produced
+     */
+    void respond(int id, byte[] value) {
+
+        // Find the request
+        PendingRead read;
+        synchronized (this) {
+            read = pending.remove(id);
+            if (read == null)
+                return;
+
+            read.timeout.cancel(false);
+            if (read.handler.pending == read)
+                read.handler.pending = null;
+
+            // Store the snapshot, or fall back to the last one if there's no new value
+            if (value != null) {
+                read.handler.snapshot = value;
+                read.handler.expires = System.currentTimeMillis() + read.handler.ttl;
+            } else {
+                value = read.handler.snapshot;
+            }
+        }
+
+        // Answer the waiting devices
+        finish(read, value);
+
+    }
+
+    /** Answer the devices waiting on a request, or fail them if there's no value */
+    private void finish(PendingRead read, byte[] value) {
+
+        String key = BLEConnection.subscriptionKey(read.handler.serviceUUID, read.handler.characteristic);
+        for (Request request : read.requests) {
+            if (value != null) {
+                sendValue(request.device, request.requestId, request.offset, value, key);
+            } else {
+                Log.w("BLE GATT", "No value for dynamic characteristic " + read.handler.characteristic);
+                module.gattServer.sendResponse(request.device, request.requestId, BluetoothGatt.GATT_FAILURE, request.offset, null);
+            }
+        }
+
+    }
+
+    /** Send part of a dynamic value, and remember it if the long read isn't finished */
+    private void sendValue(BluetoothDevice device, int requestId, int offset, byte[] value, String key) {
+
+        // Send it
+        int end = sendValue(module, device, requestId, offset, value);
+
+        // Remember the value until the last chunk has been read
+        synchronized (this) {
+            String longKey = device.getAddress() + "/" + key;
+            if (end > 0 && end < value.length)
+                longReads.put(longKey, value);
+            else
+                longReads.remove(longKey);
+        }
+
+    }
+
+    /**
+     * Send the part of a value starting at the requested offset, sized to the device's MTU.
+     *
+     * @return The end of the part that was sent, or -1 if the offset was invalid
+     */
+    static int sendValue(BLE module, BluetoothDevice device, int requestId, int offset, byte[] value) {
+
+        // Check offset
+        byte[] part = slice(value, offset, module.getServerMtu(device) - 1);
+        if (part == null) {
+            module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+            return -1;
+        }
+
+        // Send it
+        module.gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, part);
+        return offset + part.length;
+
+    }
+
+    /**
+     * Get the part of a value starting at an offset which fits in one response. Values which fit whole are returned
+     * without copying.
+     *
+     * @param maxLength The most bytes a response can carry, one less than the MTU
+     * @return The part, or null if the offset is past the end of the value
+     */
+    static byte[] slice(byte[] value, int offset, int maxLength) {
+
+        // Check offset
+        if (offset > value.length)
+            return null;
+
+        // Use the whole value if it fits
+        if (offset == 0 && value.length <= maxLength)
+            return value;
+
+        // Copy one response worth
+        int length = Math.min(maxLength, value.length - offset);
+        byte[] part = new byte[length];
+        System.arraycopy(value, offset, part, 0, length);
+        return part;
+
+    }
+
+}
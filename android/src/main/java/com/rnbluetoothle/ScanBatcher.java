@@ -0,0 +1,222 @@
+package com.rnbluetoothle;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects scan results and sends them to Javascript in batches. A table of every device seen during the scan is kept,
+ * and only devices which have changed since the last flush are sent, as a single array event. Devices which haven't
+ * been seen within the lost timeout are sent as lost and forgotten.
+ */
+public class ScanBatcher {
+
+    /** Information about a device seen during the scan */
+    private static class Entry {
+
+        String address;
+        String name;
+        int rssi;
+        long firstSeen;
+        long lastSeen;
+
+        /** True if the device hasn't been seen within the lost timeout */
+        boolean lost;
+
+        /** True if this entry has changed since the last flush */
+        boolean changed;
+
+    }
+
+    /** Time between checks for lost devices, in milliseconds */
+    private static final long SWEEP_INTERVAL = 1000;
+
+    /** React context, used to send events */
+    private final ReactApplicationContext ctx;
+
+    /** Maximum number of devices per event. If more devices than this change, a flush happens early. */
+    private final int maxBatchSize;
+
+    /** Time without results after which a device is lost, in milliseconds */
+    private final long lostTimeout;
+
+    /** Time of the last check for lost devices */
+    private long lastSweep = 0;
+
+    /** All devices seen, by address */
+    private final HashMap<String, Entry> devices = new HashMap<>();
+
+    /** Devices changed since the last flush */
+    private final ArrayList<Entry> changed = new ArrayList<>();
+
+    /** Number of results dropped because nothing had changed */
+    private long dropped = 0;
+
+    /** Number of results merged into an update which was already waiting to be sent */
+    private long coalesced = 0;
+
+    /** Flush timer */
+    private ScheduledFuture<?> timer = null;
+
+    /**
+     * Constructor
+     *
+     * @param ctx React context
+     * @param flushInterval Time between flushes, in milliseconds
+     * @param maxBatchSize Maximum number of devices per event
+     * @param lostTimeout Time without results after which a device is lost, in milliseconds
+     */
+    ScanBatcher(ReactApplicationContext ctx, long flushInterval, int maxBatchSize, long lostTimeout) {
+
+        // Store info
+        this.ctx = ctx;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.lostTimeout = lostTimeout;
+
+        // Start flush timer
+        timer = SettableFuture.timer.scheduleAtFixedRate(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+
+    }
+
+    /** Add a scan result */
+    void add(String address, String name, int rssi) {
+
+        boolean flushNow;
+        synchronized (this) {
+
+            // Get or create entry
+            long now = System.currentTimeMillis();
+            Entry entry = devices.get(address);
+            if (entry == null) {
+                entry = new Entry();
+                entry.address = address;
+                entry.name = name;
+                entry.rssi = rssi;
+                entry.firstSeen = now;
+                devices.put(address, entry);
+                markChanged(entry);
+            } else if (entry.rssi != rssi || entry.lost || (name != null && !name.equals(entry.name))) {
+                if (name != null) entry.name = name;
+                entry.rssi = rssi;
+                entry.lost = false;
+                markChanged(entry);
+            } else {
+                dropped++;
+            }
+
+            // Update timestamp
+            entry.lastSeen = now;
+            flushNow = changed.size() >= maxBatchSize;
+
+        }
+
+        // Flush early if the batch is full
+        if (flushNow)
+            flush();
+
+    }
+
+    /** Mark an entry as needing to be sent */
+    private void markChanged(Entry entry) {
+
+        if (entry.changed) {
+            coalesced++;
+        } else {
+            entry.changed = true;
+            changed.add(entry);
+        }
+
+    }
+
+    /** Mark devices which haven't been seen within the lost timeout as lost, so the next flush sends them */
+    private void sweep(long now) {
+
+        lastSweep = now;
+        long cutoff = now - lostTimeout;
+        for (Entry entry : devices.values()) {
+            if (!entry.lost && entry.lastSeen < cutoff) {
+                entry.lost = true;
+                markChanged(entry);
+            }
+        }
+
+    }
+
+    /** Send all changed entries to Javascript */
+    void flush() {
+
+        // Create event
+        WritableMap event;
+        synchronized (this) {
+
+            // Check for lost devices now and then
+            long now = System.currentTimeMillis();
+            if (now - lastSweep >= SWEEP_INTERVAL)
+                sweep(now);
+
+            // Stop if nothing has changed
+            if (changed.isEmpty())
+                return;
+
+            // Add devices, up to the batch size
+            WritableArray list = Arguments.createArray();
+            int count = Math.min(changed.size(), maxBatchSize);
+            for (int i = 0 ; i < count ; i++) {
+
+                // Create device info
+                Entry entry = changed.get(i);
+                WritableMap device = Arguments.createMap();
+                device.putInt("rssi", entry.rssi);
+                device.putString("name", entry.name);
+                device.putString("address", entry.address);
+                device.putDouble("firstSeen", entry.firstSeen);
+                device.putDouble("lastSeen", entry.lastSeen);
+                device.putBoolean("lost", entry.lost);
+                list.pushMap(device);
+
+                // Forget lost devices, they will be added again if seen
+                entry.changed = false;
+                if (entry.lost)
+                    devices.remove(entry.address);
+
+            }
+            changed.subList(0, count).clear();
+
+            // Create event
+            event = Arguments.createMap();
+            event.putArray("devices", list);
+            event.putDouble("dropped", dropped);
+            event.putDouble("coalesced", coalesced);
+
+        }
+
+        // Send it
+        ctx.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit("BLECentral:ScanBatch", event);
+
+    }
+
+    /** Stop the flush timer and send any remaining changes */
+    void stop() {
+
+        // Stop timer
+        timer.cancel(false);
+
+        // Send remaining changes
+        while (true) {
+            synchronized (this) {
+                if (changed.isEmpty())
+                    return;
+            }
+            flush();
+        }
+
+    }
+
+}
@@ -0,0 +1,406 @@
+package com.rnbluetoothle;
+
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a scan in windows, such as 2 seconds on and 8 seconds off, to save battery. In adaptive mode the scan mode is
+ * picked for each window from how quickly new devices are being found, and whether the app is in the foreground.
+ * Android blocks apps which start scans too often, so starts are counted and delayed when they would go over the
+ * limit. Scanning time and results are recorded, so the battery cost of a scan can be measured.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class ScanScheduler {
+
+    /** Android blocks apps which start more than this many scans in STARTS_PERIOD milliseconds */
+    static final int MAX_STARTS = 5;
+    static final long STARTS_PERIOD = 30000;
+
+    /** How often the scan mode is reviewed during a continuous adaptive scan, in milliseconds */
+    static final long REVIEW_INTERVAL = 10000;
+
+    /** New devices per scan second needed for an adaptive scan to use low latency or balanced mode */
+    static final double FAST_DISCOVERY_RATE = 1.0;
+    static final double SLOW_DISCOVERY_RATE = 0.1;
+
+    /** Maximum number of addresses remembered when counting new devices */
+    private static final int MAX_SEEN = 1024;
+
+    /** Scan statistics */
+    static class Stats {
+
+        /** Total time spent scanning, in milliseconds */
+        long scanTime;
+
+        /** Number of results received */
+        long results;
+
+        /** Number of scans started, and how many of those were delayed to avoid being blocked */
+        long starts;
+        long delayedStarts;
+
+        /** Current scan mode, one of the ScanSettings.SCAN_MODE_* constants, or -1 if not scanning */
+        int mode;
+
+        /** Results per second of scanning */
+        double getResultsPerScanSecond() {
+            return scanTime == 0 ? 0 : results * 1000.0 / scanTime;
+        }
+
+    }
+
+    /** Link back to the main module */
+    private final BLE module;
+
+    /** Current scan, or null if not scanning */
+    private List<ScanFilter> filters = null;
+    private BLE.ScanOptions options = null;
+    private Forwarder forwarder = null;
+
+    /** Incremented when the scan is started or stopped, so scheduled work for an old scan is skipped */
+    private int generation = 0;
+
+    /** Scheduled start, end or review of a window */
+    private ScheduledFuture<?> scheduled = null;
+
+    /** True while the system scan is running, and when the current window started */
+    private boolean scanning = false;
+    private long windowStarted = 0;
+
+    /** Scan mode of the current window */
+    private int mode = ScanSettings.SCAN_MODE_LOW_POWER;
+
+    /** Times of recent scan starts, oldest first */
+    private final ArrayDeque<Long> startTimes = new ArrayDeque<>();
+
+    /** Addresses found during this scan, and how many were new in the current window */
+    private final HashSet<String> seen = new HashSet<>();
+    private int windowNewDevices = 0;
+
+    /** When the current scan was requested, and whether its first start and first result have been measured */
+    private long requestedAt = 0;
+    private boolean startMeasured = false;
+    private boolean firstResultMeasured = false;
+
+    /** True if the app is in the foreground */
+    private boolean foreground = true;
+
+    /** Totals */
+    private long scanTime = 0;
+    private long results = 0;
+    private long starts = 0;
+    private long delayedStarts = 0;
+
+    /** Constructor */
+    ScanScheduler(BLE module) {
+        this.module = module;
+    }
+
+    /**
+     * Start scanning, replacing any current scan. Must be called on the adapter queue.
+     *
+     * @param filters Hardware scan filters, or null for none
+     */
+    synchronized void start(List<ScanFilter> filters, BLE.ScanOptions options, BLE.ScanListener listener) {
+
+        // Stop the current scan
+        stop();
+
+        // Store the new one
+        this.filters = filters;
+        this.options = options;
+        this.forwarder = new Forwarder(listener);
+        seen.clear();
+        requestedAt = System.nanoTime();
+        startMeasured = false;
+        firstResultMeasured = false;
+
+        // Adaptive scans start balanced in the foreground, since discovery is usually fastest right after starting
+        if (options.adaptive)
+            mode = foreground ? ScanSettings.SCAN_MODE_BALANCED : ScanSettings.SCAN_MODE_LOW_POWER;
+        else
+            mode = options.scanMode;
+
+        // Start the first window
+        startWindow(generation);
+
+    }
+
+    /** Stop scanning. Must be called on the adapter queue. */
+    synchronized void stop() {
+
+        // Skip anything scheduled for this scan
+        generation++;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+
+        // Stop the system scan
+        stopWindow();
+        filters = null;
+        options = null;
+        forwarder = null;
+
+    }
+
+    /** True if a scan has been started and not stopped, even if between windows */
+    synchronized boolean isActive() {
+        return forwarder != null;
+    }
+
+    /** Set whether the app is in the foreground. Adaptive scans switch to low power in the background. */
+    synchronized void setForeground(boolean foreground) {
+        this.foreground = foreground;
+    }
+
+    /** Get scan statistics */
+    synchronized Stats getStats() {
+
+        Stats stats = new Stats();
+        stats.scanTime = scanTime + (scanning ? System.currentTimeMillis() - windowStarted : 0);
+        stats.results = results;
+        stats.starts = starts;
+        stats.delayedStarts = delayedStarts;
+        stats.mode = scanning ? mode : -1;
+        return stats;
+
+    }
+
+    /** Start a window, or delay it if starting now would go over the system's limit */
+    private void startWindow(int gen) {
+
+        // Stop if this scan has been replaced
+        if (gen != generation || forwarder == null)
+            return;
+
+        // Delay the start if the limit has been reached
+        long now = System.currentTimeMillis();
+        long delay = startDelay(now);
+        if (delay > 0) {
+            Log.i("BLE", "Delaying scan start by " + delay + "ms to avoid being blocked");
+            delayedStarts++;
+            schedule(gen, this::startWindow, delay);
+            return;
+        }
+
+        // Create scan settings
+        ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(mode);
+        if (options.reportDelay > 0 && module.adapter.isOffloadedScanBatchingSupported())
+            settings = settings.setReportDelay(options.reportDelay);
+
+        // Start scanning
+        BluetoothLeScanner scanner = module.adapter.getBluetoothLeScanner();
+        scanner.startScan(filters, settings.build(), forwarder);
+        startTimes.add(now);
+        starts++;
+        scanning = true;
+        windowStarted = now;
+        windowNewDevices = 0;
+
+        // Measure the time to the first start, including any delay
+        if (!startMeasured) {
+            startMeasured = true;
+            module.metrics.record(Metrics.SCAN_START, null, requestedAt);
+        }
+
+        // Schedule the end of the window, or a review of the scan mode if scanning continuously
+        if (isDutyCycled())
+            schedule(gen, this::endWindow, options.window);
+        else if (options.adaptive)
+            schedule(gen, this::review, REVIEW_INTERVAL);
+
+    }
+
+    /** End a window, and schedule the next one */
+    private void endWindow(int gen) {
+
+        // Stop if this scan has been replaced
+        if (gen != generation || forwarder == null)
+            return;
+
+        // Stop scanning and pick the next mode
+        stopWindow();
+        if (options.adaptive)
+            mode = chooseMode();
+
+        // Start again after the off period
+        schedule(gen, this::startWindow, options.interval - options.window);
+
+    }
+
+    /** Review the mode of a continuous adaptive scan, restarting it if the mode should change */
+    private void review(int gen) {
+
+        // Stop if this scan has been replaced
+        if (gen != generation || forwarder == null)
+            return;
+
+        // Restart with the new mode, unless that would use up a start the system would block
+        int newMode = chooseMode();
+        if (newMode != mode && startDelay(System.currentTimeMillis()) == 0) {
+            Log.i("BLE", "Changing scan mode from " + mode + " to " + newMode);
+            stopWindow();
+            mode = newMode;
+            startWindow(gen);
+            return;
+        }
+
+        // Start counting again
+        windowNewDevices = 0;
+        scanTime += System.currentTimeMillis() - windowStarted;
+        windowStarted = System.currentTimeMillis();
+        schedule(gen, this::review, REVIEW_INTERVAL);
+
+    }
+
+    /** Stop the system scan, if running */
+    private void stopWindow() {
+
+        // Stop if not scanning
+        if (!scanning)
+            return;
+
+        // Stop it. The adapter may have been turned off, in which case the scan has already stopped.
+        BluetoothLeScanner scanner = module.adapter.getBluetoothLeScanner();
+        if (scanner != null)
+            scanner.stopScan(forwarder);
+
+        scanning = false;
+        scanTime += System.currentTimeMillis() - windowStarted;
+
+    }
+
+    /** Pick the mode for an adaptive scan from the discovery rate of the current window */
+    private int chooseMode() {
+
+        // Always use low power in the background
+        if (!foreground)
+            return ScanSettings.SCAN_MODE_LOW_POWER;
+
+        // Pick from the rate of new devices
+        long elapsed = Math.max(1, System.currentTimeMillis() - windowStarted);
+        double rate = windowNewDevices * 1000.0 / elapsed;
+        if (rate >= FAST_DISCOVERY_RATE)
+            return ScanSettings.SCAN_MODE_LOW_LATENCY;
+        else if (rate >= SLOW_DISCOVERY_RATE)
+            return ScanSettings.SCAN_MODE_BALANCED;
+        else
+            return ScanSettings.SCAN_MODE_LOW_POWER;
+
+    }
+
+    /** True if the scan runs in windows rather than continuously */
+    private boolean isDutyCycled() {
+        return options.window > 0 && options.interval > options.window;
+    }
+
+    /** Get the time until a scan can be started without going over the system's limit, in milliseconds */
+    private long startDelay(long now) {
+
+        // Forget starts which have left the period
+        while (!startTimes.isEmpty() && startTimes.peekFirst() <= now - STARTS_PERIOD)
+            startTimes.removeFirst();
+
+        // Wait for the oldest start to leave the period if at the limit
+        if (startTimes.size() < MAX_STARTS)
+            return 0;
+        else
+            return startTimes.peekFirst() + STARTS_PERIOD - now + 1;
+
+    }
+
+    /** Scheduled work for a scan */
+    private interface Task {
+        void run(int gen);
+    }
+
+    /** Run a task on the adapter queue after a delay */
+    private void schedule(int gen, Task task, long delay) {
+        scheduled = SettableFuture.timer.schedule(() -> module.adapterQueue.submit(() -> {
+            synchronized (this) {
+                task.run(gen);
+            }
+            return null;
+        }), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /** Count a result */
+    private synchronized void onResult(ScanResult result) {
+
+        // Count it, and measure the time to the first result
+        results++;
+        if (!firstResultMeasured) {
+            firstResultMeasured = true;
+            module.metrics.record(Metrics.FIRST_SCAN_RESULT, null, requestedAt);
+        }
+
+        // Count new devices
+        if (seen.size() >= MAX_SEEN)
+            seen.clear();
+        if (seen.add(result.getDevice().getAddress()))
+            windowNewDevices++;
+
+    }
+
+    /** Called when the system fails to start a scan */
+    private void onFailed(Forwarder failed) {
+
+        // Stop scheduling windows for the failed scan
+        module.adapterQueue.submit(() -> {
+            synchronized (this) {
+                if (forwarder == failed) {
+                    scanning = false;
+                    stop();
+                }
+            }
+            return null;
+        });
+
+    }
+
+    /** Counts results, then passes them on to the scan listener */
+    private class Forwarder extends ScanCallback {
+
+        /** The listener */
+        private final BLE.ScanListener listener;
+
+        Forwarder(BLE.ScanListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            onResult(result);
+            listener.onScanResult(callbackType, result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results)
+                onResult(result);
+            listener.onBatchScanResults(results);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            onFailed(this);
+            listener.onScanFailed(errorCode);
+        }
+
+    }
+
+}
@@ -0,0 +1,162 @@
+package com.rnbluetoothle;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Matches raw advertisement data against a set of service UUIDs. The set is compiled once into an open-addressing hash
+ * table of 128-bit keys, each packed into two longs, and each scan record is parsed in place by an AdvertisementParser
+ * without allocating anything.
+ */
+public class ServiceFilter {
+
+    /** Parser for each thread, reused for every record */
+    private static final ThreadLocal<AdvertisementParser> parser = new ThreadLocal<AdvertisementParser>() {
+        @Override
+        protected AdvertisementParser initialValue() {
+            return new AdvertisementParser();
+        }
+    };
+
+    /** Hash table of keys. Slot i holds the UUID's most significant bits at 2i and least significant bits at 2i+1. */
+    private final long[] keys;
+
+    /** True if the slot at this index is used */
+    private final boolean[] used;
+
+    /** Table size minus one. Table size is always a power of two. */
+    private final int mask;
+
+    /** Number of services in the filter */
+    private final int count;
+
+    /** Checks each advertised UUID against the table */
+    private final AdvertisementParser.UuidVisitor visitor = this::contains;
+
+    /** Create a filter. If the list is null or empty, every scan record matches. */
+    public ServiceFilter(List<UUID> services) {
+
+        // Size the table to at most half full
+        int size = 2;
+        int n = services == null ? 0 : services.size();
+        while (size < n * 2)
+            size <<= 1;
+
+        // Create table
+        keys = new long[size * 2];
+        used = new boolean[size];
+        mask = size - 1;
+
+        // Add services
+        int added = 0;
+        if (services != null) {
+            for (UUID uuid : services) {
+                if (add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()))
+                    added++;
+            }
+        }
+        count = added;
+
+    }
+
+    /** True if this filter has no services, and so matches everything */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /** Add a key to the table. Returns false if it already exists. */
+    private boolean add(long msb, long lsb) {
+
+        // Find an empty slot, or the existing key
+        int slot = hash(msb, lsb) & mask;
+        while (used[slot]) {
+            if (keys[slot * 2] == msb && keys[slot * 2 + 1] == lsb)
+                return false;
+            slot = (slot + 1) & mask;
+        }
+
+        // Store it
+        used[slot] = true;
+        keys[slot * 2] = msb;
+        keys[slot * 2 + 1] = lsb;
+        return true;
+
+    }
+
+    /** True if the filter contains this UUID */
+    public boolean contains(long msb, long lsb) {
+
+        // Probe until an empty slot
+        int slot = hash(msb, lsb) & mask;
+        while (used[slot]) {
+            if (keys[slot * 2] == msb && keys[slot * 2 + 1] == lsb)
+                return true;
+            slot = (slot + 1) & mask;
+        }
+
+        // Not found
+        return false;
+
+    }
+
+    /** True if a service digest might contain one of the filter's services */
+    private boolean digestMatches(long digest) {
+        for (int slot = 0 ; slot < used.length ; slot++)
+            if (used[slot] && AdvertisePlanner.digestMightContain(digest, keys[slot * 2], keys[slot * 2 + 1]))
+                return true;
+
+        return false;
+    }
+
+    /** Hash a 128-bit key */
+    private static int hash(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        h ^= h >>> 29;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Check if a raw scan record advertises one of the filter's services. A record with Apple's overflow area also
+     * matches, since a backgrounded iOS app moves its service UUIDs there in a hashed form we can't decode.
+     *
+     * @param record Raw advertisement and scan response data, as returned by ScanRecord.getBytes()
+     * @return True if the record matches, or if the filter is empty
+     */
+    public boolean matches(byte[] record) {
+
+        // Empty filter matches everything
+        if (count == 0)
+            return true;
+
+        // Stop if no data
+        if (record == null)
+            return false;
+
+        // Parse it
+        return matches(parser.get().reset(record));
+
+    }
+
+    /** Check if a parsed advertisement advertises one of the filter's services */
+    public boolean matches(AdvertisementParser advertisement) {
+
+        // Empty filter matches everything
+        if (count == 0)
+            return true;
+
+        // Check service UUIDs
+        if (advertisement.forEachServiceUuid(visitor))
+            return true;
+
+        // Check the digest of services which didn't fit, from devices running this library
+        long digest = advertisement.getServiceDigest();
+        if (digest != 0 && digestMatches(digest))
+            return true;
+
+        // TODO: Decode the hashed UUIDs in Apple's custom advertisement. Does anyone know how it's hashed?
+        // For now, assume service was found. This remote iPhone _is_ advertising some background peripheral, we just don't know what it is.
+        return advertisement.hasAppleOverflowArea();
+
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.rnbluetoothle;
+
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The services registered on our GATT server, and the database compiled from them. Services are added and removed on
+ * the adapter queue, while the GATT listener reads them from binder threads. The service list is copied on every
+ * change, and the database is an immutable snapshot replaced as a whole, so readers never lock. Changes to the database
+ * hold a lock so concurrent changes aren't lost.
+ *
+ * @param <S> Service type, BluetoothGattService on Android
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+final class ServiceRegistry<S> {
+
+    /** Gets a service's UUID */
+    interface Identity<S> {
+        UUID getUuid(S service);
+    }
+
+    /** Compiles services into a database */
+    interface Compiler<S> {
+        GattDatabase compile(List<S> services);
+    }
+
+    /** Changes the database */
+    interface Change {
+        GattDatabase apply(GattDatabase database);
+    }
+
+    /** Registered services. Iterators see the list as it was when they started, so any thread can read it. */
+    final CopyOnWriteArrayList<S> services = new CopyOnWriteArrayList<>();
+
+    /** Values and permissions of the registered services' attributes */
+    volatile GattDatabase database = GattDatabase.EMPTY;
+    private final Object databaseLock = new Object();
+
+    /** Services waiting to be added by the stack, by UUID. Whichever thread removes an entry completes it. */
+    private final ConcurrentHashMap<UUID, SettableFuture<Void>> pending = new ConcurrentHashMap<>();
+
+    private final Identity<S> identity;
+    private final Compiler<S> compiler;
+
+    ServiceRegistry(Identity<S> identity, Compiler<S> compiler) {
+        this.identity = identity;
+        this.compiler = compiler;
+    }
+
+    /**
+     * Register a service, and make it readable before the stack can send requests for it.
+     *
+     * @return Completed by added() once the stack has added the service
+     */
+    SettableFuture<Void> add(S service) {
+
+        // Store the promise first, since the stack may report the service as soon as it's added
+        SettableFuture<Void> promise = new SettableFuture<>();
+        pending.put(identity.getUuid(service), promise);
+
+        // Add it
+        services.add(service);
+        compile();
+        return promise;
+
+    }
+
+    /**
+     * Complete the promise of a service the stack has added.
+     *
+     * @param error Null if the service was added
+     * @return False if no service with this UUID was waiting
+     */
+    boolean added(UUID uuid, Exception error) {
+
+        // Take the promise, so it's only completed once
+        SettableFuture<Void> promise = pending.remove(uuid);
+        if (promise == null)
+            return false;
+
+        // Complete it
+        if (error == null)
+            promise.resolve(null);
+        else
+            promise.reject(error);
+
+        return true;
+
+    }
+
+    /**
+     * Unregister the services with a UUID.
+     *
+     * @return The removed services
+     */
+    List<S> remove(UUID uuid) {
+
+        // Find them
+        ArrayList<S> removed = new ArrayList<>();
+        for (S service : services)
+            if (identity.getUuid(service).equals(uuid))
+                removed.add(service);
+
+        // Remove them
+        if (!removed.isEmpty()) {
+            services.removeAll(removed);
+            compile();
+        }
+
+        return removed;
+
+    }
+
+    /** Rebuild the database from the registered services */
+    void compile() {
+        synchronized (databaseLock) {
+            database = compiler.compile(services);
+        }
+    }
+
+    /** Change the database. The change runs while holding the lock, so it can also update the compiled services. */
+    void update(Change change) {
+        synchronized (databaseLock) {
+            database = change.apply(database);
+        }
+    }
+
+}
@@ -1,11 +1,34 @@
 package com.rnbluetoothle;
 
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class SettableFuture<T> {
 
+    /** Continuation, run with the value once a future has resolved */
+    interface Continuation<T, R> {
+        SettableFuture<R> run(T value) throws Exception;
+    }
+
+    /** Shared timer used for timeouts and other scheduled work. Tasks on it must never wait on an operation. */
+    static final ScheduledThreadPoolExecutor timer = createTimer();
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "BLE Timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
     // Synchronizes threads
     CountDownLatch latch = new CountDownLatch(1);
 
@@ -15,9 +38,29 @@ public class SettableFuture<T> {
     // Fail exception
     Exception error = null;
 
+    // True once resolved or rejected
+    boolean done = false;
+
+    // Listeners to call on completion. Null once completed.
+    ArrayList<BLE.Callback<T>> listeners = new ArrayList<>();
+
     // Future
     Future<T> future = null;
 
+    /** Create a future which has already been resolved */
+    public static <T> SettableFuture<T> resolved(T value) {
+        SettableFuture<T> future = new SettableFuture<>();
+        future.resolve(value);
+        return future;
+    }
+
+    /** Create a future which has already been rejected */
+    public static <T> SettableFuture<T> rejected(Exception error) {
+        SettableFuture<T> future = new SettableFuture<>();
+        future.reject(error);
+        return future;
+    }
+
     /** Get future */
     public Future<T> getFuture() {
 
@@ -44,16 +87,180 @@ public class SettableFuture<T> {
 
     }
 
+    /** Wait for the result, up to the specified time */
+    public T get(long timeout, TimeUnit unit) throws Exception {
+
+        // Wait for completion
+        if (!latch.await(timeout, unit))
+            throw new TimeoutException("The operation timed out.");
+
+        // Check return value
+        if (error != null)
+            throw error;
+        else
+            return value;
+
+    }
+
     /** Resolve with value */
     public void resolve(T value) {
-        this.value = value;
-        latch.countDown();
+        complete(value, null);
     }
 
     /** Reject with error */
     public void reject(Exception e) {
-        this.error = e;
+        complete(null, e);
+    }
+
+    /**
+     * Cancel this future. It is rejected with a CancellationException, and the cancellation is passed on to any
+     * pending operation this future was chained from.
+     *
+     * @return True if the future was cancelled, false if it had already completed.
+     */
+    public boolean cancel() {
+        return complete(null, new CancellationException("The operation was cancelled."));
+    }
+
+    /** True if this future was cancelled */
+    public synchronized boolean isCancelled() {
+        return error instanceof CancellationException;
+    }
+
+    /**
+     * Reject this future with a TimeoutException if it has not completed within the specified time. Like cancel(), the
+     * timeout is passed on to any pending operation this future was chained from.
+     *
+     * @param timeoutMs The timeout in milliseconds. If zero or less, there is no timeout.
+     * @return This future
+     */
+    public SettableFuture<T> withTimeout(long timeoutMs) {
+
+        // Stop if no timeout
+        if (timeoutMs <= 0)
+            return this;
+
+        // Schedule the timeout, and remove it once completed
+        ScheduledFuture<?> task = timer.schedule(() -> reject(new TimeoutException("The operation timed out.")), timeoutMs, TimeUnit.MILLISECONDS);
+        addListener((value, err) -> task.cancel(false));
+        return this;
+
+    }
+
+    /** True if this future has been resolved or rejected */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Call the listener once this future completes. If it has already completed, the listener is called immediately
+     * on the current thread, otherwise it is called on the thread which completes the future.
+     */
+    public void addListener(BLE.Callback<T> listener) {
+
+        // Store it if not completed yet
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+
+        // Already completed
+        listener.run(value, error);
+
+    }
+
+    /**
+     * Chain another operation to run once this future resolves. If this future is rejected, the continuation is skipped
+     * and the error is passed on to the returned future. If the returned future is cancelled or times out first, the
+     * error is passed back to whichever step is still pending, so a deadline on the end of a chain applies to all of it.
+     */
+    public <R> SettableFuture<R> then(Continuation<T, R> next) {
+
+        // Create chained future
+        SettableFuture<R> result = new SettableFuture<>();
+        ArrayList<SettableFuture<R>> nextStep = new ArrayList<>(1);
+        addListener((value, err) -> {
+
+            // Pass on errors
+            if (err != null) {
+                result.reject(err);
+                return;
+            }
+
+            // Run next step
+            try {
+                SettableFuture<R> nextFuture = next.run(value);
+                if (nextFuture == null) {
+                    result.resolve(null);
+                } else {
+                    synchronized (nextStep) {
+                        nextStep.add(nextFuture);
+                    }
+                    nextFuture.addListener(result::complete);
+
+                    // Fail it if the chain failed while it was being started
+                    if (result.isDone() && result.error != null)
+                        nextFuture.complete(null, result.error);
+
+                }
+            } catch (Exception ex) {
+                result.reject(ex);
+            }
+
+        });
+
+        // If the chained future fails early, fail the pending step too
+        result.addListener((value, err) -> {
+
+            // Stop if succeeded
+            if (err == null)
+                return;
+
+            // Pass error back
+            complete(null, err);
+            synchronized (nextStep) {
+                for (SettableFuture<R> step : nextStep)
+                    step.complete(null, err);
+            }
+
+        });
+
+        // Done
+        return result;
+
+    }
+
+    /** Complete the future. Only the first call has any effect. Returns true if this call completed it. */
+    boolean complete(T value, Exception error) {
+
+        // Store result
+        ArrayList<BLE.Callback<T>> toNotify;
+        synchronized (this) {
+
+            // Stop if already completed
+            if (done)
+                return false;
+
+            // Store it
+            this.value = value;
+            this.error = error;
+            this.done = true;
+            toNotify = listeners;
+            listeners = null;
+
+        }
+
+        // Wake up waiting threads
         latch.countDown();
+
+        // Notify listeners
+        for (BLE.Callback<T> listener : toNotify)
+            listener.run(value, error);
+
+        return true;
+
     }
 
 }
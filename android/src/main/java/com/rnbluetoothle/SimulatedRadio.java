@@ -0,0 +1,823 @@
+package com.rnbluetoothle;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory radio with virtual peripherals, so connections, scanning and benchmarks can run on a plain JVM without
+ * Bluetooth hardware. Each peripheral has its own latency, MTU, packet loss, chance of dropping the link and advertising
+ * interval. Packets share the air time of the link's connection events, lost packets are sent again in the next
+ * event, and writes without response report congestion when the link's buffer is full, like a real controller.
+ *
+ * Events are delivered on one thread in time order, and every random choice comes from one seeded generator, so the
+ * same seed and the same requests give the same results. Hundreds of peripherals can be simulated at once.
+ */
+public class SimulatedRadio implements Radio {
+
+    /** Status of a failed connection attempt, as reported by Android's stack */
+    static final int GATT_ERROR = 133;
+
+    /** Status of a link lost because the remote device stopped responding */
+    static final int GATT_CONN_TIMEOUT = 8;
+
+    /** Number of packets a link can buffer for writes without response before reporting congestion */
+    static final int BUFFER_PACKETS = 8;
+
+    /** Time a foreground connection waits for an out of range device before failing, in milliseconds */
+    long connectTimeout = 2000;
+
+    /** Receives simulated advertisements */
+    interface AdvertisementListener {
+        void onAdvertisement(String address, String name, int rssi, byte[] record);
+    }
+
+    /** Radio statistics */
+    static class Stats {
+
+        /** Number of acknowledged requests */
+        long requests;
+
+        /** Number of packets sent on links, and how many of those had to be sent again */
+        long packets;
+        long retransmissions;
+
+        /** Number of bytes written to characteristics */
+        long bytesWritten;
+
+        /** Number of writes without response refused because the link buffer was full */
+        long congested;
+
+        /** Number of writes without response cut short because they were larger than the MTU allows */
+        long truncatedWrites;
+
+        /** Number of links dropped by the simulation */
+        long drops;
+
+        /** Number of advertisements delivered */
+        long advertisements;
+
+    }
+
+    /** A characteristic on a virtual peripheral */
+    private static class Attribute {
+        int properties;
+        byte[] value;
+    }
+
+    /** A virtual peripheral. Change its settings at any time, they apply from the next packet. */
+    class Peripheral {
+
+        /** Address and advertised name */
+        final String address;
+        String name;
+
+        /** One-way latency of a request or response, in milliseconds */
+        double latency = 5;
+
+        /** Connection interval at balanced priority, in milliseconds. High priority is a quarter of it, low power triple. */
+        double connectionInterval = 30;
+
+        /** Packets sent in each connection event */
+        int packetsPerEvent = 4;
+
+        /** Largest ATT MTU the peripheral agrees to */
+        int maxMtu = 247;
+
+        /** Chance of each packet or advertisement being lost, from 0 to 1 */
+        double packetLoss = 0;
+
+        /** Chance of the link dropping during each request, from 0 to 1 */
+        double disconnectChance = 0;
+
+        /** Time before a dropped link is reported, in milliseconds */
+        long supervisionTimeout = 1000;
+
+        /** Time between advertisements, in milliseconds. Up to 10ms of random delay is added to each, as on real devices. */
+        long advertisingInterval = 100;
+
+        /** Received signal strength, and the standard deviation of its noise, in dBm */
+        int rssi = -60;
+        double rssiNoise = 3;
+
+        /** Raw advertisement, or null to advertise the name */
+        byte[] record = null;
+
+        /** True if in range */
+        private boolean inRange = true;
+
+        /** Characteristics, by service */
+        private final LinkedHashMap<UUID, LinkedHashMap<UUID, Attribute>> services = new LinkedHashMap<>();
+
+        /** Links to this peripheral which haven't been closed */
+        private final ArrayList<SimLink> links = new ArrayList<>();
+
+        Peripheral(String address) {
+            this.address = address;
+        }
+
+        /** Add a characteristic, and its service if new */
+        Peripheral addCharacteristic(UUID serviceUUID, UUID characteristic, int properties, byte[] value) {
+            synchronized (SimulatedRadio.this) {
+
+                LinkedHashMap<UUID, Attribute> chrs = services.get(serviceUUID);
+                if (chrs == null) {
+                    chrs = new LinkedHashMap<>();
+                    services.put(serviceUUID, chrs);
+                }
+
+                Attribute attribute = new Attribute();
+                attribute.properties = properties;
+                attribute.value = value == null ? new byte[0] : value.clone();
+                chrs.put(characteristic, attribute);
+                return this;
+
+            }
+        }
+
+        /** Get a characteristic's value, or null if it doesn't exist */
+        byte[] getValue(UUID serviceUUID, UUID characteristic) {
+            synchronized (SimulatedRadio.this) {
+                Attribute attribute = find(serviceUUID, characteristic);
+                return attribute == null ? null : attribute.value.clone();
+            }
+        }
+
+        /** Change a characteristic's value, and notify subscribed links */
+        void setValue(UUID serviceUUID, UUID characteristic, byte[] value) {
+            synchronized (SimulatedRadio.this) {
+
+                // Store it
+                Attribute attribute = find(serviceUUID, characteristic);
+                if (attribute == null)
+                    return;
+
+                attribute.value = value.clone();
+
+                // Notify links, truncated to fit their MTU like a real server
+                String key = BLEConnection.subscriptionKey(serviceUUID, characteristic);
+                for (SimLink link : links) {
+                    if (!link.connected || !link.subscriptions.contains(key))
+                        continue;
+
+                    byte[] sent = new byte[Math.min(value.length, link.mtu - 3)];
+                    System.arraycopy(value, 0, sent, 0, sent.length);
+                    deliver(link, link.transmit(1) + latency, () -> () -> link.callback.onCharacteristicChanged(serviceUUID, characteristic, sent));
+                }
+
+            }
+        }
+
+        /** Move the peripheral in or out of range. Links drop when it leaves, and background connections complete when it returns. */
+        void setInRange(boolean inRange) {
+            synchronized (SimulatedRadio.this) {
+
+                // Stop if not changed
+                if (this.inRange == inRange)
+                    return;
+
+                this.inRange = inRange;
+                for (SimLink link : links) {
+                    if (!inRange && link.connected)
+                        link.drop(supervisionTimeout);
+                    else if (inRange && link.connecting)
+                        link.completeConnect();
+                }
+
+            }
+        }
+
+        /** Drop every link, as if the peripheral reset */
+        void dropLinks() {
+            synchronized (SimulatedRadio.this) {
+                for (SimLink link : links)
+                    if (link.connected)
+                        link.drop(latency);
+            }
+        }
+
+        /** Find a characteristic, or null if it doesn't exist */
+        private Attribute find(UUID serviceUUID, UUID characteristic) {
+            LinkedHashMap<UUID, Attribute> chrs = services.get(serviceUUID);
+            return chrs == null ? null : chrs.get(characteristic);
+        }
+
+        /** Describe the services, as discovery would */
+        private List<DiscoveryCache.ServiceInfo> describe() {
+
+            ArrayList<DiscoveryCache.ServiceInfo> infos = new ArrayList<>(services.size());
+            for (Map.Entry<UUID, LinkedHashMap<UUID, Attribute>> service : services.entrySet()) {
+
+                DiscoveryCache.ServiceInfo info = new DiscoveryCache.ServiceInfo();
+                info.uuid = service.getKey();
+                info.characteristics = new UUID[service.getValue().size()];
+                info.properties = new int[service.getValue().size()];
+                int i = 0;
+                for (Map.Entry<UUID, Attribute> chr : service.getValue().entrySet()) {
+                    info.characteristics[i] = chr.getKey();
+                    info.properties[i] = chr.getValue().properties;
+                    i++;
+                }
+
+                infos.add(info);
+
+            }
+
+            return infos;
+
+        }
+
+        /** Get the advertisement: flags and the complete local name, if no raw record was set */
+        private byte[] advertisement() {
+
+            if (record != null)
+                return record.clone();
+
+            byte[] nameBytes = name == null ? new byte[0] : name.getBytes(Charset.forName("UTF-8"));
+            int nameLength = Math.min(nameBytes.length, 31 - 5);
+            byte[] data = new byte[3 + (nameLength > 0 ? 2 + nameLength : 0)];
+            data[0] = 2;
+            data[1] = 0x01;
+            data[2] = 0x06;
+            if (nameLength > 0) {
+                data[3] = (byte) (nameLength + 1);
+                data[4] = 0x09;
+                System.arraycopy(nameBytes, 0, data, 5, nameLength);
+            }
+
+            return data;
+
+        }
+
+    }
+
+    /** Random source for every choice the simulation makes */
+    private final Random random;
+
+    /** Delivers events in time order on one thread */
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "SimulatedRadio");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Time the simulation started, used as time zero for air time */
+    private final long startTime = System.nanoTime();
+
+    /** Peripherals, by address */
+    private final LinkedHashMap<String, Peripheral> peripherals = new LinkedHashMap<>();
+
+    /** Current scan listener, and a counter which stops advertisements from older scans */
+    private AdvertisementListener scanListener = null;
+    private int scanGeneration = 0;
+
+    /** Statistics */
+    private final Stats stats = new Stats();
+
+    /**
+     * Constructor
+     *
+     * @param seed Seed for every random choice, so runs can be repeated
+     */
+    SimulatedRadio(long seed) {
+        random = new Random(seed);
+    }
+
+    /** Add a peripheral, or get it if it already exists */
+    synchronized Peripheral addPeripheral(String address, String name) {
+
+        // Return existing
+        String key = address.toUpperCase();
+        Peripheral peripheral = peripherals.get(key);
+        if (peripheral != null)
+            return peripheral;
+
+        // Add it, and start advertising if scanning
+        peripheral = new Peripheral(key);
+        peripheral.name = name;
+        peripherals.put(key, peripheral);
+        if (scanListener != null)
+            scheduleAdvertisement(peripheral, scanGeneration, random.nextDouble() * peripheral.advertisingInterval);
+
+        return peripheral;
+
+    }
+
+    /** Get a peripheral, or null if it doesn't exist */
+    synchronized Peripheral getPeripheral(String address) {
+        return peripherals.get(address.toUpperCase());
+    }
+
+    /** Remove a peripheral, dropping its links */
+    synchronized void removePeripheral(String address) {
+        Peripheral peripheral = peripherals.remove(address.toUpperCase());
+        if (peripheral != null)
+            peripheral.setInRange(false);
+    }
+
+    /** Start receiving advertisements from every peripheral in range, replacing any current scan */
+    synchronized void startScan(AdvertisementListener listener) {
+
+        // Start a new scan
+        scanListener = listener;
+        scanGeneration++;
+
+        // Start each peripheral at a random point in its interval, so they don't all advertise at once
+        for (Peripheral peripheral : peripherals.values())
+            scheduleAdvertisement(peripheral, scanGeneration, random.nextDouble() * peripheral.advertisingInterval);
+
+    }
+
+    /** Stop receiving advertisements */
+    synchronized void stopScan() {
+        scanListener = null;
+        scanGeneration++;
+    }
+
+    /** Get a copy of the statistics */
+    synchronized Stats getStats() {
+        Stats copy = new Stats();
+        copy.requests = stats.requests;
+        copy.packets = stats.packets;
+        copy.retransmissions = stats.retransmissions;
+        copy.bytesWritten = stats.bytesWritten;
+        copy.congested = stats.congested;
+        copy.truncatedWrites = stats.truncatedWrites;
+        copy.drops = stats.drops;
+        copy.advertisements = stats.advertisements;
+        return copy;
+    }
+
+    /** Stop delivering events */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public synchronized Link connect(String address, boolean background, LinkCallback callback) throws Exception {
+
+        // Find the peripheral
+        Peripheral peripheral = peripherals.get(address.toUpperCase());
+        if (peripheral == null)
+            throw new Exception("There is no simulated device with address " + address + ".");
+
+        // Create the link and connect
+        SimLink link = new SimLink(peripheral, background, callback);
+        peripheral.links.add(link);
+        link.startConnecting();
+        return link;
+
+    }
+
+    /** Current simulation time in milliseconds */
+    private double now() {
+        return (System.nanoTime() - startTime) / 1e6;
+    }
+
+    /** Produces the callback for an event when it's delivered, or null for none. Runs while holding the radio lock. */
+    private interface Event {
+        Runnable fire();
+    }
+
+    /**
+     * Deliver an event on a link after a delay, unless the link drops or closes first. The event's callback runs
+     * without the radio lock held, so it can call back into the radio from another thread's lock.
+     */
+    private void deliver(SimLink link, double delay, Event event) {
+
+        int epoch = link.epoch;
+        executor.schedule(() -> {
+
+            // Update state, skipping events from an older link
+            Runnable callback;
+            synchronized (this) {
+                if (link.epoch != epoch)
+                    return;
+                callback = event.fire();
+            }
+
+            // Send the callback
+            if (callback != null)
+                callback.run();
+
+        }, Math.max(0, (long) (delay * 1000)), TimeUnit.MICROSECONDS);
+
+    }
+
+    /** Deliver a peripheral's advertisements until the scan stops */
+    private void scheduleAdvertisement(Peripheral peripheral, int generation, double delay) {
+
+        executor.schedule(() -> {
+
+            // Pick the reading, and schedule the next advertisement
+            AdvertisementListener listener;
+            int rssi;
+            byte[] record;
+            synchronized (this) {
+
+                // Stop if the scan has changed or the peripheral was removed
+                if (generation != scanGeneration || peripherals.get(peripheral.address) != peripheral)
+                    return;
+
+                scheduleAdvertisement(peripheral, generation, peripheral.advertisingInterval + random.nextDouble() * 10);
+
+                // Skip if out of range or lost
+                if (!peripheral.inRange || random.nextDouble() < peripheral.packetLoss)
+                    return;
+
+                listener = scanListener;
+                rssi = peripheral.rssi + (int) Math.round(random.nextGaussian() * peripheral.rssiNoise);
+                record = peripheral.advertisement();
+                stats.advertisements++;
+
+            }
+
+            // Send it
+            listener.onAdvertisement(peripheral.address, peripheral.name, rssi, record);
+
+        }, Math.max(0, (long) (delay * 1000)), TimeUnit.MICROSECONDS);
+
+    }
+
+    /** A simulated link to a peripheral. All state is guarded by the radio lock. */
+    private class SimLink implements Link {
+
+        /** Peripheral, event receiver, and whether to wait for the peripheral to come into range */
+        final Peripheral peripheral;
+        final LinkCallback callback;
+        final boolean background;
+
+        /** Link state */
+        boolean connecting = false;
+        boolean connected = false;
+        boolean closed = false;
+
+        /** True while an acknowledged request is in progress */
+        boolean busy = false;
+
+        /** Incremented when the link drops or closes, so events for the old link are skipped */
+        int epoch = 0;
+
+        /** Negotiated MTU and connection priority */
+        int mtu = BLEConnection.DEFAULT_MTU;
+        int priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+        /** Time the air is free for the next packet, and packets waiting to be sent for writes without response */
+        double airFreeAt = 0;
+        int queuedPackets = 0;
+
+        /** Discovered services. Kept after a disconnect, like Android does for the same GATT object. */
+        List<DiscoveryCache.ServiceInfo> discovered = Collections.emptyList();
+
+        /** Subscribed characteristics, by subscription key */
+        final HashSet<String> subscriptions = new HashSet<>();
+
+        SimLink(Peripheral peripheral, boolean background, LinkCallback callback) {
+            this.peripheral = peripheral;
+            this.background = background;
+            this.callback = callback;
+        }
+
+        /** Start connecting. Completes now if the peripheral is in range, otherwise when it comes back, or times out. */
+        void startConnecting() {
+
+            connecting = true;
+            if (peripheral.inRange)
+                completeConnect();
+            else if (!background)
+                deliver(this, connectTimeout, () -> {
+                    if (!connecting)
+                        return null;
+
+                    connecting = false;
+                    epoch++;
+                    return () -> callback.onConnectionStateChange(GATT_ERROR, false);
+                });
+
+        }
+
+        /** Finish connecting after the connection setup time */
+        void completeConnect() {
+            deliver(this, peripheral.latency * 2 + interval(), () -> {
+                if (!connecting)
+                    return null;
+
+                connecting = false;
+                connected = true;
+                mtu = BLEConnection.DEFAULT_MTU;
+                priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+                airFreeAt = 0;
+                queuedPackets = 0;
+                return () -> callback.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, true);
+            });
+        }
+
+        /** Drop the link, and report it after a delay */
+        void drop(double delay) {
+            reset();
+            stats.drops++;
+            deliver(this, delay, () -> () -> callback.onConnectionStateChange(GATT_CONN_TIMEOUT, false));
+        }
+
+        /** Forget per-link state, and skip events already scheduled */
+        private void reset() {
+            connecting = false;
+            connected = false;
+            busy = false;
+            queuedPackets = 0;
+            subscriptions.clear();
+            epoch++;
+        }
+
+        /** Connection interval in effect, in milliseconds */
+        double interval() {
+            if (priority == BluetoothGatt.CONNECTION_PRIORITY_HIGH)
+                return peripheral.connectionInterval / 4;
+            else if (priority == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER)
+                return peripheral.connectionInterval * 3;
+            else
+                return peripheral.connectionInterval;
+        }
+
+        /** Send packets in the link's connection events, resending lost ones. Returns the delay until the last one is received. */
+        double transmit(int packets) {
+
+            // Packets go out after any already waiting
+            double packetTime = interval() / Math.max(1, peripheral.packetsPerEvent);
+            double time = Math.max(now(), airFreeAt);
+            for (int i = 0 ; i < packets ; i++) {
+
+                // A lost packet is sent again in the next connection event
+                time += packetTime;
+                stats.packets++;
+                while (random.nextDouble() < peripheral.packetLoss) {
+                    time += interval();
+                    stats.retransmissions++;
+                }
+
+            }
+
+            airFreeAt = time;
+            return time - now();
+
+        }
+
+        /**
+         * Start an acknowledged request, which sends packets, waits for the response, then fires the event. The link may
+         * drop instead, depending on the peripheral's disconnect chance.
+         *
+         * @param roundTrips Number of request and response exchanges, such as the prepares of a long write
+         */
+        boolean request(int packets, int roundTrips, Event response) {
+
+            // Only one request at a time
+            if (!connected || busy)
+                return false;
+
+            busy = true;
+            stats.requests++;
+
+            // Drop the link instead, if unlucky
+            if (random.nextDouble() < peripheral.disconnectChance) {
+                drop(peripheral.supervisionTimeout);
+                return true;
+            }
+
+            // Respond once sent
+            double delay = transmit(packets) + peripheral.latency * 2 * roundTrips;
+            deliver(this, delay, () -> {
+                busy = false;
+                return response.fire();
+            });
+
+            return true;
+
+        }
+
+        @Override
+        public boolean connect() {
+            synchronized (SimulatedRadio.this) {
+
+                // Stop if closed, or already connecting
+                if (closed)
+                    return false;
+                if (connected || connecting)
+                    return true;
+
+                startConnecting();
+                return true;
+
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            synchronized (SimulatedRadio.this) {
+
+                // Stop if not connected
+                if (!connected && !connecting)
+                    return;
+
+                reset();
+                deliver(this, peripheral.latency, () -> () -> callback.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, false));
+
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (SimulatedRadio.this) {
+                closed = true;
+                reset();
+                peripheral.links.remove(this);
+            }
+        }
+
+        @Override
+        public boolean discoverServices() {
+            synchronized (SimulatedRadio.this) {
+
+                // Roughly one exchange per service, and one for its characteristics
+                int roundTrips = 1 + peripheral.services.size() * 2;
+                return request(roundTrips, roundTrips, () -> {
+                    discovered = peripheral.describe();
+                    return () -> callback.onServicesDiscovered(BluetoothGatt.GATT_SUCCESS);
+                });
+
+            }
+        }
+
+        @Override
+        public List<DiscoveryCache.ServiceInfo> getServices() {
+            synchronized (SimulatedRadio.this) {
+                return discovered;
+            }
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID serviceUUID, UUID characteristic) {
+            synchronized (SimulatedRadio.this) {
+
+                // Find it
+                Attribute attribute = peripheral.find(serviceUUID, characteristic);
+                if (attribute == null)
+                    return false;
+
+                // Long values take a read blob for each MTU's worth
+                int roundTrips = 1 + attribute.value.length / (mtu - 1);
+                return request(roundTrips, roundTrips, () -> {
+                    if ((attribute.properties & BluetoothGattCharacteristic.PROPERTY_READ) == 0)
+                        return () -> callback.onCharacteristicRead(serviceUUID, characteristic, null, BluetoothGatt.GATT_READ_NOT_PERMITTED);
+
+                    byte[] value = attribute.value.clone();
+                    return () -> callback.onCharacteristicRead(serviceUUID, characteristic, value, BluetoothGatt.GATT_SUCCESS);
+                });
+
+            }
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID serviceUUID, UUID characteristic, byte[] value, boolean withResponse) {
+            synchronized (SimulatedRadio.this) {
+
+                // Find it
+                Attribute attribute = peripheral.find(serviceUUID, characteristic);
+                if (attribute == null)
+                    return false;
+
+                // Acknowledged writes larger than one packet are sent as prepared writes
+                byte[] written = value.clone();
+                if (withResponse) {
+                    int roundTrips = written.length <= mtu - 3 ? 1 : (written.length + mtu - 6) / (mtu - 5) + 1;
+                    return request(roundTrips, roundTrips, () -> {
+                        int status = write(attribute, written, BluetoothGattCharacteristic.PROPERTY_WRITE);
+                        return () -> callback.onCharacteristicWrite(serviceUUID, characteristic, status);
+                    });
+                }
+
+                return writeWithoutResponse(serviceUUID, characteristic, attribute, written);
+
+            }
+        }
+
+        /** Queue a write without response, reporting congestion when the link's buffer is full */
+        private boolean writeWithoutResponse(UUID serviceUUID, UUID characteristic, Attribute attribute, byte[] value) {
+
+            // Stop if busy
+            if (!connected || busy)
+                return false;
+
+            // Report congestion if the buffer is full
+            busy = true;
+            if (queuedPackets >= BUFFER_PACKETS) {
+                stats.congested++;
+                deliver(this, interval() / Math.max(1, peripheral.packetsPerEvent), () -> {
+                    busy = false;
+                    return () -> callback.onCharacteristicWrite(serviceUUID, characteristic, BluetoothGatt.GATT_CONNECTION_CONGESTED);
+                });
+                return true;
+            }
+
+            // The controller only sends one packet's worth
+            byte[] sent = value;
+            if (value.length > mtu - 3) {
+                stats.truncatedWrites++;
+                sent = new byte[mtu - 3];
+                System.arraycopy(value, 0, sent, 0, sent.length);
+            }
+
+            // Buffer it, and apply it once sent
+            byte[] packet = sent;
+            queuedPackets++;
+            deliver(this, transmit(1) + peripheral.latency, () -> {
+                queuedPackets--;
+                write(attribute, packet, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE);
+                return null;
+            });
+
+            // Report it as accepted straight away
+            deliver(this, 0, () -> {
+                busy = false;
+                return () -> callback.onCharacteristicWrite(serviceUUID, characteristic, BluetoothGatt.GATT_SUCCESS);
+            });
+
+            return true;
+
+        }
+
+        /** Apply a write to an attribute, returning the GATT status */
+        private int write(Attribute attribute, byte[] value, int property) {
+
+            if ((attribute.properties & property) == 0)
+                return BluetoothGatt.GATT_WRITE_NOT_PERMITTED;
+            if (value.length > WritePipeline.MAX_ATTRIBUTE_LENGTH)
+                return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+
+            attribute.value = value;
+            stats.bytesWritten += value.length;
+            return BluetoothGatt.GATT_SUCCESS;
+
+        }
+
+        @Override
+        public boolean setNotify(UUID serviceUUID, UUID characteristic, boolean enable, boolean indicate) {
+            synchronized (SimulatedRadio.this) {
+
+                // Find it, and check it can notify
+                Attribute attribute = peripheral.find(serviceUUID, characteristic);
+                int property = indicate ? BluetoothGattCharacteristic.PROPERTY_INDICATE : BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+                if (attribute == null || (attribute.properties & property) == 0)
+                    return false;
+
+                // Write the configuration
+                String key = BLEConnection.subscriptionKey(serviceUUID, characteristic);
+                return request(1, 1, () -> {
+                    if (enable)
+                        subscriptions.add(key);
+                    else
+                        subscriptions.remove(key);
+
+                    return () -> callback.onDescriptorWrite(serviceUUID, characteristic, BluetoothGatt.GATT_SUCCESS);
+                });
+
+            }
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            synchronized (SimulatedRadio.this) {
+                return request(1, 1, () -> {
+                    this.mtu = Math.max(BLEConnection.DEFAULT_MTU, Math.min(mtu, peripheral.maxMtu));
+                    int agreed = this.mtu;
+                    return () -> callback.onMtuChanged(agreed, BluetoothGatt.GATT_SUCCESS);
+                });
+            }
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            synchronized (SimulatedRadio.this) {
+
+                if (!connected)
+                    return false;
+
+                this.priority = priority;
+                return true;
+
+            }
+        }
+
+    }
+
+}
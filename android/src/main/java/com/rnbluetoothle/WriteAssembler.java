@@ -0,0 +1,159 @@
+package com.rnbluetoothle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reassembles prepared (long) writes from remote devices. Each prepared chunk is copied into a per-attribute buffer at
+ * its offset, and nothing is applied until the device executes the write, so the whole value changes at once or not
+ * at all. Buffers come from a small pool, and each device can only queue a limited number of bytes, so a misbehaving
+ * central can't use up memory.
+ */
+public class WriteAssembler {
+
+    /** A completed value */
+    static class Value {
+
+        /** The characteristic or descriptor written to */
+        Object attribute;
+
+        /** The new value */
+        byte[] data;
+
+    }
+
+    /** Maximum length of an attribute value */
+    static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    /** Maximum number of bytes a device can queue in prepared writes */
+    static final int MAX_QUEUED_BYTES = 4096;
+
+    /** Maximum number of buffers kept for reuse */
+    static final int MAX_POOLED_BUFFERS = 16;
+
+    /** Result of adding a chunk */
+    static final int OK = 0;
+    static final int INVALID_OFFSET = 1;
+    static final int INVALID_LENGTH = 2;
+    static final int QUEUE_FULL = 3;
+
+    /** A value being assembled */
+    private static class Buffer {
+        byte[] data;
+        int length;
+    }
+
+    /** Prepared writes from one device */
+    private static class Queue {
+
+        /** Buffers by attribute, in the order they were first written */
+        LinkedHashMap<Object, Buffer> buffers = new LinkedHashMap<>();
+
+        /** Number of bytes queued */
+        int queuedBytes = 0;
+
+    }
+
+    /** Prepared writes, by device address */
+    private final HashMap<String, Queue> queues = new HashMap<>();
+
+    /** Free buffers */
+    private final ArrayList<byte[]> pool = new ArrayList<>();
+
+    /**
+     * Add a prepared write chunk.
+     *
+     * @param attribute The characteristic or descriptor being written to
+     * @return OK, or the reason the chunk was rejected
+     */
+    synchronized int prepare(String address, Object attribute, int offset, byte[] value) {
+
+        // Check bounds
+        if (offset < 0 || offset > MAX_ATTRIBUTE_LENGTH)
+            return INVALID_OFFSET;
+        if (offset + value.length > MAX_ATTRIBUTE_LENGTH)
+            return INVALID_LENGTH;
+
+        // Check the device's limit
+        Queue queue = queues.get(address);
+        if (queue == null) {
+            queue = new Queue();
+            queues.put(address, queue);
+        }
+
+        if (queue.queuedBytes + value.length > MAX_QUEUED_BYTES)
+            return QUEUE_FULL;
+
+        // Get the attribute's buffer
+        Buffer buffer = queue.buffers.get(attribute);
+        if (buffer == null) {
+            buffer = new Buffer();
+            buffer.data = obtain();
+            queue.buffers.put(attribute, buffer);
+        }
+
+        // Copy in the chunk
+        System.arraycopy(value, 0, buffer.data, offset, value.length);
+        buffer.length = Math.max(buffer.length, offset + value.length);
+        queue.queuedBytes += value.length;
+        return OK;
+
+    }
+
+    /**
+     * Finish a device's prepared writes.
+     *
+     * @param execute True to apply them, false to cancel
+     * @return The values to apply, in the order they were first written. Empty if cancelled or nothing was queued.
+     */
+    synchronized ArrayList<Value> execute(String address, boolean execute) {
+
+        // Get the device's writes
+        ArrayList<Value> values = new ArrayList<>();
+        Queue queue = queues.remove(address);
+        if (queue == null)
+            return values;
+
+        // Copy out the values and free the buffers
+        for (Map.Entry<Object, Buffer> entry : queue.buffers.entrySet()) {
+
+            Buffer buffer = entry.getValue();
+            if (execute) {
+                Value value = new Value();
+                value.attribute = entry.getKey();
+                value.data = new byte[buffer.length];
+                System.arraycopy(buffer.data, 0, value.data, 0, buffer.length);
+                values.add(value);
+            }
+
+            recycle(buffer);
+
+        }
+
+        return values;
+
+    }
+
+    /** Discard a device's prepared writes, such as when it disconnects */
+    void discard(String address) {
+        execute(address, false);
+    }
+
+    /** Get a buffer from the pool, or create one */
+    private byte[] obtain() {
+        return pool.isEmpty() ? new byte[MAX_ATTRIBUTE_LENGTH] : pool.remove(pool.size() - 1);
+    }
+
+    /** Return a buffer to the pool. It's cleared first, so one device's data can't show up in gaps in another's. */
+    private void recycle(Buffer buffer) {
+        if (pool.size() >= MAX_POOLED_BUFFERS)
+            return;
+
+        Arrays.fill(buffer.data, 0, buffer.length, (byte) 0);
+        pool.add(buffer.data);
+    }
+
+}
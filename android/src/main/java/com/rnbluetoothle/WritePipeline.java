@@ -0,0 +1,188 @@
+package com.rnbluetoothle;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a payload to a characteristic in chunks. Each chunk is started from the previous chunk's onCharacteristicWrite
+ * callback, so the controller always has the next chunk as soon as it can accept it. If the link reports congestion,
+ * or the stack is busy, the same chunk is retried after a short backoff. If the link drops, the write fails at once.
+ */
+public class WritePipeline {
+
+    /** Result of a completed write */
+    static class Result {
+
+        /** Number of bytes written */
+        long bytes = 0;
+
+        /** Number of chunks written */
+        int chunks = 0;
+
+        /** Time taken in milliseconds */
+        long duration = 0;
+
+        /** Number of times a chunk was retried because of congestion or a busy stack */
+        int retries = 0;
+
+        /** Achieved throughput */
+        double getBytesPerSecond() {
+            return duration == 0 ? bytes * 1000.0 : bytes * 1000.0 / duration;
+        }
+
+    }
+
+    /** Maximum length of an attribute value. Acknowledged writes up to this size are sent as one (long) write. */
+    static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    /** Maximum number of retries for one chunk before failing */
+    static final int MAX_RETRIES = 50;
+
+    /** Connection to write to */
+    private final BLEConnection connection;
+
+    /** Characteristic to write to */
+    private final UUID serviceUUID;
+    private final UUID characteristic;
+
+    /** Data to write */
+    private final byte[] data;
+
+    /** True to wait for the remote device to acknowledge each chunk */
+    private final boolean withResponse;
+
+    /** Bytes per chunk */
+    private final int chunkSize;
+
+    /** Offset of the next chunk */
+    private int offset = 0;
+
+    /** Retries for the current chunk */
+    private int chunkRetries = 0;
+
+    /** Start time */
+    private long startTime = 0;
+
+    /** Result */
+    private final Result stats = new Result();
+    private final SettableFuture<Result> result = new SettableFuture<>();
+
+    /**
+     * Constructor
+     *
+     * @param connection Connection to write to. Must be connected, with services discovered.
+     * @param serviceUUID Service containing the characteristic
+     * @param characteristic Characteristic to write to
+     * @param data Data to write
+     * @param withResponse True for acknowledged writes, false for write without response
+     */
+    WritePipeline(BLEConnection connection, UUID serviceUUID, UUID characteristic, byte[] data, boolean withResponse) {
+
+        // Store info
+        this.connection = connection;
+        this.serviceUUID = serviceUUID;
+        this.characteristic = characteristic;
+        this.data = data;
+        this.withResponse = withResponse;
+
+        // Acknowledged writes which fit in one attribute are sent whole, the stack splits them into a long write.
+        // Anything else is split into chunks that fit in one packet.
+        if (withResponse && data.length <= MAX_ATTRIBUTE_LENGTH)
+            chunkSize = Math.max(1, data.length);
+        else
+            chunkSize = connection.getMaxWriteLength();
+
+    }
+
+    /** Start writing. The returned future resolves with the transfer stats. Cancelling it stops the write. */
+    SettableFuture<Result> start() {
+
+        // Start first chunk
+        startTime = System.currentTimeMillis();
+        writeNext();
+        return result;
+
+    }
+
+    /** Write the chunk at the current offset */
+    private void writeNext() {
+
+        // Stop if cancelled or timed out
+        if (result.isDone())
+            return;
+
+        // Check if finished
+        if (offset >= data.length && stats.chunks > 0) {
+            stats.duration = System.currentTimeMillis() - startTime;
+            result.resolve(stats);
+            return;
+        }
+
+        // Get chunk
+        int length = Math.min(chunkSize, data.length - offset);
+        byte[] chunk = new byte[length];
+        System.arraycopy(data, offset, chunk, 0, length);
+
+        // Write it
+        connection.writeValue(serviceUUID, characteristic, chunk, withResponse).addListener((status, err) -> {
+
+            // Fail if the link is down or dropped, retrying can't help
+            if (err != null) {
+                result.reject(err);
+                return;
+            }
+
+            // Retry if the stack was busy, or the link is congested
+            if (status == BLEConnection.STATUS_BUSY || status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
+                retry(new Exception(BLEConnection.getError(status)));
+                return;
+            }
+
+            // Fail on other errors
+            String error = BLEConnection.getError(status);
+            if (error != null) {
+                result.reject(new Exception(error));
+                return;
+            }
+
+            // Chunk done, continue
+            offset += length;
+            stats.bytes += length;
+            stats.chunks++;
+            chunkRetries = 0;
+            writeNext();
+
+        });
+
+    }
+
+    /** Retry the current chunk after a backoff */
+    private void retry(Exception reason) {
+
+        // Count it, and fail if retried too many times
+        stats.retries++;
+        if (connection.metrics != null)
+            connection.metrics.retries.incrementAndGet();
+        if (++chunkRetries > MAX_RETRIES) {
+            result.reject(reason);
+            return;
+        }
+
+        // Back off a little more each time
+        long delay = Math.min(5L * chunkRetries, 100);
+        SettableFuture.timer.schedule(() -> {
+
+            // The timer drops exceptions, so fail the write instead of leaving it waiting forever
+            try {
+                writeNext();
+            } catch (RuntimeException ex) {
+                result.reject(ex);
+            }
+
+        }, delay, TimeUnit.MILLISECONDS);
+
+    }
+
+}
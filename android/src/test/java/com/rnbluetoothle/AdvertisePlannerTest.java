@@ -0,0 +1,261 @@
+package com.rnbluetoothle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisePlannerTest {
+
+    /** Length of our manufacturer data, the 4 byte instance ID */
+    private static final int MANUFACTURER_DATA_LENGTH = 4;
+
+    /** Space used before any UUIDs: flags, and the manufacturer data field with its company ID */
+    private static final int FIXED_LENGTH = AdvertisePlanner.FLAGS_LENGTH + 4 + MANUFACTURER_DATA_LENGTH;
+
+    /** A 16-bit UUID, expanded against the base UUID */
+    private static UUID uuid16(int value) {
+        return new UUID((long) value << 32 | AdvertisementParser.BASE_UUID_MSB, AdvertisementParser.BASE_UUID_LSB);
+    }
+
+    /** A 32-bit UUID, expanded against the base UUID */
+    private static UUID uuid32(long value) {
+        return new UUID(value << 32 | AdvertisementParser.BASE_UUID_MSB, AdvertisementParser.BASE_UUID_LSB);
+    }
+
+    /** A 128-bit UUID */
+    private static UUID uuid128(int value) {
+        return new UUID(0x6E40000000000000L | value, 0xB5A3F393E0A9E50EL);
+    }
+
+    /** A list of consecutive 16-bit UUIDs */
+    private static List<UUID> uuids16(int count) {
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 0 ; i < count ; i++)
+            uuids.add(uuid16(0x1800 + i));
+        return uuids;
+    }
+
+    @Test
+    public void measuresUuidSizes() {
+        assertEquals(2, AdvertisePlanner.uuidSize(uuid16(0x180D)));
+        assertEquals(2, AdvertisePlanner.uuidSize(uuid16(0xFFFF)));
+        assertEquals(4, AdvertisePlanner.uuidSize(uuid32(0x10000)));
+        assertEquals(4, AdvertisePlanner.uuidSize(uuid32(0x12345678L)));
+        assertEquals(16, AdvertisePlanner.uuidSize(uuid128(1)));
+        assertEquals(16, AdvertisePlanner.uuidSize(new UUID(0x0000180D00001000L, 0x800000805F9B34FCL)));
+    }
+
+    @Test
+    public void fills16BitUuidsToExactly31Bytes() {
+
+        // 20 bytes left: a list header and 9 UUIDs
+        AdvertisePlanner.Layout layout = AdvertisePlanner.plan(uuids16(9), MANUFACTURER_DATA_LENGTH, 0);
+        assertEquals(9, layout.advertised.size());
+        assertEquals(AdvertisePlanner.LEGACY_MAX_LENGTH, layout.advertisedLength);
+        assertTrue(layout.scanResponse.isEmpty());
+        assertEquals(0, layout.scanResponseLength);
+        assertEquals(0, layout.digest);
+        assertFalse(layout.extended);
+
+    }
+
+    @Test
+    public void spillsIntoTheScanResponse() {
+
+        // The 10th UUID needs its own list header in the scan response
+        AdvertisePlanner.Layout layout = AdvertisePlanner.plan(uuids16(10), MANUFACTURER_DATA_LENGTH, 0);
+        assertEquals(uuids16(9), layout.advertised);
+        assertEquals(Collections.singletonList(uuid16(0x1809)), layout.scanResponse);
+        assertEquals(AdvertisePlanner.LEGACY_MAX_LENGTH, layout.advertisedLength);
+        assertEquals(4, layout.scanResponseLength);
+        assertTrue(layout.digested.isEmpty());
+        assertEquals(0, layout.digest);
+
+    }
+
+    @Test
+    public void mixesUuidSizesSmallestFirst() {
+
+        // Given largest first, the short UUIDs are still placed first. The 128-bit UUID needs 18 bytes, which is more
+        // than the 10 left in the advertisement, so it goes in the scan response.
+        UUID full = uuid128(1), medium = uuid32(0x12345678L), small = uuid16(0x180D);
+        AdvertisePlanner.Layout layout = AdvertisePlanner.plan(Arrays.asList(full, medium, small), MANUFACTURER_DATA_LENGTH, 0);
+        assertEquals(Arrays.asList(small, medium), layout.advertised);
+        assertEquals(Collections.singletonList(full), layout.scanResponse);
+        assertEquals(FIXED_LENGTH + 4 + 6, layout.advertisedLength);
+        assertEquals(18, layout.scanResponseLength);
+
+    }
+
+    @Test
+    public void fits128BitUuidsAtTheBoundary() {
+
+        // One 128-bit UUID fits in the advertisement's 20 free bytes, and one in the scan response. A second in the
+        // same packet would share the list header, but still needs 16 more bytes.
+        List<UUID> uuids = Arrays.asList(uuid128(1), uuid128(2));
+        AdvertisePlanner.Layout layout = AdvertisePlanner.plan(uuids, MANUFACTURER_DATA_LENGTH, 0);
+        assertEquals(Collections.singletonList(uuid128(1)), layout.advertised);
+        assertEquals(Collections.singletonList(uuid128(2)), layout.scanResponse);
+        assertEquals(FIXED_LENGTH + 18, layout.advertisedLength);
+        assertEquals(18, layout.scanResponseLength);
+        assertTrue(layout.digested.isEmpty());
+
+    }
+
+    @Test
+    public void fills32BitUuidsToTheBoundary() {
+
+        // Header and 4 UUIDs use 18 of the 20 free bytes, the 5th needs 4 more
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 0 ; i < 5 ; i++)
+            uuids.add(uuid32(0x10000 + i));
+
+        AdvertisePlanner.Layout layout = AdvertisePlanner.plan(uuids, MANUFACTURER_DATA_LENGTH, 0);
+        assertEquals(4, layout.advertised.size());
+        assertEquals(FIXED_LENGTH + 18, layout.advertisedLength);
+        assertEquals(Collections.singletonList(uuids.get(4)), layout.scanResponse);
+        assertEquals(6, layout.scanResponseLength);
+
+    }
+
+    @Test
+    public void digestsUuidsWhichDontFit() {
+
+        // 9 fit in the advertisement and 14 in the scan response, so 24 don't. With room for the digest, the
+        // advertisement has 12 free bytes for 5 UUIDs.
+        List<UUID> uuids = uuids16(24);
+        AdvertisePlanner.Layout layout = AdvertisePlanner.plan(uuids, MANUFACTURER_DATA_LENGTH, 0);
+        assertFalse(layout.extended);
+        assertEquals(5, layout.advertised.size());
+        assertEquals(FIXED_LENGTH + AdvertisePlanner.DIGEST_LENGTH + 12, layout.advertisedLength);
+        assertEquals(14, layout.scanResponse.size());
+        assertEquals(30, layout.scanResponseLength);
+        assertEquals(uuids.subList(19, 24), layout.digested);
+
+        // The digest only has the bits of the digested UUIDs
+        long expected = 0;
+        for (UUID uuid : layout.digested) {
+            expected = AdvertisePlanner.addToDigest(expected, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            assertTrue(AdvertisePlanner.digestMightContain(layout.digest, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+        }
+
+        assertEquals(expected, layout.digest);
+
+    }
+
+    @Test
+    public void setsAtMostThreeBitsPerUuid() {
+
+        long combined = 0;
+        for (UUID uuid : uuids16(50)) {
+            long bits = AdvertisePlanner.addToDigest(0, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            int count = Long.bitCount(bits);
+            assertTrue(count >= 1 && count <= 3);
+
+            // Adding is the same as combining the bits, and adding twice changes nothing
+            assertEquals(combined | bits, AdvertisePlanner.addToDigest(combined, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+            combined |= bits;
+            assertEquals(combined, AdvertisePlanner.addToDigest(combined, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+        }
+
+    }
+
+    @Test
+    public void digestHasNoFalseNegativesAndFewFalsePositives() {
+
+        // Add 8 random UUIDs
+        Random random = new Random(1);
+        List<UUID> members = new ArrayList<>();
+        long digest = 0;
+        for (int i = 0 ; i < 8 ; i++) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            members.add(uuid);
+            digest = AdvertisePlanner.addToDigest(digest, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        }
+
+        // Every member matches
+        for (UUID uuid : members)
+            assertTrue(AdvertisePlanner.digestMightContain(digest, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+
+        // About 3% of other UUIDs match, for 8 UUIDs in 64 bits with 3 bits each
+        int falsePositives = 0;
+        int trials = 20000;
+        for (int i = 0 ; i < trials ; i++)
+            if (AdvertisePlanner.digestMightContain(digest, random.nextLong(), random.nextLong()))
+                falsePositives++;
+
+        assertTrue("False positive rate " + falsePositives / (double) trials, falsePositives < trials / 10);
+
+        // An empty digest matches nothing
+        UUID member = members.get(0);
+        assertFalse(AdvertisePlanner.digestMightContain(0, member.getMostSignificantBits(), member.getLeastSignificantBits()));
+
+    }
+
+    @Test
+    public void digestSurvivesTheManufacturerData() {
+
+        // Encode the digest after the instance ID, the way BLE advertises it, and read it back with the parser
+        long digest = AdvertisePlanner.plan(uuids16(25), MANUFACTURER_DATA_LENGTH, 0).digest;
+        byte[] data = new byte[4 + MANUFACTURER_DATA_LENGTH + AdvertisePlanner.DIGEST_LENGTH];
+        data[0] = (byte) (data.length - 1);
+        data[1] = (byte) AdvertisementParser.TYPE_MANUFACTURER_DATA;
+        data[2] = (byte) AdvertisementParser.INSTANCE_COMPANY_ID;
+        data[3] = (byte) (AdvertisementParser.INSTANCE_COMPANY_ID >> 8);
+        for (int i = 0 ; i < AdvertisePlanner.DIGEST_LENGTH ; i++)
+            data[4 + MANUFACTURER_DATA_LENGTH + i] = (byte) (digest >>> (i * 8));
+
+        assertTrue(digest != 0);
+        assertEquals(digest, new AdvertisementParser().reset(data).getServiceDigest());
+
+    }
+
+    @Test
+    public void usesAnExtendedAdvertisementWhenAllowed() {
+
+        // Too many for a legacy advertisement, but they fit in one extended advertisement
+        List<UUID> uuids = uuids16(30);
+        AdvertisePlanner.Layout layout = AdvertisePlanner.plan(uuids, MANUFACTURER_DATA_LENGTH, 251);
+        assertTrue(layout.extended);
+        assertEquals(251, layout.maxLength);
+        assertEquals(uuids, layout.advertised);
+        assertEquals(FIXED_LENGTH + 2 + 60, layout.advertisedLength);
+        assertTrue(layout.scanResponse.isEmpty());
+        assertTrue(layout.digested.isEmpty());
+        assertEquals(0, layout.digest);
+
+    }
+
+    @Test
+    public void prefersLegacyWhenEverythingFits() {
+        AdvertisePlanner.Layout layout = AdvertisePlanner.plan(uuids16(10), MANUFACTURER_DATA_LENGTH, 251);
+        assertFalse(layout.extended);
+        assertEquals(AdvertisePlanner.LEGACY_MAX_LENGTH, layout.maxLength);
+    }
+
+    @Test
+    public void fallsBackToTheDigestIfExtendedIsTooSmall() {
+
+        // 40 UUIDs need 93 bytes, more than the extended limit
+        AdvertisePlanner.Layout layout = AdvertisePlanner.plan(uuids16(40), MANUFACTURER_DATA_LENGTH, 64);
+        assertFalse(layout.extended);
+        assertEquals(21, layout.digested.size());
+        assertTrue(layout.digest != 0);
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsManufacturerDataWithNoRoomForTheDigest() {
+        AdvertisePlanner.plan(uuids16(1), 17, 0);
+    }
+
+}
@@ -0,0 +1,240 @@
+package com.rnbluetoothle;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisementParserTest {
+
+    /** A 128-bit UUID, and the same UUID as it appears in an advertisement, least significant byte first */
+    private static final UUID UART = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final byte[] UART_LE = bytes(0x9E, 0xCA, 0xDC, 0x24, 0x0E, 0xE5, 0xA9, 0xE0, 0x93, 0xF3, 0xA3, 0xB5, 0x01, 0x00, 0x40, 0x6E);
+
+    /** Build a byte array from unsigned values */
+    private static byte[] bytes(int... values) {
+        byte[] out = new byte[values.length];
+        for (int i = 0 ; i < values.length ; i++)
+            out[i] = (byte) values[i];
+        return out;
+    }
+
+    /** Join arrays */
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts)
+            length += part.length;
+
+        byte[] out = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, out, offset, part.length);
+            offset += part.length;
+        }
+
+        return out;
+    }
+
+    /** Collect the advertised service UUIDs */
+    private static List<UUID> uuids(AdvertisementParser parser) {
+        List<UUID> out = new ArrayList<>();
+        parser.forEachServiceUuid((msb, lsb) -> {
+            out.add(new UUID(msb, lsb));
+            return false;
+        });
+        return out;
+    }
+
+    @Test
+    public void expandsShortUuidsAgainstTheBaseUuid() {
+
+        byte[] data = concat(
+                bytes(0x02, 0x01, 0x06),
+                bytes(0x05, 0x03, 0x0D, 0x18, 0x0F, 0x18),
+                bytes(0x05, 0x05, 0x78, 0x56, 0x34, 0x12),
+                bytes(0x11, 0x07), UART_LE);
+
+        AdvertisementParser parser = new AdvertisementParser().reset(data);
+        assertEquals(4, parser.getFieldCount());
+        assertEquals(0x06, parser.getFlags());
+        assertEquals(Arrays.asList(
+                UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb"),
+                UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb"),
+                UUID.fromString("12345678-0000-1000-8000-00805f9b34fb"),
+                UART), uuids(parser));
+
+    }
+
+    @Test
+    public void ignoresTrailingBytesOfAPartialUuid() {
+
+        // Three bytes of 16-bit UUIDs, and 17 bytes of 128-bit UUIDs
+        byte[] data = concat(
+                bytes(0x04, 0x02, 0x0D, 0x18, 0xAA),
+                bytes(0x12, 0x06), UART_LE, bytes(0xBB));
+
+        assertEquals(Arrays.asList(UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb"), UART), uuids(new AdvertisementParser().reset(data)));
+
+    }
+
+    @Test
+    public void stopsAtATruncatedStructure() {
+
+        // The name claims 10 bytes, but only 3 are present
+        byte[] data = concat(
+                bytes(0x02, 0x01, 0x06),
+                bytes(0x0A, 0x09, 'a', 'b', 'c'));
+
+        AdvertisementParser parser = new AdvertisementParser().reset(data);
+        assertEquals(1, parser.getFieldCount());
+        assertEquals(0x06, parser.getFlags());
+        assertNull(parser.getLocalName());
+
+    }
+
+    @Test
+    public void treatsZeroLengthAsPadding() {
+
+        // Everything after a zero length byte is padding, even if it looks like a structure
+        byte[] data = concat(
+                bytes(0x02, 0x0A, 0xF4),
+                bytes(0x00),
+                bytes(0x03, 0x03, 0x0D, 0x18),
+                new byte[20]);
+
+        AdvertisementParser parser = new AdvertisementParser().reset(data);
+        assertEquals(1, parser.getFieldCount());
+        assertEquals(-12, parser.getTxPower());
+        assertTrue(uuids(parser).isEmpty());
+
+    }
+
+    @Test
+    public void handlesEmptyAndMissingData() {
+
+        AdvertisementParser parser = new AdvertisementParser();
+        assertEquals(0, parser.reset((byte[]) null).getFieldCount());
+        assertEquals(0, parser.reset(new byte[0]).getFieldCount());
+        assertEquals(-1, parser.getFlags());
+        assertEquals(AdvertisementParser.NO_TX_POWER, parser.getTxPower());
+        assertEquals(-1, parser.getInstanceId());
+        assertEquals(0, parser.getServiceDigest());
+
+        // A type byte with no data is a valid, empty structure
+        parser.reset(bytes(0x01, 0x01));
+        assertEquals(1, parser.getFieldCount());
+        assertEquals(-1, parser.getFlags());
+
+    }
+
+    @Test
+    public void prefersTheCompleteName() {
+
+        byte[] data = concat(
+                bytes(0x03, 0x08, 'A', 'B'),
+                bytes(0x05, 0x09, 'A', 'B', 'C', 'D'));
+
+        assertEquals("ABCD", new AdvertisementParser().reset(data).getLocalName());
+        assertEquals("AB", new AdvertisementParser().reset(bytes(0x03, 0x08, 'A', 'B')).getLocalName());
+
+    }
+
+    @Test
+    public void findsManufacturerAndServiceData() {
+
+        byte[] data = concat(
+                bytes(0x05, 0xFF, 0x59, 0x00, 0x01, 0x02),
+                bytes(0x05, 0x16, 0x0F, 0x18, 0x64, 0x00),
+                bytes(0x13, 0x21), UART_LE, bytes(0x2A, 0x2B));
+
+        AdvertisementParser parser = new AdvertisementParser().reset(data);
+        AdvertisementParser.Field field = new AdvertisementParser.Field();
+
+        assertTrue(parser.findManufacturerData(0x0059, field));
+        assertArrayEquals(bytes(0x01, 0x02), field.toByteArray());
+        assertFalse(parser.findManufacturerData(0x004C, field));
+
+        UUID battery = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+        assertTrue(parser.findServiceData(battery.getMostSignificantBits(), battery.getLeastSignificantBits(), field));
+        assertEquals(100, field.getUInt16(0));
+
+        assertTrue(parser.findServiceData(UART.getMostSignificantBits(), UART.getLeastSignificantBits(), field));
+        assertArrayEquals(bytes(0x2A, 0x2B), field.toByteArray());
+
+    }
+
+    @Test
+    public void readsInstanceIdAndDigest() {
+
+        byte[] data = bytes(0x0F, 0xFF, 0x1C, 0xEF, 0x78, 0x56, 0x34, 0x12, 1, 2, 3, 4, 5, 6, 7, 8);
+        AdvertisementParser parser = new AdvertisementParser().reset(data);
+        assertEquals(0x12345678L, parser.getInstanceId());
+        assertEquals(0x0807060504030201L, parser.getServiceDigest());
+
+        // Without a digest
+        parser.reset(bytes(0x07, 0xFF, 0x1C, 0xEF, 0x78, 0x56, 0x34, 0x12));
+        assertEquals(0x12345678L, parser.getInstanceId());
+        assertEquals(0, parser.getServiceDigest());
+
+    }
+
+    @Test
+    public void findsAppleOverflowArea() {
+
+        AdvertisementParser parser = new AdvertisementParser();
+        AdvertisementParser.Field field = new AdvertisementParser.Field();
+
+        assertTrue(parser.reset(bytes(0x06, 0xFF, 0x4C, 0x00, 0x01, 0x80, 0x00)).findAppleOverflowArea(field));
+        assertArrayEquals(bytes(0x80, 0x00), field.toByteArray());
+
+        // iBeacons use Apple's company ID with a different type
+        assertFalse(parser.reset(bytes(0x06, 0xFF, 0x4C, 0x00, 0x02, 0x15, 0x00)).hasAppleOverflowArea());
+
+    }
+
+    @Test
+    public void parsesPartOfAnArrayAndBuffers() {
+
+        byte[] advertisement = bytes(0x03, 0x03, 0x0D, 0x18);
+        byte[] padded = concat(bytes(0xEE, 0xEE), advertisement, bytes(0xEE));
+        UUID heartRate = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+
+        AdvertisementParser parser = new AdvertisementParser();
+        assertEquals(Arrays.asList(heartRate), uuids(parser.reset(padded, 2, advertisement.length)));
+
+        // Direct buffers are read in place, without changing their position
+        ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+        direct.put(padded);
+        direct.position(2).limit(2 + advertisement.length);
+        assertEquals(Arrays.asList(heartRate), uuids(parser.reset(direct)));
+        assertEquals(2, direct.position());
+
+    }
+
+    @Test
+    public void growsItsIndexForLongAdvertisements() {
+
+        // 40 TX power structures, more than the initial index holds
+        byte[] data = new byte[40 * 3];
+        for (int i = 0 ; i < 40 ; i++) {
+            data[i * 3] = 0x02;
+            data[i * 3 + 1] = 0x0A;
+            data[i * 3 + 2] = (byte) i;
+        }
+
+        AdvertisementParser parser = new AdvertisementParser().reset(data);
+        assertEquals(40, parser.getFieldCount());
+        assertEquals(39, parser.getField(39, new AdvertisementParser.Field()).get(0));
+
+    }
+
+}
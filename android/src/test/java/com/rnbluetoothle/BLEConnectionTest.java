@@ -0,0 +1,233 @@
+package com.rnbluetoothle;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BLEConnectionTest {
+
+    /** Test device */
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID SERVICE = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID CHARACTERISTIC = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final int PROPERTIES = BluetoothGattCharacteristic.PROPERTY_READ
+            | BluetoothGattCharacteristic.PROPERTY_WRITE
+            | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+
+    /** Time to wait for each step, in seconds */
+    private static final long TIMEOUT = 5;
+
+    private SimulatedRadio radio;
+    private SimulatedRadio.Peripheral peripheral;
+    private BLEConnection connection;
+
+    /** State changes seen by the listener */
+    private final List<BLEConnection.State> states = new ArrayList<>();
+
+    @BeforeClass
+    public static void disableLogging() {
+        BLELog.sink = BLELog.NONE;
+    }
+
+    @Before
+    public void setUp() {
+
+        // Fast, lossless peripheral
+        radio = new SimulatedRadio(1);
+        peripheral = radio.addPeripheral(ADDRESS, "Test");
+        peripheral.addCharacteristic(SERVICE, CHARACTERISTIC, PROPERTIES, new byte[] { 1, 2, 3 });
+        peripheral.latency = 1;
+        peripheral.connectionInterval = 7.5;
+
+        // Record state changes
+        connection = new BLEConnection(ADDRESS, radio);
+        connection.stateListener = (c, state, error, timeToReady) -> {
+            synchronized (states) {
+                states.add(state);
+                states.notifyAll();
+            }
+        };
+
+    }
+
+    @After
+    public void tearDown() {
+        connection.close(new Exception("Test finished."));
+        radio.shutdown();
+    }
+
+    /** Connect and discover services */
+    private void connectAndDiscover() throws Exception {
+        connection.connect().get(TIMEOUT, TimeUnit.SECONDS);
+        if (connection.needsDiscovery())
+            connection.discoverServices().get(TIMEOUT, TimeUnit.SECONDS);
+        connection.markReady();
+    }
+
+    /** Wait until the listener has seen a state, counting from an index */
+    private void awaitState(BLEConnection.State state, int from) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+        synchronized (states) {
+            while (states.subList(Math.min(from, states.size()), states.size()).indexOf(state) < 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    fail("Timed out waiting for " + state + ", states were " + states);
+                states.wait(remaining);
+            }
+        }
+    }
+
+    /** Number of state changes seen so far */
+    private int stateCount() {
+        synchronized (states) {
+            return states.size();
+        }
+    }
+
+    @Test
+    public void connectsReadsAndWrites() throws Exception {
+
+        connectAndDiscover();
+        assertEquals(BLEConnection.State.READY, connection.state);
+        assertEquals(PROPERTIES, connection.getCharacteristic(SERVICE, CHARACTERISTIC));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, connection.readCharacteristic(SERVICE, CHARACTERISTIC).get(TIMEOUT, TimeUnit.SECONDS));
+
+        // Write with response, and read it back
+        byte[] value = { 4, 5, 6, 7 };
+        connection.writeValue(SERVICE, CHARACTERISTIC, value, true).get(TIMEOUT, TimeUnit.SECONDS);
+        assertArrayEquals(value, peripheral.getValue(SERVICE, CHARACTERISTIC));
+        assertArrayEquals(value, connection.readCharacteristic(SERVICE, CHARACTERISTIC).get(TIMEOUT, TimeUnit.SECONDS));
+
+        // The listener saw the whole sequence
+        synchronized (states) {
+            assertEquals(Arrays.asList(
+                    BLEConnection.State.CONNECTING,
+                    BLEConnection.State.CONNECTED,
+                    BLEConnection.State.DISCOVERING,
+                    BLEConnection.State.READY), states);
+        }
+
+    }
+
+    @Test
+    public void reconnectsAfterTheLinkDrops() throws Exception {
+
+        connectAndDiscover();
+
+        // Drop the link
+        int before = stateCount();
+        peripheral.dropLinks();
+        awaitState(BLEConnection.State.DISCONNECTED, before);
+        assertFalse(connection.isConnected);
+
+        // Operations fail until reconnected
+        try {
+            connection.readCharacteristic(SERVICE, CHARACTERISTIC).get(TIMEOUT, TimeUnit.SECONDS);
+            fail("Read succeeded while disconnected");
+        } catch (Exception ex) {
+            assertEquals(BLEConnection.NOT_CONNECTED, ex.getMessage());
+        }
+
+        // Connect again, and use the link
+        connectAndDiscover();
+        assertTrue(connection.isConnected);
+        assertEquals(BLEConnection.State.READY, connection.state);
+        connection.writeValue(SERVICE, CHARACTERISTIC, new byte[] { 9 }, true).get(TIMEOUT, TimeUnit.SECONDS);
+        assertArrayEquals(new byte[] { 9 }, connection.readCharacteristic(SERVICE, CHARACTERISTIC).get(TIMEOUT, TimeUnit.SECONDS));
+
+    }
+
+    @Test
+    public void reconnectsByItselfAfterBackingOff() throws Exception {
+
+        // Reconnect in the background, like BLE does
+        connection.options.autoReconnect = true;
+        connection.onReconnect = () -> connection.connect(true);
+        connectAndDiscover();
+
+        // Drop the link, it should back off then connect again
+        int before = stateCount();
+        peripheral.dropLinks();
+        awaitState(BLEConnection.State.BACKOFF, before);
+        awaitState(BLEConnection.State.CONNECTED, before);
+        assertTrue(connection.isConnected);
+
+    }
+
+    @Test
+    public void failsAWriteInProgressWhenTheLinkDrops() throws Exception {
+
+        connectAndDiscover();
+
+        // Start a long write without response, then drop the link part way through
+        SettableFuture<WritePipeline.Result> write = new WritePipeline(connection, SERVICE, CHARACTERISTIC, new byte[200000], false).start();
+        Thread.sleep(50);
+        peripheral.dropLinks();
+
+        // It fails instead of retrying forever
+        try {
+            write.get(TIMEOUT, TimeUnit.SECONDS);
+            fail("Write succeeded after the link dropped");
+        } catch (Exception ex) {
+            assertFalse(ex instanceof TimeoutException);
+        }
+
+    }
+
+    @Test
+    public void failsAWriteInProgressWhenClosed() throws Exception {
+
+        connectAndDiscover();
+
+        // Start a long write with response, then close the connection
+        SettableFuture<WritePipeline.Result> write = new WritePipeline(connection, SERVICE, CHARACTERISTIC, new byte[20000], true).start();
+        Thread.sleep(50);
+        connection.close(new Exception("Closed by test."));
+
+        try {
+            write.get(TIMEOUT, TimeUnit.SECONDS);
+            fail("Write succeeded after the connection closed");
+        } catch (Exception ex) {
+            assertFalse(ex instanceof TimeoutException);
+        }
+
+    }
+
+    @Test
+    public void cantBeUsedAfterClosing() throws Exception {
+
+        connectAndDiscover();
+        connection.close(new Exception("Closed by test."));
+        assertEquals(BLEConnection.State.DISCONNECTED, connection.state);
+
+        // Connecting again fails, and doesn't open a link
+        CountDownLatch failed = new CountDownLatch(1);
+        connection.connect().addListener((value, err) -> {
+            assertNotNull(err);
+            failed.countDown();
+        });
+
+        assertTrue(failed.await(TIMEOUT, TimeUnit.SECONDS));
+        assertFalse(connection.isConnected);
+
+    }
+
+}
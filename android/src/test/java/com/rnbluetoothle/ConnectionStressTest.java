@@ -0,0 +1,221 @@
+package com.rnbluetoothle;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStressTest {
+
+    private static final UUID SERVICE = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID CHARACTERISTIC = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final int PROPERTIES = BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE;
+
+    /** Status of a failed read, and of a link lost to a supervision timeout */
+    private static final int GATT_ERROR = SimulatedRadio.GATT_ERROR;
+    private static final int GATT_CONN_TIMEOUT = SimulatedRadio.GATT_CONN_TIMEOUT;
+
+    /** Time to wait for each thread, in seconds */
+    private static final long TIMEOUT = 60;
+
+    @BeforeClass
+    public static void disableLogging() {
+        BLELog.sink = BLELog.NONE;
+    }
+
+    /** Add peripherals with one readable characteristic, and return their addresses */
+    private static List<String> addPeripherals(SimulatedRadio radio, int count, double disconnectChance) {
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0 ; i < count ; i++) {
+            String address = String.format("00:00:00:00:01:%02X", i);
+            SimulatedRadio.Peripheral peripheral = radio.addPeripheral(address, "Device " + i);
+            peripheral.addCharacteristic(SERVICE, CHARACTERISTIC, PROPERTIES, new byte[20]);
+            peripheral.latency = 0.2;
+            peripheral.connectionInterval = 1;
+            peripheral.disconnectChance = disconnectChance;
+            addresses.add(address);
+        }
+
+        return addresses;
+    }
+
+    @Test
+    public void completesEachPendingReadOnce() throws Exception {
+
+        // Race a successful read, a failed read and a disconnect for the same pending slot
+        BLEConnection connection = new BLEConnection("00:00:00:00:00:01", new SimulatedRadio(1));
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        int rounds = 200000;
+        AtomicInteger completions = new AtomicInteger();
+        try {
+            for (int i = 0 ; i < rounds ; i++) {
+
+                // Fill the slot
+                SettableFuture<byte[]> read = new SettableFuture<>();
+                AtomicInteger calls = new AtomicInteger();
+                read.addListener((value, err) -> {
+                    calls.incrementAndGet();
+                    completions.incrementAndGet();
+                });
+                connection.pendingCharacteristicRead.set(read);
+
+                // Complete it from three threads at once
+                CountDownLatch go = new CountDownLatch(1);
+                Future<?> success = threads.submit(() -> {
+                    go.await();
+                    connection.onCharacteristicRead(SERVICE, CHARACTERISTIC, new byte[1], 0);
+                    return null;
+                });
+                Future<?> failure = threads.submit(() -> {
+                    go.await();
+                    connection.onCharacteristicRead(SERVICE, CHARACTERISTIC, null, GATT_ERROR);
+                    return null;
+                });
+                Future<?> drop = threads.submit(() -> {
+                    go.await();
+                    connection.onConnectionStateChange(GATT_CONN_TIMEOUT, false);
+                    return null;
+                });
+
+                go.countDown();
+                success.get(TIMEOUT, TimeUnit.SECONDS);
+                failure.get(TIMEOUT, TimeUnit.SECONDS);
+                drop.get(TIMEOUT, TimeUnit.SECONDS);
+                assertEquals("Round " + i, 1, calls.get());
+
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+
+        assertEquals(rounds, completions.get());
+
+    }
+
+    @Test
+    public void readsFromManyConnectionsAtOnce() throws Exception {
+
+        // 16 devices, each read 200 times from its own thread
+        SimulatedRadio radio = new SimulatedRadio(7);
+        List<String> addresses = addPeripherals(radio, 16, 0);
+        ExecutorService threads = Executors.newFixedThreadPool(addresses.size());
+        int readsPerDevice = 200;
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (String address : addresses) {
+                BLEConnection connection = new BLEConnection(address, radio);
+                results.add(threads.submit(() -> {
+                    connection.connect().get(TIMEOUT, TimeUnit.SECONDS);
+                    connection.discoverServices().get(TIMEOUT, TimeUnit.SECONDS);
+
+                    int reads = 0;
+                    for (int i = 0 ; i < readsPerDevice ; i++) {
+                        assertEquals(20, connection.readCharacteristic(SERVICE, CHARACTERISTIC).get(TIMEOUT, TimeUnit.SECONDS).length);
+                        reads++;
+                    }
+
+                    connection.close(new Exception("Test finished."));
+                    return reads;
+                }));
+            }
+
+            int total = 0;
+            for (Future<Integer> result : results)
+                total += result.get(TIMEOUT, TimeUnit.SECONDS);
+
+            assertEquals(addresses.size() * readsPerDevice, total);
+        } finally {
+            threads.shutdownNow();
+            radio.shutdown();
+        }
+
+    }
+
+    @Test
+    public void poolHandlesEvictionsAndDropsFromManyThreads() throws Exception {
+
+        // More devices than the pool holds, with links that sometimes drop
+        SimulatedRadio radio = new SimulatedRadio(3);
+        List<String> addresses = addPeripherals(radio, 12, 0.02);
+        ConnectionPool pool = new ConnectionPool();
+        pool.configure(4, ConnectionPool.DEFAULT_IDLE_TIMEOUT);
+
+        // Use random devices from 8 threads, reporting state changes to the pool like BLE does
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        AtomicInteger reads = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0 ; t < 8 ; t++) {
+                Random random = new Random(t);
+                workers.add(threads.submit(() -> {
+                    for (int i = 0 ; i < 300 ; i++) {
+
+                        // Get a connection. It's refused if every connection is in use.
+                        BLEConnection connection;
+                        try {
+                            connection = pool.acquire(addresses.get(random.nextInt(addresses.size())), radio);
+                        } catch (Exception ex) {
+                            refused.incrementAndGet();
+                            continue;
+                        }
+
+                        // Read from it on the device's queue, since other threads share the connection. Drops and
+                        // evictions fail some reads, which is expected.
+                        connection.stateListener = (c, state, error, timeToReady) -> pool.recordState(state, timeToReady);
+                        try {
+                            connection.queue.submit(() -> connection.connect()
+                                    .then(v -> connection.needsDiscovery() ? connection.discoverServices() : SettableFuture.resolved(null))
+                                    .then(v -> connection.readCharacteristic(SERVICE, CHARACTERISTIC))
+                            ).get(TIMEOUT, TimeUnit.SECONDS);
+                            reads.incrementAndGet();
+                        } catch (Exception ex) {
+                            failures.incrementAndGet();
+                        } finally {
+                            pool.release(connection);
+                        }
+
+                    }
+                    return null;
+                }));
+            }
+
+            // Change the limit while they run
+            for (int i = 0 ; i < 50 ; i++) {
+                pool.configure(2 + i % 4, ConnectionPool.DEFAULT_IDLE_TIMEOUT);
+                Thread.sleep(2);
+            }
+
+            // Every worker finishes, so nothing deadlocked
+            for (Future<?> worker : workers)
+                worker.get(TIMEOUT, TimeUnit.SECONDS);
+
+        } finally {
+            threads.shutdownNow();
+            radio.shutdown();
+        }
+
+        // Only dropped links fail reads, and the pool never grew past the largest limit
+        assertEquals(8 * 300, reads.get() + refused.get() + failures.get());
+        assertTrue("Only " + reads.get() + " reads succeeded, " + failures.get() + " failed", reads.get() > failures.get() * 5);
+        assertTrue(pool.getStats().evictions > 0);
+        assertTrue(pool.getStats().size <= 5);
+
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.rnbluetoothle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeviceRegistryTest {
+
+    @Test
+    public void forgetsDevicesNotSeenRecently() {
+
+        // Add devices, more than the initial capacity
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.setTimeouts(1000, 5000);
+        for (int i = 0 ; i < 2000 ; i++)
+            registry.update(DeviceRegistry.formatAddress(i), "Device " + i, -50);
+
+        // Lost devices are kept until the forget timeout
+        long now = System.currentTimeMillis();
+        registry.sweep(now + 4000);
+        assertEquals(2000, registry.size());
+
+        // Then forgotten
+        registry.sweep(now + 6000);
+        assertEquals(0, registry.size());
+
+    }
+
+    @Test
+    public void snapshotsStrongestFirst() {
+
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.update("00:00:00:00:00:01", "Far", -90);
+        registry.update("00:00:00:00:00:02", "Near", -40);
+        registry.update("00:00:00:00:00:03", null, -60);
+
+        DeviceRegistry.Snapshot snapshot = registry.snapshot(new DeviceRegistry.Query());
+        assertEquals(3, snapshot.size());
+        assertEquals("Near", snapshot.names[0]);
+        assertEquals("00:00:00:00:00:03", DeviceRegistry.formatAddress(snapshot.addresses[1]));
+        assertEquals(-90, snapshot.rssi[2]);
+        assertEquals(0, snapshot.flags[0] & DeviceRegistry.FLAG_LOST);
+
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.rnbluetoothle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class LongTableTest {
+
+    /** A table with one column, holding a value for each key */
+    private static class Table implements LongTable.Columns {
+
+        final LongTable table = new LongTable(this);
+        long[] values;
+
+        @Override
+        public void resize(int capacity, int[] slots) {
+            long[] old = values;
+            values = new long[capacity];
+            if (slots == null)
+                return;
+
+            for (int i = 0 ; i < slots.length ; i++)
+                if (slots[i] >= 0)
+                    values[slots[i]] = old[i];
+        }
+
+        @Override
+        public void move(int from, int to) {
+            values[to] = values[from];
+        }
+
+        @Override
+        public void clear(int slot) {
+            values[slot] = -1;
+        }
+
+        void put(long key, long value) {
+            int slot = table.find(key);
+            if (slot < 0)
+                slot = table.insert(key);
+
+            values[slot] = value;
+        }
+
+    }
+
+    @Test
+    public void matchesAMapThroughGrowthAndRemoval() {
+
+        // Add, update and remove random keys from a small range, so probe runs collide and wrap
+        Table table = new Table();
+        table.table.clear(4);
+        HashMap<Long, Long> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0 ; i < 200000 ; i++) {
+            long key = random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                int slot = table.table.find(key);
+                if (slot >= 0)
+                    table.table.remove(slot);
+
+                assertEquals(expected.remove(key) != null, slot >= 0);
+            } else {
+                table.put(key, i);
+                expected.put(key, (long) i);
+            }
+        }
+
+        // Every key is found with its value
+        assertEquals(expected.size(), table.table.size);
+        for (Map.Entry<Long, Long> entry : expected.entrySet())
+            assertEquals((long) entry.getValue(), table.values[table.table.find(entry.getKey())]);
+
+    }
+
+    @Test
+    public void removesWhileIterating() {
+
+        // Remove every other key the way sweeps do, checking each slot again after a removal
+        Table table = new Table();
+        table.table.clear(8);
+        List<Long> keys = new ArrayList<>();
+        for (long key = 0 ; key < 1000 ; key++) {
+            table.put(key * 7919, key);
+            keys.add(key * 7919);
+        }
+
+        long[] slots = table.table.keys;
+        for (int slot = 0 ; slot < slots.length ; ) {
+            if (slots[slot] == LongTable.EMPTY || table.values[slot] % 2 == 0) {
+                slot++;
+                continue;
+            }
+
+            table.table.remove(slot);
+        }
+
+        assertEquals(500, table.table.size);
+        for (long key : keys)
+            assertEquals((key / 7919) % 2 == 0, table.table.find(key) >= 0);
+
+    }
+
+}
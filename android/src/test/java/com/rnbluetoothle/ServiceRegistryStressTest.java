@@ -0,0 +1,297 @@
+package com.rnbluetoothle;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Races the GATT server's service registry the way BLE uses it: services added and removed on the adapter queue,
+ * added() called from binder threads, and read requests looking up the database while values change. Android's
+ * BluetoothGattService can't be created outside a device, so services here are plain objects with the same shape.
+ */
+public class ServiceRegistryStressTest {
+
+    /** Time to wait for each thread, in seconds */
+    private static final long TIMEOUT = 60;
+
+    private static final int PERMISSIONS = BluetoothGattCharacteristic.PERMISSION_READ;
+
+    /** A service with a few characteristics, whose values can be changed like BluetoothGattCharacteristic.setValue() */
+    private static class Service {
+
+        final UUID uuid;
+        final List<UUID> characteristics = new ArrayList<>();
+        final ConcurrentHashMap<UUID, byte[]> values = new ConcurrentHashMap<>();
+
+        Service(UUID uuid, int characteristicCount) {
+            this.uuid = uuid;
+            for (int i = 0 ; i < characteristicCount ; i++) {
+                UUID chr = new UUID(uuid.getMostSignificantBits(), i);
+                characteristics.add(chr);
+                values.put(chr, counter(0));
+            }
+        }
+
+    }
+
+    /** A registry of test services */
+    private static ServiceRegistry<Service> registry() {
+        return new ServiceRegistry<>(service -> service.uuid, services -> {
+            GattDatabase.Builder builder = new GattDatabase.Builder();
+            for (Service service : services)
+                for (UUID chr : service.characteristics)
+                    builder.add(service.uuid, chr, new GattDatabase.Attribute(service.values.get(chr), PERMISSIONS, false, Collections.emptyMap()));
+
+            return builder.build();
+        });
+    }
+
+    /** A value holding a counter */
+    private static byte[] counter(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    private static long counter(byte[] value) {
+        return ByteBuffer.wrap(value).getLong();
+    }
+
+    @Test
+    public void completesEachPendingServiceOnce() throws Exception {
+
+        // The adapter queue adds services, while binder threads report them as added. A second report of each races
+        // the first, like a stack which reports twice.
+        ServiceRegistry<Service> registry = registry();
+        LinkedBlockingQueue<UUID> added = new LinkedBlockingQueue<>();
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        int count = 20000;
+        AtomicInteger completions = new AtomicInteger();
+        AtomicInteger reports = new AtomicInteger();
+        try {
+
+            // Stack callbacks. Each UUID is reported by both threads.
+            List<Future<?>> binders = new ArrayList<>();
+            LinkedBlockingQueue<UUID> again = new LinkedBlockingQueue<>();
+            binders.add(threads.submit(() -> {
+                for (int i = 0 ; i < count ; i++) {
+                    UUID uuid = added.poll(TIMEOUT, TimeUnit.SECONDS);
+                    again.put(uuid);
+                    if (registry.added(uuid, null))
+                        reports.incrementAndGet();
+                }
+                return null;
+            }));
+            binders.add(threads.submit(() -> {
+                for (int i = 0 ; i < count ; i++) {
+                    UUID uuid = again.poll(TIMEOUT, TimeUnit.SECONDS);
+                    if (registry.added(uuid, new Exception("Reported twice.")))
+                        reports.incrementAndGet();
+                }
+                return null;
+            }));
+
+            // Adapter queue
+            Future<List<SettableFuture<Void>>> adapter = threads.submit(() -> {
+                List<SettableFuture<Void>> promises = new ArrayList<>();
+                for (int i = 0 ; i < count ; i++) {
+                    Service service = new Service(new UUID(i, 0), 0);
+                    SettableFuture<Void> promise = registry.add(service);
+                    promise.addListener((v, err) -> completions.incrementAndGet());
+                    promises.add(promise);
+                    added.put(service.uuid);
+
+                    // Keep the list short, like services are replaced
+                    registry.remove(service.uuid);
+                }
+                return promises;
+            });
+
+            List<SettableFuture<Void>> promises = adapter.get(TIMEOUT, TimeUnit.SECONDS);
+            for (Future<?> binder : binders)
+                binder.get(TIMEOUT, TimeUnit.SECONDS);
+
+            // Every promise completed exactly once, by whichever report took it
+            for (SettableFuture<Void> promise : promises)
+                assertTrue(promise.isDone());
+
+        } finally {
+            threads.shutdownNow();
+        }
+
+        assertEquals(count, reports.get());
+        assertEquals(count, completions.get());
+        assertFalse(registry.added(new UUID(0, 0), null));
+
+    }
+
+    @Test
+    public void readsWhileServicesAreAddedAndRemoved() throws Exception {
+
+        // The adapter queue replaces and removes services, while readers iterate the list and look up the database
+        ServiceRegistry<Service> registry = registry();
+        List<Service> all = new ArrayList<>();
+        for (int i = 0 ; i < 16 ; i++)
+            all.add(new Service(new UUID(i + 1, 0), 4));
+
+        ExecutorService threads = Executors.newFixedThreadPool(5);
+        AtomicBoolean running = new AtomicBoolean(true);
+        try {
+
+            // Readers. Each service in a database snapshot is complete, and lists never fail while changing.
+            List<Future<Integer>> readers = new ArrayList<>();
+            for (int t = 0 ; t < 4 ; t++) {
+                readers.add(threads.submit(() -> {
+                    int lookups = 0;
+                    while (running.get()) {
+                        for (Service service : registry.services)
+                            assertNotNull(service.uuid);
+
+                        GattDatabase database = registry.database;
+                        for (Service service : all) {
+                            if (database.find(service.uuid, service.characteristics.get(0)) == null)
+                                continue;
+
+                            for (UUID chr : service.characteristics)
+                                assertNotNull(database.find(service.uuid, chr));
+
+                            lookups++;
+                        }
+                    }
+                    return lookups;
+                }));
+            }
+
+            // Adapter queue, like createService and removeService
+            Future<?> adapter = threads.submit(() -> {
+                Random random = new Random(1);
+                for (int i = 0 ; i < 20000 ; i++) {
+                    Service service = all.get(random.nextInt(all.size()));
+                    registry.remove(service.uuid);
+                    if (random.nextBoolean()) {
+                        registry.add(service);
+                        registry.added(service.uuid, null);
+                    }
+                }
+                return null;
+            });
+
+            adapter.get(TIMEOUT, TimeUnit.SECONDS);
+            running.set(false);
+            int lookups = 0;
+            for (Future<Integer> reader : readers)
+                lookups += reader.get(TIMEOUT, TimeUnit.SECONDS);
+
+            assertTrue(lookups > 0);
+
+        } finally {
+            running.set(false);
+            threads.shutdownNow();
+        }
+
+        // The list never holds a service twice, and the database matches it
+        List<UUID> uuids = new ArrayList<>();
+        for (Service service : registry.services) {
+            assertFalse(uuids.contains(service.uuid));
+            uuids.add(service.uuid);
+        }
+        for (Service service : all)
+            assertEquals(uuids.contains(service.uuid), registry.database.find(service.uuid, service.characteristics.get(0)) != null);
+
+    }
+
+    @Test
+    public void keepsEveryValueWhileRecompiling() throws Exception {
+
+        // Writers store counters in their own characteristics, while the database is recompiled from the services
+        ServiceRegistry<Service> registry = registry();
+        Service service = new Service(UUID.randomUUID(), 4);
+        registry.add(service);
+
+        ExecutorService threads = Executors.newFixedThreadPool(7);
+        AtomicBoolean running = new AtomicBoolean(true);
+        int writes = 20000;
+        CountDownLatch go = new CountDownLatch(1);
+        try {
+
+            // Writers, like GATTListener storing written values
+            List<Future<?>> writers = new ArrayList<>();
+            for (UUID chr : service.characteristics) {
+                writers.add(threads.submit(() -> {
+                    go.await();
+                    for (long i = 1 ; i <= writes ; i++) {
+                        byte[] value = counter(i);
+                        registry.update(database -> {
+                            service.values.put(chr, value);
+                            return database.withValue(service.uuid, chr, value);
+                        });
+                    }
+                    return null;
+                }));
+            }
+
+            // Recompiles, like other services being registered
+            Future<?> compiler = threads.submit(() -> {
+                go.await();
+                while (running.get())
+                    registry.compile();
+                return null;
+            });
+
+            // Readers. Each characteristic's counter never goes backwards.
+            List<Future<?>> readers = new ArrayList<>();
+            for (int t = 0 ; t < 2 ; t++) {
+                readers.add(threads.submit(() -> {
+                    go.await();
+                    long[] last = new long[service.characteristics.size()];
+                    while (running.get()) {
+                        for (int c = 0 ; c < last.length ; c++) {
+                            long value = counter(registry.database.find(service.uuid, service.characteristics.get(c)).value);
+                            assertTrue(value >= last[c]);
+                            last[c] = value;
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            go.countDown();
+            for (Future<?> writer : writers)
+                writer.get(TIMEOUT, TimeUnit.SECONDS);
+
+            running.set(false);
+            compiler.get(TIMEOUT, TimeUnit.SECONDS);
+            for (Future<?> reader : readers)
+                reader.get(TIMEOUT, TimeUnit.SECONDS);
+
+        } finally {
+            running.set(false);
+            threads.shutdownNow();
+        }
+
+        // No write was lost to a recompile
+        for (UUID chr : service.characteristics)
+            assertEquals(writes, counter(registry.database.find(service.uuid, chr).value));
+
+    }
+
+}
@@ -254,7 +254,7 @@
     }
     
     /// Called when the user wants to initiate a scan
-    RCT_REMAP_METHOD(scan, scanWithServiceFilter:(NSArray*)services resolver:(RCTPromiseResolveBlock)resolve rejecter:(RCTPromiseRejectBlock)reject) {
+    RCT_REMAP_METHOD(scan, scanWithServiceFilter:(NSArray*)services options:(NSDictionary*)options resolver:(RCTPromiseResolveBlock)resolve rejecter:(RCTPromiseRejectBlock)reject) {
         
         // Do on operation queue
         [self withResolver:resolve rejecter:reject do:^id{
@@ -358,6 +358,7 @@
     RCT_REMAP_METHOD(readCharacteristic, readCharacteristicWithDeviceID:(NSString*)deviceID
                      serviceUUID:(NSString*)serviceUUID
                      characteristicUUID:(NSString*)chrUUID
+                     options:(NSDictionary*)options
                      resolver:(RCTPromiseResolveBlock)resolve
                      rejecter:(RCTPromiseRejectBlock)reject) {
         